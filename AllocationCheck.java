@@ -0,0 +1,171 @@
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+/**
+ * A check that the encode path allocates no more per message as a room grows, and takes no new
+ * buffers from the pool once it is warm. It goes the way EncodeBenchmark does: a message posted
+ * to a room is encoded into a pooled buffer, queued for every member, and copied out by each
+ * member's writer into a pooled output buffer and released, as lines and as frames.
+ * <p>
+ * The bytes allocated on the heap are read from the JVM's count for the thread, so a message
+ * costs only its ChatMessage object, whatever the number of recipients. A message costing more
+ * than MAX_BYTES_PER_MESSAGE, or more for many recipients than for one, or the pool having to
+ * allocate more buffers, fails the check, and the exit status is 1.
+ */
+public class AllocationCheck {
+
+    // Room for the ChatMessage object and its fields, which each message has to have.
+    public static final long MAX_BYTES_PER_MESSAGE = 128;
+    private static final String TEXT = "a message of about the length people usually type, h\u00e9llo";
+    private static final int QUEUE_CAPACITY = 1024;
+
+    private final int messageCount;
+    private final com.sun.management.ThreadMXBean threads;
+
+    /**
+     * Allocation check constructor.
+     *
+     * @param messageCount : The number of messages measured for each case, after as many to warm up.
+     */
+    public AllocationCheck(int messageCount) {
+        this.messageCount = Math.max(1, messageCount);
+        this.threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    /**
+     * Measures each case, lines and frames to 1 and 100 recipients.
+     *
+     * @return : True if every check passed.
+     */
+    public boolean run() {
+        boolean passed = true;
+        for (boolean framed : new boolean[] {false, true}) {
+            long one = measure(1, framed);
+            long many = measure(100, framed);
+            String protocol = framed ? "frames" : "lines";
+            if (one < 0 || many < 0) {
+                System.out.println("FAILED: " + protocol + " took new buffers from the pool once it was warm.");
+                passed = false;
+                continue;
+            }
+            if (many > MAX_BYTES_PER_MESSAGE) {
+                System.out.println("FAILED: " + protocol + " allocated " + many + " bytes per message, more than "
+                        + MAX_BYTES_PER_MESSAGE + ".");
+                passed = false;
+            }
+            if (many > one) {
+                System.out.println("FAILED: " + protocol + " allocated more per message for 100 recipients than for 1.");
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    /**
+     * Warms the path up, then measures the heap bytes allocated per message and checks that the
+     * pool allocated no more buffers while measuring.
+     *
+     * @param recipients : The number of members of the room.
+     * @param framed     : Whether the members are sent frames rather than lines.
+     * @return : The bytes allocated per message, or -1 if the pool allocated more buffers.
+     */
+    private long measure(int recipients, boolean framed) {
+        Encoding encoding = new Encoding(recipients, framed);
+        try {
+            for (int i = 0; i < messageCount; i++) {
+                encoding.encodeAndWrite();
+            }
+            long poolBefore = BufferPool.SHARED.getAllocatedBytes();
+            long before = threads.getCurrentThreadAllocatedBytes();
+            for (int i = 0; i < messageCount; i++) {
+                encoding.encodeAndWrite();
+            }
+            long perMessage = (threads.getCurrentThreadAllocatedBytes() - before) / messageCount;
+            long poolGrowth = BufferPool.SHARED.getAllocatedBytes() - poolBefore;
+            System.out.println((framed ? "frames" : "lines") + " recipients " + recipients
+                    + " bytes_per_message " + perMessage + " pool_bytes_allocated " + poolGrowth);
+            return poolGrowth > 0 ? -1 : perMessage;
+        } finally {
+            encoding.close();
+        }
+    }
+
+    /**
+     * A room whose members are only outbound queues, whose writers are driven by hand.
+     */
+    private static final class Encoding {
+
+        private final Room room = new Room("check", 1, 1);
+        private final RemoteMember origin = new RemoteMember("checker");
+        private final OutboundQueue[] queues;
+        private final boolean framed;
+        private final ChatMessage[] batch = new ChatMessage[1];
+        private final ByteBuffer output = BufferPool.SHARED.acquire(16 * 1024);
+        private long globalSequence = 0;
+
+        private Encoding(int recipients, boolean framed) {
+            this.framed = framed;
+            queues = new OutboundQueue[recipients];
+            for (int i = 0; i < recipients; i++) {
+                queues[i] = new OutboundQueue(QUEUE_CAPACITY);
+            }
+        }
+
+        /**
+         * Posts a message to the room, queues it for every member, and has every member's writer
+         * copy it out and release it.
+         */
+        private void encodeAndWrite() {
+            ChatMessage message = room.post(origin, TEXT, ++globalSequence);
+            for (OutboundQueue queue : queues) {
+                queue.offer(message);
+            }
+            message.release();
+            for (OutboundQueue queue : queues) {
+                int count = queue.drainTo(batch);
+                for (int i = 0; i < count; i++) {
+                    ChatMessage queued = batch[i];
+                    batch[i] = null;
+                    int length = queued.encodedLength(framed);
+                    int offset = 0;
+                    while (offset < length) {
+                        output.clear();
+                        offset += queued.copyTo(framed, offset, output);
+                    }
+                    queued.release();
+                }
+            }
+        }
+
+        private void close() {
+            BufferPool.SHARED.release(output);
+        }
+    }
+
+    /**
+     * Main method of AllocationCheck. Parses the command line, runs the check, and exits with
+     * status 1 if it failed.
+     *
+     * @param args : Command line arguments.
+     */
+    public static void main(String[] args) {
+        // Set default arguments.
+        int messageCount = 200000;
+        // Parse command line arguments.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-messages")) {
+                    messageCount = Integer.parseInt(args[i + 1]);
+                }
+            }
+            // Catch errors and allow defaults through.
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid arguments. Using defaults instead.");
+        } catch (IndexOutOfBoundsException ioe) {
+            System.out.println("Incorrect argument format. Using defaults instead.");
+        }
+        boolean passed = new AllocationCheck(messageCount).run();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -0,0 +1,31 @@
+/**
+ * This is an interface which defines how a bot answers a command. A handler is registered
+ * for a command with a BotDispatcher, and is handed whatever follows the command in the
+ * message, so that commands can take arguments.
+ * <p>
+ * A handler registered as asynchronous is run on the dispatcher's executor rather than the
+ * thread reading from the server, so it may take its time; any other handler must return
+ * straight away. A handler may be run by several threads at once.
+ */
+public interface BotCommandHandler {
+
+    /**
+     * Answers a command.
+     *
+     * @param sender    : The username of whoever sent the command.
+     * @param arguments : What followed the command and a space, or an empty string.
+     * @return : The reply to send, or null to send nothing.
+     * @throws Exception : If the command could not be answered, in which case nothing is sent.
+     */
+    String handle(String sender, String arguments) throws Exception;
+
+    /**
+     * A handler that always gives the same reply, as every command did before handlers.
+     *
+     * @param reply : The reply.
+     * @return : The handler.
+     */
+    static BotCommandHandler reply(String reply) {
+        return (sender, arguments) -> reply;
+    }
+}
@@ -0,0 +1,458 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * The commands a chat bot answers, and the handler that answers each. A table is compiled
+ * once into a trie of the commands' characters and never changed afterwards, so a single
+ * table can be shared by every bot in a process, whichever thread each bot reads on. A
+ * BotDispatcher swaps in a new table to change the commands.
+ * <p>
+ * A message is matched by walking the trie from the text after its first colon and space,
+ * one character at a time, without a regular expression or a copy of the text, so that the
+ * messages that are not commands, which are most of them, cost nothing but the walk. A
+ * command that takes arguments matches when it is followed by a space, and the longest
+ * matching command wins. A plain reply only matches the whole text, as it always has.
+ * <p>
+ * The exit command is not part of any table: every bot answers it, and closes.
+ */
+public final class BotCommands {
+
+    public static final String EXIT_COMMAND = "!EXIT";
+    public static final String EXIT_REPLY = "Shutting down bot...";
+    private static final Entry EXIT = new Entry(EXIT_COMMAND, BotCommandHandler.reply(EXIT_REPLY), false, false);
+
+    /**
+     * The commands every bot has answered from the start.
+     */
+    public static final BotCommands DEFAULT = addDefaultHandlers(builder().replies(defaultReplies())).build();
+
+    private final Node root;
+    private final Map<String, Entry> entries;
+
+    /**
+     * Command table constructor, which compiles the trie.
+     *
+     * @param entries : The entry of each command.
+     */
+    private BotCommands(Map<String, Entry> entries) {
+        this.entries = Collections.unmodifiableMap(new LinkedHashMap<>(entries));
+        this.root = new Node();
+        for (Entry entry : entries.values()) {
+            Node node = root;
+            for (int i = 0; i < entry.command.length(); i++) {
+                node = node.childOrNew(entry.command.charAt(i));
+            }
+            node.entry = entry;
+        }
+    }
+
+    /**
+     * Starts a new, empty table.
+     *
+     * @return : A builder for the table.
+     */
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * The default command-reply pairs.
+     * Add .put calls in the format:
+     * .put("Command keyword", "Reply")
+     * to add commands to every bot.
+     *
+     * @return : The reply to each default command.
+     */
+    public static Map<String, String> defaultReplies() {
+        Map<String, String> promptsToReplies = new HashMap<>();
+        promptsToReplies.put("!smiley", ":-)");
+        promptsToReplies.put("!square", "#####\n#...#\n#...#\n#...#\n#####");
+        promptsToReplies.put("!huey", "You like Huey Lewis and the News?");
+        promptsToReplies.put("!hello", "Hello there!");
+        return promptsToReplies;
+    }
+
+    /**
+     * Adds the handlers every bot has, which are code rather than replies, so are kept
+     * whatever replies are loaded.
+     *
+     * @param builder : The builder to add them to.
+     * @return : The builder.
+     */
+    public static Builder addDefaultHandlers(Builder builder) {
+        return builder.handler("!roll", BotCommands::roll, true, false);
+    }
+
+    /**
+     * Answers "!roll [sides]" with a roll of a die, six-sided unless told otherwise.
+     *
+     * @param sender    : Whoever rolled.
+     * @param arguments : The number of sides, if given.
+     * @return : The roll.
+     */
+    private static String roll(String sender, String arguments) {
+        int sides = 6;
+        if (!arguments.isEmpty()) {
+            try {
+                sides = Integer.parseInt(arguments);
+            } catch (NumberFormatException e) {
+                sides = 0;
+            }
+            if (sides < 2) {
+                return "Usage: !roll [sides], with at least 2 sides.";
+            }
+        }
+        return sender + " rolled " + ThreadLocalRandom.current().nextInt(1, sides + 1) + ".";
+    }
+
+    /**
+     * Loads a table of replies from a file. Each line is a command, a space and its reply, in
+     * which "\n" stands for a line break. Blank lines and lines starting with '#' are skipped.
+     *
+     * @param file : The file to load.
+     * @return : The command table.
+     * @throws IOException : If the file could not be read, or holds a line without a reply.
+     */
+    public static BotCommands load(Path file) throws IOException {
+        return builder().replies(loadReplies(file)).build();
+    }
+
+    /**
+     * Reads the replies in a file, in the format load() takes.
+     *
+     * @param file : The file to read.
+     * @return : The reply to each command in the file.
+     * @throws IOException : If the file could not be read, or holds a line without a reply.
+     */
+    public static Map<String, String> loadReplies(Path file) throws IOException {
+        Map<String, String> promptsToReplies = new LinkedHashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.strip();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    throw new IOException("Line " + lineNumber + " of " + file + " has no reply");
+                }
+                promptsToReplies.put(line.substring(0, space), line.substring(space + 1).strip().replace("\\n", "\n"));
+            }
+        }
+        return promptsToReplies;
+    }
+
+    /**
+     * Finds the command a message holds, if any. The command is looked for in the text after
+     * the first colon and space, up to the next one, so that a typical message, "User0: foo",
+     * is read as "foo". Nothing is allocated unless the message holds a command.
+     *
+     * @param message : A message from the server.
+     * @return : The command matched, or null if the message holds none.
+     */
+    public Match match(String message) {
+        int separator = separatorAfter(message, 0);
+        if (separator < 0) {
+            return null;
+        }
+        int start = separator + 2;
+        int end = separatorAfter(message, start);
+        if (end < 0) {
+            end = message.length();
+        }
+        Entry matched = null;
+        int matchedEnd = -1;
+        if (end - start == EXIT_COMMAND.length() && message.startsWith(EXIT_COMMAND, start)) {
+            matched = EXIT;
+            matchedEnd = end;
+        } else {
+            Node node = root;
+            for (int i = start; node != null; i++) {
+                Entry entry = node.entry;
+                if (entry != null && (i == end || (entry.takesArguments && message.charAt(i) == ' '))) {
+                    matched = entry;
+                    matchedEnd = i;
+                }
+                if (i == end) {
+                    break;
+                }
+                node = node.child(message.charAt(i));
+            }
+            if (matched == null) {
+                return null;
+            }
+        }
+        // Skip the room name that messages outside the lobby start with.
+        int senderStart = 0;
+        if (message.startsWith("[")) {
+            int close = message.indexOf("] ");
+            if (close >= 0 && close < separator) {
+                senderStart = close + 2;
+            }
+        }
+        String arguments = matchedEnd == end ? "" : message.substring(matchedEnd + 1, end).strip();
+        return new Match(matched, message.substring(senderStart, separator), arguments);
+    }
+
+    /**
+     * The index of the next colon followed by whitespace, as the regular expression "[:]\s"
+     * matches it.
+     *
+     * @param message : The message.
+     * @param from    : The index to search from.
+     * @return : The index of the colon, or -1 if there is none.
+     */
+    private static int separatorAfter(String message, int from) {
+        int colon = message.indexOf(':', from);
+        while (colon >= 0 && colon + 1 < message.length()) {
+            char next = message.charAt(colon + 1);
+            if (next == ' ' || next == '\t' || next == '\n' || next == '\u000B' || next == '\f' || next == '\r') {
+                return colon;
+            }
+            colon = message.indexOf(':', colon + 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Interprets a message from the server as a possible command, running its handler on the
+     * calling thread whether or not it is asynchronous.
+     *
+     * @param message : The message from the server.
+     * @return : The reply to send back, EXIT_REPLY for the exit command, or null if the
+     *           message is not a command.
+     */
+    public String replyTo(String message) {
+        return replyTo(message, null);
+    }
+
+    /**
+     * Interprets a message from the server as a possible command, answering only some of the
+     * commands in the table, and running the handler on the calling thread.
+     *
+     * @param message : The message from the server.
+     * @param enabled : The commands to answer, or null to answer every command in the table.
+     *                The exit command is always answered.
+     * @return : The reply to send back, EXIT_REPLY for the exit command, or null if the
+     *           message is not a command that is answered.
+     */
+    public String replyTo(String message, Set<String> enabled) {
+        Match match = match(message);
+        if (match == null || !match.isEnabled(enabled)) {
+            return null;
+        }
+        return match.run();
+    }
+
+    /**
+     * The commands in the table.
+     *
+     * @return : The commands, which cannot be changed.
+     */
+    public Set<String> getCommands() {
+        return entries.keySet();
+    }
+
+    /**
+     * Collects the commands of a table before it is compiled. A command added twice keeps
+     * whichever was added last.
+     */
+    public static final class Builder {
+
+        private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+        private Builder() {
+        }
+
+        /**
+         * Adds a command that always gives the same reply, and takes no arguments.
+         *
+         * @param command : The command.
+         * @param reply   : The reply.
+         * @return : The builder.
+         */
+        public Builder reply(String command, String reply) {
+            return add(new Entry(command, BotCommandHandler.reply(reply), false, false));
+        }
+
+        /**
+         * Adds a command for each reply.
+         *
+         * @param promptsToReplies : The reply to each command.
+         * @return : The builder.
+         */
+        public Builder replies(Map<String, String> promptsToReplies) {
+            for (Map.Entry<String, String> pair : promptsToReplies.entrySet()) {
+                reply(pair.getKey(), pair.getValue());
+            }
+            return this;
+        }
+
+        /**
+         * Adds a command answered by a handler.
+         *
+         * @param command        : The command.
+         * @param handler        : The handler.
+         * @param takesArguments : Whether the command may be followed by a space and arguments.
+         * @param async          : Whether the handler is run off the thread reading from the server.
+         * @return : The builder.
+         */
+        public Builder handler(String command, BotCommandHandler handler, boolean takesArguments, boolean async) {
+            return add(new Entry(command, handler, takesArguments, async));
+        }
+
+        /**
+         * Adds every command of another builder.
+         *
+         * @param other : The other builder.
+         * @return : The builder.
+         */
+        public Builder include(Builder other) {
+            for (Entry entry : other.entries.values()) {
+                add(entry);
+            }
+            return this;
+        }
+
+        private Builder add(Entry entry) {
+            if (entry.command.isEmpty() || entry.command.indexOf(' ') >= 0 || entry.command.equals(EXIT_COMMAND)) {
+                throw new IllegalArgumentException("Invalid command '" + entry.command + "'");
+            }
+            entries.put(entry.command, entry);
+            return this;
+        }
+
+        /**
+         * Compiles the table.
+         *
+         * @return : The table.
+         */
+        public BotCommands build() {
+            return new BotCommands(entries);
+        }
+    }
+
+    /**
+     * A command in a table, and how it is answered.
+     */
+    private static final class Entry {
+
+        private final String command;
+        private final BotCommandHandler handler;
+        private final boolean takesArguments;
+        private final boolean async;
+
+        private Entry(String command, BotCommandHandler handler, boolean takesArguments, boolean async) {
+            this.command = command;
+            this.handler = handler;
+            this.takesArguments = takesArguments;
+            this.async = async;
+        }
+    }
+
+    /**
+     * A command found in a message, ready to be answered.
+     */
+    public static final class Match {
+
+        private final Entry entry;
+        private final String sender;
+        private final String arguments;
+
+        private Match(Entry entry, String sender, String arguments) {
+            this.entry = entry;
+            this.sender = sender;
+            this.arguments = arguments;
+        }
+
+        public String getCommand() {
+            return entry.command;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getArguments() {
+            return arguments;
+        }
+
+        public boolean isAsync() {
+            return entry.async;
+        }
+
+        public boolean isExit() {
+            return entry == EXIT;
+        }
+
+        /**
+         * Whether a bot answers the command.
+         *
+         * @param enabled : The commands the bot answers, or null for every command. The exit
+         *                command is always answered.
+         * @return : True if the command is answered.
+         */
+        public boolean isEnabled(Set<String> enabled) {
+            return enabled == null || isExit() || enabled.contains(entry.command);
+        }
+
+        /**
+         * Runs the command's handler on the calling thread.
+         *
+         * @return : The reply, or null if there is none or the handler failed.
+         */
+        public String run() {
+            try {
+                return entry.handler.handle(sender, arguments);
+            } catch (Exception e) {
+                System.out.println("Command " + entry.command + " failed: " + e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A node of the trie, for the commands that start with the characters on the way to it.
+     * The children are kept in small arrays searched in order, as most nodes have one child.
+     */
+    private static final class Node {
+
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Entry entry;
+
+        private Node child(char key) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        private Node childOrNew(char key) {
+            Node child = child(key);
+            if (child == null) {
+                child = new Node();
+                keys = Arrays.copyOf(keys, keys.length + 1);
+                children = Arrays.copyOf(children, children.length + 1);
+                keys[keys.length - 1] = key;
+                children[children.length - 1] = child;
+            }
+            return child;
+        }
+    }
+}
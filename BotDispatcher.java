@@ -0,0 +1,262 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Dispatches the commands bots read to their handlers, from a BotCommands table that can be
+ * swapped for a new one while the bots run. A table is made of replies, which are data and
+ * may be loaded from a file, and handlers, which are code and are registered here. Each
+ * change compiles a new table, which readers pick up on their next message without locking.
+ * <p>
+ * Given a file, the dispatcher can watch it, and reload the replies whenever it changes. A
+ * file that cannot be read or parsed leaves the table as it was.
+ * <p>
+ * Handlers registered as asynchronous run on a bounded pool of threads, started when the
+ * first such handler is registered, so that a slow handler never holds up reading from the
+ * server. A command that arrives while every thread is busy and the queue is full is
+ * dropped and counted, rather than blocking the reader.
+ */
+public class BotDispatcher {
+
+    public static final int DEFAULT_THREADS = 4;
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+    public static final long RELOAD_CHECK_MILLIS = 1000;
+
+    private final BotCommands.Builder handlers = BotCommands.addDefaultHandlers(BotCommands.builder());
+    private final int threads;
+    private final int queueCapacity;
+    private volatile BotCommands commands;
+    private Map<String, String> replies = BotCommands.defaultReplies();
+    private Path file = null;
+    private FileTime fileModified = null;
+    private volatile ThreadPoolExecutor executor = null;
+    private Thread watcher = null;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong reloads = new AtomicLong();
+
+    /**
+     * Dispatcher constructor, with the default replies and handlers, and a pool of
+     * DEFAULT_THREADS threads for asynchronous handlers.
+     */
+    public BotDispatcher() {
+        this(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Dispatcher constructor, with the default replies and handlers.
+     *
+     * @param threads       : The number of threads asynchronous handlers run on.
+     * @param queueCapacity : The number of commands that may wait for one of those threads.
+     */
+    public BotDispatcher(int threads, int queueCapacity) {
+        this.threads = Math.max(1, threads);
+        this.queueCapacity = Math.max(1, queueCapacity);
+        this.commands = compile();
+    }
+
+    /**
+     * Registers a handler for a command, replacing any reply or handler the command had.
+     *
+     * @param command        : The command.
+     * @param handler        : The handler.
+     * @param takesArguments : Whether the command may be followed by a space and arguments.
+     * @param async          : Whether the handler is run on the dispatcher's threads.
+     */
+    public synchronized void register(String command, BotCommandHandler handler, boolean takesArguments, boolean async) {
+        handlers.handler(command, handler, takesArguments, async);
+        if (async && executor == null) {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                        Thread thread = new Thread(runnable, "BotDispatcher-" + threadCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+        }
+        commands = compile();
+    }
+
+    /**
+     * Replaces the replies with those in a file, and remembers the file so that it can be
+     * reloaded. See BotCommands.load() for the format.
+     *
+     * @param file : The file.
+     * @throws IOException : If the file could not be read or parsed, in which case the replies are kept.
+     */
+    public synchronized void load(Path file) throws IOException {
+        FileTime modified = Files.getLastModifiedTime(file);
+        replies = BotCommands.loadReplies(file);
+        this.file = file;
+        this.fileModified = modified;
+        commands = compile();
+    }
+
+    /**
+     * Reloads the file the replies were loaded from, if it has changed since.
+     *
+     * @return : True if the replies were reloaded.
+     * @throws IOException : If the file could not be read or parsed, in which case the replies are kept.
+     */
+    public synchronized boolean reloadIfChanged() throws IOException {
+        if (file == null || Files.getLastModifiedTime(file).equals(fileModified)) {
+            return false;
+        }
+        load(file);
+        reloads.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Starts a thread that checks the file the replies were loaded from every
+     * RELOAD_CHECK_MILLIS, and reloads it when it changes.
+     */
+    public synchronized void watch() {
+        if (watcher != null || file == null) {
+            return;
+        }
+        watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(RELOAD_CHECK_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                try {
+                    if (reloadIfChanged()) {
+                        System.out.println("Reloaded the bot commands from " + file + ".");
+                    }
+                } catch (IOException e) {
+                    System.out.println("Could not reload the bot commands: " + e.getMessage());
+                    // Wait for the file to change again rather than reporting the same failure every check.
+                    synchronized (this) {
+                        try {
+                            fileModified = Files.getLastModifiedTime(file);
+                        } catch (IOException me) {
+                            // The file is gone, and is checked for again next time.
+                        }
+                    }
+                }
+            }
+        }, "BotDispatcher-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    private BotCommands compile() {
+        return BotCommands.builder().replies(replies).include(handlers).build();
+    }
+
+    /**
+     * The current table.
+     *
+     * @return : The table.
+     */
+    public BotCommands getCommands() {
+        return commands;
+    }
+
+    /**
+     * Answers a message if it is a command. A command with an asynchronous handler is handed
+     * to the dispatcher's threads, and its reply given to asyncReplies on one of them; any
+     * other command is answered on the calling thread.
+     *
+     * @param message      : The message from the server.
+     * @param enabled      : The commands to answer, or null to answer every command.
+     * @param asyncReplies : Where the replies of asynchronous handlers are given, on the
+     *                     dispatcher's threads. Only given replies that are not null.
+     * @return : The reply to send now, BotCommands.EXIT_REPLY for the exit command, or null if
+     *           there is nothing to send now.
+     */
+    public String dispatch(String message, Set<String> enabled, Consumer<String> asyncReplies) {
+        BotCommands.Match match = match(message, enabled);
+        if (match == null) {
+            return null;
+        }
+        if (match.isAsync()) {
+            submit(match, asyncReplies);
+            return null;
+        }
+        return match.run();
+    }
+
+    /**
+     * Finds the command a message holds in the current table, if it is one that is answered.
+     *
+     * @param message : The message from the server.
+     * @param enabled : The commands to answer, or null to answer every command.
+     * @return : The command, or null if the message holds none that is answered.
+     */
+    public BotCommands.Match match(String message, Set<String> enabled) {
+        BotCommands.Match match = commands.match(message);
+        return match == null || !match.isEnabled(enabled) ? null : match;
+    }
+
+    /**
+     * Hands a command to the dispatcher's threads to be answered, or answers it on the calling
+     * thread if no asynchronous handler has been registered.
+     *
+     * @param match   : The command.
+     * @param replies : Where the reply is given, if it is not null.
+     * @return : False if the command was dropped as every thread was busy and the queue was full.
+     */
+    public boolean submit(BotCommands.Match match, Consumer<String> replies) {
+        ThreadPoolExecutor executor = this.executor;
+        Runnable answer = () -> {
+            String reply = match.run();
+            if (reply != null) {
+                replies.accept(reply);
+            }
+        };
+        if (executor == null) {
+            answer.run();
+            return true;
+        }
+        try {
+            executor.execute(answer);
+            return true;
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * The number of commands dropped because every thread was busy and the queue was full.
+     *
+     * @return : The commands dropped.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * The number of times the file has been reloaded after changing.
+     *
+     * @return : The reloads.
+     */
+    public long getReloads() {
+        return reloads.get();
+    }
+
+    /**
+     * Stops the watcher and the dispatcher's threads. Asynchronous commands not yet run are dropped.
+     */
+    public synchronized void close() {
+        if (watcher != null) {
+            watcher.interrupt();
+        }
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,578 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A host that runs many chat bots in one process, each with its own connection to the server,
+ * all on a single thread that waits on every connection at once with a selector. A ChatBot
+ * needs a thread blocked on its socket and a JVM to itself when run from ChatClient; a
+ * BotSession needs only its socket and the part of a message it has not read the rest of.
+ * <p>
+ * Every bot answers through the same dispatcher, so from the same command table, loaded once
+ * and reloaded when its file changes. Commands with asynchronous handlers are answered on the
+ * dispatcher's threads, and their replies handed back to the host's thread to be written.
+ * The bots are configured in groups, each group with its own room, protocol and choice of
+ * commands. The host measures,
+ * across every bot, how long a reply takes from the command being read to the reply being
+ * written, and how long until the reply comes back from the server, and reports both as plain
+ * "key value" lines, as LoadGenerator does.
+ * <p>
+ * Bots are connected a few at a time, so that the server's accept backlog does not overflow
+ * when thousands are opened at once.
+ */
+public class BotHost {
+
+    public static final String LOBBY = "lobby";
+    private static final int MAX_PENDING_CONNECTS = 64;
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final InetSocketAddress address;
+    private final BotDispatcher dispatcher;
+    // Replies answered on the dispatcher's threads, waiting to be written by the host's thread.
+    private final ConcurrentLinkedQueue<AsyncReply> asyncReplies = new ConcurrentLinkedQueue<>();
+    private final List<BotConfig> bots = new ArrayList<>();
+    private final int intervalSeconds;
+    private final int durationSeconds;
+    private final Selector selector;
+    // Shared by every session, as the host reads one connection at a time.
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final List<String> messages = new ArrayList<>();
+    private final LatencyHistogram replyLatency = new LatencyHistogram();
+    private final LatencyHistogram roundTripLatency = new LatencyHistogram();
+    private volatile boolean running = true;
+    private volatile boolean reportRequested = false;
+    private int nextBot = 0;
+    private int connecting = 0;
+    private int open = 0;
+    private int failed = 0;
+    private int closed = 0;
+    private long commandsAnswered = 0;
+    private long repliesSeen = 0;
+
+    /**
+     * Bot host constructor.
+     *
+     * @param hostName        : The host of the server.
+     * @param portNumber      : The port of the server.
+     * @param dispatcher      : The dispatcher every bot answers through.
+     * @param groups          : The groups of bots to run.
+     * @param intervalSeconds : How often to print the report while running, or 0 to only print it at the end.
+     * @param durationSeconds : How long to run for, or 0 to run until told to exit.
+     * @throws IOException : If the selector could not be opened.
+     */
+    public BotHost(String hostName, int portNumber, BotDispatcher dispatcher, List<BotConfig> groups,
+                   int intervalSeconds, int durationSeconds) throws IOException {
+        this.address = new InetSocketAddress(hostName, portNumber);
+        this.dispatcher = dispatcher;
+        for (BotConfig group : groups) {
+            for (int i = 0; i < group.count; i++) {
+                bots.add(group);
+            }
+        }
+        this.intervalSeconds = intervalSeconds;
+        this.durationSeconds = durationSeconds;
+        this.selector = Selector.open();
+    }
+
+    /**
+     * Opens every bot and answers commands until the duration is up, the host is told to exit,
+     * or every bot has closed. Then closes every bot that is still open.
+     */
+    public void run() {
+        System.out.println("Opening " + bots.size() + " bots...");
+        long start = System.nanoTime();
+        long deadline = durationSeconds > 0 ? start + TimeUnit.SECONDS.toNanos(durationSeconds) : Long.MAX_VALUE;
+        long intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        long nextReport = intervalSeconds > 0 ? start + intervalNanos : Long.MAX_VALUE;
+        openMore();
+        try {
+            while (running) {
+                long now = System.nanoTime();
+                if (now >= deadline || (nextBot == bots.size() && connecting == 0 && open == 0)) {
+                    break;
+                }
+                if (now >= nextReport || reportRequested) {
+                    reportRequested = false;
+                    System.out.print(report());
+                    while (nextReport <= now) {
+                        nextReport += intervalNanos;
+                    }
+                }
+                long waitMillis = TimeUnit.NANOSECONDS.toMillis(Math.min(deadline, nextReport) - now);
+                selector.select(Math.max(1, waitMillis));
+                long readNanos = System.nanoTime();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key, readNanos);
+                }
+                writeAsyncReplies();
+                openMore();
+            }
+        } catch (IOException e) {
+            System.out.println("The bot host's selector failed.");
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((BotSession) key.attachment()).close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Nothing more to close.
+        }
+    }
+
+    /**
+     * Starts connecting the next bots, up to MAX_PENDING_CONNECTS at a time.
+     */
+    private void openMore() {
+        while (connecting < MAX_PENDING_CONNECTS && nextBot < bots.size()) {
+            BotConfig config = bots.get(nextBot++);
+            SocketChannel channel = null;
+            try {
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                BotSession session = new BotSession(config, channel);
+                if (channel.connect(address)) {
+                    session.setKey(channel.register(selector, SelectionKey.OP_READ, session));
+                    started(session);
+                } else {
+                    session.setKey(channel.register(selector, SelectionKey.OP_CONNECT, session));
+                    connecting++;
+                }
+            } catch (IOException e) {
+                failed++;
+                if (channel != null) {
+                    try {
+                        channel.close();
+                    } catch (IOException ce) {
+                        // The connection is already gone.
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Handles a bot's connection becoming ready.
+     *
+     * @param key       : The key of the connection.
+     * @param readNanos : When the selector woke, which is taken as when anything read now arrived.
+     */
+    private void handle(SelectionKey key, long readNanos) {
+        BotSession session = (BotSession) key.attachment();
+        if (key.isConnectable()) {
+            connecting--;
+            try {
+                session.getChannel().finishConnect();
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                failed++;
+                session.close();
+                return;
+            }
+            started(session);
+            return;
+        }
+        try {
+            if (key.isReadable()) {
+                read(session, readNanos);
+            }
+            if (key.isValid() && key.isWritable()) {
+                write(session);
+            }
+        } catch (IOException e) {
+            close(session);
+        }
+    }
+
+    /**
+     * Sends what a newly connected bot sends first.
+     *
+     * @param session : The bot.
+     */
+    private void started(BotSession session) {
+        open++;
+        session.start();
+        try {
+            write(session);
+        } catch (IOException e) {
+            close(session);
+        }
+    }
+
+    /**
+     * Reads what has arrived for a bot, answers every command in it, and writes the replies
+     * together. A bot that is sent the exit command answers it, and closes.
+     *
+     * @param session   : The bot.
+     * @param readNanos : When what is read arrived.
+     * @throws IOException : If the connection failed, or the server sent a malformed message.
+     */
+    private void read(BotSession session, long readNanos) throws IOException {
+        readBuffer.clear();
+        if (session.getChannel().read(readBuffer) < 0) {
+            close(session);
+            return;
+        }
+        readBuffer.flip();
+        session.decode(readBuffer, messages);
+        int answered = 0;
+        boolean exit = false;
+        for (String message : messages) {
+            long commandNanos = session.matchReply(message);
+            if (commandNanos >= 0) {
+                roundTripLatency.record(readNanos - commandNanos);
+                repliesSeen++;
+                continue;
+            }
+            BotCommands.Match match = dispatcher.match(message, session.getConfig().commands);
+            if (match == null) {
+                continue;
+            }
+            if (match.isAsync()) {
+                dispatcher.submit(match, reply -> {
+                    asyncReplies.add(new AsyncReply(session, reply, readNanos));
+                    selector.wakeup();
+                });
+                continue;
+            }
+            String reply = match.run();
+            if (reply != null) {
+                session.queueReply(reply, readNanos);
+                answered++;
+                exit |= match.isExit();
+            }
+        }
+        messages.clear();
+        write(session);
+        long writtenNanos = System.nanoTime();
+        for (int i = 0; i < answered; i++) {
+            replyLatency.record(writtenNanos - readNanos);
+        }
+        commandsAnswered += answered;
+        if (exit) {
+            close(session);
+        }
+    }
+
+    /**
+     * Writes the replies answered on the dispatcher's threads since the host last woke, to
+     * bots that are still open.
+     */
+    private void writeAsyncReplies() {
+        long writtenNanos = System.nanoTime();
+        AsyncReply asyncReply;
+        while ((asyncReply = asyncReplies.poll()) != null) {
+            BotSession session = asyncReply.session;
+            if (!session.getChannel().isOpen()) {
+                continue;
+            }
+            session.queueReply(asyncReply.reply, asyncReply.readNanos);
+            replyLatency.record(writtenNanos - asyncReply.readNanos);
+            commandsAnswered++;
+            try {
+                write(session);
+            } catch (IOException e) {
+                close(session);
+            }
+        }
+    }
+
+    /**
+     * Writes what a bot has queued, and waits for the connection to be writable again if the
+     * socket did not take all of it.
+     *
+     * @param session : The bot.
+     * @throws IOException : If the connection failed.
+     */
+    private void write(BotSession session) throws IOException {
+        SelectionKey key = session.getKey();
+        if (session.flush()) {
+            if ((key.interestOps() & SelectionKey.OP_WRITE) != 0) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        } else {
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void close(BotSession session) {
+        if (session.getChannel().isOpen()) {
+            session.close();
+            open--;
+            closed++;
+        }
+    }
+
+    /**
+     * Stops the host, which then closes every bot.
+     */
+    public void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Asks for the report to be printed, which the host's thread does when it next wakes.
+     */
+    public void requestReport() {
+        reportRequested = true;
+        selector.wakeup();
+    }
+
+    /**
+     * Builds the report of the host so far. Only called on the host's own thread.
+     *
+     * @return : The report, as "key value" lines.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("bots ").append(bots.size()).append('\n');
+        report.append("bots_connecting ").append(connecting).append('\n');
+        report.append("bots_open ").append(open).append('\n');
+        report.append("bots_failed ").append(failed).append('\n');
+        report.append("bots_closed ").append(closed).append('\n');
+        report.append("commands_answered ").append(commandsAnswered).append('\n');
+        report.append("commands_rejected ").append(dispatcher.getRejected()).append('\n');
+        report.append("command_reloads ").append(dispatcher.getReloads()).append('\n');
+        report.append("replies_seen ").append(repliesSeen).append('\n');
+        appendLatency(report, "reply_latency", replyLatency);
+        appendLatency(report, "round_trip", roundTripLatency);
+        return report.toString();
+    }
+
+    private static void appendLatency(StringBuilder report, String name, LatencyHistogram histogram) {
+        report.append(name).append("_mean_us ").append(toMicros(histogram.getMean())).append('\n');
+        report.append(name).append("_p50_us ").append(toMicros(histogram.getValueAtPercentile(50))).append('\n');
+        report.append(name).append("_p99_us ").append(toMicros(histogram.getValueAtPercentile(99))).append('\n');
+        report.append(name).append("_max_us ").append(toMicros(histogram.getMax())).append('\n');
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Starts a thread that listens for 'EXIT', which stops the host, and 'STATS', which
+     * prints the report.
+     */
+    public void terminalListen() {
+        Thread terminalListener = new Thread(() -> {
+            BufferedReader terminalInput = new BufferedReader(new InputStreamReader(System.in));
+            while (running) {
+                try {
+                    String command = terminalInput.readLine();
+                    if (command == null) {
+                        return;
+                    }
+                    if (command.equals("EXIT")) {
+                        stop();
+                    } else if (command.equals("STATS")) {
+                        requestReport();
+                    }
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        terminalListener.setDaemon(true);
+        terminalListener.start();
+    }
+
+    /**
+     * A reply answered on one of the dispatcher's threads, for the host's thread to write.
+     */
+    private static final class AsyncReply {
+
+        private final BotSession session;
+        private final String reply;
+        // When the command it answers was read, from System.nanoTime().
+        private final long readNanos;
+
+        AsyncReply(BotSession session, String reply, long readNanos) {
+            this.session = session;
+            this.reply = reply;
+            this.readNanos = readNanos;
+        }
+    }
+
+    /**
+     * The configuration of a group of bots, shared by every bot in the group.
+     */
+    public static final class BotConfig {
+
+        public final int count;
+        public final String room;
+        public final boolean frames;
+        // The commands the bots answer, or null for every command in the table.
+        public final Set<String> commands;
+
+        /**
+         * Bot configuration constructor.
+         *
+         * @param count    : The number of bots in the group.
+         * @param room     : The room the bots join.
+         * @param frames   : Whether the bots use the binary frame protocol.
+         * @param commands : The commands the bots answer, or null for every command in the table.
+         */
+        public BotConfig(int count, String room, boolean frames, Set<String> commands) {
+            this.count = count;
+            this.room = room;
+            this.frames = frames;
+            this.commands = commands == null ? null : Collections.unmodifiableSet(new HashSet<>(commands));
+        }
+
+        /**
+         * Parses a group from a line of a configuration file, in the format
+         * "count [room] [frames] [commands=!a,!b]".
+         *
+         * @param line : The line.
+         * @return : The group.
+         * @throws IllegalArgumentException : If the line is not in the format.
+         */
+        public static BotConfig parse(String line) {
+            String[] fields = line.strip().split("\\s+");
+            int count = Integer.parseInt(fields[0]);
+            String room = LOBBY;
+            boolean frames = false;
+            Set<String> commands = null;
+            for (int i = 1; i < fields.length; i++) {
+                if (fields[i].equals("frames")) {
+                    frames = true;
+                } else if (fields[i].startsWith("commands=")) {
+                    commands = new HashSet<>(Arrays.asList(fields[i].substring("commands=".length()).split(",")));
+                } else if (i == 1) {
+                    room = fields[i];
+                } else {
+                    throw new IllegalArgumentException("Unknown setting " + fields[i]);
+                }
+            }
+            return new BotConfig(count, room, frames, commands);
+        }
+
+        /**
+         * Loads the groups of a configuration file, one per line. Blank lines and lines
+         * starting with '#' are skipped.
+         *
+         * @param file : The file to load.
+         * @return : The groups.
+         * @throws IOException : If the file could not be read, or holds a line not in the format.
+         */
+        public static List<BotConfig> load(Path file) throws IOException {
+            List<BotConfig> groups = new ArrayList<>();
+            int lineNumber = 0;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                lineNumber++;
+                if (line.isBlank() || line.strip().startsWith("#")) {
+                    continue;
+                }
+                try {
+                    groups.add(parse(line));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Line " + lineNumber + " of " + file + " is invalid: " + e.getMessage());
+                }
+            }
+            return groups;
+        }
+    }
+
+    /**
+     * Main method of BotHost. Parses the command line, loads the command table and the
+     * configuration of the bots, and runs them, printing the report at the end.
+     *
+     * @param args : Command line arguments.
+     */
+    public static void main(String[] args) {
+        // Set default arguments.
+        int portNum = 14001;
+        String hostName = "localhost";
+        int botCount = 100;
+        String room = LOBBY;
+        boolean frames = false;
+        String configFile = null;
+        String commandsFile = null;
+        int intervalSeconds = 10;
+        int durationSeconds = 0;
+        // Parse command line arguments.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-ccp")) {
+                    portNum = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-cca")) {
+                    hostName = args[i + 1];
+                }
+                if (args[i].equalsIgnoreCase("-bots")) {
+                    botCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-room")) {
+                    room = args[i + 1];
+                }
+                if (args[i].equalsIgnoreCase("-frames")) {
+                    frames = true;
+                }
+                if (args[i].equalsIgnoreCase("-config")) {
+                    configFile = args[i + 1];
+                }
+                if (args[i].equalsIgnoreCase("-commands")) {
+                    commandsFile = args[i + 1];
+                }
+                if (args[i].equalsIgnoreCase("-interval")) {
+                    intervalSeconds = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-duration")) {
+                    durationSeconds = Integer.parseInt(args[i + 1]);
+                }
+            }
+            // Catch errors and allow defaults through.
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid arguments. Using defaults instead.");
+        } catch (IndexOutOfBoundsException ioe) {
+            System.out.println("Incorrect argument format. Using defaults instead.");
+        }
+        BotDispatcher dispatcher = new BotDispatcher();
+        List<BotConfig> groups = List.of(new BotConfig(botCount, room, frames, null));
+        try {
+            if (commandsFile != null) {
+                dispatcher.load(Path.of(commandsFile));
+                dispatcher.watch();
+            }
+            if (configFile != null) {
+                groups = BotConfig.load(Path.of(configFile));
+            }
+        } catch (IOException e) {
+            System.out.println("Could not load the bots: " + e.getMessage());
+            return;
+        }
+        try {
+            BotHost botHost = new BotHost(hostName, portNum, dispatcher, groups, intervalSeconds, durationSeconds);
+            botHost.terminalListen();
+            botHost.run();
+            System.out.print(botHost.report());
+            dispatcher.close();
+        } catch (IOException e) {
+            System.out.println("Could not start the bot host.");
+        }
+    }
+}
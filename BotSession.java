@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A single chat bot run by a BotHost: its connection to the server, and what it has read
+ * and not yet written. Unlike a ChatBot, it has no thread or streams of its own. The host
+ * reads its bytes into a buffer shared by every session on the same loop, the session keeps
+ * only the part of a line or frame that has not arrived yet, and its replies are written
+ * once every message in a read has been answered.
+ * <p>
+ * A session is only ever touched by the loop it was opened on.
+ */
+public class BotSession {
+
+    private static final String PING = "/ping";
+    private static final String PONG = "/pong";
+    private static final String WELCOME = "Your username is: ";
+    private static final int MAX_UNSEEN_REPLIES = 256;
+
+    private final BotHost.BotConfig config;
+    private final SocketChannel channel;
+    private final LineDecoder lineDecoder = new LineDecoder();
+    private final List<Frame> frames = new ArrayList<>();
+    private FrameDecoder frameDecoder = null;
+    private SelectionKey key;
+    private String username = null;
+    private long sequence = 0;
+    // Encoded messages not yet written, the first of which may be partly written.
+    private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>();
+    // When the command was read, for each line of a reply not yet seen back from the server.
+    private final ArrayDeque<Long> unseenReplies = new ArrayDeque<>();
+
+    /**
+     * Bot session constructor.
+     *
+     * @param config  : The configuration of the bot.
+     * @param channel : The channel to the server, which may still be connecting.
+     */
+    public BotSession(BotHost.BotConfig config, SocketChannel channel) {
+        this.config = config;
+        this.channel = channel;
+    }
+
+    public BotHost.BotConfig getConfig() {
+        return config;
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public void setKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    /**
+     * Queues what the bot sends as soon as it is connected: the handshake if it uses frames,
+     * and the room it is configured for, unless that is the lobby every client starts in.
+     */
+    public void start() {
+        if (config.frames) {
+            output.add(ByteBuffer.wrap((Frame.HANDSHAKE_REQUEST + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+        if (!config.room.equals(BotHost.LOBBY)) {
+            queue("/join " + config.room);
+        }
+    }
+
+    /**
+     * Decodes every message in bytes newly read for the bot. Lines are decoded until the
+     * server replies to the handshake, and frames after it. Pings are answered straight away
+     * and the bot's username is noted, rather than either being returned.
+     *
+     * @param bytes    : Buffer in read mode holding the bytes read.
+     * @param messages : List that the messages are added to.
+     * @throws IOException : If the server sent a line that is too long or a malformed frame.
+     */
+    public void decode(ByteBuffer bytes, List<String> messages) throws IOException {
+        try {
+            while (frameDecoder == null && bytes.hasRemaining()) {
+                String line = lineDecoder.decodeLine(bytes);
+                if (line == null) {
+                    break;
+                }
+                if (config.frames && Frame.HANDSHAKE_REPLY.equals(line)) {
+                    frameDecoder = new FrameDecoder();
+                } else {
+                    accept(line, true, messages);
+                }
+            }
+            if (frameDecoder != null) {
+                frameDecoder.decode(bytes, frames);
+                for (Frame frame : frames) {
+                    accept(frame.getPayload(), frame.getType() == Frame.Type.SERVER, messages);
+                }
+                frames.clear();
+            }
+        } catch (LineDecoder.LineTooLongException | FrameDecoder.MalformedFrameException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Answers a ping, or notes the bot's username, or adds a message to those to answer. Only
+     * the server's own pings are answered; a line from another client always starts with its
+     * sender, and over frames the server's messages are of their own type.
+     *
+     * @param message    : The message.
+     * @param fromServer : Whether the message came from the server itself.
+     * @param messages   : List that the message is added to.
+     */
+    private void accept(String message, boolean fromServer, List<String> messages) {
+        if (fromServer && message.equals(PING)) {
+            queue(PONG);
+        } else {
+            if (username == null && message.startsWith(WELCOME)) {
+                username = message.substring(WELCOME.length());
+            }
+            messages.add(message);
+        }
+    }
+
+    /**
+     * Queues a reply to a command, noting when the command was read so that the time until
+     * the reply comes back from the server can be measured. A reply comes back as one message
+     * per line, as each line is sent as a message of its own.
+     *
+     * @param reply     : The reply.
+     * @param readNanos : When the command was read, from System.nanoTime().
+     */
+    public void queueReply(String reply, long readNanos) {
+        queue(reply);
+        int messages = Frame.splitLines(reply).length;
+        for (int i = 0; i < messages; i++) {
+            // A reply the server dropped never comes back, so only the latest are kept.
+            if (unseenReplies.size() == MAX_UNSEEN_REPLIES) {
+                unseenReplies.poll();
+            }
+            unseenReplies.add(readNanos);
+        }
+    }
+
+    /**
+     * Checks whether a message is one of the bot's own replies coming back from the server.
+     *
+     * @param message : A message read from the server.
+     * @return : When the command it answered was read, or -1 if it is not one of the bot's replies.
+     */
+    public long matchReply(String message) {
+        if (username == null || unseenReplies.isEmpty()) {
+            return -1;
+        }
+        // Skip the room name that messages outside the lobby start with.
+        int start = 0;
+        if (message.startsWith("[")) {
+            int end = message.indexOf("] ");
+            if (end < 0) {
+                return -1;
+            }
+            start = end + 2;
+        }
+        if (!message.startsWith(username, start) || !message.startsWith(": ", start + username.length())) {
+            return -1;
+        }
+        return unseenReplies.poll();
+    }
+
+    /**
+     * Queues a message for the server, as a line or as a frame.
+     *
+     * @param message : The message, each line of which is sent as a message of its own.
+     */
+    public void queue(String message) {
+        if (config.frames) {
+            for (String line : Frame.splitLines(message)) {
+                output.add(ByteBuffer.wrap(new Frame(Frame.Type.MESSAGE, Frame.NO_ROOM, ++sequence, line).encode()));
+            }
+        } else {
+            output.add(ByteBuffer.wrap((message + "\n").getBytes(StandardCharsets.UTF_8)));
+        }
+    }
+
+    /**
+     * Writes as much of the queued output as the socket takes, in a single gathering write.
+     *
+     * @return : True if everything queued has been written.
+     * @throws IOException : If the connection failed.
+     */
+    public boolean flush() throws IOException {
+        if (output.isEmpty()) {
+            return true;
+        }
+        channel.write(output.toArray(new ByteBuffer[0]));
+        while (!output.isEmpty() && !output.peekFirst().hasRemaining()) {
+            output.poll();
+        }
+        return output.isEmpty();
+    }
+
+    /**
+     * Closes the connection, dropping anything not yet written.
+     */
+    public void close() {
+        output.clear();
+        unseenReplies.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // The connection is already gone.
+        }
+    }
+}
@@ -0,0 +1,346 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The path every message sent to a room takes through the server: a ring of preallocated
+ * slots, passed through three stages in turn, each running on a thread of its own.
+ * <p>
+ * The sequence stage numbers each message within its room and across the server, and
+ * encodes it. The persist stage hands it to the room's journal and the search index, and
+ * relays it to the other nodes of the cluster. The fan out stage queues it for every member
+ * of the room on this server, releases the message, and empties the slot for reuse. A member
+ * that joined after the message was numbered, while it was still in the ring, is skipped, as
+ * the message is in any history sent to it on joining.
+ * <p>
+ * A sender claims the next slot with a single atomic increment, fills it in and publishes it,
+ * without taking a lock. Each stage follows the stage before it around the ring, so every
+ * message goes through every stage in the order its slot was claimed. A slot is only claimed
+ * again once the fan out stage is done with it, so while the ring is full senders wait for
+ * the fan out stage to catch up. No stage ever waits for a client.
+ */
+public class BroadcastPipeline {
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    // How many times a stage checks for work before parking its thread.
+    private static final int SPIN_LIMIT = 128;
+    // How long a sender sleeps between checks while the ring is full.
+    private static final long FULL_RING_PARK_NANOS = 50_000;
+
+    private final Slot[] slots;
+    private final int mask;
+    // The sequence number of the message each slot was last published with.
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong(-1);
+    private final AtomicLong fullRingWaits = new AtomicLong();
+    private final Server server;
+    private final ServerMetrics metrics;
+    private final Stage sequenceStage;
+    private final Stage persistStage;
+    private final Stage fanOutStage;
+    private volatile ClusterNode clusterNode = null;
+    private volatile SearchIndex searchIndex = null;
+    private volatile boolean running = true;
+    // Only used by the sequence stage's thread.
+    private long globalSequence = 0;
+
+    /**
+     * Pipeline constructor, which preallocates every slot of the ring and starts the stages.
+     *
+     * @param capacity : The number of slots in the ring, rounded up to a power of two.
+     * @param server   : The server the fan out stage delivers messages to.
+     * @param metrics  : The metrics of the server, which the fan out stage records its latency in.
+     */
+    public BroadcastPipeline(int capacity, Server server, ServerMetrics metrics) {
+        int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.server = server;
+        this.metrics = metrics;
+        this.slots = new Slot[size];
+        this.mask = size - 1;
+        this.published = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot();
+            published.set(i, -1);
+        }
+        sequenceStage = new Stage("BroadcastPipeline-sequence", null) {
+            void process(Slot slot) {
+                slot.message = slot.room.post(slot.origin, slot.text, ++globalSequence);
+            }
+        };
+        persistStage = new Stage("BroadcastPipeline-persist", sequenceStage) {
+            void process(Slot slot) {
+                RoomJournal journal = slot.room.getJournal();
+                if (journal != null) {
+                    journal.append(slot.message);
+                }
+                SearchIndex index = searchIndex;
+                if (index != null) {
+                    index.add(slot.message);
+                }
+                ClusterNode node = clusterNode;
+                if (slot.relay && node != null) {
+                    node.relay(slot.message);
+                }
+            }
+        };
+        fanOutStage = new Stage("BroadcastPipeline-fanout", persistStage) {
+            void process(Slot slot) {
+                try {
+                    server.deliverToRoom(slot.message);
+                    metrics.fanOutLatency.record(System.nanoTime() - slot.publishNanos);
+                } finally {
+                    // Every member that keeps the message has retained it by now, and if delivery
+                    // failed the message still has to go back to the pool.
+                    if (slot.message != null) {
+                        slot.message.release();
+                    }
+                    slot.clear();
+                }
+            }
+        };
+        sequenceStage.next = persistStage;
+        persistStage.next = fanOutStage;
+        sequenceStage.start();
+        persistStage.start();
+        fanOutStage.start();
+    }
+
+    /**
+     * Gives the pipeline the cluster node that the persist stage relays messages through.
+     *
+     * @param clusterNode : The node of the cluster the server belongs to.
+     */
+    public void setClusterNode(ClusterNode clusterNode) {
+        this.clusterNode = clusterNode;
+    }
+
+    /**
+     * Gives the pipeline the search index that the persist stage adds messages to.
+     *
+     * @param searchIndex : The index of the server's messages.
+     */
+    public void setSearchIndex(SearchIndex searchIndex) {
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Sends a message to a room through the pipeline. Returns as soon as the message has a
+     * slot, which is only delayed while the ring is full.
+     *
+     * @param origin : The member sending the message.
+     * @param room   : The room the message is sent to.
+     * @param text   : The text of the message.
+     * @param relay  : Whether to relay the message to the other nodes of the cluster, which is
+     *                 false for messages relayed from another node.
+     * @return : False if the pipeline closed before the message could be published.
+     */
+    public boolean publish(ChatMember origin, Room room, String text, boolean relay) {
+        long sequence = claimed.incrementAndGet();
+        long wrapPoint = sequence - slots.length;
+        if (fanOutStage.cursor.get() < wrapPoint) {
+            fullRingWaits.incrementAndGet();
+            while (fanOutStage.cursor.get() < wrapPoint) {
+                if (!running) {
+                    return false;
+                }
+                LockSupport.parkNanos(FULL_RING_PARK_NANOS);
+            }
+        }
+        int index = (int) (sequence & mask);
+        Slot slot = slots[index];
+        slot.origin = origin;
+        slot.room = room;
+        slot.text = text;
+        slot.relay = relay;
+        slot.publishNanos = System.nanoTime();
+        published.set(index, sequence);
+        sequenceStage.wake();
+        return true;
+    }
+
+    /**
+     * The number of messages published to the pipeline that the fan out stage has not finished.
+     *
+     * @return : The number of messages in flight.
+     */
+    public long getInFlight() {
+        return Math.max(0, claimed.get() - fanOutStage.cursor.get());
+    }
+
+    /**
+     * Describes how far each stage has got through the ring, for operators.
+     *
+     * @return : The capacity, the position of each stage and the number of waits as a single line.
+     */
+    public String describe() {
+        return "Pipeline: capacity " + slots.length
+                + ", claimed " + (claimed.get() + 1)
+                + ", sequenced " + (sequenceStage.cursor.get() + 1)
+                + ", persisted " + (persistStage.cursor.get() + 1)
+                + ", delivered " + (fanOutStage.cursor.get() + 1)
+                + ", full ring waits " + fullRingWaits.get();
+    }
+
+    /**
+     * Closes the pipeline. Each stage finishes the messages that reached it before it stops,
+     * and this waits briefly for them, so that the journal is handed every message published
+     * before the server closed.
+     */
+    public void close() {
+        running = false;
+        for (Stage stage : new Stage[]{sequenceStage, persistStage, fanOutStage}) {
+            LockSupport.unpark(stage.thread);
+            try {
+                stage.thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * One slot of the ring, holding a message on its way through the stages. Its fields are
+     * written by the sender and each stage in turn, and the stages' cursors make each write
+     * visible to the next stage.
+     */
+    private static final class Slot {
+
+        private ChatMember origin;
+        private Room room;
+        private String text;
+        private boolean relay;
+        private long publishNanos;
+        private ChatMessage message;
+
+        /**
+         * Drops the references the slot holds, so that a message is not kept alive by the ring.
+         */
+        private void clear() {
+            origin = null;
+            room = null;
+            text = null;
+            message = null;
+        }
+    }
+
+    /**
+     * A stage of the pipeline, which processes the slots after its cursor once they are ready,
+     * on a thread of its own. The sequence stage follows the slots as senders publish them, and
+     * every other stage follows the stage before it. A stage with nothing to do spins briefly,
+     * then parks until the stage before it, or a sender, wakes it.
+     */
+    private abstract class Stage implements Runnable {
+
+        // The sequence number of the last slot the stage has processed.
+        private final AtomicLong cursor = new AtomicLong(-1);
+        private final Stage previous;
+        private final Thread thread;
+        private Stage next = null;
+        private volatile boolean parked = false;
+
+        /**
+         * Stage constructor.
+         *
+         * @param name     : The name of the stage's thread.
+         * @param previous : The stage before this one, or null for the sequence stage.
+         */
+        Stage(String name, Stage previous) {
+            this.previous = previous;
+            this.thread = new Thread(this, name);
+            this.thread.setDaemon(true);
+        }
+
+        void start() {
+            thread.start();
+        }
+
+        /**
+         * Processes one slot.
+         *
+         * @param slot : The slot, ready for this stage.
+         */
+        abstract void process(Slot slot);
+
+        /**
+         * Runs the stage: waits for slots to become ready and processes each batch in order,
+         * then moves the cursor past the batch and wakes whoever is waiting on it.
+         */
+        public void run() {
+            long nextSequence = 0;
+            while (true) {
+                long available = waitFor(nextSequence);
+                if (available < nextSequence) {
+                    return;
+                }
+                for (long sequence = nextSequence; sequence <= available; sequence++) {
+                    try {
+                        process(slots[(int) (sequence & mask)]);
+                    } catch (RuntimeException e) {
+                        Log.error(thread.getName() + " failed to process a message.", e);
+                    }
+                }
+                cursor.set(available);
+                nextSequence = available + 1;
+                if (next != null) {
+                    next.wake();
+                }
+            }
+        }
+
+        /**
+         * The sequence number of the last slot ready for this stage.
+         *
+         * @param nextSequence : The sequence number of the next slot the stage wants.
+         * @return : The last slot ready, which is below nextSequence if none is.
+         */
+        private long available(long nextSequence) {
+            if (previous != null) {
+                return previous.cursor.get();
+            }
+            long available = nextSequence - 1;
+            while (available - nextSequence < mask
+                    && published.get((int) ((available + 1) & mask)) == available + 1) {
+                available++;
+            }
+            return available;
+        }
+
+        /**
+         * Waits until at least one more slot is ready, or the pipeline has closed.
+         *
+         * @param nextSequence : The sequence number of the next slot the stage wants.
+         * @return : The last slot ready, which is below nextSequence only once the pipeline has closed.
+         */
+        private long waitFor(long nextSequence) {
+            int spins = 0;
+            while (true) {
+                long available = available(nextSequence);
+                if (available >= nextSequence || !running) {
+                    return available;
+                }
+                if (spins < SPIN_LIMIT) {
+                    spins++;
+                    Thread.onSpinWait();
+                    continue;
+                }
+                // Check again after raising the flag, so that a wake between the two is not missed.
+                parked = true;
+                available = available(nextSequence);
+                if (available < nextSequence && running) {
+                    LockSupport.park(this);
+                }
+                parked = false;
+            }
+        }
+
+        /**
+         * Wakes the stage's thread if it is parked waiting for work.
+         */
+        void wake() {
+            if (parked) {
+                LockSupport.unpark(thread);
+            }
+        }
+    }
+}
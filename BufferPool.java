@@ -0,0 +1,177 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pool of direct byte buffers for the server's I/O path, in size classes of every power of
+ * two from 256 bytes to 128KB. A buffer is taken from the smallest class that holds what is
+ * asked for, and given back once its owner is done with it, so that under steady load
+ * encoding, reading and writing messages reuses the same native memory rather than
+ * allocating and collecting buffers for every message. Direct buffers can be handed to a
+ * socket without the JVM first copying them out of the heap.
+ * <p>
+ * Each class keeps a stack of free buffers, taken and given back under a lock held only to
+ * push or pop, which is a handful of times per message rather than per recipient. A class
+ * keeps at most MAX_FREE_BYTES of free buffers; any more are left to the garbage collector,
+ * as are buffers asked for beyond the largest class, which are not pooled at all.
+ */
+public final class BufferPool {
+
+    public static final int MIN_SIZE = 256;
+    public static final int MAX_SIZE = 128 * 1024;
+    public static final int MAX_FREE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * The pool shared by everything in the JVM, as messages are encoded wherever they are created.
+     */
+    public static final BufferPool SHARED = new BufferPool();
+
+    private final SizeClass[] classes;
+    private final AtomicLong allocatedBytes = new AtomicLong();
+
+    /**
+     * Buffer pool constructor, with every size class empty.
+     */
+    public BufferPool() {
+        int count = Integer.numberOfTrailingZeros(MAX_SIZE) - Integer.numberOfTrailingZeros(MIN_SIZE) + 1;
+        classes = new SizeClass[count];
+        for (int i = 0; i < count; i++) {
+            classes[i] = new SizeClass(MIN_SIZE << i);
+        }
+    }
+
+    /**
+     * Takes a buffer able to hold at least the given number of bytes, allocating one if the
+     * pool has none free.
+     *
+     * @param size : The number of bytes needed.
+     * @return : A cleared buffer, with a capacity of at least size bytes.
+     */
+    public ByteBuffer acquire(int size) {
+        if (size > MAX_SIZE) {
+            return ByteBuffer.allocate(size);
+        }
+        SizeClass sizeClass = classes[classOf(size)];
+        ByteBuffer buffer = sizeClass.pop();
+        if (buffer == null) {
+            allocatedBytes.addAndGet(sizeClass.size);
+            return ByteBuffer.allocateDirect(sizeClass.size);
+        }
+        return buffer.clear();
+    }
+
+    /**
+     * Gives a buffer back to the pool. The buffer must not be used again by whoever released it.
+     *
+     * @param buffer : A buffer taken from the pool. Buffers the pool did not allocate are ignored.
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        if (!buffer.isDirect() || capacity < MIN_SIZE || capacity > MAX_SIZE || Integer.bitCount(capacity) != 1) {
+            return;
+        }
+        classes[classOf(capacity)].push(buffer);
+    }
+
+    /**
+     * The number of bytes held in free buffers, waiting to be reused.
+     *
+     * @return : The free bytes in every size class.
+     */
+    public long getFreeBytes() {
+        long free = 0;
+        for (SizeClass sizeClass : classes) {
+            free += sizeClass.getFreeBytes();
+        }
+        return free;
+    }
+
+    /**
+     * The number of bytes of direct buffers the pool has ever allocated. This stops growing
+     * once the pool holds enough buffers for the load, so a steady climb means buffers are
+     * not being given back, or the load needs more than MAX_FREE_BYTES in a class.
+     *
+     * @return : The bytes allocated.
+     */
+    public long getAllocatedBytes() {
+        return allocatedBytes.get();
+    }
+
+    /**
+     * The index of the smallest size class that holds a number of bytes.
+     *
+     * @param size : The number of bytes, at most MAX_SIZE.
+     * @return : The index of the size class.
+     */
+    private static int classOf(int size) {
+        if (size <= MIN_SIZE) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - Integer.numberOfTrailingZeros(MIN_SIZE);
+    }
+
+    /**
+     * The free buffers of one size.
+     */
+    private static final class SizeClass {
+
+        private final int size;
+        private final ByteBuffer[] free;
+        private final ReentrantLock lock = new ReentrantLock();
+        private int count = 0;
+
+        /**
+         * Size class constructor.
+         *
+         * @param size : The capacity of every buffer in the class.
+         */
+        SizeClass(int size) {
+            this.size = size;
+            this.free = new ByteBuffer[Math.max(1, MAX_FREE_BYTES / size)];
+        }
+
+        /**
+         * Takes a free buffer.
+         *
+         * @return : The buffer, or null if there are none free.
+         */
+        ByteBuffer pop() {
+            lock.lock();
+            try {
+                if (count == 0) {
+                    return null;
+                }
+                ByteBuffer buffer = free[--count];
+                free[count] = null;
+                return buffer;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Keeps a buffer for reuse, unless the class already holds as many as it may.
+         *
+         * @param buffer : The buffer.
+         */
+        void push(ByteBuffer buffer) {
+            lock.lock();
+            try {
+                if (count < free.length) {
+                    free[count++] = buffer;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long getFreeBytes() {
+            lock.lock();
+            try {
+                return (long) count * size;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -1,6 +1,5 @@
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.function.Consumer;
 
 /**
  * A chat bot that reads server output, detects strings denoting commands,
@@ -9,41 +8,89 @@ import java.util.Map;
  */
 public class ChatBot extends ClientBase implements Client {
 
-    private final Map<String, String> promptsToReplies;
+    private final BotDispatcher dispatcher;
+    private final Consumer<String> asyncReplies = this::sendAsyncReply;
 
     /**
      * Default constructor. Above what is defined in ChatClient
-     * it also instantiates the reply map and populates it.
+     * it also sets up a dispatcher with the default commands.
      *
      * @param host : Host name of server to connect to.
      * @param port : Port number of host to connect to.
      */
     public ChatBot(String host, int port) {
-        super(host, port);
-        promptsToReplies = new HashMap<>();
-        populateReplies();
+        this(host, port, false);
     }
 
     /**
-     * Populates the reply map with command-reply pairs.
-     * Add .put calls in the format:
-     * .put("Command keyword", "Reply")
-     * to add commands to the bot.
+     * Constructor that can ask the server for the binary frame protocol. A multi-line reply,
+     * such as the one to !square, is then sent as a single message.
+     *
+     * @param host      : Host name of server to connect to.
+     * @param port      : Port number of host to connect to.
+     * @param useFrames : Whether to use the binary frame protocol instead of the line protocol.
+     */
+    public ChatBot(String host, int port, boolean useFrames) {
+        this(host, port, useFrames, new BotDispatcher());
+    }
+
+    /**
+     * Constructor that answers commands through a given dispatcher, which may be shared with
+     * other bots, and may reload its commands while the bot runs.
+     *
+     * @param host       : Host name of server to connect to.
+     * @param port       : Port number of host to connect to.
+     * @param useFrames  : Whether to use the binary frame protocol instead of the line protocol.
+     * @param dispatcher : The dispatcher of the commands to answer.
      */
-    public void populateReplies() {
-        promptsToReplies.put("!smiley", ":-)");
-        promptsToReplies.put("!square", "#####\n#...#\n#...#\n#...#\n#####");
-        promptsToReplies.put("!huey", "You like Huey Lewis and the News?");
-        promptsToReplies.put("!hello", "Hello there!");
+    public ChatBot(String host, int port, boolean useFrames, BotDispatcher dispatcher) {
+        super(host, port, useFrames);
+        this.dispatcher = dispatcher;
     }
 
     /**
-     * Sends a message to the server the client is connected to.
+     * Sends a message to the server the client is connected to. The reply is only flushed
+     * once the bot has answered every message already waiting for it, so that a burst of
+     * commands is answered with a single write. A reply that cannot be sent is dropped, and
+     * the bot reconnects when it next reads from the server.
      *
      * @param reply : The bot reply to send to the server.
      */
     public void sendToServer(String reply) {
-        serverOutput.println(reply);
+        try {
+            writeToServer(reply);
+            if (serverInput.available() == 0) {
+                flushToServer();
+            }
+        } catch (IOException e) {
+            System.out.println("Could not send reply to the server.");
+        }
+    }
+
+    /**
+     * Sends the reply of a command answered asynchronously, on the dispatcher's thread. It is
+     * flushed straight away, as the bot's own thread may be waiting on the server.
+     *
+     * @param reply : The bot reply to send to the server.
+     */
+    private void sendAsyncReply(String reply) {
+        try {
+            writeToServer(reply);
+            flushToServer();
+        } catch (IOException e) {
+            System.out.println("Could not send reply to the server.");
+        }
+    }
+
+    /**
+     * Interprets a message from the server as a possible command, answering it on the calling
+     * thread even if its handler is asynchronous.
+     *
+     * @param serverResponse : The message from the server.
+     * @return : The reply to send back, or null if the message is not a command.
+     */
+    public String replyTo(String serverResponse) {
+        return dispatcher.getCommands().replyTo(serverResponse);
     }
 
     /**
@@ -54,19 +101,14 @@ public class ChatBot extends ClientBase implements Client {
         try {
             // Continuously poll the server for messages.
             while (running) {
-                String serverResponse = serverInput.readLine();
+                String serverResponse = readFromServer();
                 if (serverResponse != null) {
-                    // Split response on a colon and space, so that a typical message,
-                    // "User0: foo", is read as "User0: " and "foo".
-                    String[] serverResponses = serverResponse.split("[:]\\s");
-                    // If there is a command to interpret
-                    if (serverResponses.length > 1) {
-                        String examinedKey = serverResponses[1];
-                        if (promptsToReplies.containsKey(examinedKey)) {
-                            // Send reply to server if message is command
-                            sendToServer(promptsToReplies.get(examinedKey));
-                        } else if (examinedKey.equals("!EXIT")) {
-                            sendToServer("Shutting down bot...");
+                    String reply = dispatcher.dispatch(serverResponse, null, asyncReplies);
+                    if (reply != null) {
+                        // Send reply to server if message is command
+                        sendToServer(reply);
+                        // Only the exit command is answered with this very string.
+                        if (reply == BotCommands.EXIT_REPLY) {
                             closeClient();
                         }
                     }
@@ -1,82 +1,211 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 /**
  * A chat client that takes input from the user and reads output from a
  * chat server simultaneously through multithreading.
  * A functional extension of ClientBase.
+ * <p>
+ * The user's input is read by a thread that blocks until a line arrives, through a channel
+ * that is closed by interrupting the thread, so that it can be stopped on shutdown. Each line
+ * is put on an outbound queue, and a sender thread writes the queued lines to the server, so
+ * that typing never waits on the connection, and lines pasted or piped in together are sent
+ * together. Messages from the server are rendered through a buffer that is flushed whenever no
+ * more has arrived, so a burst of messages is printed with one write.
+ * <p>
+ * With debugging of latency, the client reports how long each line took from being read to
+ * being written to the socket, and sums it up on shutdown.
  */
 public class ChatClient extends ClientBase implements Client {
 
+    // The most lines that may wait to be sent before reading more input waits for the sender.
+    private static final int OUTBOUND_CAPACITY = 1024;
+    private static final int SCREEN_BUFFER_SIZE = 64 * 1024;
+    private static final String EXIT = "EXIT";
+    // Queued by the input thread to close the client once the lines before it have been sent.
+    private static final PendingLine EXIT_MARKER = new PendingLine(EXIT, 0);
+
+    private final BlockingQueue<PendingLine> outbound = new ArrayBlockingQueue<>(OUTBOUND_CAPACITY);
+    // The input to socket latency of every line sent, or null unless latency is being debugged.
+    private final LatencyHistogram sendLatency;
+    private Thread inputThread;
+    private Thread senderThread;
+
     /**
      * ChatClient constructor. Simply a call to the ClientBase constructor.
      * Creates a socket to the specified host and port, and establishes server input
-     * and output streams as well as the System.in client input stream.
+     * and output streams.
      *
      * @param host : The name of the host to connect to.
      * @param port : The port number to bind to.
      */
     public ChatClient(String host, int port) {
-        super(host, port);
+        this(host, port, false, false);
     }
 
     /**
-     * Establishes a thread that handles the input of messages from System.in and then sends those
-     * messages to the server the client is connected to.
+     * ChatClient constructor that can ask the server for the binary frame protocol.
+     *
+     * @param host      : The name of the host to connect to.
+     * @param port      : The port number to bind to.
+     * @param useFrames : Whether to use the binary frame protocol instead of the line protocol.
+     */
+    public ChatClient(String host, int port, boolean useFrames) {
+        this(host, port, useFrames, false);
+    }
+
+    /**
+     * ChatClient constructor that can also report the latency of sending each line.
+     *
+     * @param host         : The name of the host to connect to.
+     * @param port         : The port number to bind to.
+     * @param useFrames    : Whether to use the binary frame protocol instead of the line protocol.
+     * @param debugLatency : Whether to report how long each line takes from input to the socket.
+     */
+    public ChatClient(String host, int port, boolean useFrames, boolean debugLatency) {
+        super(host, port, useFrames);
+        this.sendLatency = debugLatency ? new LatencyHistogram() : null;
+    }
+
+    /**
+     * Establishes a thread that reads the input of messages from System.in onto the outbound
+     * queue, and a thread that sends the queued messages to the server the client is connected to.
+     * The client is closed once the user enters 'EXIT' and everything typed before it has been sent.
      */
     public void sendToServer() {
-        // Continuously poll for user input and send to the server.
-        // Prevents blocking on shutdown.
-        // Close the client connection if the user enters 'EXIT'
-        Thread inputThread = new Thread() {
-            public void run() {
-                try {
-                    // Continuously poll for user input and send to the server.
-                    while (running) {
-                        // Prevents blocking on shutdown.
-                        if (!clientInput.ready()) {
-                            // Sleep if not ready
-                            try {
-                                Thread.sleep(20);
-                            } catch (InterruptedException e) {
-                                e.printStackTrace();
-                            }
-                            continue;
-                        }
-                        String clientInputString = clientText.readLine();
-                        // Close the client connection if the user enters 'EXIT'
-                        if (clientInputString.equals("EXIT")) {
-                            closeClient();
-                        } else {
-                            serverOutput.println(clientInputString);
-                        }
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+        inputThread = new Thread(this::readInput, "ChatClient-input");
+        senderThread = new Thread(this::sendQueued, "ChatClient-sender");
+        // Neither thread keeps the client running once the connection has closed.
+        inputThread.setDaemon(true);
+        senderThread.setDaemon(true);
+        inputThread.start();
+        senderThread.start();
+    }
+
+    /**
+     * Reads the user's input a line at a time, blocking until each line arrives, and queues it to
+     * be sent. Reads through System.in's file channel rather than the stream, as a thread blocked
+     * reading a channel is released by interrupting it. The end of the input stops the reading,
+     * but leaves the client running to show what the server sends.
+     */
+    private void readInput() {
+        BufferedReader terminal = new BufferedReader(Channels.newReader(
+                new FileInputStream(FileDescriptor.in).getChannel(), Charset.defaultCharset()));
+        try {
+            while (running) {
+                String line = terminal.readLine();
+                if (line == null) {
+                    return;
+                }
+                if (line.equals(EXIT)) {
+                    outbound.put(EXIT_MARKER);
+                    return;
                 }
+                outbound.put(new PendingLine(line, System.nanoTime()));
             }
-        };
-        inputThread.start();
+        } catch (ClosedByInterruptException | InterruptedException e) {
+            // The client is shutting down.
+        } catch (IOException e) {
+            if (running) {
+                System.out.println("Could not read input.");
+            }
+        }
+    }
+
+    /**
+     * Sends the queued lines to the server, waiting for each. Every line queued by the time a line
+     * has been written is written with it, and the lot are sent with one flush.
+     */
+    private void sendQueued() {
+        List<PendingLine> batch = new ArrayList<>();
+        try {
+            while (running) {
+                batch.add(outbound.take());
+                outbound.drainTo(batch);
+                boolean exit = batch.remove(EXIT_MARKER);
+                sendBatch(batch);
+                batch.clear();
+                if (exit) {
+                    closeClient();
+                }
+            }
+        } catch (InterruptedException e) {
+            // The client is shutting down.
+        }
+    }
+
+    /**
+     * Writes a batch of lines to the server and flushes them, recording how long each took from
+     * being read if latency is being debugged.
+     *
+     * @param batch : The lines, in the order they were typed.
+     */
+    private void sendBatch(List<PendingLine> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            for (PendingLine pending : batch) {
+                writeToServer(pending.line);
+            }
+            flushToServer();
+        } catch (IOException e) {
+            // The output thread reconnects when it notices the connection is gone.
+            System.out.println("Not connected to the server, message not sent.");
+            return;
+        }
+        if (sendLatency != null) {
+            long now = System.nanoTime();
+            long longest = 0;
+            for (PendingLine pending : batch) {
+                sendLatency.record(now - pending.readNanos);
+                longest = Math.max(longest, now - pending.readNanos);
+            }
+            System.err.println("[latency] sent " + batch.size() + " line(s), input to socket "
+                    + toMicros(longest) + " us at most");
+        }
     }
 
     /**
      * Establishes a thread that handles getting messages from the server the client is connected
-     * to and sends them to the user through System.out.
+     * to and sends them to the user through System.out, a burst at a time.
      */
     public void getFromServer() {
         Thread outputThread = new Thread() {
             public void run() {
+                PrintStream screen = new PrintStream(
+                        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), SCREEN_BUFFER_SIZE), false);
                 try {
-                    // Continuously poll the server for messages and print to user.
+                    // Continuously read the server's messages and render them to the user.
                     while (running) {
-                        String serverResponse = serverInput.readLine();
+                        String serverResponse = readFromServer();
                         if (serverResponse != null) {
-                            System.out.println(serverResponse);
+                            screen.println(serverResponse);
+                            // Print once nothing more has arrived, rather than once per message.
+                            if (!hasPendingInput()) {
+                                screen.flush();
+                            }
                         } else {
+                            screen.flush();
                             closeClient();
                         }
                     }
                     // The client has failed to use the socket, normal when closing.
                 } catch (IOException e) {
+                    screen.flush();
                     System.out.println("Socket is closed...");
                     if (running) {
                         closeClient();
@@ -88,11 +217,64 @@ public class ChatClient extends ClientBase implements Client {
     }
 
     /**
-     * Runs the chat client. This takes two optional arguments denoted by two flags:
+     * Shuts down the client, then stops reading input and sending. Interrupting the input thread
+     * closes the channel it reads through, which releases it if it is waiting for a line.
+     */
+    public void closeClient() {
+        // Reported first, as the JVM may exit as soon as the connection has closed.
+        if (running && sendLatency != null && sendLatency.getCount() > 0) {
+            System.err.println("[latency] input to socket over " + sendLatency.getCount() + " line(s): p50 "
+                    + toMicros(sendLatency.getValueAtPercentile(50)) + " us, p99 "
+                    + toMicros(sendLatency.getValueAtPercentile(99)) + " us, max "
+                    + toMicros(sendLatency.getMax()) + " us");
+        }
+        super.closeClient();
+        Thread current = Thread.currentThread();
+        if (inputThread != null && inputThread != current) {
+            inputThread.interrupt();
+        }
+        if (senderThread != null && senderThread != current) {
+            senderThread.interrupt();
+        }
+    }
+
+    /**
+     * Converts nanoseconds to whole microseconds for reporting.
+     *
+     * @param nanos : The time in nanoseconds.
+     * @return : The time in microseconds.
+     */
+    private static long toMicros(long nanos) {
+        return nanos / 1000;
+    }
+
+    /**
+     * A line the user has entered, waiting to be sent.
+     */
+    private static final class PendingLine {
+
+        private final String line;
+        // When the line was read, from System.nanoTime().
+        private final long readNanos;
+
+        PendingLine(String line, long readNanos) {
+            this.line = line;
+            this.readNanos = readNanos;
+        }
+    }
+
+    /**
+     * Runs the chat client. This takes the following optional arguments, denoted by flags:
      * <p>
      * -csp [int Port number]: Specifies the port the client should bind to.
      * <p>
      * -cca [String Host name]: Specifies the host the client should connect to.
+     * <p>
+     * -frames: Specifies that the client should use the binary frame protocol.
+     * <p>
+     * -latency: Specifies that the client should report how long each line takes from input to the socket.
+     * <p>
+     * -commands [String File]: Specifies a file of replies for the bot, reloaded whenever it changes.
      *
      * @param args : Command line arguments as detailed above.
      */
@@ -101,6 +283,9 @@ public class ChatClient extends ClientBase implements Client {
         int portNum = 14001;
         String hostName = "localhost";
         boolean bot = false;
+        boolean frames = false;
+        boolean latency = false;
+        String commandsFile = null;
         // Parse command line arguments.
         try {
             for (int i = 0; i < args.length; i++) {
@@ -115,6 +300,15 @@ public class ChatClient extends ClientBase implements Client {
                 if (args[i].equalsIgnoreCase("-bot")) {
                     bot = true;
                 }
+                if (args[i].equalsIgnoreCase("-frames")) {
+                    frames = true;
+                }
+                if (args[i].equalsIgnoreCase("-latency")) {
+                    latency = true;
+                }
+                if (args[i].equalsIgnoreCase("-commands")) {
+                    commandsFile = args[i + 1];
+                }
             }
             // Catch errors and allow defaults through.
         } catch (NumberFormatException nfe) {
@@ -124,10 +318,20 @@ public class ChatClient extends ClientBase implements Client {
         }
         // Create connection to server and start input/output handlers.
         if (bot) {
-            ChatBot chatBot = new ChatBot(hostName, portNum);
+            BotDispatcher dispatcher = new BotDispatcher();
+            if (commandsFile != null) {
+                try {
+                    dispatcher.load(Path.of(commandsFile));
+                    dispatcher.watch();
+                } catch (IOException e) {
+                    System.out.println("Could not load the bot commands: " + e.getMessage());
+                    return;
+                }
+            }
+            ChatBot chatBot = new ChatBot(hostName, portNum, frames, dispatcher);
             chatBot.getFromServer();
         } else {
-            ChatClient chatClient = new ChatClient(hostName, portNum);
+            ChatClient chatClient = new ChatClient(hostName, portNum, frames, latency);
             chatClient.sendToServer();
             chatClient.getFromServer();
         }
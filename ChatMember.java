@@ -0,0 +1,72 @@
+/**
+ * An interface defining what the server needs to know about a connected client,
+ * whichever way the server is handling it.
+ */
+public interface ChatMember {
+
+    /**
+     * Defines the unique username the server gave the client.
+     *
+     * @return : The username.
+     */
+    String getUsername();
+
+    /**
+     * Defines giving the client a different username, as when it resumes an earlier session.
+     * The registry the client is listed in must be updated alongside.
+     *
+     * @param username : The new username.
+     */
+    void setUsername(String username);
+
+    /**
+     * Defines the unique ID the client's username was made from.
+     *
+     * @return : The unique ID.
+     */
+    int getUid();
+
+    /**
+     * Defines the partition the client is listed in within each room it joins, which is
+     * the part of the server that delivers its messages.
+     *
+     * @return : The partition index.
+     */
+    int getPartition();
+
+    /**
+     * Defines the rooms the client is subscribed to.
+     *
+     * @return : The client's room membership.
+     */
+    RoomMembership getRoomMembership();
+
+    /**
+     * Defines sending a message from the server to the client.
+     *
+     * @param message : The message to send.
+     */
+    void send(String message);
+
+    /**
+     * Defines queueing an already encoded message for the client. The caller keeps its own
+     * reference to the message, so an implementation that holds on to the message after
+     * returning retains it.
+     *
+     * @param message : The message to deliver.
+     */
+    void deliver(ChatMessage message);
+
+    /**
+     * Defines how many messages are waiting to be written to the client.
+     *
+     * @return : The depth of the client's outbound queue.
+     */
+    int getQueueDepth();
+
+    /**
+     * Defines disconnecting the client. May be called from any thread.
+     */
+    void close();
+
+}
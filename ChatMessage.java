@@ -0,0 +1,326 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
+/**
+ * A message on its way to one or more clients. The message is encoded once when it
+ * is created, and the same encoded bytes are then shared by every recipient, which
+ * must treat them as read-only.
+ * <p>
+ * Clients on the line protocol are sent the encoded line. Clients that have switched to
+ * the binary protocol are sent the encoded frame instead, which is only encoded the first
+ * time such a client needs it.
+ * <p>
+ * The encoded bytes are held in buffers from the BufferPool, and the message is reference
+ * counted so that they go back to the pool once the last recipient has written them. Whoever
+ * creates a message holds the first reference, and releases it once it has delivered the
+ * message to every recipient; each OutboundQueue retains the messages it holds, and whoever
+ * takes a message out of a queue releases it once the message has been written or discarded.
+ * A message must not be used by anyone who no longer holds a reference to it.
+ */
+public final class ChatMessage {
+
+    private static final AtomicIntegerFieldUpdater<ChatMessage> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(ChatMessage.class, "references");
+    private static final AtomicReferenceFieldUpdater<ChatMessage, ByteBuffer> ENCODED_FRAME =
+            AtomicReferenceFieldUpdater.newUpdater(ChatMessage.class, ByteBuffer.class, "encodedFrame");
+
+    private final Frame.Type type;
+    private final ChatMember origin;
+    private final Room room;
+    private final long sequence;
+    private final long globalSequence;
+    private final String text;
+    private final ByteBuffer encodedLine;
+    private final boolean handshake;
+    private final CompletableFuture<JournalSlice> replay;
+    private volatile ByteBuffer encodedFrame;
+    private volatile int references = 1;
+
+    /**
+     * Creates a message sent by a client to a room. Messages in the lobby are encoded as
+     * the line "sender: text", as they were before there were rooms, and messages in any
+     * other room as "[room] sender: text". Created through Room.post(), which numbers it.
+     *
+     * @param origin         : The client that sent the message.
+     * @param room           : The room the message is sent to.
+     * @param sequence       : The sequence number of the message within the room.
+     * @param globalSequence : The sequence number of the message across every room of the server.
+     * @param text           : The text of the message.
+     */
+    public ChatMessage(ChatMember origin, Room room, long sequence, long globalSequence, String text) {
+        this(Frame.Type.MESSAGE, origin, room, sequence, globalSequence, text,
+                room.getLinePrefix(), origin.getUsername(), false, null);
+    }
+
+    /**
+     * Creates a message, encoding its line as UTF-8 with a line terminator straight into a pooled
+     * buffer. The line is the prefix, then the sender followed by ": " if there is one, then the text.
+     *
+     * @param type      : The kind of frame the message is sent as.
+     * @param origin    : The client that sent the message, or null for a message from the server.
+     * @param room      : The room the message is sent to, or null if it is not sent to a room.
+     * @param sequence  : The sequence number of the message within its room, or 0.
+     * @param globalSeq : The sequence number of the message across every room, or 0.
+     * @param text      : The text of the message.
+     * @param prefix    : What the line starts with, which may be empty.
+     * @param sender    : The username the line names as the sender, or null for none.
+     * @param handshake : Whether this is the server's reply to a handshake.
+     * @param replay    : The history this message stands in for, or null for an ordinary message.
+     */
+    private ChatMessage(Frame.Type type, ChatMember origin, Room room, long sequence, long globalSeq, String text,
+                        String prefix, String sender, boolean handshake, CompletableFuture<JournalSlice> replay) {
+        this.type = type;
+        this.origin = origin;
+        this.room = room;
+        this.sequence = sequence;
+        this.globalSequence = globalSeq;
+        this.text = text;
+        this.handshake = handshake;
+        this.replay = replay;
+        int length = Utf8.encodedLength(prefix) + Utf8.encodedLength(text) + 1
+                + (sender == null ? 0 : Utf8.encodedLength(sender) + 2);
+        ByteBuffer line = BufferPool.SHARED.acquire(length);
+        Utf8.encode(prefix, line);
+        if (sender != null) {
+            Utf8.encode(sender, line);
+            line.put((byte) ':').put((byte) ' ');
+        }
+        Utf8.encode(text, line);
+        line.put((byte) '\n');
+        this.encodedLine = line.flip();
+    }
+
+    /**
+     * Creates a private message from one client to another, encoded as the line
+     * "(private) sender: text". The parentheses cannot appear in a room name, so the
+     * line cannot be mistaken for a message in a room.
+     *
+     * @param origin : The client that sent the message.
+     * @param text   : The text of the message.
+     * @return : The message.
+     */
+    public static ChatMessage direct(ChatMember origin, String text) {
+        return new ChatMessage(Frame.Type.PRIVATE, origin, null, 0, 0, text,
+                "(private) ", origin.getUsername(), false, null);
+    }
+
+    /**
+     * Creates a message from the server itself, sent to clients exactly as given.
+     *
+     * @param text : The text of the message.
+     * @return : The message.
+     */
+    public static ChatMessage fromServer(String text) {
+        return new ChatMessage(Frame.Type.SERVER, null, null, 0, 0, text, "", null, false, null);
+    }
+
+    /**
+     * Creates a message from the server to the members of a room. Its line starts with the
+     * room's prefix, like the room's own messages, but it is not numbered or kept in the journal.
+     *
+     * @param room : The room the message is sent to.
+     * @param text : The text of the message.
+     * @return : The message.
+     */
+    public static ChatMessage fromServer(Room room, String text) {
+        return new ChatMessage(Frame.Type.SERVER, null, room, 0, 0, text, room.getLinePrefix(), null, false, null);
+    }
+
+    /**
+     * Creates the server's reply to a client asking for the binary protocol. The reply is
+     * always sent as a line, and the writer of the client switches to frames after it.
+     *
+     * @return : The message.
+     */
+    public static ChatMessage handshake() {
+        return new ChatMessage(Frame.Type.SERVER, null, null, 0, 0, Frame.HANDSHAKE_REPLY, "", null, true, null);
+    }
+
+    /**
+     * Creates a stand-in for a room's history, queued for a client as it joins the room so that
+     * the history is written before any message sent to the room after the client joined.
+     * The history itself is found by the journal's thread, and is written straight from the
+     * journal's files by the client's writer once it is ready. An outbound queue always ends
+     * a batch after a replay, so that the writer can write what came before it first.
+     *
+     * @param replay : Completed with the history, or with null if there is none.
+     * @return : The message.
+     */
+    public static ChatMessage replay(CompletableFuture<JournalSlice> replay) {
+        return new ChatMessage(Frame.Type.SERVER, null, null, 0, 0, "", "", null, false, replay);
+    }
+
+    /**
+     * Takes another reference to the message, for a recipient that keeps it beyond the call
+     * it was handed the message in.
+     */
+    public void retain() {
+        if (REFERENCES.getAndIncrement(this) <= 0) {
+            throw new IllegalStateException("Message retained after it was released");
+        }
+    }
+
+    /**
+     * Gives up a reference to the message, returning its encoded bytes to the BufferPool once
+     * the last reference has been given up.
+     */
+    public void release() {
+        int left = REFERENCES.decrementAndGet(this);
+        if (left > 0) {
+            return;
+        }
+        if (left < 0) {
+            throw new IllegalStateException("Message released more often than it was retained");
+        }
+        BufferPool.SHARED.release(encodedLine);
+        ByteBuffer frame = encodedFrame;
+        if (frame != null) {
+            BufferPool.SHARED.release(frame);
+        }
+    }
+
+    public Frame.Type getType() {
+        return type;
+    }
+
+    /**
+     * The client that sent the message.
+     *
+     * @return : The sender, or null for a message from the server.
+     */
+    public ChatMember getOrigin() {
+        return origin;
+    }
+
+    /**
+     * The username of the client that sent the message.
+     *
+     * @return : The sender's username, or null for a message from the server.
+     */
+    public String getSender() {
+        return origin == null ? null : origin.getUsername();
+    }
+
+    /**
+     * The room the message was sent to.
+     *
+     * @return : The room, or null for a message not sent to a room.
+     */
+    public Room getRoom() {
+        return room;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * The sequence number of the message across every room of the server, given in the order
+     * messages entered the BroadcastPipeline.
+     *
+     * @return : The global sequence number, or 0 for a message not sent to a room.
+     */
+    public long getGlobalSequence() {
+        return globalSequence;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Whether this is the server's reply to a handshake, after which a client's writer
+     * switches to frames.
+     *
+     * @return : True for a handshake reply.
+     */
+    public boolean isHandshake() {
+        return handshake;
+    }
+
+    /**
+     * The history this message stands in for.
+     *
+     * @return : The history, or null for an ordinary message, which is written as it is encoded.
+     */
+    public CompletableFuture<JournalSlice> getReplay() {
+        return replay;
+    }
+
+    /**
+     * Returns the message encoded as a line, shared between every recipient.
+     *
+     * @return : The encoded line, including its terminator, from position 0 to its limit. Must
+     *           only be read with absolute gets, and only while holding a reference to the message.
+     */
+    public ByteBuffer getEncodedLine() {
+        return encodedLine;
+    }
+
+    /**
+     * Returns the message encoded as a frame, shared between every recipient. The frame
+     * carries the same text as the line, without the terminator.
+     *
+     * @return : The encoded frame, including its length prefix, from position 0 to its limit. Must
+     *           only be read with absolute gets, and only while holding a reference to the message.
+     */
+    public ByteBuffer getEncodedFrame() {
+        ByteBuffer frame = encodedFrame;
+        if (frame == null) {
+            int payloadLength = encodedLine.limit() - 1;
+            frame = BufferPool.SHARED.acquire(4 + Frame.HEADER_LENGTH + payloadLength);
+            frame.putInt(Frame.HEADER_LENGTH + payloadLength);
+            frame.put(type.getCode());
+            frame.putInt(room == null ? Frame.NO_ROOM : room.getId());
+            frame.putLong(sequence);
+            frame.put(frame.position(), encodedLine, 0, payloadLength);
+            frame.position(frame.position() + payloadLength).flip();
+            // Two writers may both encode the frame; the one that loses gives its copy back.
+            if (!ENCODED_FRAME.compareAndSet(this, null, frame)) {
+                BufferPool.SHARED.release(frame);
+                frame = encodedFrame;
+            }
+        }
+        return frame;
+    }
+
+    /**
+     * Returns the message encoded for a client on either protocol.
+     *
+     * @param framed : Whether the client is on the binary protocol.
+     * @return : The encoded bytes, read as getEncodedLine() and getEncodedFrame() are.
+     */
+    public ByteBuffer encodeFor(boolean framed) {
+        return framed ? getEncodedFrame() : encodedLine;
+    }
+
+    /**
+     * The length of the message encoded for a client on either protocol.
+     *
+     * @param framed : Whether the client is on the binary protocol.
+     * @return : The number of bytes.
+     */
+    public int encodedLength(boolean framed) {
+        return encodeFor(framed).limit();
+    }
+
+    /**
+     * Copies as much of the encoded message as fits into a client's output buffer, starting
+     * part way through the message, so that a writer can copy a message across more than one
+     * buffer's worth of output. The shared bytes are copied without creating a view of them.
+     *
+     * @param framed : Whether the client is on the binary protocol.
+     * @param offset : How many bytes of the encoded message have already been copied.
+     * @param output : The buffer to copy into, at its position, which is moved past the bytes copied.
+     * @return : The number of bytes copied.
+     */
+    public int copyTo(boolean framed, int offset, ByteBuffer output) {
+        ByteBuffer encoded = encodeFor(framed);
+        int count = Math.min(output.remaining(), encoded.limit() - offset);
+        output.put(output.position(), encoded, offset, count);
+        output.position(output.position() + count);
+        return count;
+    }
+}
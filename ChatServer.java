@@ -1,162 +1,430 @@
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A simple chat server with error handling.
  * Implements the Server interface.
- * Handles multiple clients through multithreading.
+ * Handles multiple clients through multithreading, using either platform threads
+ * or, on a JVM that supports them, virtual threads.
  */
 public class ChatServer implements Server {
 
     private ServerSocket chatServerSocket;
-    public List<ClientThread> clientList = new ArrayList<>();
-    private int uid = 0;
+    private final ClientRegistry<ClientThread> clientRegistry = new ClientRegistry<>();
+    private final MessageJournal messageJournal;
+    private final SearchIndex searchIndex;
+    private final Presence presence;
+    private final SessionManager sessionManager;
+    private final RoomIndex roomIndex;
+    private final CommandHandler commandHandler;
+    private final BroadcastPipeline broadcastPipeline;
+    private final ServerMetrics metrics = new ServerMetrics(clientRegistry);
+    private MetricsEndpoint metricsEndpoint;
+    private final RateLimits rateLimits;
+    private final Heartbeats heartbeats;
+    // The wheel every client's heartbeat waits on, or null if clients are not timed out.
+    private final TimingWheel timingWheel;
+    private ClusterNode clusterNode;
     private volatile Boolean running;
+    // A lock rather than a synchronized method, as a virtual thread blocking inside a
+    // monitor pins its carrier thread. Joins and leaves do not take it.
+    private final ReentrantLock closeLock = new ReentrantLock();
+    private final CountDownLatch closedLatch = new CountDownLatch(1);
+    private final ThreadFactory threadFactory;
+    private final ServerConfig config;
+    private final FlushScheduler flushScheduler;
 
     /**
      * Server constructor, establishes the server socket that the server resides on, on
-     * the specified port number.
+     * the specified port number. Uses the default settings for everything else.
      *
      * @param portNumber : Port number to reside on.
      */
     public ChatServer(int portNumber) {
+        this(withPort(portNumber));
+    }
+
+    /**
+     * Server constructor, establishes the server socket that the server resides on, on
+     * the configured port number, and chooses the kind of thread the server runs on.
+     *
+     * @param config : The settings to run the server with.
+     */
+    public ChatServer(ServerConfig config) {
         running = true;
+        this.config = config;
+        Log.setLevel(config.logLevel);
+        this.rateLimits = new RateLimits(config, metrics);
+        this.heartbeats = new Heartbeats(config, metrics);
+        this.timingWheel = heartbeats.isEnabled() ? new TimingWheel() : null;
+        this.flushScheduler = new FlushScheduler(config.batchSize, config.flushDelayMicros);
+        this.messageJournal = MessageJournal.open(config);
+        this.sessionManager = SessionManager.open(config);
+        this.searchIndex = SearchIndex.open(config, metrics);
+        this.roomIndex = new RoomIndex(1, messageJournal);
+        this.presence = new Presence(this, config.presenceIntervalMillis, metrics);
+        roomIndex.setPresence(presence);
+        this.commandHandler = new CommandHandler(roomIndex, clientRegistry, sessionManager, searchIndex);
+        this.broadcastPipeline = new BroadcastPipeline(config.ringCapacity, this, metrics);
+        broadcastPipeline.setSearchIndex(searchIndex);
+        metrics.watch(broadcastPipeline);
+        if (config.virtualThreads && !VirtualThreads.isSupported()) {
+            Log.warn("Virtual threads are not supported by this JVM. Using platform threads instead.");
+        }
+        threadFactory = VirtualThreads.factory(config.virtualThreads);
         try {
-            System.out.println("Opening server socket on port " + portNumber + "...");
-            chatServerSocket = new ServerSocket(portNumber);
+            Log.info("Opening server socket on port " + config.portNumber + "...");
+            // Opened through a channel, so that clients' sockets have channels that history
+            // can be transferred to straight from the journal's files.
+            chatServerSocket = ServerSocketChannel.open().socket();
+            chatServerSocket.bind(new InetSocketAddress(config.portNumber));
         } catch (IOException e) {
-            System.out.println("Could not open server socket.");
+            Log.warn("Could not open server socket.");
             closeServer();
+            return;
+        }
+        clusterNode = ClusterNode.open(config, broadcastPipeline, roomIndex);
+        metricsEndpoint = MetricsEndpoint.open(config, metrics);
+        if (timingWheel != null) {
+            Thread wheelThread = new Thread(this::advanceTimingWheel, "TimingWheel");
+            wheelThread.setDaemon(true);
+            wheelThread.start();
+        }
+    }
+
+    /**
+     * Advances the timing wheel once a tick until the server closes, timing out idle clients.
+     * Runs on a thread of its own, which is the only thread waiting on behalf of every client.
+     */
+    private void advanceTimingWheel() {
+        while (running) {
+            timingWheel.advance(System.nanoTime());
+            LockSupport.parkNanos(timingWheel.nanosUntilNextTick(System.nanoTime()));
         }
     }
 
     /**
-     * Closes the server by lowering the running flag, closing the server socket,
-     * and closing the clients.
+     * Closes the server by lowering the running flag, closing the server socket, stopping
+     * presence updates, closing the clients and the broadcast pipeline, and closing the
+     * cluster node, message journal, search index and metrics endpoint if there are any.
+     * Waits for the log to be written last.
      */
-    public synchronized void closeServer() {
-        running = false;
-        System.out.println("Attempting to close server...");
+    public void closeServer() {
+        closeLock.lock();
         try {
+            running = false;
+            Log.info("Attempting to close server...");
+            // Clients leaving as the server closes are not announced.
+            presence.close();
             chatServerSocket.close();
-            // Creating a shutdown list avoids concurrent modification.
-            List<ClientThread> clientsToClose = new ArrayList<>(clientList);
+            // Creating a shutdown list means clients are closed once each, even as they leave.
+            List<ClientThread> clientsToClose = new ArrayList<>();
+            for (ClientThread client : clientRegistry) {
+                clientsToClose.add(client);
+            }
             for (ClientThread client : clientsToClose) {
                 client.close();
             }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Failed to close the server socket.", e);
+        } finally {
+            broadcastPipeline.close();
+            if (clusterNode != null) {
+                clusterNode.close();
+            }
+            if (messageJournal != null) {
+                messageJournal.close();
+            }
+            if (searchIndex != null) {
+                searchIndex.close();
+            }
+            if (metricsEndpoint != null) {
+                metricsEndpoint.close();
+            }
+            Log.flush();
+            closeLock.unlock();
+            closedLatch.countDown();
         }
     }
 
     /**
-     * Adds a client to the client list, increment the unique ID integer,
-     * and start a new thread for the client.
+     * Creates the default settings with the given port number.
+     *
+     * @param portNumber : Port number to reside on.
+     * @return : The settings.
+     */
+    private static ServerConfig withPort(int portNumber) {
+        ServerConfig config = new ServerConfig();
+        config.portNumber = portNumber;
+        return config;
+    }
+
+    /**
+     * Blocks the calling thread until the server has been closed. Virtual threads do not
+     * keep the JVM alive, so the main thread waits here when the server runs on them.
+     */
+    public void awaitClose() {
+        try {
+            closedLatch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Adds a client to the client registry and the lobby, increment the unique ID integer,
+     * and start a new thread for the client, along with the writer stage
+     * that drains its outbound queue.
      *
      * @param chatClientSocket : The socket of the client.
      */
-    public synchronized void addClient(Socket chatClientSocket) {
-        // Create client thread instance.
-        ClientThread client = new ClientThread(chatClientSocket, "User" + uid, this);
+    public void addClient(Socket chatClientSocket) {
         // Ensure each new user has a unique username.
-        uid++;
-        // Create thread from runnable instance and start it.
-        Thread clientThread = new Thread(client);
-        clientList.add(client);
+        int clientUid = sessionManager.nextUid();
+        // Create client thread instance.
+        ClientThread client = new ClientThread(chatClientSocket, clientUid, "User" + clientUid, this,
+                new OutboundQueue(config.queueCapacity, config.slowConsumerPolicy, metrics));
+        // Create threads from runnable instance and start them.
+        Thread clientThread = threadFactory.newThread(client);
+        Thread writerThread = threadFactory.newThread(client::writeOutput);
+        clientRegistry.add(client);
+        metrics.connections.increment();
+        roomIndex.join(client, roomIndex.getLobby());
+        writerThread.start();
         clientThread.start();
+        // A client added while the server was closing may have been missed by closeServer().
+        if (!running) {
+            client.close();
+        }
     }
 
     /**
-     * Removes a client from the client list.
+     * Removes a client from the client registry and from every room it is in.
      *
      * @param client : Client to be removed.
      */
-    public synchronized void removeClient(ClientThread client) {
-        clientList.remove(client);
+    public void removeClient(ClientThread client) {
+        clientRegistry.remove(client);
+        roomIndex.leaveAll(client);
+    }
+
+    public FlushScheduler getFlushScheduler() {
+        return flushScheduler;
+    }
+
+    public BroadcastPipeline getBroadcastPipeline() {
+        return broadcastPipeline;
+    }
+
+    /**
+     * Sends a message posted to a room to every client of this server in the room. Called from
+     * the BroadcastPipeline's fan out stage.
+     *
+     * @param message : The message, posted to a room.
+     */
+    public void deliverToRoom(ChatMessage message) {
+        message.getRoom().deliver(0, message);
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    public Heartbeats getHeartbeats() {
+        return heartbeats;
+    }
+
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    public CommandHandler getCommandHandler() {
+        return commandHandler;
+    }
+
+    /**
+     * Returns the registry of connected clients, which can be iterated and searched
+     * without blocking joins and leaves.
+     *
+     * @return : The client registry.
+     */
+    public ClientRegistry<ClientThread> getClientRegistry() {
+        return clientRegistry;
+    }
+
+    /**
+     * Counts a client that was disconnected for not keeping up with its messages.
+     */
+    public void countEviction() {
+        metrics.evictions.increment();
+    }
+
+    /**
+     * Prints the outbound queue depth and counters of every client, so that an admin
+     * can see which clients are lagging.
+     */
+    public void printClients() {
+        int clientCount = 0;
+        for (ClientThread client : clientRegistry) {
+            System.out.println(client.describe());
+            clientCount++;
+        }
+        System.out.println("Clients: " + clientCount + ", evicted: " + metrics.evictions.get()
+                + ", policy: " + config.slowConsumerPolicy.getFlagName());
+        System.out.println(broadcastPipeline.describe());
     }
 
     /**
      * Starts a thread that continuously accepts connections from connecting clients.
      */
     public void acceptConnectionsFromClients() {
-        Thread connectionListener = new Thread() {
+        Thread connectionListener = threadFactory.newThread(new Runnable() {
             public void run() {
                 // Continuously add non-null connections as clients.
                 while (running) {
                     Socket chatClientSocket = null;
                     try {
                         chatClientSocket = chatServerSocket.accept();
-                        System.out.println("Server accepted connection on: " +
-                                chatClientSocket.getInetAddress().toString());
+                        if (Log.isEnabled(Log.Level.DEBUG)) {
+                            Log.debug("Server accepted connection on: " + chatClientSocket.getInetAddress());
+                        }
                     } catch (IOException e) {
-                        System.out.println("Server socket is closed...");
+                        Log.info("Server socket is closed...");
                     }
                     if (chatClientSocket != null) {
                         addClient(chatClientSocket);
                     }
                 }
             }
-        };
-        System.out.println("Starting connection listener...");
+        });
+        Log.info("Starting connection listener...");
         connectionListener.start();
     }
 
     /**
      * Starts a thread that continuously listens for admin input on the terminal,
-     * handling the exit prompt for the server.
+     * handling the exit prompt for the server, the CLIENTS prompt, which lists
+     * the outbound queues of the clients, the PEERS prompt, which lists the
+     * links to the other nodes of the cluster, and the STATS prompt, which prints
+     * the server's metrics.
      */
     public void terminalListen() {
-        Thread terminalListener = new Thread() {
+        Thread terminalListener = threadFactory.newThread(new Runnable() {
             public void run() {
                 BufferedReader terminalInput = new BufferedReader(new InputStreamReader(System.in));
                 while (running) {
                     try {
-                        if (terminalInput.readLine().equals("EXIT")) {
+                        String command = terminalInput.readLine();
+                        if (command == null) {
+                            return;
+                        }
+                        if (command.equals("EXIT")) {
                             closeServer();
+                        } else if (command.equals("CLIENTS")) {
+                            printClients();
+                        } else if (command.equals("PEERS") && clusterNode != null) {
+                            clusterNode.printPeers();
+                        } else if (command.equals("STATS")) {
+                            System.out.print(metrics.describe());
                         }
                     } catch (IOException e) {
-                        e.printStackTrace();
+                        Log.error("Failed to read from the terminal.", e);
                     }
                 }
             }
-        };
-        System.out.println("Starting terminal listener...");
+        });
+        Log.info("Starting terminal listener...");
         terminalListener.start();
     }
 
     /**
-     * Runs the chat server. This takes one optional parameter denoted by one flag:
+     * Runs the chat server. This takes twenty-two optional parameters and two optional flags:
      * <p>
      * -csp [int Port number]: Specifies the port the server will bind to.
+     * <p>
+     * -nio: Runs the non-blocking NioChatServer instead of a thread per client.
+     * <p>
+     * -shards [int Shard count]: Specifies the number of NioChatServer event loops,
+     * and implies -nio. Defaults to the number of available processors.
+     * <p>
+     * -vthreads: Runs ChatServer and its clients on virtual threads instead of platform threads.
+     * <p>
+     * -queue [int Capacity]: Specifies how many messages may wait for a client before the
+     * slow consumer policy applies.
+     * <p>
+     * -policy [drop-oldest|drop-newest|disconnect|pause]: Specifies the slow consumer policy.
+     * <p>
+     * -batch [int Batch size]: Specifies the most messages written to a client in one go.
+     * <p>
+     * -flushdelay [int Microseconds]: Specifies how long a message may wait for others to join its
+     * batch before it is written.
+     * <p>
+     * -journal [Directory]: Records every room's messages in the directory, and sends them to clients
+     * joining the room.
+     * <p>
+     * -history [int Count]: Specifies how many of a room's last messages are sent on joining it.
+     * <p>
+     * -fsync [int Milliseconds]: Specifies how often the journal is forced onto the disk.
+     * <p>
+     * -peers [Host:Port,Host:Port,...]: Lists the nodes of a cluster by their peer link addresses,
+     * in the same order on every node.
+     * <p>
+     * -node [int Index]: Specifies this server's place in the -peers list, counting from 0.
+     * <p>
+     * -ring [int Capacity]: Specifies how many messages can be in the broadcast pipeline at once.
+     * <p>
+     * -log [debug|info|warn|error|off]: Specifies the least important level of message logged.
+     * <p>
+     * -metrics [int Port number]: Serves the server's metrics at http://localhost:Port/metrics.
+     * <p>
+     * -userlimit, -roomlimit, -iplimit [Rate[:Burst]]: Limits how many messages a second each
+     * user, each room and each address may send.
+     * <p>
+     * -flood [throttle|drop]: Specifies what happens to a message over a rate limit.
+     * <p>
+     * -heartbeat [int Seconds]: Pings clients that have been quiet for this long.
+     * <p>
+     * -idletimeout [int Seconds]: Closes clients that have been quiet for this long.
+     * <p>
+     * -search [Directory]: Keeps an index of every room's messages in the directory, for /search.
+     * <p>
+     * -presence [int Milliseconds]: Tells each room who joined and left this often, or never for 0.
      *
      * @param args : Command line arguments.
      */
     public static void main(String[] args) {
-        // Set default port argument.
-        int portNum = 14001;
-        // Parse command line arguments.
-        try {
-            for (int i = 0; i < args.length; i++) {
-                // If -csp found, try to make next argument port number.
-                if (args[i].equalsIgnoreCase("-csp")) {
-                    portNum = Integer.parseInt(args[i + 1]);
-                }
+        // Parse command line arguments, allowing defaults through.
+        ServerConfig config = ServerConfig.fromArgs(args);
+        // Create the server socket, and start client connection handler and terminal listener threads.
+        if (config.nio) {
+            NioChatServer nioChatServer = new NioChatServer(config);
+            nioChatServer.acceptConnectionsFromClients();
+            nioChatServer.terminalListen();
+            Log.info("The server is running!");
+        } else {
+            ChatServer chatServer = new ChatServer(config);
+            chatServer.acceptConnectionsFromClients();
+            chatServer.terminalListen();
+            Log.info("The server is running!");
+            // Virtual threads are daemon threads, so keep the JVM alive until the server closes.
+            if (config.virtualThreads) {
+                chatServer.awaitClose();
             }
-            // Catch errors and allow defaults through.
-        } catch (NumberFormatException nfe) {
-            System.out.println("Invalid arguments. Using defaults instead.");
-        } catch (IndexOutOfBoundsException ioe) {
-            System.out.println("Incorrect argument format. Using defaults instead.");
         }
-        // Create the server socket, and start client connection handler and terminal listener threads.
-        ChatServer chatServer = new ChatServer(portNum);
-        chatServer.acceptConnectionsFromClients();
-        chatServer.terminalListen();
-        System.out.println("The server is running!");
     }
 }
@@ -0,0 +1,292 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * A stress test of how the server keeps track of its clients while they come and go. It runs
+ * a server in the same process and, against it, many threads that each open a batch of
+ * connections at once, send a message from some of them and close them all, over and over,
+ * while other clients broadcast to the lobby the whole time.
+ * <p>
+ * Afterwards every client has gone, so the test checks that the server's registry is empty,
+ * that a new client is told it is alone in the lobby, and that no two connections were ever
+ * given the same username. Any failure is printed, and the exit status is 1.
+ */
+public class ChurnStress {
+
+    private static final String WELCOME = "Your username is: ";
+    private static final String WHO_REPLY = "In lobby, ";
+    private static final long BROADCAST_INTERVAL_MILLIS = 10;
+
+    private final int portNumber;
+    private final int workerCount;
+    private final int holdCount;
+    private final int connectCount;
+    private final int broadcasterCount;
+    private final IntSupplier registrySize;
+    private final Set<String> usernames = ConcurrentHashMap.newKeySet();
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong failedConnects = new AtomicLong();
+    private final AtomicLong duplicateUsernames = new AtomicLong();
+    private final AtomicLong messagesSent = new AtomicLong();
+    private final AtomicLong messagesRead = new AtomicLong();
+    private volatile boolean broadcasting = true;
+
+    /**
+     * Churn stress constructor.
+     *
+     * @param portNumber       : The port of the server under test.
+     * @param workerCount      : The number of threads opening and closing connections.
+     * @param holdCount        : The number of connections each thread holds open at once.
+     * @param connectCount     : The number of connections to open in all.
+     * @param broadcasterCount : The number of clients broadcasting throughout.
+     * @param registrySize     : Gives the number of clients in the server's registry.
+     */
+    public ChurnStress(int portNumber, int workerCount, int holdCount, int connectCount, int broadcasterCount,
+                       IntSupplier registrySize) {
+        this.portNumber = portNumber;
+        this.workerCount = Math.max(1, workerCount);
+        this.holdCount = Math.max(1, holdCount);
+        this.connectCount = connectCount;
+        this.broadcasterCount = broadcasterCount;
+        this.registrySize = registrySize;
+    }
+
+    /**
+     * Runs the churn and the broadcasts alongside it, then checks what the server is left with.
+     *
+     * @return : True if every check passed.
+     * @throws InterruptedException : If the test was interrupted while waiting for its threads.
+     */
+    public boolean run() throws InterruptedException {
+        List<Thread> broadcasters = new ArrayList<>();
+        for (int i = 0; i < broadcasterCount; i++) {
+            broadcasters.add(start("Broadcaster-" + i, this::broadcast));
+        }
+        System.out.println("Opening " + connectCount + " connections from " + workerCount + " threads, "
+                + holdCount + " at a time each, while " + broadcasterCount + " clients broadcast...");
+        long start = System.nanoTime();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < workerCount; i++) {
+            int share = connectCount / workerCount + (i < connectCount % workerCount ? 1 : 0);
+            workers.add(start("Churn-" + i, () -> churn(share)));
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        broadcasting = false;
+        for (Thread broadcaster : broadcasters) {
+            broadcaster.join();
+        }
+        System.out.println("connects " + connects.get());
+        System.out.println("failed_connects " + failedConnects.get());
+        System.out.println("connects_per_second " + connects.get() * 1000 / Math.max(1, elapsedMillis));
+        System.out.println("messages_sent " + messagesSent.get());
+        System.out.println("messages_read_by_broadcasters " + messagesRead.get());
+
+        boolean passed = true;
+        if (duplicateUsernames.get() > 0) {
+            System.out.println("FAILED: " + duplicateUsernames.get() + " usernames were given out twice.");
+            passed = false;
+        }
+        if (failedConnects.get() > 0) {
+            System.out.println("FAILED: " + failedConnects.get() + " connections were not welcomed.");
+            passed = false;
+        }
+        // Leaving is noticed by the server a little after the socket closes.
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (registrySize.getAsInt() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+        System.out.println("registry_size_after " + registrySize.getAsInt());
+        if (registrySize.getAsInt() != 0) {
+            System.out.println("FAILED: clients were left in the registry after they had all gone.");
+            passed = false;
+        }
+        String who = probeLobby();
+        System.out.println("lobby_after " + who);
+        if (!who.startsWith(WHO_REPLY + "1 online")) {
+            System.out.println("FAILED: the lobby did not count only the client asking.");
+            passed = false;
+        }
+        return passed;
+    }
+
+    private static Thread start(String name, Runnable task) {
+        Thread thread = new Thread(task, name);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Opens connections a batch at a time, sends a message from every other one, and closes
+     * the batch, until this thread's share has been opened.
+     *
+     * @param share : The number of connections to open.
+     */
+    private void churn(int share) {
+        List<Socket> batch = new ArrayList<>(holdCount);
+        int opened = 0;
+        while (opened < share) {
+            for (int i = 0; i < holdCount && opened < share; i++, opened++) {
+                try {
+                    Socket socket = new Socket("localhost", portNumber);
+                    batch.add(socket);
+                    String welcome = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                            StandardCharsets.UTF_8)).readLine();
+                    if (welcome == null || !welcome.startsWith(WELCOME)) {
+                        failedConnects.incrementAndGet();
+                        continue;
+                    }
+                    connects.incrementAndGet();
+                    if (!usernames.add(welcome.substring(WELCOME.length()))) {
+                        duplicateUsernames.incrementAndGet();
+                    }
+                    if (opened % 2 == 0) {
+                        socket.getOutputStream().write("churn\n".getBytes(StandardCharsets.UTF_8));
+                        messagesSent.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    failedConnects.incrementAndGet();
+                }
+            }
+            for (Socket socket : batch) {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    // Already gone.
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Sends to the lobby until the churn is over, reading everything sent back on a thread of
+     * its own so that the broadcaster is never a slow consumer.
+     */
+    private void broadcast() {
+        try (Socket socket = new Socket("localhost", portNumber)) {
+            // The reader stops once the socket is closed, as the broadcaster finishes.
+            start(Thread.currentThread().getName() + "-reader", () -> {
+                try {
+                    BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                            StandardCharsets.UTF_8));
+                    while (input.readLine() != null) {
+                        messagesRead.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    // The broadcaster has closed.
+                }
+            });
+            OutputStream output = socket.getOutputStream();
+            while (broadcasting) {
+                output.write("broadcast\n".getBytes(StandardCharsets.UTF_8));
+                messagesSent.incrementAndGet();
+                Thread.sleep(BROADCAST_INTERVAL_MILLIS);
+            }
+        } catch (IOException e) {
+            System.out.println("A broadcaster lost its connection: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Connects a new client and asks who is in the lobby.
+     *
+     * @return : The reply to /who, or what went wrong.
+     */
+    private String probeLobby() {
+        try (Socket socket = new Socket("localhost", portNumber)) {
+            socket.setSoTimeout(5000);
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            socket.getOutputStream().write("/who\n".getBytes(StandardCharsets.UTF_8));
+            String line;
+            while ((line = input.readLine()) != null) {
+                if (line.startsWith(WHO_REPLY)) {
+                    return line;
+                }
+            }
+            return "no reply";
+        } catch (IOException e) {
+            return "no reply: " + e.getMessage();
+        }
+    }
+
+    /**
+     * Main method of ChurnStress. Starts a server with the given arguments, which are parsed as
+     * for ChatServer, runs the churn against it and closes it. Exits with status 1 if any check
+     * failed.
+     *
+     * @param args : Command line arguments.
+     */
+    public static void main(String[] args) {
+        // Set default arguments.
+        int workerCount = 32;
+        int holdCount = 32;
+        int connectCount = 10000;
+        int broadcasterCount = 4;
+        // Parse command line arguments.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-workers")) {
+                    workerCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-hold")) {
+                    holdCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-connects")) {
+                    connectCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-broadcasters")) {
+                    broadcasterCount = Integer.parseInt(args[i + 1]);
+                }
+            }
+            // Catch errors and allow defaults through.
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid arguments. Using defaults instead.");
+        } catch (IndexOutOfBoundsException ioe) {
+            System.out.println("Incorrect argument format. Using defaults instead.");
+        }
+        // The server's own log is quiet unless asked for, so that the results can be read.
+        List<String> serverArgs = new ArrayList<>(List.of("-log", "warn", "-csp", "14101"));
+        serverArgs.addAll(List.of(args));
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        Server server;
+        IntSupplier registrySize;
+        if (config.nio) {
+            NioChatServer nioChatServer = new NioChatServer(config);
+            registrySize = () -> nioChatServer.getClientRegistry().size();
+            server = nioChatServer;
+        } else {
+            ChatServer chatServer = new ChatServer(config);
+            registrySize = () -> chatServer.getClientRegistry().size();
+            server = chatServer;
+        }
+        server.acceptConnectionsFromClients();
+        ChurnStress churnStress = new ChurnStress(config.portNumber, workerCount, holdCount, connectCount,
+                broadcasterCount, registrySize);
+        boolean passed;
+        try {
+            passed = churnStress.run();
+        } catch (InterruptedException e) {
+            passed = false;
+        }
+        server.closeServer();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -1,41 +1,105 @@
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * An abstract class that can be extended to create a functional client that
  * connects to an instance of ChatServer. This has no functionality of itself
- * other than being able to open and close its connections, and is therefore
- * an abstract class.
+ * other than being able to open and close its connections, and to send and
+ * receive messages in either the line protocol or the binary frame protocol,
+ * and is therefore an abstract class.
+ * <p>
+ * The client keeps a session token from the server, and if the connection is lost it
+ * reconnects and resumes the session, keeping its username and rooms. Reconnecting waits a
+ * random time up to a limit that doubles with every failed attempt, so that clients cut off
+ * together by a restart do not all come back at the same moment. Over frames, the client
+ * remembers the last sequence number it has had in each room and is sent only the messages
+ * after it.
+ * <p>
+ * A line or frame from the server that is too long or otherwise cannot be read is skipped,
+ * rather than taken for a lost connection. One that leaves the rest of the input unreadable
+ * is handled as a lost connection, unless the same failure happened before the last resume
+ * with no new room message since, in which case resuming would only repeat it and the client
+ * gives up.
+ * <p>
+ * Session replies and pings are only acted on if they come from the server itself: over
+ * frames, in a frame of the server's type, and over lines, as a line of their own, which a
+ * message from another client never is as it starts with the sender. A session reply is only
+ * taken while one has been asked for, and a resume reply while a resume is waiting for it.
  */
 public abstract class ClientBase implements Client {
 
+    public static final long BASE_BACKOFF_MILLIS = 250;
+    public static final long MAX_BACKOFF_MILLIS = 30000;
+    public static final int MAX_RECONNECT_ATTEMPTS = 12;
+    private static final String SESSION_REPLY = "/session ";
+    private static final String RESUME_REPLY = "/resume ";
+    // The server's heartbeat, as sent by Heartbeats, and the answer to it.
+    private static final String PING = "/ping";
+    private static final String PONG = "/pong";
+    private static final String WELCOME = "Your username is: ";
+
     protected Socket chatServerSocket;
-    protected BufferedReader serverInput;
-    protected PrintWriter serverOutput;
-    protected InputStreamReader clientInput;
-    protected BufferedReader clientText;
-    protected boolean running;
+    protected DataInputStream serverInput;
+    protected DataOutputStream serverOutput;
+    protected volatile boolean running;
+    protected final boolean useFrames;
+    private final String host;
+    private final int port;
+    // Whether the server has replied to the handshake, after which its output is framed.
+    private boolean framedInput = false;
+    private long sequence = 0;
+    private volatile String sessionToken = null;
+    // Whether a resume has been sent and not replied to yet.
+    private boolean resuming = false;
+    // The session tokens asked for on this connection and not replied to yet.
+    private final AtomicInteger sessionRequests = new AtomicInteger();
+    // Whether the last message read came from the server itself rather than from a client.
+    private boolean fromServer = false;
+    // The last sequence number had from each room, by room ID.
+    private final Map<Integer, Long> lastSequences = new ConcurrentHashMap<>();
+    // The malformed input the connection was last given up for, until a room message is had.
+    private String lastMalformedInput = null;
 
     /**
      * Client constructor. Creates a socket to the specified host and port, and establishes server input
-     * and output streams as well as the System.in client input stream.
+     * and output streams. Uses the line protocol.
      *
      * @param host : The name of the host to connect to.
      * @param port : The port number to bind to.
      */
     public ClientBase(String host, int port) {
+        this(host, port, false);
+    }
+
+    /**
+     * Client constructor. Creates a socket to the specified host and port, and establishes server input
+     * and output streams. The server output is buffered
+     * and not flushed automatically, so that several messages can be sent with a single flush.
+     * If frames are asked for, the handshake is sent straight away, and every message after it is
+     * sent as a frame. A session token is asked for straight away too.
+     *
+     * @param host      : The name of the host to connect to.
+     * @param port      : The port number to bind to.
+     * @param useFrames : Whether to use the binary frame protocol instead of the line protocol.
+     */
+    public ClientBase(String host, int port, boolean useFrames) {
+        this.useFrames = useFrames;
+        this.host = host;
+        this.port = port;
         try {
             // Open up IO.
             System.out.println("Connecting to server...");
-            this.chatServerSocket = new Socket(host, port);
-            this.serverInput = new BufferedReader(new InputStreamReader((chatServerSocket.getInputStream())));
-            this.serverOutput = new PrintWriter(chatServerSocket.getOutputStream(), true);
-            this.clientInput = new InputStreamReader(System.in);
-            this.clientText = new BufferedReader(this.clientInput);
             this.running = true;
+            connect();
             System.out.println("Connected to server!");
         } catch (IOException e) {
             // Close if IO fails to open.
@@ -44,6 +108,227 @@ public abstract class ClientBase implements Client {
         }
     }
 
+    /**
+     * Opens a connection to the server, sends the handshake if frames are used, and asks for a
+     * session token. If the client already has a token, the session is resumed, from the last
+     * message had in each room.
+     *
+     * @throws IOException : If the connection could not be opened.
+     */
+    private synchronized void connect() throws IOException {
+        if (!running) {
+            throw new IOException("Client is closed");
+        }
+        Socket socket = new Socket(host, port);
+        chatServerSocket = socket;
+        serverInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        serverOutput = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        framedInput = false;
+        sessionRequests.set(0);
+        if (useFrames) {
+            serverOutput.write((Frame.HANDSHAKE_REQUEST + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (sessionToken != null) {
+            StringBuilder resume = new StringBuilder("/resume ").append(sessionToken);
+            for (Map.Entry<Integer, Long> entry : lastSequences.entrySet()) {
+                resume.append(' ').append(entry.getKey()).append(':').append(entry.getValue());
+            }
+            writeToServer(resume.toString());
+            resuming = true;
+        } else {
+            writeToServer("/session");
+        }
+        serverOutput.flush();
+    }
+
+    /**
+     * Reconnects to the server after the connection has been lost, waiting a random time before
+     * each attempt, up to a limit that starts at BASE_BACKOFF_MILLIS and doubles with every
+     * failed attempt until it reaches MAX_BACKOFF_MILLIS.
+     *
+     * @return : True if the client has reconnected, false if it gave up or was closed.
+     */
+    private boolean reconnect() {
+        System.out.println("Lost connection to the server. Reconnecting...");
+        try {
+            chatServerSocket.close();
+        } catch (IOException e) {
+            // The connection is already gone.
+        }
+        for (int attempt = 0; running && attempt < MAX_RECONNECT_ATTEMPTS; attempt++) {
+            long limit = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << attempt);
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+                connect();
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (IOException e) {
+                System.out.println("Could not reconnect to the server. Retrying...");
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads the next message from the server, reconnecting if the connection has been lost.
+     * Session replies are kept and pings are answered rather than returned. While a session is
+     * being resumed, the username a new client is given is skipped, and over frames so is
+     * everything else sent before the reply to the resume, as it is history the client has
+     * already had.
+     *
+     * @return : The message, or null if the connection was lost and could not be resumed.
+     * @throws IOException : If the client has been closed.
+     */
+    protected String readFromServer() throws IOException {
+        while (true) {
+            String message;
+            try {
+                message = readMessage();
+            } catch (Frame.MalformedInputException e) {
+                if (!running) {
+                    throw e;
+                }
+                if (e.isSkipped()) {
+                    System.out.println("Skipped a message from the server: " + e.getMessage());
+                    continue;
+                }
+                if (e.getMessage().equals(lastMalformedInput)) {
+                    System.out.println("The server sent the same malformed input again: " + e.getMessage());
+                    return null;
+                }
+                lastMalformedInput = e.getMessage();
+                message = null;
+            } catch (IOException e) {
+                if (!running) {
+                    throw e;
+                }
+                message = null;
+            }
+            if (message == null) {
+                if (running && reconnect()) {
+                    continue;
+                }
+                return null;
+            }
+            if (fromServer && message.equals(PING)) {
+                answerPing();
+                continue;
+            }
+            if (fromServer && message.startsWith(SESSION_REPLY) && sessionRequests.get() > 0) {
+                sessionRequests.decrementAndGet();
+                sessionToken = message.substring(SESSION_REPLY.length());
+                continue;
+            }
+            if (fromServer && resuming && message.startsWith(RESUME_REPLY)) {
+                resuming = false;
+                String[] parts = message.split(" ");
+                if (parts.length == 3 && parts[1].equals("ok")) {
+                    return "Reconnected as " + parts[2] + ".";
+                }
+                lastSequences.clear();
+                return "Could not resume the session. " + WELCOME + parts[parts.length - 1];
+            }
+            if (resuming && (useFrames || message.startsWith(WELCOME))) {
+                continue;
+            }
+            return message;
+        }
+    }
+
+    /**
+     * Answers a heartbeat ping from the server, so that a client that is only reading is not
+     * taken for a dead connection. A failure to answer is left for the next read to find.
+     */
+    private void answerPing() {
+        try {
+            writeToServer(PONG);
+            flushToServer();
+        } catch (IOException e) {
+            // The connection has failed, which the next read reports.
+        }
+    }
+
+    /**
+     * Reads the next message from the server, as a line or as the payload of a frame. Lines are
+     * read until the server replies to the handshake, and frames after it. The sequence number
+     * of every room message is noted, so that a resumed session can carry on from it, and so is
+     * whether the message came from the server itself.
+     *
+     * @return : The message, or null if the server has closed the connection.
+     * @throws IOException : If the connection failed, or a Frame.MalformedInputException if the
+     *                     server sent a malformed line or frame.
+     */
+    private String readMessage() throws IOException {
+        while (true) {
+            if (framedInput) {
+                Frame frame = Frame.read(serverInput);
+                if (frame == null) {
+                    return null;
+                }
+                fromServer = frame.getType() == Frame.Type.SERVER;
+                if (frame.getType() == Frame.Type.MESSAGE && frame.getRoomId() != Frame.NO_ROOM) {
+                    Long last = lastSequences.put(frame.getRoomId(), frame.getSequence());
+                    if (last == null || frame.getSequence() > last) {
+                        lastMalformedInput = null;
+                    }
+                }
+                return frame.getPayload();
+            }
+            String line = Frame.readLine(serverInput);
+            fromServer = true;
+            if (useFrames && Frame.HANDSHAKE_REPLY.equals(line)) {
+                framedInput = true;
+                continue;
+            }
+            return line;
+        }
+    }
+
+    /**
+     * Buffers a message for the server, as a line or as a frame. The message is not sent
+     * until the output is flushed. Joining or leaving a room is followed by asking for a new
+     * session token, so that the token always holds the client's rooms.
+     *
+     * @param message : The message to send, each line of which is sent as a message of its own.
+     * @throws IOException : If the connection failed.
+     */
+    protected synchronized void writeToServer(String message) throws IOException {
+        if (useFrames) {
+            for (String line : Frame.splitLines(message)) {
+                new Frame(Frame.Type.MESSAGE, Frame.NO_ROOM, ++sequence, line).write(serverOutput);
+            }
+        } else {
+            serverOutput.write((message + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (message.equals("/session")) {
+            sessionRequests.incrementAndGet();
+        }
+        if (message.startsWith("/join") || message.startsWith("/leave") || message.startsWith("/resume")) {
+            writeToServer("/session");
+        }
+    }
+
+    /**
+     * Sends every buffered message to the server.
+     *
+     * @throws IOException : If the connection failed.
+     */
+    protected synchronized void flushToServer() throws IOException {
+        serverOutput.flush();
+    }
+
+    /**
+     * Whether more of the server's output has already arrived, so that reading it would not block.
+     *
+     * @return : True if there is more to read straight away.
+     * @throws IOException : If the connection failed.
+     */
+    protected boolean hasPendingInput() throws IOException {
+        return serverInput.available() > 0;
+    }
+
     /**
      * Abstract method that defines getting data from a server. Also enforced through implementation of Client.
      */
@@ -56,15 +341,19 @@ public abstract class ClientBase implements Client {
     public synchronized void closeClient() {
         System.out.println("Shutting down client...");
         running = false;
+        // Send anything still buffered before the connection goes.
+        if (serverOutput != null) {
+            try {
+                serverOutput.flush();
+            } catch (IOException e) {
+                System.out.println("Could not send buffered messages.");
+            }
+        }
         try {
             // Only try and close the server connection if the connection doesn't exist.
             if (chatServerSocket != null) {
                 chatServerSocket.close();
             }
-            if (clientText != null) {
-                clientText.close();
-                clientInput.close();
-            }
             if (serverInput != null) {
                 serverInput.close();
             }
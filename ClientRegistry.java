@@ -0,0 +1,100 @@
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The set of clients connected to a server, indexed by unique ID and by username.
+ * <p>
+ * Adding, removing and looking up a client are constant time and never block each other.
+ * Iterating the registry never throws ConcurrentModificationException and never blocks
+ * joins or leaves: it sees every client that stays connected for the whole iteration,
+ * and may or may not see clients that join or leave during it.
+ *
+ * @param <T> : The type of client held by the registry.
+ */
+public class ClientRegistry<T extends ChatMember> implements Iterable<T> {
+
+    private final ConcurrentHashMap<Integer, T> clientsByUid = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, T> clientsByUsername = new ConcurrentHashMap<>();
+
+    /**
+     * Adds a client to the registry.
+     *
+     * @param client : The client to add.
+     * @return : False if a client with the same username is already registered.
+     */
+    public boolean add(T client) {
+        if (clientsByUsername.putIfAbsent(client.getUsername(), client) != null) {
+            return false;
+        }
+        clientsByUid.put(client.getUid(), client);
+        return true;
+    }
+
+    /**
+     * Removes a client from the registry, if it is still registered.
+     *
+     * @param client : The client to remove.
+     */
+    public void remove(T client) {
+        // Only remove the entries if they still belong to this client.
+        clientsByUsername.remove(client.getUsername(), client);
+        clientsByUid.remove(client.getUid(), client);
+    }
+
+    /**
+     * Moves a client to a new username, taking the username over from any client that still
+     * holds it, which is then left to remove itself as it disconnects. The client's own
+     * username must be changed alongside.
+     *
+     * @param oldUsername : The username the client is registered under.
+     * @param newUsername : The username to register the client under instead.
+     * @return : The client that held the new username before, or null if none did.
+     */
+    public T rename(String oldUsername, String newUsername) {
+        T client = clientsByUsername.get(oldUsername);
+        if (client == null) {
+            return null;
+        }
+        T previous = clientsByUsername.put(newUsername, client);
+        clientsByUsername.remove(oldUsername, client);
+        return previous == client ? null : previous;
+    }
+
+    /**
+     * Looks up a connected client by username.
+     *
+     * @param username : The username to look up.
+     * @return : The client, or null if no client has that username.
+     */
+    public T getByUsername(String username) {
+        return clientsByUsername.get(username);
+    }
+
+    /**
+     * Looks up a connected client by unique ID.
+     *
+     * @param uid : The unique ID to look up.
+     * @return : The client, or null if no client has that ID.
+     */
+    public T getByUid(int uid) {
+        return clientsByUid.get(uid);
+    }
+
+    /**
+     * The number of connected clients. Only an estimate while clients join or leave.
+     *
+     * @return : The number of clients.
+     */
+    public int size() {
+        return clientsByUid.size();
+    }
+
+    /**
+     * Iterates over the connected clients without blocking or being blocked by joins and leaves.
+     *
+     * @return : An iterator over the clients.
+     */
+    public Iterator<T> iterator() {
+        return clientsByUid.values().iterator();
+    }
+}
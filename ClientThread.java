@@ -1,72 +1,265 @@
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * An implementation of Runnable that handles a single client
  * connected to an instance of ChatServer.
+ * <p>
+ * Messages for the client are not written by the thread that sends them. They are
+ * placed on the client's OutboundQueue, and a separate writer stage drains the queue
+ * onto the socket, so that a client that reads slowly cannot hold up anyone else.
+ * <p>
+ * The client may speak either the line protocol or, after a handshake, the binary
+ * frame protocol. Its input is decoded by a ProtocolDecoder, and the writer stage
+ * writes each message as it was encoded for whichever protocol the client is on.
+ * <p>
+ * Every line the client sends is checked against the server's RateLimits before it is
+ * handled, on the reading thread, so a client flooding the server only holds up itself.
  */
-public class ClientThread implements Runnable {
+public class ClientThread implements Runnable, ChatMember {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+    private static final long REPLAY_TIMEOUT_SECONDS = 5;
+    // The longest a throttled client waits before checking whether it has been closed.
+    private static final long THROTTLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
 
     private Socket clientSocket = null;
-    private InputStreamReader clientInput;
-    private PrintWriter clientOutput;
-    private BufferedReader clientText;
-    private String username;
+    private InputStream clientInput;
+    // The socket's channel, which messages are written to from pooled buffers and history is
+    // transferred to straight from the journal's files.
+    private WritableByteChannel clientOutput;
+    private final byte[] readBuffer = new byte[READ_BUFFER_SIZE];
+    private final ByteBuffer readView = ByteBuffer.wrap(readBuffer);
+    private final ProtocolDecoder protocolDecoder = new ProtocolDecoder();
+    private final List<String> decodedInputs = new ArrayList<>();
+    private final Queue<String> pendingInputs = new ArrayDeque<>();
+    private volatile String username;
+    private final int uid;
     private volatile boolean running;
     private ChatServer parentServer;
+    private final OutboundQueue outboundQueue;
+    private final RoomMembership roomMembership = new RoomMembership();
+    private final AtomicBoolean evicted = new AtomicBoolean(false);
+    // The queues of slow clients this client's messages have filled, waited on before reading on.
+    private final Queue<OutboundQueue> pausedBy = new ConcurrentLinkedQueue<>();
+    private final RateLimits.Sender rateLimiter;
+    // The client's heartbeat, or null if clients are not timed out.
+    private final Heartbeats.Monitor heartbeat;
+    // A lock rather than synchronized methods, as a virtual thread blocking inside a
+    // monitor pins its carrier thread.
+    private final ReentrantLock closeLock = new ReentrantLock();
 
     /**
-     * Client Thread constructor, establishes the socket the server is using to connect to the client,
-     * the input and output streams associated with the socket, the reader associated with taking client
-     * input, and the username of the client. Also sets the running flag, to allow the thread to loop in run().
+     * Client Thread constructor, establishes the socket the server is using to connect to the
+     * client, the input and output streams associated with the socket, and the username of the
+     * client. Also sets the running flag, to allow the thread to loop in run().
      *
-     * @param clientSocket : The socket the server is using to connect to the client.
-     * @param username     : The username the server has given the client.
-     * @param parentServer : The ChatServer the thread is a child of.
+     * @param clientSocket  : The socket the server is using to connect to the client.
+     * @param uid           : The unique ID the server has given the client.
+     * @param username      : The username the server has given the client.
+     * @param parentServer  : The ChatServer the thread is a child of.
+     * @param outboundQueue : The queue of messages waiting to be written to the client.
      */
-    public ClientThread(Socket clientSocket, String username, ChatServer parentServer) {
+    public ClientThread(Socket clientSocket, int uid, String username, ChatServer parentServer,
+                        OutboundQueue outboundQueue) {
+        this.outboundQueue = outboundQueue;
+        this.uid = uid;
+        this.clientSocket = clientSocket;
+        this.username = username;
+        this.parentServer = parentServer;
+        this.rateLimiter = parentServer.getRateLimits().newSender(clientSocket.getInetAddress());
+        running = true;
         try {
             // Open up I/O.
-            this.clientSocket = clientSocket;
-            this.clientInput = new InputStreamReader(clientSocket.getInputStream());
-            this.clientOutput = new PrintWriter(clientSocket.getOutputStream(), true);
-            this.clientText = new BufferedReader(clientInput);
-            this.username = username;
-            this.parentServer = parentServer;
-            running = true;
+            this.clientInput = clientSocket.getInputStream();
+            this.clientOutput = clientSocket.getChannel() != null ? clientSocket.getChannel()
+                    : Channels.newChannel(clientSocket.getOutputStream());
             // Inform the user of their username.
             send("Your username is: " + this.username);
         } catch (IOException e) {
-            System.out.println("Failed to initiate client thread.");
+            Log.warn("Failed to initiate client thread.");
             close();
         }
+        this.heartbeat = running ? parentServer.getHeartbeats().watch(this, parentServer.getTimingWheel()) : null;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public int getUid() {
+        return uid;
     }
 
     /**
-     * Sends a String message to the client through the socket's output stream.
+     * A threaded server delivers every client's messages the same way, so all clients
+     * are listed in the same partition of each room.
+     *
+     * @return : The partition index, always 0.
+     */
+    public int getPartition() {
+        return 0;
+    }
+
+    public RoomMembership getRoomMembership() {
+        return roomMembership;
+    }
+
+    public int getQueueDepth() {
+        return outboundQueue.size();
+    }
+
+    /**
+     * Queues a String message from the server to be written to the client.
      *
      * @param message : The message to send to the client.
      */
-    public synchronized void send(String message) {
-        clientOutput.println(message);
+    public void send(String message) {
+        ChatMessage serverMessage = ChatMessage.fromServer(message);
+        deliver(serverMessage);
+        serverMessage.release();
+    }
+
+    /**
+     * Queues an already encoded message to be written to the client, applying the slow consumer
+     * policy if the client has fallen behind. This never blocks, as it is called from the
+     * BroadcastPipeline's fan out stage. Under the pause policy the sender is told to wait for
+     * this client's queue to drain before it reads anything more.
+     *
+     * @param message : The message to send to the client.
+     */
+    public void deliver(ChatMessage message) {
+        switch (outboundQueue.offer(message)) {
+            case EVICT:
+                evict();
+                break;
+            case PAUSE:
+                if (message.getOrigin() instanceof ClientThread) {
+                    ((ClientThread) message.getOrigin()).pauseFor(outboundQueue);
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Disconnects a client that is not keeping up with its messages. Shutting down the input
+     * wakes the client's own reading thread, which then closes the client as it would for a
+     * client that disconnected itself, so evicting a client never modifies the client list
+     * from another client's thread.
+     */
+    public void evict() {
+        if (!running || !evicted.compareAndSet(false, true)) {
+            return;
+        }
+        Log.warn(username + " cannot keep up, disconnecting...");
+        parentServer.countEviction();
+        outboundQueue.close();
+        try {
+            clientSocket.shutdownInput();
+        } catch (IOException e) {
+            Log.warn("Failed to evict " + username);
+        }
+    }
+
+    /**
+     * Describes the client's outbound queue for operators.
+     *
+     * @return : The username, queue depth and counters as a single line.
+     */
+    public String describe() {
+        return username + " " + outboundQueue.describe() + (evicted.get() ? " evicted" : "");
+    }
+
+    /**
+     * Stops reading from the client until a slow client's queue has drained. Called from the
+     * fan out stage, and waited on by the client's own thread before its next read.
+     *
+     * @param slowQueue : The queue of the slow client this client's messages have filled.
+     */
+    public void pauseFor(OutboundQueue slowQueue) {
+        pausedBy.offer(slowQueue);
+    }
+
+    /**
+     * Waits for the queue of every slow client this client has been paused for to drain.
+     */
+    private void awaitPauses() {
+        OutboundQueue slowQueue;
+        while (running && (slowQueue = pausedBy.poll()) != null) {
+            try {
+                slowQueue.awaitDrained();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Checks a line from the client against the server's rate limits. Under the throttle policy
+     * this waits until the limits allow the line, reading nothing more from the client meanwhile,
+     * so a flood backs up into the client's own connection. Under the drop policy a line over a
+     * limit is discarded, and the client is told the first time in a row.
+     *
+     * @param line : The line the client sent.
+     * @return : True if the line may be handled, false if it was dropped or the client closed.
+     */
+    private boolean admit(String line) {
+        Room room = CommandHandler.isCommand(line) ? null : roomMembership.getCurrentRoom();
+        long wait;
+        while ((wait = rateLimiter.admit(room)) > 0) {
+            if (parentServer.getRateLimits().getPolicy() == FloodPolicy.DROP) {
+                if (rateLimiter.shouldNotifyDrop()) {
+                    send("You are sending messages too fast, so some are being dropped.");
+                }
+                return false;
+            }
+            LockSupport.parkNanos(Math.min(wait, THROTTLE_PARK_NANOS));
+            if (!running) {
+                return false;
+            }
+        }
+        return true;
     }
 
     /**
-     * Sends a String message to every client connected to the server.
+     * Sends a String message to every client in the client's current room, by publishing it to
+     * the server's BroadcastPipeline. The pipeline numbers and encodes the message once, hands
+     * it to the journal and the cluster if there are any, and queues the same bytes for every
+     * recipient.
      *
-     * @param message : The message to send to all clients.
+     * @param message : The message to send to the room.
      */
-    public synchronized void broadcast(String message) {
+    public void broadcast(String message) {
         if (message != null) {
-            System.out.println("Response taken from " + username);
-            // Send message to all clients in the parent server client list.
-            for (ClientThread client : parentServer.clientList) {
-                System.out.println("Sending to " + client.username);
-                client.send(this.username + ": " + message);
+            Room room = roomMembership.getCurrentRoom();
+            if (room == null) {
+                send("You are not in any rooms; /join one to talk.");
+                return;
             }
+            parentServer.getBroadcastPipeline().publish(this, room, message, true);
         } else if (running) {
             // Close the client thread if the client starts sending nulls.
             close();
@@ -75,52 +268,219 @@ public class ClientThread implements Runnable {
 
 
     /**
-     * Reads the client's input through the socket's input stream.
+     * Reads the client's next input through the socket's input stream, as a line or as the
+     * payload of a frame depending on the client's protocol. Replies to the handshake if the
+     * client asks for frames. Counts the bytes and messages read in the server's metrics.
      *
-     * @return : The message the client has inputted.
+     * @return : The message the client has inputted, or null if the client has disconnected.
      */
     public String read() {
-        String result = null;
+        ServerMetrics metrics = parentServer.getMetrics();
         try {
-            result = clientText.readLine();
+            while (pendingInputs.isEmpty()) {
+                int bytesRead = clientInput.read(readBuffer);
+                if (bytesRead == -1) {
+                    return null;
+                }
+                if (heartbeat != null) {
+                    heartbeat.heard();
+                }
+                metrics.bytesIn.add(bytesRead);
+                readView.clear().limit(bytesRead);
+                protocolDecoder.decode(readView, decodedInputs);
+                if (protocolDecoder.takeHandshake()) {
+                    ChatMessage handshake = ChatMessage.handshake();
+                    deliver(handshake);
+                    handshake.release();
+                }
+                metrics.messagesIn.add(decodedInputs.size());
+                pendingInputs.addAll(decodedInputs);
+                decodedInputs.clear();
+            }
         } catch (IOException e) {
-            System.out.println("Failed to read from " + username);
+            Log.debug("Failed to read from " + username);
+            return null;
+        } catch (ProtocolDecoder.ProtocolException e) {
+            Log.warn(username + " sent malformed input: " + e.getMessage());
+            return null;
+        }
+        return pendingInputs.poll();
+    }
+
+    /**
+     * The writer stage for the client. Continuously takes batches of messages from the outbound
+     * queue and writes them to the socket, copying each batch into a pooled direct buffer and
+     * writing it a buffer's worth at a time rather than once per message, until the client is
+     * closed. The buffer is only held while a batch is being written. Messages are written as
+     * lines until the reply to a handshake, and as frames after it, and each is released once
+     * written, or unwritten if writing fails. A room's history is written after whatever came
+     * before it. Counts the bytes and messages written in the server's metrics. Runs on its own
+     * thread, started by the server alongside the reading thread.
+     */
+    public void writeOutput() {
+        FlushScheduler flushScheduler = parentServer.getFlushScheduler();
+        ServerMetrics metrics = parentServer.getMetrics();
+        ChatMessage[] batch = flushScheduler.newBatch();
+        boolean framed = false;
+        ByteBuffer output = null;
+        try {
+            int count;
+            while ((count = flushScheduler.gather(outboundQueue, batch)) > 0) {
+                output = BufferPool.SHARED.acquire(WRITE_BUFFER_SIZE);
+                int written = 0;
+                long bytesWritten = 0;
+                for (int i = 0; i < count; i++) {
+                    ChatMessage message = batch[i];
+                    batch[i] = null;
+                    try {
+                        if (message.getReplay() != null) {
+                            bytesWritten += writeBuffered(output);
+                            bytesWritten += writeHistory(message, framed);
+                            continue;
+                        }
+                        int length = message.encodedLength(framed);
+                        int offset = 0;
+                        while (offset < length) {
+                            if (!output.hasRemaining()) {
+                                bytesWritten += writeBuffered(output);
+                            }
+                            offset += message.copyTo(framed, offset, output);
+                        }
+                        framed |= message.isHandshake();
+                        written++;
+                    } finally {
+                        message.release();
+                    }
+                }
+                bytesWritten += writeBuffered(output);
+                BufferPool.SHARED.release(output);
+                output = null;
+                metrics.messagesOut.add(written);
+                metrics.bytesOut.add(bytesWritten);
+            }
+        } catch (IOException e) {
+            if (running) {
+                Log.debug("Failed to write to " + username);
+                close();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (output != null) {
+                BufferPool.SHARED.release(output);
+            }
+            // A failed write leaves the rest of its batch unwritten, and still to be released.
+            for (int i = 0; i < batch.length; i++) {
+                if (batch[i] != null) {
+                    batch[i].release();
+                    batch[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes everything copied into the output buffer to the socket, leaving the buffer empty.
+     *
+     * @param output : The output buffer, being filled.
+     * @return : The number of bytes written.
+     * @throws IOException : If the socket could not be written to.
+     */
+    private long writeBuffered(ByteBuffer output) throws IOException {
+        long written = 0;
+        output.flip();
+        while (output.hasRemaining()) {
+            written += clientOutput.write(output);
         }
-        return result;
+        output.clear();
+        return written;
+    }
+
+    /**
+     * Waits for the journal to find a room's history, then transfers it to the socket straight
+     * from the journal's files. History that cannot be found in time is skipped.
+     *
+     * @param replay : The message standing in for the history.
+     * @param framed : Whether the client is on the binary protocol.
+     * @return : The number of bytes of history written.
+     * @throws IOException          : If the history could not be written.
+     * @throws InterruptedException : If the writer was interrupted while waiting.
+     */
+    private long writeHistory(ChatMessage replay, boolean framed) throws IOException, InterruptedException {
+        JournalSlice history;
+        try {
+            history = replay.getReplay().get(REPLAY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            Log.warn("Failed to replay history to " + username);
+            return 0;
+        }
+        if (history == null) {
+            return 0;
+        }
+        long sent = 0;
+        long size = history.size(framed);
+        while (sent < size) {
+            sent += history.transferTo(clientOutput, framed, sent);
+        }
+        return sent;
     }
 
     /**
      * Close the connection and thread associated with the client by closing the streams,
-     * closing the socket, lowering the running flag, and removing itself from the list
-     * of clients held by the server.
+     * closing the socket, lowering the running flag, stopping the writer stage, and removing
+     * itself from the registry of clients held by the server.
      */
-    public synchronized void close() {
-        System.out.println(username + " is disconnecting...");
+    public void close() {
+        closeLock.lock();
         try {
-            // Close I/O.
-            clientSocket.shutdownInput();
+            if (!running) {
+                return;
+            }
+            Log.debug(username + " is disconnecting...");
+            running = false;
+            rateLimiter.release();
+            if (heartbeat != null) {
+                heartbeat.stop();
+            }
+            outboundQueue.close();
+            // Close I/O. The output channel belongs to the writer stage, which stops
+            // once the queue is closed, so it is released by closing the socket.
+            // An evicted client's input has already been shut down.
+            if (!clientSocket.isInputShutdown()) {
+                clientSocket.shutdownInput();
+            }
             clientSocket.shutdownOutput();
             clientSocket.close();
-            clientText.close();
-            clientInput.close();
-            clientOutput.close();
-            running = false;
-            // The client thread removes itself instead of the server doing so as this is simpler.
-            parentServer.removeClient(this);
+            if (clientInput != null) {
+                clientInput.close();
+            }
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Failed to close " + username + ".", e);
+        } finally {
+            closeLock.unlock();
         }
+        // The client thread removes itself instead of the server doing so as this is simpler.
+        // This is done outside the close lock so that it cannot deadlock with closeServer().
+        parentServer.removeClient(this);
     }
 
     /**
-     * Run the thread, continuously reading from the client's input and then sending that message
-     * to all users if not null whilst the running flag is set. The thread is closed if the input
+     * Run the thread, continuously reading from the client's input and then, once the rate limits
+     * allow it, either handling it as a command or sending that message to the users in the
+     * client's room if not null whilst the running flag is set. The thread is closed if the input
      * is null, as this corresponds to a disconnected client.
      */
     public void run() {
         while (running) {
-            // Continuously broadcast what the client sends to all users.
+            awaitPauses();
+            // Continuously broadcast what the client sends to the users in its room.
             String clientInputString = read();
+            if (clientInputString != null && !admit(clientInputString)) {
+                continue;
+            }
+            if (clientInputString != null && parentServer.getCommandHandler().handle(this, clientInputString)) {
+                continue;
+            }
             broadcast(clientInputString);
         }
     }
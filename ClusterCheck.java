@@ -0,0 +1,544 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A check of a cluster of servers on this machine. It runs every node in the same process,
+ * threaded and -nio in turn, and connects clients to each of them in one room.
+ * <p>
+ * One client on every node sends a run of numbered messages to the room, and every other
+ * client checks that it is sent each of them exactly once and in the order they were sent,
+ * whichever node it is on. Each node's links to the others go through a proxy, which cuts
+ * every link a few times while the messages are being sent, so that messages not yet
+ * acknowledged are sent again once the links are back and have to be told apart from the
+ * ones already had. Every username given out across the cluster is checked to be unique.
+ * <p>
+ * Any failure is printed, and the exit status is 1.
+ */
+public class ClusterCheck {
+
+    private static final String ROOM = "cluster";
+    private static final String WELCOME = "Your username is: ";
+    private static final String MARKER = "cluster-check ";
+    private static final String READY = "ready";
+    // How many messages a sender sends between pauses, so that the links are cut mid-run.
+    private static final int SEND_BURST = 50;
+    private static final long SEND_PAUSE_MILLIS = 5;
+
+    private final int nodeCount;
+    private final int clientsPerNode;
+    private final int messageCount;
+    private final int cutCount;
+    private final int basePort;
+    private final List<Server> servers = new ArrayList<>();
+    private final List<LinkProxy> proxies = new ArrayList<>();
+    private final List<CheckClient> senders = new ArrayList<>();
+    private final List<CheckClient> receivers = new ArrayList<>();
+
+    /**
+     * Cluster check constructor.
+     *
+     * @param nodeCount      : The number of nodes in the cluster.
+     * @param clientsPerNode : The number of clients receiving on each node.
+     * @param messageCount   : The number of messages each node's sender sends.
+     * @param cutCount       : The number of times every link is cut while sending.
+     * @param basePort       : The client port of the first node. The nodes use the ports after
+     *                         it, and their links the ports 1000 and 1100 above those.
+     */
+    public ClusterCheck(int nodeCount, int clientsPerNode, int messageCount, int cutCount, int basePort) {
+        this.nodeCount = Math.max(2, nodeCount);
+        this.clientsPerNode = Math.max(1, clientsPerNode);
+        this.messageCount = messageCount;
+        this.cutCount = cutCount;
+        this.basePort = basePort;
+    }
+
+    /**
+     * Starts the cluster, runs the check, and closes the cluster.
+     *
+     * @return : True if every check passed.
+     * @throws IOException          : If a node, proxy or client could not be opened.
+     * @throws InterruptedException : If the check was interrupted while waiting.
+     */
+    public boolean run() throws IOException, InterruptedException {
+        try {
+            startCluster();
+            return check();
+        } finally {
+            for (CheckClient client : senders) {
+                client.close();
+            }
+            for (CheckClient client : receivers) {
+                client.close();
+            }
+            for (LinkProxy proxy : proxies) {
+                proxy.close();
+            }
+            for (Server server : servers) {
+                server.closeServer();
+            }
+        }
+    }
+
+    /**
+     * Starts every node, and a proxy in front of each node's link port. A node is told the
+     * real link port of itself and the proxy's port of every other node, so that every link
+     * goes through a proxy.
+     */
+    private void startCluster() throws IOException {
+        for (int i = 0; i < nodeCount; i++) {
+            proxies.add(new LinkProxy(basePort + 1100 + i, basePort + 1000 + i));
+        }
+        for (int i = 0; i < nodeCount; i++) {
+            String[] peers = new String[nodeCount];
+            for (int j = 0; j < nodeCount; j++) {
+                peers[j] = "localhost:" + (basePort + (i == j ? 1000 : 1100) + j);
+            }
+            ServerConfig config = ServerConfig.fromArgs(new String[] {"-log", "warn", "-presence", "0",
+                    "-queue", "100000"});
+            config.portNumber = basePort + i;
+            config.clusterPeers = peers;
+            config.nodeIndex = i;
+            if (i % 2 == 1) {
+                config.nio = true;
+                config.shardCount = 2;
+            }
+            Server server = config.nio ? new NioChatServer(config) : new ChatServer(config);
+            server.acceptConnectionsFromClients();
+            servers.add(server);
+        }
+        System.out.println("Started " + nodeCount + " nodes on ports " + basePort + " to " + (basePort + nodeCount - 1)
+                + ", threaded and -nio in turn.");
+    }
+
+    /**
+     * Connects the clients, waits until every node relays to every other, sends the messages
+     * while cutting the links, and checks what every client was sent.
+     *
+     * @return : True if every check passed.
+     */
+    private boolean check() throws IOException, InterruptedException {
+        boolean passed = true;
+        Set<String> usernames = new HashSet<>();
+        int duplicateUsernames = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            senders.add(new CheckClient(basePort + i));
+            for (int j = 0; j < clientsPerNode; j++) {
+                receivers.add(new CheckClient(basePort + i));
+            }
+        }
+        List<CheckClient> everyone = new ArrayList<>(senders);
+        everyone.addAll(receivers);
+        for (CheckClient client : everyone) {
+            if (!usernames.add(client.username)) {
+                duplicateUsernames++;
+            }
+        }
+        System.out.println("usernames " + everyone.size());
+        System.out.println("duplicate_usernames " + duplicateUsernames);
+        if (duplicateUsernames > 0) {
+            System.out.println("FAILED: usernames were given out twice across the cluster.");
+            passed = false;
+        }
+
+        if (!awaitReady()) {
+            System.out.println("FAILED: the nodes did not all relay to each other within 20 seconds.");
+            return false;
+        }
+        System.out.println("Sending " + messageCount + " messages from each node, cutting every link "
+                + cutCount + " times...");
+        List<Thread> sending = new ArrayList<>();
+        for (int i = 0; i < senders.size(); i++) {
+            CheckClient sender = senders.get(i);
+            Thread thread = new Thread(() -> sendNumbered(sender), "Sender-" + i);
+            thread.start();
+            sending.add(thread);
+        }
+        long sendMillis = (long) messageCount / SEND_BURST * SEND_PAUSE_MILLIS;
+        for (int cut = 1; cut <= cutCount; cut++) {
+            Thread.sleep(sendMillis / (cutCount + 1));
+            for (LinkProxy proxy : proxies) {
+                proxy.cut();
+            }
+        }
+        for (Thread thread : sending) {
+            thread.join();
+        }
+
+        // Every receiver should have had every message from every sender.
+        long expected = (long) messageCount * senders.size();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (System.nanoTime() < deadline && !allReceived(expected)) {
+            Thread.sleep(100);
+        }
+        long duplicates = 0;
+        long outOfOrder = 0;
+        long missing = 0;
+        for (CheckClient receiver : receivers) {
+            duplicates += receiver.duplicates;
+            outOfOrder += receiver.outOfOrder;
+            missing += Math.max(0, expected - receiver.received());
+        }
+        System.out.println("cuts " + cutCount);
+        System.out.println("deliveries_expected " + expected * receivers.size());
+        System.out.println("deliveries_missing " + missing);
+        System.out.println("deliveries_duplicated " + duplicates);
+        System.out.println("deliveries_out_of_order " + outOfOrder);
+        if (missing > 0) {
+            System.out.println("FAILED: messages did not reach every node.");
+            passed = false;
+        }
+        if (duplicates > 0) {
+            System.out.println("FAILED: messages sent again after a link was cut were delivered twice.");
+            passed = false;
+        }
+        if (outOfOrder > 0) {
+            System.out.println("FAILED: messages from one sender arrived out of order.");
+            passed = false;
+        }
+        return passed;
+    }
+
+    /**
+     * Sends a marker from every sender until every receiver has had one from each, which is
+     * once every node has heard of every other node's interest in the room.
+     *
+     * @return : False if that did not happen within 20 seconds.
+     */
+    private boolean awaitReady() throws IOException, InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(20);
+        while (System.nanoTime() < deadline) {
+            for (CheckClient sender : senders) {
+                sender.send(MARKER + sender.username + " " + READY);
+            }
+            Thread.sleep(200);
+            boolean ready = true;
+            for (CheckClient receiver : receivers) {
+                ready &= receiver.readyFrom.size() == senders.size();
+            }
+            if (ready) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sendNumbered(CheckClient sender) {
+        try {
+            for (int i = 1; i <= messageCount; i++) {
+                sender.send(MARKER + sender.username + " " + i);
+                if (i % SEND_BURST == 0) {
+                    Thread.sleep(SEND_PAUSE_MILLIS);
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("A sender lost its connection: " + e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean allReceived(long expected) {
+        for (CheckClient receiver : receivers) {
+            if (receiver.received() < expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A client of one node, which joins the check's room and keeps track of the numbered
+     * messages it is sent from each sender.
+     */
+    private static final class CheckClient {
+
+        private final Socket socket;
+        private final OutputStream output;
+        private final String username;
+        private final Set<String> readyFrom = ConcurrentHashMap.newKeySet();
+        // The last number had from each sender, and how many messages in all. Only the reader writes them.
+        private final Map<String, Long> lastNumbers = new HashMap<>();
+        private volatile long received = 0;
+        private volatile long duplicates = 0;
+        private volatile long outOfOrder = 0;
+
+        /**
+         * Check client constructor, which connects to a node, reads the username it is given,
+         * joins the room and starts reading.
+         *
+         * @param port : The client port of the node.
+         * @throws IOException : If the node could not be connected to.
+         */
+        private CheckClient(int port) throws IOException {
+            socket = new Socket("localhost", port);
+            output = socket.getOutputStream();
+            BufferedReader input = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                    StandardCharsets.UTF_8));
+            String welcome = input.readLine();
+            if (welcome == null || !welcome.startsWith(WELCOME)) {
+                throw new IOException("No welcome from the node on port " + port);
+            }
+            username = welcome.substring(WELCOME.length());
+            send("/join " + ROOM);
+            Thread reader = new Thread(() -> read(input), "CheckClient-" + username);
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        private void send(String line) throws IOException {
+            output.write((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+
+        private long received() {
+            return received;
+        }
+
+        /**
+         * Reads the client's messages until it is closed, noting each numbered message against
+         * its sender. A number at or below the last one had from its sender is counted as a
+         * duplicate if it was had already, and as out of order if it was skipped over.
+         *
+         * @param input : The client's input.
+         */
+        private void read(BufferedReader input) {
+            Map<String, Set<Long>> skipped = new HashMap<>();
+            try {
+                String line;
+                while ((line = input.readLine()) != null) {
+                    int marker = line.indexOf(MARKER);
+                    if (marker < 0) {
+                        continue;
+                    }
+                    String[] parts = line.substring(marker + MARKER.length()).split(" ");
+                    if (parts.length != 2) {
+                        continue;
+                    }
+                    String sender = parts[0];
+                    if (parts[1].equals(READY)) {
+                        readyFrom.add(sender);
+                        continue;
+                    }
+                    long number = Long.parseLong(parts[1]);
+                    long last = lastNumbers.getOrDefault(sender, 0L);
+                    if (number > last) {
+                        for (long gap = last + 1; gap < number; gap++) {
+                            skipped.computeIfAbsent(sender, s -> new HashSet<>()).add(gap);
+                        }
+                        lastNumbers.put(sender, number);
+                        received++;
+                    } else if (skipped.getOrDefault(sender, Set.of()).remove(number)) {
+                        outOfOrder++;
+                        received++;
+                    } else {
+                        duplicates++;
+                    }
+                }
+            } catch (IOException | NumberFormatException e) {
+                // The client has been closed.
+            }
+        }
+
+        private void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+        }
+    }
+
+    /**
+     * A proxy in front of one node's link port, which passes every link through and can cut
+     * them all at once.
+     */
+    private static final class LinkProxy {
+
+        private final ServerSocket serverSocket;
+        private final int targetPort;
+        private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+        private volatile boolean running = true;
+
+        /**
+         * Link proxy constructor, which starts accepting links.
+         *
+         * @param port       : The port links connect to.
+         * @param targetPort : The node's link port, which they are passed to.
+         * @throws IOException : If the port could not be opened.
+         */
+        private LinkProxy(int port, int targetPort) throws IOException {
+            this.targetPort = targetPort;
+            serverSocket = new ServerSocket();
+            serverSocket.setReuseAddress(true);
+            serverSocket.bind(new InetSocketAddress("localhost", port));
+            Thread acceptThread = new Thread(this::accept, "LinkProxy-" + port);
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        private void accept() {
+            while (running) {
+                try {
+                    Socket from = serverSocket.accept();
+                    Thread thread = new Thread(() -> link(from), "LinkProxyLink");
+                    thread.setDaemon(true);
+                    thread.start();
+                } catch (IOException e) {
+                    // Closed.
+                }
+            }
+        }
+
+        /**
+         * Passes a link on to the node once its first bytes, which hold the hello, have arrived.
+         * The node is connected to and sent them while no cut can happen, so a cut never leaves
+         * the node with a link that closed before saying which peer it came from.
+         *
+         * @param from : The link from the peer.
+         */
+        private void link(Socket from) {
+            byte[] hello = new byte[8192];
+            try {
+                int read = from.getInputStream().read(hello);
+                if (read == -1) {
+                    close(from);
+                    return;
+                }
+                synchronized (this) {
+                    if (!running) {
+                        close(from);
+                        return;
+                    }
+                    Socket to;
+                    try {
+                        to = new Socket("localhost", targetPort);
+                    } catch (IOException e) {
+                        // The node is not up yet; the link will try again.
+                        close(from);
+                        return;
+                    }
+                    sockets.add(from);
+                    sockets.add(to);
+                    to.getOutputStream().write(hello, 0, read);
+                    pump(from, to);
+                    pump(to, from);
+                }
+            } catch (IOException e) {
+                close(from);
+            }
+        }
+
+        private void pump(Socket in, Socket out) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[8192];
+                try {
+                    InputStream input = in.getInputStream();
+                    OutputStream output = out.getOutputStream();
+                    int read;
+                    while ((read = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, read);
+                    }
+                } catch (IOException e) {
+                    // One side has gone, so the other goes too.
+                }
+                close(in);
+                close(out);
+            }, "LinkProxyPump");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Cuts every link passing through the proxy. The nodes link again by themselves.
+         */
+        private synchronized void cut() {
+            for (Socket socket : sockets) {
+                close(socket);
+            }
+        }
+
+        private void close(Socket socket) {
+            sockets.remove(socket);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+        }
+
+        private void close() {
+            running = false;
+            cut();
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Already gone.
+            }
+        }
+    }
+
+    /**
+     * Main method of ClusterCheck. Parses the command line, runs the check, and exits with
+     * status 1 if any part of it failed.
+     *
+     * @param args : Command line arguments.
+     */
+    public static void main(String[] args) {
+        // Set default arguments.
+        int nodeCount = 3;
+        int clientsPerNode = 20;
+        int messageCount = 2000;
+        int cutCount = 3;
+        int basePort = 14201;
+        // Parse command line arguments.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-nodes")) {
+                    nodeCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-clients")) {
+                    clientsPerNode = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-messages")) {
+                    messageCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-cuts")) {
+                    cutCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-csp")) {
+                    basePort = Integer.parseInt(args[i + 1]);
+                }
+            }
+            // Catch errors and allow defaults through.
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid arguments. Using defaults instead.");
+        } catch (IndexOutOfBoundsException ioe) {
+            System.out.println("Incorrect argument format. Using defaults instead.");
+        }
+        boolean passed;
+        try {
+            passed = new ClusterCheck(nodeCount, clientsPerNode, messageCount, cutCount, basePort).run();
+        } catch (IOException e) {
+            System.out.println("Could not start the check: " + e.getMessage());
+            passed = false;
+        } catch (InterruptedException e) {
+            passed = false;
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+}
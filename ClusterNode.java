@@ -0,0 +1,266 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One node of a cluster of servers, which between them act as a single chat server. The nodes
+ * are listed in the same order on every node, and each node links to every other one over TCP.
+ * <p>
+ * A node tells its peers which rooms it has members in. A message sent in a room is delivered
+ * to the node's own clients as usual, and relayed to the peers with members in the room, which
+ * publish it to their own BroadcastPipeline, to post in their copy of the room and deliver to
+ * their own clients. Each node keeps its
+ * own numbering and history of every room, and relayed messages are never relayed again.
+ * Usernames are unique across the cluster, as each node hands out its own share of the
+ * unique IDs.
+ */
+public class ClusterNode {
+
+    private final int nodeIndex;
+    private final String[] peerAddresses;
+    // When this node started, so that peers can tell a restart apart from a dropped link.
+    private final long incarnation = System.currentTimeMillis();
+    private final PeerLink[] links;
+    private final BroadcastPipeline broadcastPipeline;
+    private final RoomIndex roomIndex;
+    private final Set<String> localInterest = ConcurrentHashMap.newKeySet();
+    // Checking a room and telling the peers about it happen together, so that peers hear of changes in order.
+    private final ReentrantLock interestLock = new ReentrantLock();
+    private ServerSocket peerServerSocket;
+    private volatile boolean running = true;
+
+    /**
+     * Cluster node constructor.
+     *
+     * @param config            : The settings of the server, which list the cluster's nodes.
+     * @param broadcastPipeline : The server's pipeline, which relayed messages are published to.
+     * @param roomIndex         : The rooms of the server.
+     */
+    public ClusterNode(ServerConfig config, BroadcastPipeline broadcastPipeline, RoomIndex roomIndex) {
+        this.nodeIndex = config.nodeIndex;
+        this.peerAddresses = config.clusterPeers;
+        this.broadcastPipeline = broadcastPipeline;
+        this.roomIndex = roomIndex;
+        this.links = new PeerLink[peerAddresses.length];
+        for (int i = 0; i < peerAddresses.length; i++) {
+            if (i != nodeIndex) {
+                links[i] = new PeerLink(this, i, peerAddresses[i]);
+            }
+        }
+    }
+
+    /**
+     * Opens the cluster node configured for a server, and starts linking it to its peers.
+     *
+     * @param config            : The settings of the server.
+     * @param broadcastPipeline : The server's pipeline, which relays its messages through the node.
+     * @param roomIndex         : The rooms of the server.
+     * @return : The node, or null if the server runs alone or the node could not be opened.
+     */
+    public static ClusterNode open(ServerConfig config, BroadcastPipeline broadcastPipeline, RoomIndex roomIndex) {
+        if (config.clusterPeers == null) {
+            return null;
+        }
+        ClusterNode clusterNode = new ClusterNode(config, broadcastPipeline, roomIndex);
+        try {
+            clusterNode.start();
+            roomIndex.setClusterNode(clusterNode);
+            broadcastPipeline.setClusterNode(clusterNode);
+            return clusterNode;
+        } catch (IOException | RuntimeException e) {
+            Log.warn("Could not join the cluster. Running alone instead.");
+            clusterNode.close();
+            return null;
+        }
+    }
+
+    public int getNodeIndex() {
+        return nodeIndex;
+    }
+
+    public long getIncarnation() {
+        return incarnation;
+    }
+
+    /**
+     * The rooms this node has members in, which it lists to a peer on connecting.
+     *
+     * @return : The names of the rooms.
+     */
+    public Set<String> getLocalInterest() {
+        return localInterest;
+    }
+
+    /**
+     * Opens the port peers link to, which is the port of this node's own entry in the peer list,
+     * and starts the thread accepting them and the links to every peer.
+     *
+     * @throws IOException : If the port could not be opened.
+     */
+    private void start() throws IOException {
+        String address = peerAddresses[nodeIndex];
+        int port = Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        Log.info("Opening peer link port " + port + " as node " + nodeIndex + " of "
+                + peerAddresses.length + "...");
+        peerServerSocket = new ServerSocket();
+        peerServerSocket.bind(new InetSocketAddress(port));
+        Thread acceptThread = new Thread(this::acceptPeers, "ClusterNode-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.start();
+            }
+        }
+    }
+
+    /**
+     * Accepts links from peers, reading each on its own thread, until the node is closed.
+     */
+    private void acceptPeers() {
+        while (running) {
+            try {
+                Socket peerSocket = peerServerSocket.accept();
+                Thread readThread = new Thread(() -> readPeer(peerSocket), "ClusterNode-read");
+                readThread.setDaemon(true);
+                readThread.start();
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Failed to accept peer link.");
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a link from a peer until it drops. Relayed messages are posted in their room and
+     * delivered to this node's clients, unless they have been had before. Whenever the peer has
+     * nothing more to read for the moment, the last message had from it is acknowledged.
+     *
+     * @param peerSocket : The connection from the peer.
+     */
+    private void readPeer(Socket peerSocket) {
+        try (Socket socket = peerSocket) {
+            socket.setTcpNoDelay(true);
+            DataInputStream input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            PeerLink.Record hello = PeerLink.Record.read(input);
+            if (hello == null) {
+                // The link dropped before the peer said which node it is, and the peer links again.
+                Log.debug("A peer link closed before its hello.");
+                return;
+            }
+            if (hello.type != PeerLink.Record.HELLO || hello.node < 0
+                    || hello.node >= links.length || links[hello.node] == null) {
+                Log.warn("Rejected a link from an unknown peer.");
+                return;
+            }
+            PeerLink link = links[hello.node];
+            link.peerConnected(hello.sequence);
+            long acknowledged = link.getLastReceived();
+            PeerLink.Record record;
+            while (running && (record = PeerLink.Record.read(input)) != null) {
+                switch (record.type) {
+                    case PeerLink.Record.SUBSCRIBE:
+                        link.peerInterest(record.room, true);
+                        break;
+                    case PeerLink.Record.UNSUBSCRIBE:
+                        link.peerInterest(record.room, false);
+                        break;
+                    case PeerLink.Record.MESSAGE:
+                        if (link.peerMessage(record.sequence) && RoomIndex.isValidName(record.room)) {
+                            Room room = roomIndex.getOrCreate(record.room);
+                            broadcastPipeline.publish(new RemoteMember(record.username), room, record.text, false);
+                        }
+                        break;
+                    default:
+                        break;
+                }
+                if (input.available() == 0 && link.getLastReceived() != acknowledged) {
+                    acknowledged = link.getLastReceived();
+                    new PeerLink.Record(PeerLink.Record.ACK, 0, acknowledged, null, null, null).write(output);
+                    output.flush();
+                }
+            }
+        } catch (IOException e) {
+            // The peer has gone, and will link again when it is back.
+        }
+    }
+
+    /**
+     * Relays a message posted on this node to every peer with members in its room.
+     *
+     * @param message : The message, posted to a room.
+     */
+    public void relay(ChatMessage message) {
+        String roomName = message.getRoom().getName();
+        for (PeerLink link : links) {
+            if (link != null && link.hasInterest(roomName)) {
+                link.relay(roomName, message.getSender(), message.getText());
+            }
+        }
+    }
+
+    /**
+     * Tells the peers if a room has gained its first member on this node or lost its last.
+     * Called after every join and leave.
+     *
+     * @param room : The room that has gained or lost a member.
+     */
+    public void updateInterest(Room room) {
+        interestLock.lock();
+        try {
+            boolean subscribed = room.size() > 0;
+            boolean changed = subscribed ? localInterest.add(room.getName()) : localInterest.remove(room.getName());
+            if (!changed) {
+                return;
+            }
+            for (PeerLink link : links) {
+                if (link != null) {
+                    link.updateInterest(room.getName(), subscribed);
+                }
+            }
+        } finally {
+            interestLock.unlock();
+        }
+    }
+
+    /**
+     * Prints the state of the link to every peer, for operators.
+     */
+    public void printPeers() {
+        System.out.println("Node " + nodeIndex + " of " + links.length);
+        for (PeerLink link : links) {
+            if (link != null) {
+                System.out.println(link.describe());
+            }
+        }
+    }
+
+    /**
+     * Closes the node's links to its peers and the port they link to.
+     */
+    public void close() {
+        running = false;
+        for (PeerLink link : links) {
+            if (link != null) {
+                link.close();
+            }
+        }
+        try {
+            if (peerServerSocket != null) {
+                peerServerSocket.close();
+            }
+        } catch (IOException e) {
+            Log.error("Failed to close the peer link port.", e);
+        }
+    }
+}
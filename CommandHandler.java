@@ -0,0 +1,286 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Handles the commands a client can send instead of a chat message. A command is a line
+ * starting with '/'. The handler is shared by every client of a server, whichever way the
+ * server is handling them, and replies to the client that sent the command.
+ * <p>
+ * The current commands are:
+ * /join [room] [since]: Joins a room, creating it if needed, and sends later messages there.
+ * If the server keeps history, the room's recent messages are replayed, or every message
+ * after the given sequence number.
+ * /leave [room]: Leaves a room, or the current room if none is given.
+ * /rooms: Lists the rooms on the server.
+ * /msg [user] [text]: Sends a private message to a single user.
+ * /session: Replies with a token for the client's session as it stands.
+ * /resume [token] [room ID:sequence]...: Takes up the session a token was issued for, sending
+ * the messages each room has had since the given sequence numbers.
+ * /search [terms]: Replies with the newest messages, in any room, holding every one of the
+ * terms, if the server keeps a search index.
+ * /who [room] [after]: Lists the users in a room, or the current room, a page at a time,
+ * starting after the given username.
+ * /pong: Answers a heartbeat ping. Hearing from the client is all that matters, so there is no reply.
+ */
+public class CommandHandler {
+
+    private final RoomIndex roomIndex;
+    private final ClientRegistry<? extends ChatMember> clientRegistry;
+    private final SessionManager sessionManager;
+    // The index /search looks through, or null if the server keeps none.
+    private final SearchIndex searchIndex;
+
+    /**
+     * Command handler constructor.
+     *
+     * @param roomIndex      : The rooms of the server the handler belongs to.
+     * @param clientRegistry : The clients of the server the handler belongs to.
+     * @param sessionManager : The session tokens of the server the handler belongs to.
+     * @param searchIndex    : The search index of the server the handler belongs to, or null if it has none.
+     */
+    public CommandHandler(RoomIndex roomIndex, ClientRegistry<? extends ChatMember> clientRegistry,
+                          SessionManager sessionManager, SearchIndex searchIndex) {
+        this.roomIndex = roomIndex;
+        this.clientRegistry = clientRegistry;
+        this.sessionManager = sessionManager;
+        this.searchIndex = searchIndex;
+    }
+
+    /**
+     * Handles a line from a client if it is a command.
+     *
+     * @param member : The client that sent the line.
+     * @param line   : The line the client sent.
+     * @return : True if the line was a command, false if it is a chat message.
+     */
+    public boolean handle(ChatMember member, String line) {
+        if (!isCommand(line)) {
+            return false;
+        }
+        // Split the command from its argument, so that "/join games" is read as "/join" and "games".
+        int space = line.indexOf(' ');
+        String command = space == -1 ? line : line.substring(0, space);
+        String argument = space == -1 ? "" : line.substring(space + 1).trim();
+        switch (command) {
+            case "/join":
+                join(member, argument);
+                break;
+            case "/leave":
+                leave(member, argument);
+                break;
+            case "/rooms":
+                listRooms(member);
+                break;
+            case "/msg":
+                message(member, argument);
+                break;
+            case "/session":
+                member.send("/session " + sessionManager.issue(member));
+                break;
+            case "/resume":
+                resume(member, argument);
+                break;
+            case "/who":
+                who(member, argument);
+                break;
+            case "/search":
+                if (searchIndex == null) {
+                    member.send("Search is not enabled on this server.");
+                } else {
+                    searchIndex.search(member, argument);
+                }
+                break;
+            case Heartbeats.PONG:
+                break;
+            default:
+                member.send("Unknown command: " + command);
+                break;
+        }
+        return true;
+    }
+
+    /**
+     * Whether a line from a client is a command rather than a chat message.
+     *
+     * @param line : The line the client sent.
+     * @return : True if the line starts with '/'.
+     */
+    public static boolean isCommand(String line) {
+        return line.startsWith("/");
+    }
+
+    /**
+     * Joins a room, making it the member's current room. The reply is sent before the join,
+     * so that it comes ahead of any history the room replays.
+     *
+     * @param member   : The client joining.
+     * @param argument : The name of the room, optionally followed by the sequence number to replay from.
+     */
+    private void join(ChatMember member, String argument) {
+        String[] parts = argument.split("\\s+");
+        String roomName = parts[0];
+        if (!RoomIndex.isValidName(roomName)) {
+            member.send("Room names are up to " + RoomIndex.MAX_NAME_LENGTH
+                    + " letters, digits, dashes and underscores.");
+            return;
+        }
+        long sinceSequence = RoomIndex.RECENT_HISTORY;
+        if (parts.length > 1) {
+            try {
+                sinceSequence = Math.max(0, Long.parseLong(parts[1]));
+            } catch (NumberFormatException e) {
+                member.send("Usage: /join room [since]");
+                return;
+            }
+        }
+        Room room = roomIndex.getOrCreate(roomName);
+        member.send("You are now talking in " + room.getName() + ".");
+        roomIndex.join(member, room, sinceSequence);
+    }
+
+    /**
+     * Leaves a room, or the current room if no name is given.
+     *
+     * @param member   : The client leaving.
+     * @param roomName : The name of the room, or an empty string for the current room.
+     */
+    private void leave(ChatMember member, String roomName) {
+        Room room = roomName.isEmpty() ? member.getRoomMembership().getCurrentRoom() : roomIndex.get(roomName);
+        if (room == null || !roomIndex.leave(member, room)) {
+            member.send("You are not in that room.");
+            return;
+        }
+        Room currentRoom = member.getRoomMembership().getCurrentRoom();
+        if (currentRoom == null) {
+            member.send("You left " + room.getName() + ". You are not in any rooms; /join one to talk.");
+        } else {
+            member.send("You left " + room.getName() + ". You are now talking in " + currentRoom.getName() + ".");
+        }
+    }
+
+    /**
+     * Sends a private message to a single user, looked up by username rather than by going
+     * through every client. The message is queued for the recipient the same way as any other
+     * message, and echoed back to the sender.
+     *
+     * @param member   : The client sending the message.
+     * @param argument : The recipient's username followed by the text of the message.
+     */
+    private void message(ChatMember member, String argument) {
+        int space = argument.indexOf(' ');
+        if (space == -1) {
+            member.send("Usage: /msg user text");
+            return;
+        }
+        String recipientName = argument.substring(0, space);
+        ChatMember recipient = clientRegistry.getByUsername(recipientName);
+        if (recipient == null) {
+            member.send("No user called " + recipientName + " is connected.");
+            return;
+        }
+        String text = argument.substring(space + 1).trim();
+        ChatMessage message = ChatMessage.direct(member, text);
+        recipient.deliver(message);
+        message.release();
+        if (recipient != member) {
+            member.send("(private to " + recipient.getUsername() + ") " + text);
+        }
+    }
+
+    /**
+     * Takes up the session a token was issued for: the client is given the session's username,
+     * taking it over from a connection of the same session that has not been found dead yet,
+     * and is put back in the session's rooms. Each room the client gives a sequence number for
+     * sends only the messages after it, and any other room sends its recent history. The reply
+     * names the client's username either way, and comes ahead of any history.
+     *
+     * @param member   : The client resuming.
+     * @param argument : The token, followed by "room ID:sequence" pairs.
+     */
+    private void resume(ChatMember member, String argument) {
+        String[] parts = argument.split("\\s+");
+        SessionManager.Session session = sessionManager.verify(parts[0]);
+        if (session == null) {
+            member.send("/resume failed " + member.getUsername());
+            return;
+        }
+        Map<Integer, Long> sinceSequences = new HashMap<>();
+        try {
+            for (int i = 1; i < parts.length; i++) {
+                int colon = parts[i].indexOf(':');
+                sinceSequences.put(Integer.parseInt(parts[i].substring(0, colon)),
+                        Math.max(0, Long.parseLong(parts[i].substring(colon + 1))));
+            }
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            member.send("Usage: /resume token [room:since]...");
+            return;
+        }
+        String oldUsername = member.getUsername();
+        if (!oldUsername.equals(session.getUsername())) {
+            ChatMember previous = clientRegistry.rename(oldUsername, session.getUsername());
+            member.setUsername(session.getUsername());
+            roomIndex.renamed(member, oldUsername);
+            if (previous != null) {
+                previous.close();
+            }
+            Log.info(oldUsername + " resumed the session of " + session.getUsername());
+        }
+        List<Room> rooms = new ArrayList<>();
+        for (String roomName : session.getRooms()) {
+            if (RoomIndex.isValidName(roomName)) {
+                rooms.add(roomIndex.getOrCreate(roomName));
+            }
+        }
+        for (Room room : new ArrayList<>(member.getRoomMembership().getRooms())) {
+            if (!rooms.contains(room)) {
+                roomIndex.leave(member, room);
+            }
+        }
+        member.send("/resume ok " + member.getUsername());
+        // The current room is joined last, so that it is the current room again.
+        for (Room room : rooms) {
+            roomIndex.join(member, room, sinceSequences.getOrDefault(room.getId(), RoomIndex.RECENT_HISTORY));
+        }
+    }
+
+    /**
+     * Lists the users in a room a page at a time.
+     *
+     * @param member   : The client asking.
+     * @param argument : The name of the room, or an empty string for the current room,
+     *                 optionally followed by the last username of the previous page.
+     */
+    private void who(ChatMember member, String argument) {
+        String[] parts = argument.isEmpty() ? new String[0] : argument.split("\\s+");
+        Room room = parts.length == 0 ? member.getRoomMembership().getCurrentRoom() : roomIndex.get(parts[0]);
+        if (room == null) {
+            member.send(parts.length == 0 ? "You are not in any rooms; /who room lists one." : "No room called " + parts[0] + ".");
+            return;
+        }
+        Presence presence = roomIndex.getPresence();
+        if (presence == null) {
+            member.send("This server does not keep track of who is online.");
+            return;
+        }
+        presence.who(member, room, parts.length > 1 ? parts[1] : null);
+    }
+
+    /**
+     * Lists every room with its number of members, marking the rooms the member is in.
+     *
+     * @param member : The client asking.
+     */
+    private void listRooms(ChatMember member) {
+        StringBuilder reply = new StringBuilder("Rooms (* = joined):");
+        for (Room room : roomIndex.list()) {
+            reply.append(' ');
+            if (member.getRoomMembership().isIn(room)) {
+                reply.append('*');
+            }
+            reply.append(room.getName()).append(" (").append(room.size()).append(')');
+        }
+        member.send(reply.toString());
+    }
+}
@@ -0,0 +1,352 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * One event loop of a NioChatServer. Each shard runs on its own thread with its own
+ * selector, and owns the connections registered with it. Other threads never touch a
+ * shard's connections directly: they hand it work through its task queue, which is a
+ * lock-free queue with many producers and this shard as the only consumer.
+ * <p>
+ * If the server times out idle clients, each shard has a TimingWheel of its own that its
+ * connections' heartbeats wait on, advanced by the event loop.
+ */
+public class EventLoopShard implements Runnable {
+
+    private final int shardId;
+    private final NioChatServer parentServer;
+    private final Selector selector;
+    private final Queue<Runnable> taskQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final List<NioConnection> connectionList = new ArrayList<>();
+    private final List<NioConnection> flushList = new ArrayList<>();
+    // Tasks waiting for a time to run at, soonest first. Only used by the event loop.
+    private final PriorityQueue<ScheduledTask> scheduledTasks = new PriorityQueue<>();
+    private long scheduledCount = 0;
+    // The wheel the heartbeats of the shard's connections wait on, or null if there are none.
+    private final TimingWheel timingWheel;
+    // When the oldest connection in the flush list was added, and whether one has a full batch.
+    private long flushPendingSince = 0;
+    private boolean flushDue = false;
+    private volatile boolean running = true;
+    private volatile Thread loopThread;
+
+    /**
+     * Shard constructor, opens the selector the shard will run on.
+     *
+     * @param shardId      : The index of the shard within the server.
+     * @param parentServer : The NioChatServer the shard belongs to.
+     * @throws IOException : If the selector could not be opened.
+     */
+    public EventLoopShard(int shardId, NioChatServer parentServer) throws IOException {
+        this.shardId = shardId;
+        this.parentServer = parentServer;
+        this.selector = Selector.open();
+        this.timingWheel = parentServer.getHeartbeats().isEnabled() ? new TimingWheel() : null;
+    }
+
+    public int getShardId() {
+        return shardId;
+    }
+
+    public Selector getSelector() {
+        return selector;
+    }
+
+    public NioChatServer getParentServer() {
+        return parentServer;
+    }
+
+    public TimingWheel getTimingWheel() {
+        return timingWheel;
+    }
+
+    /**
+     * Whether the calling thread is the thread running this shard's event loop.
+     *
+     * @return : True if called from inside the event loop.
+     */
+    public boolean inEventLoop() {
+        return Thread.currentThread() == loopThread;
+    }
+
+    /**
+     * Hands a task to the shard's event loop. May be called from any thread; the task runs
+     * on the shard's thread after it has handled its ready keys. The selector is woken at
+     * most once per pass, no matter how many tasks are queued from other threads.
+     *
+     * @param task : The task to run on the shard.
+     */
+    public void execute(Runnable task) {
+        taskQueue.offer(task);
+        if (!inEventLoop() && wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a task on the shard's event loop once a delay has passed. Must be called from the
+     * shard's event loop.
+     *
+     * @param task       : The task to run.
+     * @param delayNanos : How long to wait before running it.
+     */
+    public void schedule(Runnable task, long delayNanos) {
+        scheduledTasks.add(new ScheduledTask(System.nanoTime() + delayNanos, scheduledCount++, task));
+    }
+
+    /**
+     * Hands a newly accepted channel to the shard, which registers it with its selector.
+     *
+     * @param clientChannel : The accepted, non-blocking channel.
+     * @param uid           : The unique ID the server has given the client.
+     * @param outboundQueue : The queue of messages waiting to be written to the client.
+     */
+    public void register(SocketChannel clientChannel, int uid, OutboundQueue outboundQueue) {
+        String username = "User" + uid;
+        execute(() -> {
+            try {
+                NioConnection connection = new NioConnection(clientChannel, uid, username, this, outboundQueue);
+                connection.setShardIndex(connectionList.size());
+                connectionList.add(connection);
+                parentServer.getClientRegistry().add(connection);
+                parentServer.getRoomIndex().join(connection, parentServer.getRoomIndex().getLobby());
+            } catch (IOException e) {
+                Log.warn("Failed to register " + username);
+                try {
+                    clientChannel.close();
+                } catch (IOException ce) {
+                    Log.error("Failed to close the channel of " + username + ".", ce);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queues a message for every connection owned by this shard that is in the message's room.
+     * Must be called from the shard's event loop.
+     *
+     * @param message : The message to send.
+     */
+    public void fanOut(ChatMessage message) {
+        message.getRoom().deliver(shardId, message);
+    }
+
+    /**
+     * Adds a description of the outbound queue of every connection owned by this shard
+     * to a list. Must be called from the shard's event loop.
+     *
+     * @param descriptions : The list to add to.
+     */
+    public void describeConnections(List<String> descriptions) {
+        for (NioConnection connection : connectionList) {
+            descriptions.add(connection.describe());
+        }
+    }
+
+    /**
+     * Asks the event loop to flush a connection once the server's FlushScheduler says
+     * the pending output is due, after the current set of ready keys and tasks.
+     *
+     * @param connection : Connection with newly queued output.
+     */
+    public void scheduleFlush(NioConnection connection) {
+        if (flushList.isEmpty()) {
+            flushPendingSince = System.nanoTime();
+        }
+        flushList.add(connection);
+    }
+
+    /**
+     * Asks the event loop to flush at the end of the current pass without waiting out the
+     * flush delay, as a connection has a full batch waiting.
+     */
+    public void flushSoon() {
+        flushDue = true;
+    }
+
+    /**
+     * Removes a connection from the shard's connection list, in constant time: the last
+     * connection in the list is moved into its place, so the list is not kept in order.
+     *
+     * @param connection : Connection to be removed.
+     */
+    public void removeConnection(NioConnection connection) {
+        int index = connection.getShardIndex();
+        if (index < 0 || index >= connectionList.size() || connectionList.get(index) != connection) {
+            return;
+        }
+        NioConnection last = connectionList.remove(connectionList.size() - 1);
+        if (last != connection) {
+            connectionList.set(index, last);
+            last.setShardIndex(index);
+        }
+        connection.setShardIndex(-1);
+    }
+
+    /**
+     * Stops the shard by lowering its running flag and waking its selector, after which
+     * the event loop closes its connections and exits.
+     */
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+    }
+
+    /**
+     * Runs the event loop until the shard is shut down: dispatches ready keys to the
+     * connections attached to them, runs tasks handed over by other threads, then
+     * flushes queued output once it is due. While output is waiting out the flush delay
+     * the loop polls its selector instead of blocking, so that more messages can join
+     * the batch without holding up the ones already queued. While tasks are scheduled,
+     * or heartbeats are kept, the loop blocks no longer than until the soonest of them is due.
+     */
+    public void run() {
+        loopThread = Thread.currentThread();
+        FlushScheduler flushScheduler = parentServer.getFlushScheduler();
+        while (running) {
+            try {
+                long untilDue = nanosUntilDue();
+                if (!flushList.isEmpty()) {
+                    selector.selectNow();
+                } else if (untilDue < 0) {
+                    selector.select();
+                } else {
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(untilDue + 999_999)));
+                }
+            } catch (IOException e) {
+                Log.error("Event loop " + shardId + " failed to select.", e);
+                break;
+            }
+            wakeupPending.set(false);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    parentServer.accept();
+                    continue;
+                }
+                NioConnection connection = (NioConnection) key.attachment();
+                if (key.isReadable()) {
+                    connection.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    connection.flush();
+                }
+            }
+            runTasks();
+            runScheduledTasks();
+            if (timingWheel != null) {
+                timingWheel.advance(System.nanoTime());
+            }
+            if (!flushList.isEmpty() && flushScheduler.isDue(flushPendingSince, flushDue)) {
+                for (int i = 0; i < flushList.size(); i++) {
+                    flushList.get(i).flush();
+                }
+                flushList.clear();
+                flushDue = false;
+            }
+        }
+        close();
+    }
+
+    /**
+     * Runs every task that has been handed to the shard so far.
+     */
+    private void runTasks() {
+        Runnable task;
+        while ((task = taskQueue.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                Log.error("Event loop " + shardId + " failed to run a task.", e);
+            }
+        }
+    }
+
+    /**
+     * How long until the soonest scheduled task is due, or the timing wheel next ticks.
+     *
+     * @return : The time in nanoseconds, or -1 if nothing is waiting for a time.
+     */
+    private long nanosUntilDue() {
+        long now = System.nanoTime();
+        long untilDue = -1;
+        if (!scheduledTasks.isEmpty()) {
+            untilDue = Math.max(0, scheduledTasks.peek().dueNanos - now);
+        }
+        if (timingWheel != null) {
+            long untilTick = timingWheel.nanosUntilNextTick(now);
+            untilDue = untilDue < 0 ? untilTick : Math.min(untilDue, untilTick);
+        }
+        return untilDue;
+    }
+
+    /**
+     * Runs every scheduled task that is due.
+     */
+    private void runScheduledTasks() {
+        long now = System.nanoTime();
+        while (!scheduledTasks.isEmpty() && scheduledTasks.peek().dueNanos - now <= 0) {
+            try {
+                scheduledTasks.poll().task.run();
+            } catch (RuntimeException e) {
+                Log.error("Event loop " + shardId + " failed to run a scheduled task.", e);
+            }
+        }
+    }
+
+    /**
+     * Closes every connection owned by the shard, and the shard's selector.
+     */
+    private void close() {
+        // Creating a shutdown list avoids concurrent modification.
+        List<NioConnection> connectionsToClose = new ArrayList<>(connectionList);
+        for (NioConnection connection : connectionsToClose) {
+            connection.close();
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.error("Failed to close the selector of event loop " + shardId + ".", e);
+        }
+    }
+
+    /**
+     * A task waiting for its time on the event loop. Tasks due at the same time run in the
+     * order they were scheduled.
+     */
+    private static final class ScheduledTask implements Comparable<ScheduledTask> {
+
+        private final long dueNanos;
+        private final long order;
+        private final Runnable task;
+
+        private ScheduledTask(long dueNanos, long order, Runnable task) {
+            this.dueNanos = dueNanos;
+            this.order = order;
+            this.task = task;
+        }
+
+        public int compareTo(ScheduledTask other) {
+            long difference = dueNanos - other.dueNanos;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return Long.compare(order, other.order);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * What a server does with a message from a client that is over one of its rate limits.
+ */
+public enum FloodPolicy {
+
+    /**
+     * Holds the message, and stops reading from the client, until the limit allows it.
+     */
+    THROTTLE("throttle"),
+
+    /**
+     * Discards the message, telling the client the first time in a row that it does.
+     */
+    DROP("drop");
+
+    private final String flagName;
+
+    FloodPolicy(String flagName) {
+        this.flagName = flagName;
+    }
+
+    public String getFlagName() {
+        return flagName;
+    }
+
+    /**
+     * Finds the policy with the given command line name.
+     *
+     * @param flagName : The name given on the command line, such as "throttle".
+     * @return : The matching policy.
+     * @throws IllegalArgumentException : If no policy has that name.
+     */
+    public static FloodPolicy fromFlagName(String flagName) {
+        for (FloodPolicy policy : values()) {
+            if (policy.flagName.equalsIgnoreCase(flagName)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown flood policy: " + flagName);
+    }
+}
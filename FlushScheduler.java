@@ -0,0 +1,69 @@
+/**
+ * Decides when queued output is written to a client. Rather than writing and flushing every
+ * message on its own, pending messages are gathered and written together, so that a burst
+ * of broadcasts costs one system call per client instead of one per message.
+ * <p>
+ * A batch is flushed as soon as it holds the batch size, or once the flush delay has passed
+ * since its first message was queued, whichever comes first. A delay of zero flushes whatever
+ * is pending as soon as the writer gets to it.
+ */
+public class FlushScheduler {
+
+    public static final int DEFAULT_BATCH_SIZE = 64;
+    public static final long DEFAULT_FLUSH_DELAY_MICROS = 20;
+
+    private final int batchSize;
+    private final long flushDelayNanos;
+
+    /**
+     * Flush scheduler constructor.
+     *
+     * @param batchSize        : The most messages written to a client in one go.
+     * @param flushDelayMicros : How long a message may wait for others to join its batch, in microseconds.
+     */
+    public FlushScheduler(int batchSize, long flushDelayMicros) {
+        this.batchSize = Math.max(1, batchSize);
+        this.flushDelayNanos = Math.max(0, flushDelayMicros) * 1000;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public long getFlushDelayNanos() {
+        return flushDelayNanos;
+    }
+
+    /**
+     * Creates the array a writer gathers its batches into, sized to the batch size.
+     *
+     * @return : An empty batch.
+     */
+    public ChatMessage[] newBatch() {
+        return new ChatMessage[batchSize];
+    }
+
+    /**
+     * Waits for the next batch of messages for a blocking writer. Waits as long as needed for
+     * the first message, then up to the flush delay for the batch to fill.
+     *
+     * @param queue : The queue to take the messages from.
+     * @param batch : The array to put the messages in.
+     * @return : The number of messages taken, or 0 once the queue has been closed.
+     * @throws InterruptedException : If the writer was interrupted while waiting.
+     */
+    public int gather(OutboundQueue queue, ChatMessage[] batch) throws InterruptedException {
+        return queue.takeBatch(batch, flushDelayNanos);
+    }
+
+    /**
+     * Whether pending output should be flushed now, for a writer that cannot block.
+     *
+     * @param pendingSince : When the oldest unflushed message was queued, from System.nanoTime().
+     * @param batchFull    : Whether any client already has a full batch waiting.
+     * @return : True if the output should be flushed.
+     */
+    public boolean isDue(long pendingSince, boolean batchFull) {
+        return batchFull || System.nanoTime() - pendingSince >= flushDelayNanos;
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A single message in the length-prefixed binary protocol, which a client can ask for
+ * instead of the line protocol. Every frame is laid out as:
+ * <p>
+ * length (4 bytes), type (1 byte), room ID (4 bytes), sequence number (8 bytes), payload.
+ * <p>
+ * The length counts every byte after itself, and the payload is UTF-8 text. The server's
+ * payloads may contain line breaks, but a client's may not, as it is sent on to clients of the
+ * line protocol; a client sends each line of its message as a frame of its own instead.
+ * Numbers are big-endian.
+ * <p>
+ * A client asks for frames by sending HANDSHAKE_REQUEST as its first line. Everything it
+ * sends after that line is framed. The server answers with the line HANDSHAKE_REPLY, and
+ * everything the server sends after that line is framed. Clients that never send the
+ * request keep using the line protocol on the same port.
+ */
+public final class Frame {
+
+    public static final String HANDSHAKE_REQUEST = "/frames 1";
+    public static final String HANDSHAKE_REPLY = "/frames 1 ok";
+    // The bytes after the length that are not payload: type, room ID and sequence number.
+    public static final int HEADER_LENGTH = 1 + 4 + 8;
+    public static final int MAX_PAYLOAD_LENGTH = LineDecoder.MAX_LINE_LENGTH;
+    // The room ID of a frame that is not sent to a room.
+    public static final int NO_ROOM = -1;
+
+    /**
+     * The kinds of frame.
+     */
+    public enum Type {
+        // A message sent to a room, or from a client a line it would otherwise have typed.
+        MESSAGE(1),
+        // A private message from one client to another.
+        PRIVATE(2),
+        // A message from the server itself.
+        SERVER(3);
+
+        private final byte code;
+
+        Type(int code) {
+            this.code = (byte) code;
+        }
+
+        public byte getCode() {
+            return code;
+        }
+
+        /**
+         * Finds the type with the given code.
+         *
+         * @param code : The code from a frame.
+         * @return : The type, or null if no type has that code.
+         */
+        public static Type fromCode(byte code) {
+            for (Type type : values()) {
+                if (type.code == code) {
+                    return type;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final Type type;
+    private final int roomId;
+    private final long sequence;
+    private final String payload;
+
+    /**
+     * Frame constructor.
+     *
+     * @param type     : The kind of frame.
+     * @param roomId   : The ID of the room the frame belongs to, or NO_ROOM.
+     * @param sequence : The sequence number of the frame.
+     * @param payload  : The text the frame carries.
+     */
+    public Frame(Type type, int roomId, long sequence, String payload) {
+        this.type = type;
+        this.roomId = roomId;
+        this.sequence = sequence;
+        this.payload = payload;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public int getRoomId() {
+        return roomId;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    /**
+     * Whether text holds a line break, which a client's frame may not.
+     *
+     * @param text : The text.
+     * @return : True if the text holds a carriage return or a line feed.
+     */
+    public static boolean hasLineBreak(String text) {
+        return text.indexOf('\n') >= 0 || text.indexOf('\r') >= 0;
+    }
+
+    /**
+     * Splits a message into its lines, each of which a client sends as a frame of its own,
+     * just as the line protocol would send it.
+     *
+     * @param message : The message.
+     * @return : The lines of the message, at least one.
+     */
+    public static String[] splitLines(String message) {
+        return hasLineBreak(message) ? message.split("\r\n|\r|\n") : new String[] {message};
+    }
+
+    /**
+     * Encodes the frame, including its length prefix.
+     *
+     * @return : The encoded frame.
+     */
+    public byte[] encode() {
+        byte[] payloadBytes = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer frame = ByteBuffer.allocate(4 + HEADER_LENGTH + payloadBytes.length);
+        frame.putInt(HEADER_LENGTH + payloadBytes.length);
+        frame.put(type.getCode());
+        frame.putInt(roomId);
+        frame.putLong(sequence);
+        frame.put(payloadBytes);
+        return frame.array();
+    }
+
+    /**
+     * Reads a whole frame from a blocking stream. Used by clients; the server decodes frames
+     * incrementally with a FrameDecoder instead.
+     *
+     * @param input : The stream to read from.
+     * @return : The frame, or null at the end of the stream.
+     * @throws IOException : If the stream failed, or a MalformedInputException if it held a
+     *                     malformed frame.
+     */
+    public static Frame read(DataInputStream input) throws IOException {
+        int length;
+        try {
+            length = input.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < HEADER_LENGTH) {
+            throw new MalformedInputException("Malformed frame of length " + length, false);
+        }
+        if (length > HEADER_LENGTH + MAX_PAYLOAD_LENGTH) {
+            input.skipNBytes(length);
+            throw new MalformedInputException("Frame of length " + length + " is too long", true);
+        }
+        Type type = Type.fromCode(input.readByte());
+        int roomId = input.readInt();
+        long sequence = input.readLong();
+        byte[] payload = new byte[length - HEADER_LENGTH];
+        input.readFully(payload);
+        if (type == null) {
+            throw new MalformedInputException("Malformed frame of unknown type", true);
+        }
+        return new Frame(type, roomId, sequence, new String(payload, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads a line of the line protocol from a blocking stream, byte by byte so that nothing
+     * after the line is consumed. Follows the same line terminators as LineDecoder, except
+     * that the line feed of a "\r\n" terminator is left in the stream.
+     *
+     * @param input : The stream to read from.
+     * @return : The line, or null at the end of the stream.
+     * @throws IOException : If the stream failed, or a MalformedInputException if the line was
+     *                     too long, in which case the rest of it has been skipped.
+     */
+    public static String readLine(DataInputStream input) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = input.read()) != -1) {
+            if (b == '\n' || b == '\r') {
+                return line.toString(StandardCharsets.UTF_8.name());
+            }
+            if (line.size() == LineDecoder.MAX_LINE_LENGTH) {
+                while ((b = input.read()) != -1 && b != '\n' && b != '\r') {
+                    // Skip to the end of the line, so that the next line can still be read.
+                }
+                throw new MalformedInputException("Line exceeds " + LineDecoder.MAX_LINE_LENGTH + " bytes",
+                        true);
+            }
+            line.write(b);
+        }
+        return line.size() == 0 ? null : line.toString(StandardCharsets.UTF_8.name());
+    }
+
+    /**
+     * Writes the frame to a blocking stream, without flushing it.
+     *
+     * @param output : The stream to write to.
+     * @throws IOException : If the stream failed.
+     */
+    public void write(DataOutputStream output) throws IOException {
+        output.write(encode());
+    }
+
+    /**
+     * Thrown when a blocking stream holds a line or frame that cannot be read. If it was
+     * skipped whole, the stream can still be read from; otherwise the stream has lost its
+     * place, and the connection has to be given up.
+     */
+    public static class MalformedInputException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        private final boolean skipped;
+
+        public MalformedInputException(String message, boolean skipped) {
+            super(message);
+            this.skipped = skipped;
+        }
+
+        /**
+         * Whether the line or frame was skipped whole, so that the next one can be read.
+         *
+         * @return : True if the stream can still be read from.
+         */
+        public boolean isSkipped() {
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,99 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Incrementally decodes frames of the binary protocol from bytes read off a socket,
+ * in the same way that LineDecoder decodes lines. The length prefix of each frame says
+ * how many bytes to wait for, so the payload is never scanned for a terminator.
+ */
+public class FrameDecoder {
+
+    private final int maxPayloadLength;
+    private final byte[] lengthBuffer = new byte[4];
+    private int lengthRead = 0;
+    private byte[] frameBuffer = null;
+    private int frameRead = 0;
+
+    /**
+     * FrameDecoder constructor, for payloads of up to Frame.MAX_PAYLOAD_LENGTH bytes.
+     */
+    public FrameDecoder() {
+        this(Frame.MAX_PAYLOAD_LENGTH);
+    }
+
+    /**
+     * FrameDecoder constructor.
+     *
+     * @param maxPayloadLength : The most bytes the payload of a frame may have.
+     */
+    public FrameDecoder(int maxPayloadLength) {
+        this.maxPayloadLength = maxPayloadLength;
+    }
+
+    /**
+     * Consumes every readable byte in the buffer, adding each completed frame to the output list.
+     * Incomplete frames are kept until the rest of the frame arrives.
+     *
+     * @param bytes  : Buffer in read mode holding newly received bytes.
+     * @param frames : List that completed frames are added to.
+     * @throws MalformedFrameException : If a frame is too long, too short or of an unknown type.
+     */
+    public void decode(ByteBuffer bytes, List<Frame> frames) throws MalformedFrameException {
+        while (bytes.hasRemaining()) {
+            if (frameBuffer == null) {
+                // Still reading the length prefix.
+                lengthBuffer[lengthRead++] = bytes.get();
+                if (lengthRead == lengthBuffer.length) {
+                    int length = ByteBuffer.wrap(lengthBuffer).getInt();
+                    if (length < Frame.HEADER_LENGTH || length > Frame.HEADER_LENGTH + maxPayloadLength) {
+                        throw new MalformedFrameException("Frame length " + length + " is out of range");
+                    }
+                    frameBuffer = new byte[length];
+                    frameRead = 0;
+                    lengthRead = 0;
+                }
+                continue;
+            }
+            int chunk = Math.min(bytes.remaining(), frameBuffer.length - frameRead);
+            bytes.get(frameBuffer, frameRead, chunk);
+            frameRead += chunk;
+            if (frameRead == frameBuffer.length) {
+                frames.add(parse(frameBuffer));
+                frameBuffer = null;
+            }
+        }
+    }
+
+    /**
+     * Parses a complete frame, without its length prefix.
+     *
+     * @param frame : The bytes of the frame after the length prefix.
+     * @return : The frame.
+     * @throws MalformedFrameException : If the frame is of an unknown type.
+     */
+    private static Frame parse(byte[] frame) throws MalformedFrameException {
+        ByteBuffer header = ByteBuffer.wrap(frame);
+        Frame.Type type = Frame.Type.fromCode(header.get());
+        if (type == null) {
+            throw new MalformedFrameException("Frame type " + frame[0] + " is unknown");
+        }
+        int roomId = header.getInt();
+        long sequence = header.getLong();
+        String payload = new String(frame, Frame.HEADER_LENGTH, frame.length - Frame.HEADER_LENGTH,
+                StandardCharsets.UTF_8);
+        return new Frame(type, roomId, sequence, payload);
+    }
+
+    /**
+     * Thrown when a peer sends bytes that cannot be a frame.
+     */
+    public static class MalformedFrameException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public MalformedFrameException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,154 @@
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The heartbeats and idle timeouts of a server's clients. A client that has sent nothing for
+ * the heartbeat interval is sent '/ping', which a client answers with '/pong'. A client that
+ * has sent nothing, pongs included, for the idle timeout is closed the same way as a client
+ * that disconnects, which reaps half-open connections whose other end has gone away.
+ * <p>
+ * Each client has one Monitor, which waits on a TimingWheel. Hearing from a client only
+ * notes the time; the monitor looks at that time when its timeout expires, and schedules
+ * itself again for whenever the client is next due a ping or a timeout. A busy client is
+ * then looked at once per interval, however many messages it sends.
+ */
+public class Heartbeats {
+
+    public static final String PING = "/ping";
+    public static final String PONG = "/pong";
+
+    private final long heartbeatNanos;
+    private final long idleTimeoutNanos;
+    private final ServerMetrics metrics;
+
+    /**
+     * Heartbeats constructor. Without an idle timeout of its own, a client is timed out once
+     * it has missed a heartbeat's worth of time after its ping.
+     *
+     * @param config  : The settings of the server, giving the heartbeat interval and idle timeout.
+     * @param metrics : The metrics of the server, which pings and timeouts are counted in.
+     */
+    public Heartbeats(ServerConfig config, ServerMetrics metrics) {
+        this.heartbeatNanos = TimeUnit.SECONDS.toNanos(Math.max(0, config.heartbeatSeconds));
+        long idleTimeoutSeconds = config.idleTimeoutSeconds > 0 ? config.idleTimeoutSeconds
+                : 2L * Math.max(0, config.heartbeatSeconds);
+        this.idleTimeoutNanos = TimeUnit.SECONDS.toNanos(idleTimeoutSeconds);
+        this.metrics = metrics;
+    }
+
+    /**
+     * Whether clients are timed out at all.
+     *
+     * @return : True if there is an idle timeout.
+     */
+    public boolean isEnabled() {
+        return idleTimeoutNanos > 0;
+    }
+
+    /**
+     * Starts watching a client, if clients are timed out.
+     *
+     * @param member : The client.
+     * @param wheel  : The wheel the client's timeout waits on.
+     * @return : The client's monitor, or null if clients are not timed out.
+     */
+    public Monitor watch(ChatMember member, TimingWheel wheel) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Monitor monitor = new Monitor(member, wheel);
+        monitor.scheduleNext(System.nanoTime());
+        return monitor;
+    }
+
+    /**
+     * The heartbeat of a single client.
+     */
+    public final class Monitor implements Runnable {
+
+        private final ChatMember member;
+        private final TimingWheel wheel;
+        private volatile long lastHeardNanos = System.nanoTime();
+        // When the client had last been heard from as it was pinged, if it has been pinged.
+        // Only used by the thread advancing the wheel.
+        private boolean pinged = false;
+        private long pingedAfter;
+        private volatile TimingWheel.Timeout timeout = null;
+        private volatile boolean stopped = false;
+
+        private Monitor(ChatMember member, TimingWheel wheel) {
+            this.member = member;
+            this.wheel = wheel;
+        }
+
+        /**
+         * Notes that the client has sent something. Called on every read from the client.
+         */
+        public void heard() {
+            lastHeardNanos = System.nanoTime();
+        }
+
+        /**
+         * Stops watching the client. Called once, as the client closes.
+         */
+        public void stop() {
+            stopped = true;
+            TimingWheel.Timeout current = timeout;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+
+        /**
+         * Runs when the monitor's timeout expires, on the thread advancing the wheel: closes the
+         * client if it has been idle too long, pings it if it is due a ping, and waits again.
+         */
+        public void run() {
+            if (stopped) {
+                return;
+            }
+            long now = System.nanoTime();
+            long heard = lastHeardNanos;
+            if (now - heard >= idleTimeoutNanos) {
+                metrics.idleTimeouts.increment();
+                Log.debug(member.getUsername() + " timed out after " + TimeUnit.NANOSECONDS.toSeconds(now - heard)
+                        + " seconds idle.");
+                member.close();
+                return;
+            }
+            if (heartbeatNanos > 0 && now - heard >= heartbeatNanos && !pingedSince(heard)) {
+                pinged = true;
+                pingedAfter = heard;
+                metrics.pings.increment();
+                member.send(PING);
+            }
+            scheduleNext(now);
+        }
+
+        /**
+         * Whether the client has been pinged since it was last heard from.
+         *
+         * @param heard : When the client was last heard from.
+         * @return : True if it has been pinged since.
+         */
+        private boolean pingedSince(long heard) {
+            return pinged && pingedAfter == heard;
+        }
+
+        /**
+         * Schedules the monitor for when the client is next due a ping or a timeout, whichever is sooner.
+         *
+         * @param now : The current time, from System.nanoTime().
+         */
+        private void scheduleNext(long now) {
+            long heard = lastHeardNanos;
+            long due = heard + idleTimeoutNanos;
+            if (heartbeatNanos > 0 && !pingedSince(heard)) {
+                due = Math.min(due, heard + heartbeatNanos);
+            }
+            timeout = wheel.schedule(this, due - now);
+            if (stopped) {
+                timeout.cancel();
+            }
+        }
+    }
+}
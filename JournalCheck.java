@@ -0,0 +1,363 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+/**
+ * A check that the message journal recovers from a crash. For each way a crash can leave the
+ * tail of a room's last segment, it writes a journal of numbered messages, closes it, damages
+ * the tail on disk the way that crash would, and opens the journal again as a restarted server
+ * would.
+ * <p>
+ * The journal must keep exactly the messages written whole before the damage, the room must
+ * number its next message straight after the last of them, and a replay of the room must be
+ * those messages and the new one, in order, as both lines and frames. The journal is then
+ * closed and opened once more, to check that the new message was appended where the damage
+ * was cleared away. Any failure is printed, and the exit status is 1.
+ */
+public class JournalCheck {
+
+    private static final String ROOM = "check";
+    private static final String ROOM_PREFIX = "[" + ROOM + "] ";
+    private static final RemoteMember SENDER = new RemoteMember("checker");
+    private static final long REPLAY_TIMEOUT_SECONDS = 10;
+
+    private final Path directory;
+    private final int messageCount;
+
+    /**
+     * Journal check constructor.
+     *
+     * @param directory    : The directory to write the journals in, one below it for each case.
+     * @param messageCount : The number of messages written before each crash.
+     */
+    public JournalCheck(Path directory, int messageCount) {
+        this.directory = directory;
+        this.messageCount = Math.max(2, messageCount);
+    }
+
+    /**
+     * The ways a crash can leave the tail of the last segment.
+     */
+    private enum Damage {
+        // The last message was written but its length, which goes last, was not.
+        LENGTH_NOT_WRITTEN(1),
+        // The last message's line was only partly written before the files were cut short.
+        LINE_TRUNCATED(1),
+        // The last message's frame was cut short, leaving it longer than what follows it.
+        FRAME_TRUNCATED(1),
+        // The last message's line holds a byte that was never written.
+        LINE_CORRUPTED(1),
+        // A whole message left past the tail, just where the next message will end, which has to
+        // be cleared away so that it is not taken to follow the next message after another crash.
+        STALE_AFTER_TAIL(0);
+
+        // How many messages at the end the damage loses.
+        private final int lost;
+
+        Damage(int lost) {
+            this.lost = lost;
+        }
+    }
+
+    /**
+     * Runs every case.
+     *
+     * @return : True if every check passed.
+     * @throws IOException : If a journal could not be written or damaged.
+     */
+    public boolean run() throws IOException {
+        boolean passed = true;
+        for (Damage damage : Damage.values()) {
+            Path caseDirectory = directory.resolve(damage.name().toLowerCase());
+            passed &= check(caseDirectory, damage);
+        }
+        return passed;
+    }
+
+    /**
+     * Writes a journal, damages it, and checks what is recovered.
+     *
+     * @param caseDirectory : The directory of the journal.
+     * @param damage        : What the crash left behind.
+     * @return : True if the case passed.
+     * @throws IOException : If the journal could not be written or damaged.
+     */
+    private boolean check(Path caseDirectory, Damage damage) throws IOException {
+        MessageJournal journal = new MessageJournal(caseDirectory, messageCount, 1000);
+        Room room = attach(journal);
+        for (int i = 1; i <= messageCount; i++) {
+            post(room, i);
+        }
+        journal.close();
+        damage(caseDirectory.resolve(ROOM), damage);
+
+        long expected = messageCount - damage.lost;
+        List<String> failures = new ArrayList<>();
+        journal = new MessageJournal(caseDirectory, messageCount, 1000);
+        room = attach(journal);
+        long recovered = room.getJournal().getLastSequence();
+        if (recovered != expected) {
+            failures.add("recovered " + recovered + " messages, not " + expected);
+        }
+        long next = post(room, (int) expected + 1);
+        if (next != expected + 1) {
+            failures.add("numbered the next message " + next + ", not " + (expected + 1));
+        }
+        String replayed = replay(journal, room, expected + 1);
+        if (replayed != null) {
+            failures.add(replayed);
+        }
+        journal.close();
+
+        journal = new MessageJournal(caseDirectory, messageCount, 1000);
+        room = attach(journal);
+        if (room.getJournal().getLastSequence() != expected + 1) {
+            failures.add("held " + room.getJournal().getLastSequence() + " messages after restarting again, not "
+                    + (expected + 1));
+        }
+        journal.close();
+
+        System.out.println(damage.name().toLowerCase() + " recovered " + recovered + " of " + messageCount);
+        for (String failure : failures) {
+            System.out.println("FAILED: " + damage.name().toLowerCase() + " " + failure + ".");
+        }
+        return failures.isEmpty();
+    }
+
+    private static Room attach(MessageJournal journal) {
+        Room room = new Room(ROOM, journal.roomId(ROOM), 1);
+        journal.attach(room);
+        if (room.getJournal() == null) {
+            throw new IllegalStateException("The journal of the room could not be opened");
+        }
+        return room;
+    }
+
+    /**
+     * Posts the numbered message to the room and hands it to the room's journal.
+     *
+     * @param room   : The room.
+     * @param number : The number in the message's text.
+     * @return : The sequence number the room gave the message.
+     */
+    private static long post(Room room, int number) {
+        ChatMessage message = room.post(SENDER, text(number), number);
+        room.getJournal().append(message);
+        long sequence = message.getSequence();
+        message.release();
+        return sequence;
+    }
+
+    private static String text(long number) {
+        return "message " + number;
+    }
+
+    /**
+     * Damages the tail of a room's last segment on disk, while its journal is closed.
+     *
+     * @param roomDirectory : The directory of the room's journal.
+     * @param damage        : What to do to the tail.
+     * @throws IOException : If the files could not be changed.
+     */
+    private void damage(Path roomDirectory, Damage damage) throws IOException {
+        Path frames;
+        Path lines;
+        try (Stream<Path> files = Files.list(roomDirectory)) {
+            frames = files.filter(file -> file.toString().endsWith(JournalSegment.FRAMES_SUFFIX))
+                    .max(Comparator.naturalOrder()).orElseThrow();
+        }
+        String name = frames.getFileName().toString();
+        lines = roomDirectory.resolve(name.substring(0, name.length() - JournalSegment.FRAMES_SUFFIX.length())
+                + JournalSegment.LINES_SUFFIX);
+        try (FileChannel frameChannel = FileChannel.open(frames, StandardOpenOption.READ, StandardOpenOption.WRITE);
+             FileChannel lineChannel = FileChannel.open(lines, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // Find where the last message starts and ends in both files.
+            long frameEnd = 0;
+            long lastFrame = 0;
+            long lineEnd = 0;
+            long lastLine = 0;
+            int length;
+            while ((length = readInt(frameChannel, frameEnd)) > 0) {
+                lastFrame = frameEnd;
+                frameEnd += 4 + length;
+                lastLine = lineEnd;
+                lineEnd += length - Frame.HEADER_LENGTH + 1;
+            }
+            switch (damage) {
+                case LENGTH_NOT_WRITTEN:
+                    frameChannel.write(ByteBuffer.allocate(4), lastFrame);
+                    break;
+                case LINE_TRUNCATED:
+                    lineChannel.truncate(lastLine + (lineEnd - lastLine) / 2);
+                    break;
+                case FRAME_TRUNCATED:
+                    frameChannel.truncate(lastFrame + (frameEnd - lastFrame) / 2);
+                    break;
+                case LINE_CORRUPTED:
+                    lineChannel.write(ByteBuffer.wrap(new byte[] {'#'}), lineEnd - 2);
+                    break;
+                case STALE_AFTER_TAIL:
+                    // The next message is one digit longer at most, which only moves where it ends.
+                    int grown = text(messageCount + 1).length() - text(messageCount).length();
+                    long staleFrame = frameEnd + (frameEnd - lastFrame) + grown;
+                    long staleLine = lineEnd + (lineEnd - lastLine) + grown;
+                    byte[] payload = (ROOM_PREFIX + SENDER.getUsername() + ": stale").getBytes(StandardCharsets.UTF_8);
+                    frameChannel.write(ByteBuffer.allocate(4 + Frame.HEADER_LENGTH + payload.length)
+                            .putInt(Frame.HEADER_LENGTH + payload.length).put(Frame.Type.MESSAGE.getCode())
+                            .putInt(0).putLong(messageCount + 2).put(payload).flip(), staleFrame);
+                    lineChannel.write(ByteBuffer.allocate(payload.length + 1).put(payload).put((byte) '\n').flip(),
+                            staleLine);
+                    break;
+                default:
+                    throw new IllegalArgumentException(damage.name());
+            }
+        }
+    }
+
+    private static int readInt(FileChannel channel, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(4);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                return 0;
+            }
+        }
+        return buffer.flip().getInt();
+    }
+
+    /**
+     * Replays the whole room, as lines and as frames, and checks that it holds every message
+     * from the first to the last, in order.
+     *
+     * @param journal : The journal.
+     * @param room    : The room.
+     * @param last    : The sequence number of the last message.
+     * @return : What was wrong with the replay, or null if nothing was.
+     */
+    private static String replay(MessageJournal journal, Room room, long last) {
+        CompletableFuture<JournalSlice> result = new CompletableFuture<>();
+        journal.replay(room.getJournal(), 0, last, result);
+        JournalSlice slice;
+        try {
+            slice = result.get(REPLAY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            return "replay did not complete: " + e;
+        }
+        if (slice == null) {
+            return "replay found no messages";
+        }
+        try {
+            StringBuilder expectedLines = new StringBuilder();
+            for (long i = 1; i <= last; i++) {
+                expectedLines.append(room.getLinePrefix()).append(SENDER.getUsername()).append(": ")
+                        .append(text(i)).append('\n');
+            }
+            String lines = new String(transfer(slice, false), StandardCharsets.UTF_8);
+            if (!lines.equals(expectedLines.toString())) {
+                return "replayed lines that were not messages 1 to " + last;
+            }
+            ByteBuffer frames = ByteBuffer.wrap(transfer(slice, true));
+            for (long i = 1; i <= last; i++) {
+                if (frames.remaining() < 4 + Frame.HEADER_LENGTH) {
+                    return "replayed " + (i - 1) + " frames, not " + last;
+                }
+                int length = frames.getInt();
+                frames.get();
+                frames.getInt();
+                long sequence = frames.getLong();
+                frames.position(frames.position() + length - Frame.HEADER_LENGTH);
+                if (sequence != i) {
+                    return "replayed frame " + sequence + " where " + i + " should be";
+                }
+            }
+            if (frames.hasRemaining()) {
+                return "replayed frames after message " + last;
+            }
+        } catch (IOException e) {
+            return "replay could not be read: " + e.getMessage();
+        }
+        return null;
+    }
+
+    private static byte[] transfer(JournalSlice slice, boolean framed) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        WritableByteChannel target = Channels.newChannel(bytes);
+        long sent = 0;
+        while (sent < slice.size(framed)) {
+            sent += slice.transferTo(target, framed, sent);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Deletes a directory and everything in it.
+     *
+     * @param root : The directory.
+     */
+    private static void delete(Path root) {
+        try (Stream<Path> files = Files.walk(root)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException e) {
+            System.out.println("Could not delete " + root + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Main method of JournalCheck. Parses the command line, runs every case in a directory of
+     * its own, which is deleted afterwards unless it was given, and exits with status 1 if any
+     * case failed.
+     *
+     * @param args : Command line arguments.
+     */
+    public static void main(String[] args) {
+        // Set default arguments.
+        int messageCount = 1000;
+        String directoryName = null;
+        // Parse command line arguments.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-messages")) {
+                    messageCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-dir")) {
+                    directoryName = args[i + 1];
+                }
+            }
+            // Catch errors and allow defaults through.
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid arguments. Using defaults instead.");
+        } catch (IndexOutOfBoundsException ioe) {
+            System.out.println("Incorrect argument format. Using defaults instead.");
+        }
+        Log.setLevel(Log.Level.WARN);
+        boolean passed;
+        Path directory = null;
+        try {
+            directory = directoryName != null ? Path.of(directoryName) : Files.createTempDirectory("journal-check");
+            passed = new JournalCheck(directory, messageCount).run();
+        } catch (IOException e) {
+            System.out.println("Could not run the check: " + e.getMessage());
+            passed = false;
+        } finally {
+            if (directory != null && directoryName == null) {
+                delete(directory);
+            }
+        }
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * One segment of a room's journal: a pair of memory-mapped files holding the same messages,
+ * one as frames of the binary protocol and one as lines of the line protocol, so that either
+ * kind of client can be sent its history straight from the file. Both files are named after
+ * the sequence number of their first message.
+ * <p>
+ * Each frame carries its length and sequence number, so the segment can be scanned after a
+ * crash and cut back to the last whole message. Messages are numbered without gaps, and every
+ * frame must agree with its line, so a message that was only partly written before the crash
+ * is found even if its length was written. Every so many messages, the offsets of a
+ * message in both files are kept in a sparse index, so that a message can be found by sequence
+ * number without scanning the whole segment.
+ * <p>
+ * Appending, searching and recovering are done by the journal's own thread. Transfers out of
+ * the files may be done from any thread, as they only read ranges that have been written.
+ */
+public class JournalSegment {
+
+    public static final int CAPACITY = 16 * 1024 * 1024;
+    public static final String FRAMES_SUFFIX = ".frames";
+    public static final String LINES_SUFFIX = ".lines";
+    private static final int INDEX_INTERVAL = 64;
+    // Where the sequence number sits in a frame: after the length, type and room ID.
+    private static final int SEQUENCE_OFFSET = 4 + 1 + 4;
+
+    private final long baseSequence;
+    private final FileChannel frameChannel;
+    private final FileChannel lineChannel;
+    private final MappedByteBuffer frameMap;
+    private final MappedByteBuffer lineMap;
+    private int frameEnd = 0;
+    private int lineEnd = 0;
+    private long lastSequence;
+    private int messageCount = 0;
+    private boolean dirty = false;
+    private long[] indexSequences = new long[16];
+    private int[] indexFrameOffsets = new int[16];
+    private int[] indexLineOffsets = new int[16];
+    private int indexSize = 0;
+
+    /**
+     * Segment constructor, maps both files at their full capacity.
+     *
+     * @param baseSequence : The sequence number of the first message in the segment.
+     * @param frameChannel : The open frames file.
+     * @param lineChannel  : The open lines file.
+     * @throws IOException : If either file could not be mapped.
+     */
+    private JournalSegment(long baseSequence, FileChannel frameChannel, FileChannel lineChannel) throws IOException {
+        this.baseSequence = baseSequence;
+        this.lastSequence = baseSequence - 1;
+        this.frameChannel = frameChannel;
+        this.lineChannel = lineChannel;
+        this.frameMap = frameChannel.map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+        this.lineMap = lineChannel.map(FileChannel.MapMode.READ_WRITE, 0, CAPACITY);
+    }
+
+    /**
+     * Opens a segment, creating its files if they do not exist yet.
+     *
+     * @param directory    : The directory of the room's journal.
+     * @param baseSequence : The sequence number of the first message in the segment.
+     * @return : The segment, which must be recovered before use if its files already existed.
+     * @throws IOException : If the files could not be opened.
+     */
+    public static JournalSegment open(Path directory, long baseSequence) throws IOException {
+        String name = fileName(baseSequence);
+        FileChannel frameChannel = FileChannel.open(directory.resolve(name + FRAMES_SUFFIX),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            FileChannel lineChannel = FileChannel.open(directory.resolve(name + LINES_SUFFIX),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            return new JournalSegment(baseSequence, frameChannel, lineChannel);
+        } catch (IOException e) {
+            frameChannel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The name of the files of a segment, without their suffix.
+     *
+     * @param baseSequence : The sequence number of the first message in the segment.
+     * @return : The sequence number padded with zeros, so that names sort in order.
+     */
+    public static String fileName(long baseSequence) {
+        return String.format("%020d", baseSequence);
+    }
+
+    public long getBaseSequence() {
+        return baseSequence;
+    }
+
+    /**
+     * The sequence number of the last message in the segment.
+     *
+     * @return : The sequence number, or one less than the base sequence if the segment is empty.
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Scans the frames file for whole messages in sequence, stopping at the first frame that is
+     * cut short, out of sequence, or does not agree with its line, which is where a crash
+     * interrupted the journal. The index is rebuilt along the way. For the last segment of a
+     * journal, whatever follows the last whole message is cleared, so that it cannot be mistaken
+     * for a message after the next crash.
+     *
+     * @param tail : Whether this is the last segment, which new messages will be appended to.
+     */
+    public void recover(boolean tail) {
+        while (frameEnd + 4 <= CAPACITY) {
+            int length = frameMap.getInt(frameEnd);
+            if (length < Frame.HEADER_LENGTH || length > Frame.HEADER_LENGTH + Frame.MAX_PAYLOAD_LENGTH
+                    || frameEnd + 4 + length > CAPACITY) {
+                break;
+            }
+            long sequence = frameMap.getLong(frameEnd + SEQUENCE_OFFSET);
+            if (frameMap.get(frameEnd + 4) != Frame.Type.MESSAGE.getCode() || sequence != lastSequence + 1) {
+                break;
+            }
+            int payloadLength = length - Frame.HEADER_LENGTH;
+            if (lineEnd + payloadLength + 1 > CAPACITY) {
+                break;
+            }
+            byte[] line = new byte[payloadLength + 1];
+            ByteBuffer frameView = frameMap.duplicate();
+            frameView.position(frameEnd + 4 + Frame.HEADER_LENGTH);
+            frameView.get(line, 0, payloadLength);
+            line[payloadLength] = '\n';
+            byte[] written = new byte[line.length];
+            ByteBuffer lineView = lineMap.duplicate();
+            lineView.position(lineEnd);
+            lineView.get(written);
+            if (!Arrays.equals(line, written)) {
+                break;
+            }
+            advance(sequence, 4 + length, line.length);
+        }
+        if (tail) {
+            clear(frameMap, frameEnd);
+            clear(lineMap, lineEnd);
+        }
+    }
+
+    /**
+     * Zeroes a mapped file from an offset to the end, skipping bytes that are already zero.
+     *
+     * @param map  : The mapped file.
+     * @param from : The offset to clear from.
+     */
+    private void clear(MappedByteBuffer map, int from) {
+        for (int i = from; i < CAPACITY; i++) {
+            if (map.get(i) != 0) {
+                map.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * Appends a message to both files. The frame's length is written last, so a message cut
+     * short by a crash is never read back as whole.
+     *
+     * @param message : The message to append, which must be numbered after the last one.
+     * @return : False if the segment is too full to hold the message.
+     */
+    public boolean append(ChatMessage message) {
+        ByteBuffer frame = message.getEncodedFrame();
+        ByteBuffer line = message.getEncodedLine();
+        int frameLength = frame.limit();
+        int lineLength = line.limit();
+        if (frameEnd + frameLength > CAPACITY || lineEnd + lineLength > CAPACITY) {
+            return false;
+        }
+        // Absolute copies, as the encoded bytes are shared with the message's recipients.
+        frameMap.put(frameEnd + 4, frame, 4, frameLength - 4);
+        lineMap.put(lineEnd, line, 0, lineLength);
+        frameMap.putInt(frameEnd, frameLength - 4);
+        dirty = true;
+        advance(message.getSequence(), frameLength, lineLength);
+        return true;
+    }
+
+    /**
+     * Moves the ends of both files past a message, indexing it if it is due.
+     *
+     * @param sequence    : The sequence number of the message.
+     * @param frameLength : The length of its frame, including the length prefix.
+     * @param lineLength  : The length of its line, including the terminator.
+     */
+    private void advance(long sequence, int frameLength, int lineLength) {
+        if (messageCount % INDEX_INTERVAL == 0) {
+            if (indexSize == indexSequences.length) {
+                indexSequences = Arrays.copyOf(indexSequences, indexSize * 2);
+                indexFrameOffsets = Arrays.copyOf(indexFrameOffsets, indexSize * 2);
+                indexLineOffsets = Arrays.copyOf(indexLineOffsets, indexSize * 2);
+            }
+            indexSequences[indexSize] = sequence;
+            indexFrameOffsets[indexSize] = frameEnd;
+            indexLineOffsets[indexSize] = lineEnd;
+            indexSize++;
+        }
+        frameEnd += frameLength;
+        lineEnd += lineLength;
+        lastSequence = sequence;
+        messageCount++;
+    }
+
+    /**
+     * Finds where a message starts in both files: the nearest indexed message before it is
+     * looked up, and the frames are scanned from there.
+     *
+     * @param sequence : The sequence number to look for.
+     * @return : The frame and line offsets of the first message numbered at least that,
+     * or the ends of the files if there is none.
+     */
+    public long[] find(long sequence) {
+        int low = 0;
+        int high = indexSize - 1;
+        int nearest = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (indexSequences[middle] <= sequence) {
+                nearest = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        int frameOffset = nearest == -1 ? 0 : indexFrameOffsets[nearest];
+        int lineOffset = nearest == -1 ? 0 : indexLineOffsets[nearest];
+        while (frameOffset < frameEnd && frameMap.getLong(frameOffset + SEQUENCE_OFFSET) < sequence) {
+            int length = frameMap.getInt(frameOffset);
+            frameOffset += 4 + length;
+            lineOffset += length - Frame.HEADER_LENGTH + 1;
+        }
+        return new long[]{frameOffset, lineOffset};
+    }
+
+    /**
+     * Sends part of one of the files to a channel without copying it through the heap.
+     *
+     * @param framed   : Whether to send from the frames file rather than the lines file.
+     * @param position : The offset in the file to start from.
+     * @param count    : The most bytes to send.
+     * @param target   : The channel to send to.
+     * @return : The number of bytes sent, which may be fewer than asked for on a non-blocking channel.
+     * @throws IOException : If the transfer failed.
+     */
+    public long transferTo(boolean framed, long position, long count, WritableByteChannel target) throws IOException {
+        return (framed ? frameChannel : lineChannel).transferTo(position, count, target);
+    }
+
+    /**
+     * Forces any changes to both files onto the disk.
+     */
+    public void force() {
+        if (dirty) {
+            frameMap.force();
+            lineMap.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Forces and closes both files.
+     *
+     * @throws IOException : If a file could not be closed.
+     */
+    public void close() throws IOException {
+        force();
+        frameChannel.close();
+        lineChannel.close();
+    }
+}
@@ -0,0 +1,80 @@
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A run of consecutive messages in a room's journal, which may span several segments.
+ * A slice is sent to a single client, from either the frames or the lines files,
+ * by transferring file ranges straight to the client's socket.
+ */
+public class JournalSlice {
+
+    private final List<JournalSegment> segments = new ArrayList<>();
+    private final List<long[]> ranges = new ArrayList<>();
+    private long frameSize = 0;
+    private long lineSize = 0;
+
+    /**
+     * Adds a range of a segment to the end of the slice.
+     *
+     * @param segment : The segment.
+     * @param start   : The frame and line offsets of the first message in the range.
+     * @param end     : The frame and line offsets just past the last message in the range.
+     */
+    public void add(JournalSegment segment, long[] start, long[] end) {
+        if (end[0] <= start[0]) {
+            return;
+        }
+        segments.add(segment);
+        ranges.add(new long[]{start[0], end[0], start[1], end[1]});
+        frameSize += end[0] - start[0];
+        lineSize += end[1] - start[1];
+    }
+
+    /**
+     * The number of bytes the slice will send.
+     *
+     * @param framed : Whether the slice is sent as frames rather than lines.
+     * @return : The size of the slice.
+     */
+    public long size(boolean framed) {
+        return framed ? frameSize : lineSize;
+    }
+
+    /**
+     * Sends as much of the slice as the channel will take, from an offset into the slice.
+     * On a blocking channel this sends the rest of the slice.
+     *
+     * @param target : The channel to send to.
+     * @param framed : Whether to send frames rather than lines.
+     * @param offset : How many bytes of the slice have already been sent.
+     * @return : The number of bytes sent by this call.
+     * @throws IOException : If the transfer failed.
+     */
+    public long transferTo(WritableByteChannel target, boolean framed, long offset) throws IOException {
+        long sent = 0;
+        long skipped = 0;
+        for (int i = 0; i < segments.size(); i++) {
+            long[] range = ranges.get(i);
+            long start = framed ? range[0] : range[2];
+            long length = (framed ? range[1] : range[3]) - start;
+            if (offset + sent >= skipped + length) {
+                skipped += length;
+                continue;
+            }
+            long position = offset + sent - skipped;
+            while (position < length) {
+                long written = segments.get(i).transferTo(framed, start + position, length - position, target);
+                if (written <= 0) {
+                    // The channel is full.
+                    return sent;
+                }
+                position += written;
+                sent += written;
+            }
+            skipped += length;
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,134 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of latencies in nanoseconds, which any number of threads can record into at
+ * once. Values are counted in buckets whose width grows with the value, so that every value
+ * up to Long.MAX_VALUE is kept to within about 3% with a fixed, small number of buckets.
+ * <p>
+ * Values below 2 * SUB_BUCKETS each have a bucket of their own. Above that, every power of
+ * two is split into SUB_BUCKETS buckets of equal width.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records a single value. Negative values are counted as 0.
+     *
+     * @param nanos : The latency in nanoseconds.
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public long getSum() {
+        return sum.get();
+    }
+
+    /**
+     * The mean of the values recorded.
+     *
+     * @return : The mean in nanoseconds, or 0 if nothing has been recorded.
+     */
+    public long getMean() {
+        long recorded = count.get();
+        return recorded == 0 ? 0 : sum.get() / recorded;
+    }
+
+    /**
+     * The value below which a given percentage of the values recorded fall, given as the
+     * highest value of the bucket holding it, and never more than the largest value recorded.
+     *
+     * @param percentile : The percentage, from 0 to 100.
+     * @return : The value in nanoseconds, or 0 if nothing has been recorded.
+     */
+    public long getValueAtPercentile(double percentile) {
+        long recorded = count.get();
+        if (recorded == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(recorded * Math.min(100, percentile) / 100));
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            seen += counts.get(bucket);
+            if (seen >= rank) {
+                return Math.min(max.get(), upperBoundOf(bucket));
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Adds every bucket holding at least one value to a report, one per line, as the lowest
+     * value of the bucket in nanoseconds and the number of values in it, in increasing order.
+     *
+     * @param report : The report to add to.
+     * @param prefix : Written at the start of every line.
+     */
+    public void appendBuckets(StringBuilder report, String prefix) {
+        for (int bucket = 0; bucket < BUCKETS; bucket++) {
+            long bucketCount = counts.get(bucket);
+            if (bucketCount > 0) {
+                report.append(prefix).append(lowerBoundOf(bucket)).append(' ').append(bucketCount).append('\n');
+            }
+        }
+    }
+
+    /**
+     * The bucket a value is counted in.
+     *
+     * @param value : A value of at least 0.
+     * @return : The index of the bucket.
+     */
+    private static int bucketOf(long value) {
+        if (value < 2 * SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * The lowest value counted in a bucket.
+     *
+     * @param bucket : The index of the bucket.
+     * @return : The lowest value.
+     */
+    private static long lowerBoundOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        return (long) (bucket % SUB_BUCKETS + SUB_BUCKETS) << shift;
+    }
+
+    /**
+     * The highest value counted in a bucket.
+     *
+     * @param bucket : The index of the bucket.
+     * @return : The highest value.
+     */
+    private static long upperBoundOf(int bucket) {
+        return bucket + 1 < BUCKETS ? lowerBoundOf(bucket + 1) - 1 : Long.MAX_VALUE;
+    }
+}
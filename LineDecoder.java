@@ -0,0 +1,117 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Incrementally decodes newline-terminated UTF-8 lines from bytes read off a
+ * non-blocking channel. Follows the same line terminators as BufferedReader.readLine():
+ * '\n', '\r' or "\r\n".
+ */
+public class LineDecoder {
+
+    public static final int MAX_LINE_LENGTH = 64 * 1024;
+
+    private final int maxLineLength;
+    private byte[] lineBuffer = new byte[256];
+    private int lineLength = 0;
+    private boolean skipLineFeed = false;
+
+    /**
+     * LineDecoder constructor, for lines of up to MAX_LINE_LENGTH bytes.
+     */
+    public LineDecoder() {
+        this(MAX_LINE_LENGTH);
+    }
+
+    /**
+     * LineDecoder constructor.
+     *
+     * @param maxLineLength : The most bytes a line may have, not counting its terminator.
+     */
+    public LineDecoder(int maxLineLength) {
+        this.maxLineLength = maxLineLength;
+    }
+
+    /**
+     * Consumes every readable byte in the buffer, adding each completed line to the output list.
+     * Incomplete lines are kept until the rest of the line arrives.
+     *
+     * @param bytes : Buffer in read mode holding newly received bytes.
+     * @param lines : List that completed lines are added to.
+     * @throws LineTooLongException : If a line exceeds the decoder's maximum length.
+     */
+    public void decode(ByteBuffer bytes, List<String> lines) throws LineTooLongException {
+        String line;
+        while ((line = decodeLine(bytes)) != null) {
+            lines.add(line);
+        }
+    }
+
+    /**
+     * Consumes bytes from the buffer up to the end of the next completed line, leaving any
+     * bytes after it in the buffer. Used when the bytes after a line may not be text.
+     *
+     * @param bytes : Buffer in read mode holding newly received bytes.
+     * @return : The completed line, or null if the buffer ran out first.
+     * @throws LineTooLongException : If a line exceeds the decoder's maximum length.
+     */
+    public String decodeLine(ByteBuffer bytes) throws LineTooLongException {
+        while (bytes.hasRemaining()) {
+            byte b = bytes.get();
+            if (skipLineFeed) {
+                skipLineFeed = false;
+                if (b == '\n') {
+                    continue;
+                }
+            }
+            if (b == '\n' || b == '\r') {
+                // A carriage return may be followed by a line feed belonging to the same terminator.
+                skipLineFeed = (b == '\r');
+                String line = new String(lineBuffer, 0, lineLength, StandardCharsets.UTF_8);
+                lineLength = 0;
+                return line;
+            }
+            append(b);
+        }
+        return null;
+    }
+
+    /**
+     * Whether the last line ended with a carriage return, so that a line feed next would
+     * belong to the same terminator.
+     *
+     * @return : True if a line feed would be skipped.
+     */
+    public boolean isSkippingLineFeed() {
+        return skipLineFeed;
+    }
+
+    /**
+     * Appends a byte to the current line, growing the line buffer if needed.
+     *
+     * @param b : The byte to append.
+     * @throws LineTooLongException : If the line would exceed the decoder's maximum length.
+     */
+    private void append(byte b) throws LineTooLongException {
+        if (lineLength == maxLineLength) {
+            throw new LineTooLongException(maxLineLength);
+        }
+        if (lineLength == lineBuffer.length) {
+            lineBuffer = Arrays.copyOf(lineBuffer, Math.min(lineBuffer.length * 2, maxLineLength));
+        }
+        lineBuffer[lineLength++] = b;
+    }
+
+    /**
+     * Thrown when a peer sends a line longer than the decoder is willing to buffer.
+     */
+    public static class LineTooLongException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public LineTooLongException(int maxLineLength) {
+            super("Line exceeds " + maxLineLength + " bytes");
+        }
+    }
+}
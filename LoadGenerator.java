@@ -0,0 +1,354 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A load generator that opens many headless clients against a ChatServer on the same
+ * machine, sends messages from them at a steady rate, and measures how long each message
+ * takes to reach every member of its room.
+ * <p>
+ * Every message carries the time it was due to be sent, so its latency is measured from
+ * when it should have gone rather than from when it went. A generator that falls behind
+ * then shows as higher latency instead of hiding it. The clients are spread across a
+ * number of rooms, and take turns to send.
+ * <p>
+ * Only messages due after the warm up count towards the results. The report is plain
+ * "key value" lines in a fixed order, so that reports from two runs can be compared
+ * with diff.
+ */
+public class LoadGenerator {
+
+    private static final String MARKER = "lg ";
+    private static final String ROOM_PREFIX = "load";
+
+    private final String hostName;
+    private final int portNumber;
+    private final int clientCount;
+    private final int roomCount;
+    private final int rate;
+    private final int messageSize;
+    private final int warmupSeconds;
+    private final int durationSeconds;
+    private final int drainSeconds;
+    private final boolean frames;
+    private final boolean virtualThreads;
+    private final List<LoadClient> clients = new ArrayList<>();
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final AtomicLong received = new AtomicLong();
+    private volatile long measureStart = Long.MAX_VALUE;
+    private volatile long measureEnd = Long.MAX_VALUE;
+    private long sent = 0;
+    private long expected = 0;
+
+    /**
+     * Load generator constructor.
+     *
+     * @param hostName        : The host of the server, which must be this machine.
+     * @param portNumber      : The port of the server.
+     * @param clientCount     : The number of clients to open.
+     * @param roomCount       : The number of rooms the clients are spread across.
+     * @param rate            : The number of messages sent per second, across every client.
+     * @param messageSize     : The length of each message in bytes.
+     * @param warmupSeconds   : How long to send before measuring.
+     * @param durationSeconds : How long to measure for.
+     * @param drainSeconds    : How long to wait for messages still on their way after sending stops.
+     * @param frames          : Whether the clients use the binary frame protocol.
+     * @param virtualThreads  : Whether the clients read on virtual threads.
+     */
+    public LoadGenerator(String hostName, int portNumber, int clientCount, int roomCount, int rate,
+                         int messageSize, int warmupSeconds, int durationSeconds, int drainSeconds,
+                         boolean frames, boolean virtualThreads) {
+        this.hostName = hostName;
+        this.portNumber = portNumber;
+        this.clientCount = clientCount;
+        this.roomCount = Math.max(1, roomCount);
+        this.rate = Math.max(1, rate);
+        this.messageSize = messageSize;
+        this.warmupSeconds = warmupSeconds;
+        this.durationSeconds = Math.max(1, durationSeconds);
+        this.drainSeconds = drainSeconds;
+        this.frames = frames;
+        this.virtualThreads = virtualThreads;
+    }
+
+    /**
+     * Opens every client, sends for the warm up and the measured duration, waits for the last
+     * messages to arrive, and closes the clients.
+     */
+    public void run() {
+        System.out.println("Opening " + clientCount + " clients in " + roomCount + " room(s)...");
+        ThreadFactory threadFactory = VirtualThreads.factory(virtualThreads);
+        int[] roomSizes = new int[roomCount];
+        for (int i = 0; i < clientCount; i++) {
+            LoadClient client = new LoadClient(hostName, portNumber, frames, ROOM_PREFIX + (i % roomCount), this);
+            if (!client.isConnected()) {
+                break;
+            }
+            clients.add(client);
+            roomSizes[i % roomCount]++;
+            threadFactory.newThread(client::getFromServer).start();
+        }
+        if (clients.isEmpty()) {
+            System.out.println("Could not open any clients.");
+            return;
+        }
+        sleepSeconds(1);
+        System.out.println("Sending " + rate + " messages per second from " + clients.size() + " clients...");
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / rate;
+        long start = System.nanoTime();
+        measureStart = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureEnd = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        for (long n = 0; ; n++) {
+            long due = start + n * intervalNanos;
+            if (due >= measureEnd) {
+                break;
+            }
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int index = (int) (n % clients.size());
+            if (clients.get(index).sendTimestamped(due) && due >= measureStart) {
+                sent++;
+                expected += roomSizes[index % roomCount];
+            }
+        }
+        System.out.println("Waiting for the last messages to arrive...");
+        sleepSeconds(drainSeconds);
+        for (LoadClient client : clients) {
+            client.closeClient();
+        }
+    }
+
+    /**
+     * Records a message read by one of the clients, if it was sent by the generator and was
+     * due while measuring.
+     *
+     * @param message    : The message as the client read it.
+     * @param readNanos  : When the client read it.
+     */
+    private void recordMessage(String message, long readNanos) {
+        int marker = message.indexOf(": " + MARKER);
+        if (marker < 0) {
+            return;
+        }
+        int from = marker + 2 + MARKER.length();
+        int to = message.indexOf(' ', from);
+        long due;
+        try {
+            due = Long.parseLong(to < 0 ? message.substring(from) : message.substring(from, to));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        if (due >= measureStart && due < measureEnd) {
+            received.incrementAndGet();
+            histogram.record(readNanos - due);
+        }
+    }
+
+    /**
+     * Builds the report of the run.
+     *
+     * @return : The report, as "key value" lines.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("clients ").append(clients.size()).append('\n');
+        report.append("rooms ").append(roomCount).append('\n');
+        report.append("rate_per_second ").append(rate).append('\n');
+        report.append("message_bytes ").append(messageSize).append('\n');
+        report.append("protocol ").append(frames ? "frames" : "lines").append('\n');
+        report.append("duration_seconds ").append(durationSeconds).append('\n');
+        report.append("sent ").append(sent).append('\n');
+        report.append("deliveries_expected ").append(expected).append('\n');
+        report.append("deliveries_received ").append(received.get()).append('\n');
+        report.append("deliveries_lost ").append(Math.max(0, expected - received.get())).append('\n');
+        report.append("sent_per_second ").append(sent / durationSeconds).append('\n');
+        report.append("delivered_per_second ").append(received.get() / durationSeconds).append('\n');
+        report.append("latency_mean_us ").append(toMicros(histogram.getMean())).append('\n');
+        report.append("latency_p50_us ").append(toMicros(histogram.getValueAtPercentile(50))).append('\n');
+        report.append("latency_p90_us ").append(toMicros(histogram.getValueAtPercentile(90))).append('\n');
+        report.append("latency_p99_us ").append(toMicros(histogram.getValueAtPercentile(99))).append('\n');
+        report.append("latency_p999_us ").append(toMicros(histogram.getValueAtPercentile(99.9))).append('\n');
+        report.append("latency_max_us ").append(toMicros(histogram.getMax())).append('\n');
+        histogram.appendBuckets(report, "latency_bucket_ns ");
+        return report.toString();
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static void sleepSeconds(int seconds) {
+        try {
+            Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A headless client that joins its room, sends the messages the generator gives it, and
+     * hands every message it reads back to the generator.
+     */
+    private static final class LoadClient extends ClientBase {
+
+        private final LoadGenerator generator;
+        private final String padding;
+
+        /**
+         * Load client constructor, which connects to the server and joins the client's room.
+         *
+         * @param host      : The name of the host to connect to.
+         * @param port      : The port number to connect to.
+         * @param useFrames : Whether to use the binary frame protocol.
+         * @param room      : The room to join.
+         * @param generator : The generator the client reports to.
+         */
+        private LoadClient(String host, int port, boolean useFrames, String room, LoadGenerator generator) {
+            super(host, port, useFrames);
+            this.generator = generator;
+            // The due time is up to 19 digits; the rest of the message is padding.
+            int paddingLength = Math.max(0, generator.messageSize - MARKER.length() - 20);
+            this.padding = " " + "x".repeat(paddingLength);
+            if (running) {
+                try {
+                    writeToServer("/join " + room);
+                    flushToServer();
+                } catch (IOException e) {
+                    closeClient();
+                }
+            }
+        }
+
+        private boolean isConnected() {
+            return running;
+        }
+
+        /**
+         * Sends a message carrying the time it was due to be sent.
+         *
+         * @param due : When the message was due, from System.nanoTime().
+         * @return : False if the message could not be sent.
+         */
+        private boolean sendTimestamped(long due) {
+            try {
+                writeToServer(MARKER + due + padding);
+                flushToServer();
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Reads from the server until the client is closed, handing every message to the generator.
+         */
+        public void getFromServer() {
+            try {
+                String message;
+                while (running && (message = readFromServer()) != null) {
+                    generator.recordMessage(message, System.nanoTime());
+                }
+            } catch (IOException e) {
+                // The client has been closed.
+            }
+        }
+    }
+
+    /**
+     * Main method of LoadGenerator. Parses the command line, runs the load, and prints the
+     * report, writing it to a file too if one is given.
+     *
+     * @param args : Command line arguments.
+     */
+    public static void main(String[] args) {
+        // Set default arguments.
+        int portNum = 14001;
+        String hostName = "localhost";
+        int clientCount = 100;
+        int roomCount = 1;
+        int rate = 100;
+        int messageSize = 64;
+        int warmupSeconds = 2;
+        int durationSeconds = 10;
+        int drainSeconds = 2;
+        boolean frames = false;
+        boolean virtualThreads = false;
+        String reportFile = null;
+        // Parse command line arguments.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-ccp")) {
+                    portNum = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-cca")) {
+                    hostName = args[i + 1];
+                }
+                if (args[i].equalsIgnoreCase("-clients")) {
+                    clientCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-rooms")) {
+                    roomCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-rate")) {
+                    rate = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-size")) {
+                    messageSize = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-warmup")) {
+                    warmupSeconds = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-duration")) {
+                    durationSeconds = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-drain")) {
+                    drainSeconds = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-frames")) {
+                    frames = true;
+                }
+                if (args[i].equalsIgnoreCase("-vthreads")) {
+                    virtualThreads = true;
+                }
+                if (args[i].equalsIgnoreCase("-report")) {
+                    reportFile = args[i + 1];
+                }
+            }
+            // Catch errors and allow defaults through.
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid arguments. Using defaults instead.");
+        } catch (IndexOutOfBoundsException ioe) {
+            System.out.println("Incorrect argument format. Using defaults instead.");
+        }
+        try {
+            if (!InetAddress.getByName(hostName).isLoopbackAddress()) {
+                System.out.println("The load generator only runs against a server on this machine.");
+                return;
+            }
+        } catch (IOException e) {
+            System.out.println("Unknown host " + hostName + ".");
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator(hostName, portNum, clientCount, roomCount, rate, messageSize,
+                warmupSeconds, durationSeconds, drainSeconds, frames, virtualThreads);
+        generator.run();
+        String report = generator.report();
+        System.out.print(report);
+        if (reportFile != null) {
+            try (Writer writer = new FileWriter(reportFile)) {
+                writer.write(report);
+            } catch (IOException e) {
+                System.out.println("Could not write the report to " + reportFile + ".");
+            }
+        }
+    }
+}
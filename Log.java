@@ -0,0 +1,212 @@
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server's log. Logging a message only hands it to a queue; a thread of its own writes
+ * the queued messages to the console in batches, so that a thread handling clients never
+ * waits for the console. If the queue is full, the message is dropped and counted instead.
+ * <p>
+ * Every message has a level, and messages below the server's level are never queued, or
+ * even built if the caller checks isEnabled() first.
+ */
+public final class Log {
+
+    /**
+     * How important a message is, from least to most.
+     */
+    public enum Level {
+        // Every connection and disconnection.
+        DEBUG("debug"),
+        // The server starting, stopping, and changing what it does.
+        INFO("info"),
+        // Clients and peers misbehaving or failing, which the server carries on from.
+        WARN("warn"),
+        // Failures that should not happen, with their stack traces.
+        ERROR("error"),
+        // Nothing is logged.
+        OFF("off");
+
+        private final String flagName;
+
+        Level(String flagName) {
+            this.flagName = flagName;
+        }
+
+        public String getFlagName() {
+            return flagName;
+        }
+
+        /**
+         * Finds the level with the given command line name.
+         *
+         * @param flagName : The name given on the command line.
+         * @return : The matching level.
+         * @throws IllegalArgumentException : If no level has that name.
+         */
+        public static Level fromFlagName(String flagName) {
+            for (Level level : values()) {
+                if (level.flagName.equalsIgnoreCase(flagName)) {
+                    return level;
+                }
+            }
+            throw new IllegalArgumentException("Unknown log level: " + flagName);
+        }
+    }
+
+    private static final int QUEUE_CAPACITY = 8192;
+    private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+
+    private static final BlockingQueue<Entry> entries = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong droppedCount = new AtomicLong();
+    private static final AtomicLong writtenCount = new AtomicLong();
+    private static final AtomicLong queuedCount = new AtomicLong();
+    private static volatile Level level = Level.INFO;
+
+    static {
+        Thread writerThread = new Thread(Log::writeEntries, "Log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    private Log() {
+    }
+
+    public static Level getLevel() {
+        return level;
+    }
+
+    public static void setLevel(Level level) {
+        Log.level = level;
+    }
+
+    /**
+     * Whether messages of a level are logged, so that a caller can skip building them.
+     *
+     * @param messageLevel : The level of the message.
+     * @return : True if the message would be logged.
+     */
+    public static boolean isEnabled(Level messageLevel) {
+        return messageLevel.compareTo(level) >= 0 && messageLevel != Level.OFF;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void error(String message, Throwable cause) {
+        log(Level.ERROR, message, cause);
+    }
+
+    /**
+     * The number of messages dropped because the queue was full.
+     *
+     * @return : The dropped message count.
+     */
+    public static long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Waits for every message queued so far to be written, for up to a second. Called as
+     * the server closes, as the log's thread does not keep the JVM alive.
+     */
+    public static void flush() {
+        long target = queuedCount.get();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(FLUSH_TIMEOUT_MILLIS);
+        while (writtenCount.get() < target && System.nanoTime() < deadline) {
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Queues a message to be written, if its level is enabled.
+     *
+     * @param messageLevel : The level of the message.
+     * @param message      : The message.
+     * @param cause        : The exception behind the message, or null.
+     */
+    private static void log(Level messageLevel, String message, Throwable cause) {
+        if (!isEnabled(messageLevel)) {
+            return;
+        }
+        if (entries.offer(new Entry(messageLevel, message, cause))) {
+            queuedCount.incrementAndGet();
+        } else {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    /**
+     * Runs the log's thread: takes every queued message and writes them to the console with a
+     * single write per batch, errors going to the error stream.
+     */
+    private static void writeEntries() {
+        List<Entry> batch = new ArrayList<>();
+        StringBuilder output = new StringBuilder();
+        StringBuilder errors = new StringBuilder();
+        while (true) {
+            try {
+                batch.add(entries.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            entries.drainTo(batch);
+            for (Entry entry : batch) {
+                StringBuilder target = entry.level == Level.ERROR ? errors : output;
+                target.append(entry.level.name()).append(' ').append(entry.message).append('\n');
+                if (entry.cause != null) {
+                    StringWriter trace = new StringWriter();
+                    entry.cause.printStackTrace(new PrintWriter(trace));
+                    target.append(trace);
+                }
+            }
+            if (output.length() > 0) {
+                System.out.print(output);
+                System.out.flush();
+                output.setLength(0);
+            }
+            if (errors.length() > 0) {
+                System.err.print(errors);
+                System.err.flush();
+                errors.setLength(0);
+            }
+            writtenCount.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * A message waiting to be written.
+     */
+    private static final class Entry {
+
+        private final Level level;
+        private final String message;
+        private final Throwable cause;
+
+        private Entry(Level level, String message, Throwable cause) {
+            this.level = level;
+            this.message = message;
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The message history of a server, kept on disk so that a client joining a room can be sent
+ * the messages it missed, even across restarts of the server. Each room has a RoomJournal in
+ * its own directory, and the IDs given to rooms are kept in ROOMS_FILE so that they do not
+ * change between runs.
+ * <p>
+ * The journal runs on a thread of its own. Sending a message only hands it to that thread,
+ * which appends messages in batches as they arrive, and forces them onto the disk every
+ * fsync interval rather than after every message. Replays are handed to the same thread, so
+ * a replay always follows the appends handed over before it.
+ */
+public class MessageJournal implements Runnable {
+
+    public static final String ROOMS_FILE = "rooms.txt";
+    public static final int DEFAULT_HISTORY = 50;
+    public static final long DEFAULT_FSYNC_MILLIS = 1000;
+
+    private final Path directory;
+    private final int historyCount;
+    private final long fsyncIntervalNanos;
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final List<RoomJournal> roomJournals = new CopyOnWriteArrayList<>();
+    private final Map<String, Integer> roomIds = new ConcurrentHashMap<>();
+    private final ReentrantLock roomIdLock = new ReentrantLock();
+    private final Thread journalThread;
+    // Replays waiting for messages that have been numbered but not appended yet, kept by the journal's thread.
+    private final List<Replay> waitingReplays = new ArrayList<>();
+    private int nextRoomId = 0;
+    private volatile boolean running = true;
+
+    /**
+     * Journal constructor, loads the IDs of rooms from earlier runs and starts the journal's thread.
+     *
+     * @param directory           : The directory to keep the journal in.
+     * @param historyCount        : How many messages a client is sent when it joins a room.
+     * @param fsyncIntervalMillis : How often changes are forced onto the disk, in milliseconds.
+     * @throws IOException : If the directory could not be created or read.
+     */
+    public MessageJournal(Path directory, int historyCount, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.historyCount = Math.max(0, historyCount);
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, fsyncIntervalMillis));
+        Files.createDirectories(directory);
+        loadRoomIds();
+        journalThread = new Thread(this, "MessageJournal");
+        journalThread.setDaemon(true);
+        journalThread.start();
+    }
+
+    /**
+     * Opens the journal configured for a server.
+     *
+     * @param config : The settings of the server.
+     * @return : The journal, or null if the server keeps no journal or it could not be opened.
+     */
+    public static MessageJournal open(ServerConfig config) {
+        if (config.journalDirectory == null) {
+            return null;
+        }
+        try {
+            Log.info("Opening message journal in " + config.journalDirectory + "...");
+            return new MessageJournal(Paths.get(config.journalDirectory), config.historyCount,
+                    config.fsyncIntervalMillis);
+        } catch (IOException e) {
+            Log.warn("Could not open message journal. Running without history.");
+            return null;
+        }
+    }
+
+    /**
+     * Reads the room IDs kept by earlier runs, one "id name" pair per line.
+     *
+     * @throws IOException : If the file could not be read.
+     */
+    private void loadRoomIds() throws IOException {
+        Path roomsFile = directory.resolve(ROOMS_FILE);
+        if (!Files.exists(roomsFile)) {
+            return;
+        }
+        for (String line : Files.readAllLines(roomsFile, StandardCharsets.UTF_8)) {
+            String[] parts = line.trim().split(" ");
+            if (parts.length != 2) {
+                continue;
+            }
+            try {
+                int id = Integer.parseInt(parts[0]);
+                roomIds.put(parts[1], id);
+                nextRoomId = Math.max(nextRoomId, id + 1);
+            } catch (NumberFormatException e) {
+                Log.warn("Ignoring unexpected line in " + roomsFile);
+            }
+        }
+    }
+
+    /**
+     * Returns the ID of a room, giving it the next free ID and recording it if the room
+     * has never existed before.
+     *
+     * @param roomName : The name of the room.
+     * @return : The room's ID.
+     */
+    public int roomId(String roomName) {
+        Integer id = roomIds.get(roomName);
+        if (id != null) {
+            return id;
+        }
+        roomIdLock.lock();
+        try {
+            id = roomIds.get(roomName);
+            if (id == null) {
+                id = nextRoomId++;
+                try {
+                    Files.write(directory.resolve(ROOMS_FILE),
+                            (id + " " + roomName + "\n").getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+                } catch (IOException e) {
+                    Log.warn("Failed to record the ID of room " + roomName);
+                }
+                roomIds.put(roomName, id);
+            }
+            return id;
+        } finally {
+            roomIdLock.unlock();
+        }
+    }
+
+    /**
+     * Opens the journal of a newly created room and carries the room's numbering on from it.
+     * A room whose journal cannot be opened goes without history.
+     *
+     * @param room : The room.
+     */
+    public void attach(Room room) {
+        try {
+            RoomJournal roomJournal = RoomJournal.open(this, directory.resolve(room.getName()));
+            roomJournals.add(roomJournal);
+            room.setJournal(roomJournal);
+        } catch (IOException e) {
+            Log.warn("Could not open the journal of room " + room.getName() + ".");
+        }
+    }
+
+    /**
+     * Hands a task to the journal's thread. Tasks handed over after the journal has closed are dropped.
+     *
+     * @param task : The task to run.
+     */
+    public void submit(Runnable task) {
+        if (running) {
+            tasks.offer(task);
+        }
+    }
+
+    /**
+     * Asks the journal's thread for the history of a room, once every message up to the last
+     * one wanted has been appended. Messages are numbered before they are handed to the journal,
+     * so a replay that arrives first waits for them. Without a starting point, the last messages
+     * are replayed, up to the history count.
+     *
+     * @param roomJournal   : The journal of the room.
+     * @param sinceSequence : Replay the messages after this sequence number, or -1 for the last messages.
+     * @param lastSequence  : The sequence number of the last message to replay.
+     * @param result        : Completed with the messages, or with null if they could not be found.
+     */
+    public void replay(RoomJournal roomJournal, long sinceSequence, long lastSequence,
+                       CompletableFuture<JournalSlice> result) {
+        long fromSequence = sinceSequence >= 0 ? sinceSequence + 1 : lastSequence - historyCount + 1;
+        if (!running || fromSequence > lastSequence) {
+            result.complete(null);
+            return;
+        }
+        submit(new Replay(roomJournal, Math.max(1, fromSequence), lastSequence, result));
+    }
+
+    /**
+     * Runs the journal's thread: takes every task handed over so far and runs them in turn,
+     * forcing changes onto the disk whenever the fsync interval has passed.
+     */
+    public void run() {
+        long nextForce = System.nanoTime() + fsyncIntervalNanos;
+        while (running) {
+            try {
+                Runnable task = tasks.poll(Math.max(0, nextForce - System.nanoTime()), TimeUnit.NANOSECONDS);
+                while (task != null) {
+                    task.run();
+                    task = tasks.poll();
+                }
+                retryWaitingReplays();
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                Log.error("The message journal failed to run a task.", e);
+            }
+            if (System.nanoTime() - nextForce >= 0) {
+                forceAll();
+                nextForce = System.nanoTime() + fsyncIntervalNanos;
+            }
+        }
+    }
+
+    /**
+     * Forces the changes to every room's journal onto the disk.
+     */
+    private void forceAll() {
+        for (RoomJournal roomJournal : roomJournals) {
+            roomJournal.force();
+        }
+    }
+
+    /**
+     * Closes the journal: stops taking tasks, lets the journal's thread finish the ones it has,
+     * and forces and closes every room's journal.
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        // Wake the journal's thread, which then sees that the journal has closed.
+        tasks.offer(() -> {
+        });
+        try {
+            journalThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Run whatever was handed over before the journal closed, then close the rooms.
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        retryWaitingReplays();
+        for (Replay replay : waitingReplays) {
+            replay.result.complete(null);
+        }
+        waitingReplays.clear();
+        for (RoomJournal roomJournal : roomJournals) {
+            roomJournal.close();
+        }
+    }
+
+    /**
+     * Runs the replays that were waiting for messages to be appended again, now that more may
+     * have been. Those still waiting are kept for the next time.
+     */
+    private void retryWaitingReplays() {
+        if (waitingReplays.isEmpty()) {
+            return;
+        }
+        List<Replay> retries = new ArrayList<>(waitingReplays);
+        waitingReplays.clear();
+        for (Replay replay : retries) {
+            replay.run();
+        }
+    }
+
+    /**
+     * A replay handed to the journal's thread, which completes once the room's journal holds
+     * every message up to the last one wanted.
+     */
+    private final class Replay implements Runnable {
+
+        private final RoomJournal roomJournal;
+        private final long fromSequence;
+        private final long lastSequence;
+        private final CompletableFuture<JournalSlice> result;
+
+        private Replay(RoomJournal roomJournal, long fromSequence, long lastSequence,
+                       CompletableFuture<JournalSlice> result) {
+            this.roomJournal = roomJournal;
+            this.fromSequence = fromSequence;
+            this.lastSequence = lastSequence;
+            this.result = result;
+        }
+
+        public void run() {
+            if (roomJournal.getLastSequence() < lastSequence) {
+                waitingReplays.add(this);
+                return;
+            }
+            result.complete(roomJournal.slice(fromSequence, lastSequence));
+        }
+    }
+}
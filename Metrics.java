@@ -0,0 +1,210 @@
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * A registry of named metrics: counters that only go up, histograms of latencies, and gauges
+ * that are read when the metrics are. Counters and histograms can be updated from any thread
+ * without blocking one another.
+ * <p>
+ * The metrics can be described for operators, one line each, or written in the Prometheus
+ * text format, in the order they were registered.
+ */
+public class Metrics {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final List<Metric> metrics = new CopyOnWriteArrayList<>();
+
+    /**
+     * Registers a counter.
+     *
+     * @param name : The name of the counter, ending in _total.
+     * @param help : What the counter counts.
+     * @return : The counter.
+     */
+    public Counter counter(String name, String help) {
+        Counter counter = new Counter();
+        metrics.add(new Metric(name, help, "counter") {
+            void describe(StringBuilder out) {
+                out.append(name).append(' ').append(counter.get()).append('\n');
+            }
+
+            void expose(StringBuilder out) {
+                out.append(name).append(' ').append(counter.get()).append('\n');
+            }
+        });
+        return counter;
+    }
+
+    /**
+     * Registers a histogram of latencies, recorded in nanoseconds. It is described in
+     * microseconds, and exposed as a summary in seconds.
+     *
+     * @param name : The name of the histogram, ending in _seconds.
+     * @param help : What the histogram measures.
+     * @return : The histogram.
+     */
+    public LatencyHistogram histogram(String name, String help) {
+        LatencyHistogram histogram = new LatencyHistogram();
+        metrics.add(new Metric(name, help, "summary") {
+            void describe(StringBuilder out) {
+                out.append(name).append(" count=").append(histogram.getCount());
+                for (double quantile : QUANTILES) {
+                    out.append(" p").append(percentileName(quantile)).append('=')
+                            .append(toMicros(histogram.getValueAtPercentile(quantile * 100))).append("us");
+                }
+                out.append(" max=").append(toMicros(histogram.getMax())).append("us\n");
+            }
+
+            void expose(StringBuilder out) {
+                for (double quantile : QUANTILES) {
+                    out.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                            .append(toSeconds(histogram.getValueAtPercentile(quantile * 100))).append('\n');
+                }
+                out.append(name).append("_sum ").append(toSeconds(histogram.getSum())).append('\n');
+                out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+            }
+        });
+        return histogram;
+    }
+
+    /**
+     * Registers a gauge, whose value is read whenever the metrics are.
+     *
+     * @param name  : The name of the gauge.
+     * @param help  : What the gauge shows.
+     * @param value : Reads the current value.
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        metrics.add(new Metric(name, help, "gauge") {
+            void describe(StringBuilder out) {
+                out.append(name).append(' ').append(value.getAsLong()).append('\n');
+            }
+
+            void expose(StringBuilder out) {
+                out.append(name).append(' ').append(value.getAsLong()).append('\n');
+            }
+        });
+    }
+
+    /**
+     * Registers a family of gauges told apart by one label, such as one gauge per client.
+     *
+     * @param name   : The name of the gauges.
+     * @param help   : What the gauges show.
+     * @param label  : The name of the label.
+     * @param values : Reads the current value of every gauge, by label value.
+     */
+    public void gaugeFamily(String name, String help, String label, Supplier<Map<String, Long>> values) {
+        metrics.add(new Metric(name, help, "gauge") {
+            void describe(StringBuilder out) {
+                for (Map.Entry<String, Long> entry : values.get().entrySet()) {
+                    out.append(name).append(' ').append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+                }
+            }
+
+            void expose(StringBuilder out) {
+                for (Map.Entry<String, Long> entry : values.get().entrySet()) {
+                    out.append(name).append('{').append(label).append("=\"").append(escape(entry.getKey()))
+                            .append("\"} ").append(entry.getValue()).append('\n');
+                }
+            }
+        });
+    }
+
+    /**
+     * Describes every metric for operators, one line each, or one line per gauge of a family.
+     *
+     * @return : The description.
+     */
+    public String describe() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : metrics) {
+            metric.describe(out);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     *
+     * @return : The metrics, with a HELP and TYPE line before each.
+     */
+    public String expose() {
+        StringBuilder out = new StringBuilder();
+        for (Metric metric : metrics) {
+            out.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            out.append("# TYPE ").append(metric.name).append(' ').append(metric.type).append('\n');
+            metric.expose(out);
+        }
+        return out.toString();
+    }
+
+    private static String percentileName(double quantile) {
+        String digits = Double.toString(quantile).substring(2);
+        return digits.length() == 1 ? digits + "0" : digits;
+    }
+
+    private static long toMicros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    /**
+     * Escapes a label value for the Prometheus text format.
+     *
+     * @param value : The label value.
+     * @return : The value with backslashes, quotes and line feeds escaped.
+     */
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    /**
+     * A counter that only goes up, which any number of threads can add to at once.
+     */
+    public static final class Counter {
+
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long amount) {
+            count.add(amount);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * A registered metric, which knows how to describe and expose itself.
+     */
+    private abstract static class Metric {
+
+        final String name;
+        final String help;
+        final String type;
+
+        Metric(String name, String help, String type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        abstract void describe(StringBuilder out);
+
+        abstract void expose(StringBuilder out);
+    }
+}
@@ -0,0 +1,86 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A local HTTP endpoint serving a server's metrics in the Prometheus text format at /metrics.
+ * It only listens on the loopback address, so that the metrics can be scraped by an agent on
+ * the same machine without being exposed to clients.
+ */
+public class MetricsEndpoint {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer httpServer;
+    private final ServerMetrics metrics;
+
+    /**
+     * Endpoint constructor, which opens the endpoint's port.
+     *
+     * @param port    : The port to listen on.
+     * @param metrics : The metrics to serve.
+     * @throws IOException : If the port could not be opened.
+     */
+    private MetricsEndpoint(int port, ServerMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", this::serve);
+    }
+
+    /**
+     * Opens the metrics endpoint configured for a server, serving on a thread of its own.
+     *
+     * @param config  : The settings of the server.
+     * @param metrics : The server's metrics.
+     * @return : The endpoint, or null if none is configured or it could not be opened.
+     */
+    public static MetricsEndpoint open(ServerConfig config, ServerMetrics metrics) {
+        if (config.metricsPort <= 0) {
+            return null;
+        }
+        try {
+            MetricsEndpoint endpoint = new MetricsEndpoint(config.metricsPort, metrics);
+            endpoint.httpServer.start();
+            Log.info("Serving metrics on http://localhost:" + config.metricsPort + "/metrics");
+            return endpoint;
+        } catch (IOException e) {
+            Log.warn("Could not open the metrics endpoint on port " + config.metricsPort + ".");
+            return null;
+        }
+    }
+
+    /**
+     * Answers a request for the metrics. Anything other than a GET is refused.
+     *
+     * @param exchange : The request and its response.
+     * @throws IOException : If the response could not be sent.
+     */
+    private void serve(HttpExchange exchange) throws IOException {
+        try {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = metrics.expose().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody()) {
+                responseBody.write(body);
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Stops serving the metrics and closes the endpoint's port.
+     */
+    public void close() {
+        httpServer.stop(0);
+    }
+}
@@ -0,0 +1,179 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Measures what idle clients cost the server in each execution mode, as given in the table of
+ * EXECUTION MODES. For each mode it starts the server in a process of its own, on the same JVM
+ * and classpath as this one, notes the process's threads and resident memory, opens the
+ * connections and waits for each to be welcomed, lets the server settle, and notes them again.
+ * <p>
+ * The threads and memory are read from /proc, so this only runs on Linux. Each mode prints a
+ * line with its threads once every client is connected and the memory per client, which is
+ * the growth in resident memory divided by the number of clients, so it includes the server's
+ * own buffers for each client as well as the cost of its thread.
+ */
+public class ModeFootprint {
+
+    private static final String WELCOME = "Your username is: ";
+    private static final long SETTLE_MILLIS = 2000;
+    private static final String[][] MODES = {
+            {"threaded (default)"},
+            {"threaded, -vthreads", "-vthreads"},
+            {"-nio -shards 1", "-nio", "-shards", "1"},
+    };
+
+    private final int clientCount;
+    private final int portNumber;
+
+    /**
+     * Mode footprint constructor.
+     *
+     * @param clientCount : The number of idle clients to connect in each mode.
+     * @param portNumber  : The port each server is started on, one after the other.
+     */
+    public ModeFootprint(int clientCount, int portNumber) {
+        this.clientCount = clientCount;
+        this.portNumber = portNumber;
+    }
+
+    /**
+     * Measures every mode in turn, printing a line for each.
+     *
+     * @throws IOException          : If a server could not be started or connected to.
+     * @throws InterruptedException : If the measurement was interrupted while waiting.
+     */
+    public void run() throws IOException, InterruptedException {
+        System.out.println("Java " + Runtime.version().feature() + ", " + clientCount + " idle clients"
+                + (VirtualThreads.isSupported() ? "" : "; no virtual threads, so -vthreads uses platform threads"));
+        System.out.println("Mode\t\t\tThreads for " + clientCount + " clients\tMemory per client");
+        for (String[] mode : MODES) {
+            measure(mode);
+        }
+    }
+
+    /**
+     * Starts a server in one mode, connects the clients and measures it.
+     *
+     * @param mode : The name of the mode, followed by the server's arguments for it.
+     */
+    private void measure(String[] mode) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(ProcessHandle.current().info().command().orElse("java"),
+                "-cp", System.getProperty("java.class.path"), "ChatServer",
+                "-csp", Integer.toString(portNumber), "-log", "warn", "-presence", "0"));
+        command.addAll(List.of(mode).subList(1, mode.length));
+        Process server = new ProcessBuilder(command).redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD).start();
+        List<Socket> clients = new ArrayList<>(clientCount);
+        try {
+            awaitServer(server);
+            Thread.sleep(SETTLE_MILLIS);
+            long rssBefore = status(server, "VmRSS:");
+            for (int i = 0; i < clientCount; i++) {
+                Socket socket = new Socket("localhost", portNumber);
+                clients.add(socket);
+                String welcome = new BufferedReader(new InputStreamReader(socket.getInputStream(),
+                        StandardCharsets.UTF_8)).readLine();
+                if (welcome == null || !welcome.startsWith(WELCOME)) {
+                    throw new IOException("Client " + i + " was not welcomed");
+                }
+            }
+            Thread.sleep(SETTLE_MILLIS);
+            long threads = status(server, "Threads:");
+            long rssAfter = status(server, "VmRSS:");
+            System.out.println(mode[0] + (mode[0].length() < 16 ? "\t\t" : "\t") + threads + "\t\t\t\t~"
+                    + (rssAfter - rssBefore) / clientCount + " KB");
+        } finally {
+            for (Socket socket : clients) {
+                socket.close();
+            }
+            try (OutputStream input = server.getOutputStream()) {
+                input.write("EXIT\n".getBytes(StandardCharsets.UTF_8));
+            } catch (IOException e) {
+                // The server has already gone.
+            }
+            server.waitFor();
+        }
+    }
+
+    /**
+     * Waits until the server takes connections.
+     *
+     * @param server : The server's process.
+     * @throws IOException : If the server exited, or did not take a connection within 10 seconds.
+     */
+    private void awaitServer(Process server) throws IOException, InterruptedException {
+        for (int attempt = 0; attempt < 100; attempt++) {
+            if (!server.isAlive()) {
+                throw new IOException("The server exited with status " + server.exitValue());
+            }
+            try {
+                new Socket("localhost", portNumber).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(100);
+            }
+        }
+        throw new IOException("The server did not start");
+    }
+
+    /**
+     * Reads a figure from /proc/pid/status, such as the resident memory in KB or the number
+     * of threads.
+     *
+     * @param server : The server's process.
+     * @param field  : The name of the field, with its colon.
+     * @return : The figure.
+     * @throws IOException : If the status could not be read, as off Linux.
+     */
+    private static long status(Process server, String field) throws IOException {
+        for (String line : Files.readAllLines(Path.of("/proc", Long.toString(server.pid()), "status"))) {
+            if (line.startsWith(field)) {
+                return Long.parseLong(line.substring(field.length()).trim().split("\\s+")[0]);
+            }
+        }
+        throw new IOException("No " + field + " in the status of process " + server.pid());
+    }
+
+    /**
+     * Main method of ModeFootprint. Parses the command line and measures every mode.
+     *
+     * @param args : Command line arguments.
+     */
+    public static void main(String[] args) {
+        // Set default arguments.
+        int clientCount = 3000;
+        int portNumber = 14401;
+        // Parse command line arguments.
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equalsIgnoreCase("-clients")) {
+                    clientCount = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-csp")) {
+                    portNumber = Integer.parseInt(args[i + 1]);
+                }
+            }
+            // Catch errors and allow defaults through.
+        } catch (NumberFormatException nfe) {
+            System.out.println("Invalid arguments. Using defaults instead.");
+        } catch (IndexOutOfBoundsException ioe) {
+            System.out.println("Incorrect argument format. Using defaults instead.");
+        }
+        try {
+            new ModeFootprint(Math.max(1, clientCount), portNumber).run();
+        } catch (IOException e) {
+            System.out.println("Could not measure: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+}
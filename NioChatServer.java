@@ -0,0 +1,322 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A chat server that handles its clients from a fixed number of selector loops using
+ * non-blocking channels, instead of dedicating a thread to each client.
+ * Implements the Server interface, and speaks the same line protocol as ChatServer.
+ * <p>
+ * Each loop is an EventLoopShard that owns the clients assigned to it. Accepted
+ * connections are spread across the shards in turn, and a broadcast reaches the other
+ * shards through their task queues rather than through a shared client list.
+ */
+public class NioChatServer implements Server {
+
+    private ServerSocketChannel chatServerChannel;
+    private EventLoopShard[] shards;
+    private int nextShard = 0;
+    private final ClientRegistry<NioConnection> clientRegistry = new ClientRegistry<>();
+    private RoomIndex roomIndex;
+    private CommandHandler commandHandler;
+    private final BroadcastPipeline broadcastPipeline;
+    private final ServerMetrics metrics = new ServerMetrics(clientRegistry);
+    private MetricsEndpoint metricsEndpoint;
+    private final RateLimits rateLimits;
+    private final Heartbeats heartbeats;
+    private ClusterNode clusterNode;
+    private final ServerConfig config;
+    private final FlushScheduler flushScheduler;
+    private final MessageJournal messageJournal;
+    private final SearchIndex searchIndex;
+    private Presence presence;
+    private final SessionManager sessionManager;
+    private volatile Boolean running;
+
+    /**
+     * Server constructor, opens the non-blocking server channel that the server resides on,
+     * on the configured port number, and the configured number of event loop shards.
+     *
+     * @param config : The settings to run the server with.
+     */
+    public NioChatServer(ServerConfig config) {
+        running = true;
+        this.config = config;
+        Log.setLevel(config.logLevel);
+        this.rateLimits = new RateLimits(config, metrics);
+        this.heartbeats = new Heartbeats(config, metrics);
+        this.flushScheduler = new FlushScheduler(config.batchSize, config.flushDelayMicros);
+        this.messageJournal = MessageJournal.open(config);
+        this.sessionManager = SessionManager.open(config);
+        this.searchIndex = SearchIndex.open(config, metrics);
+        this.broadcastPipeline = new BroadcastPipeline(config.ringCapacity, this, metrics);
+        broadcastPipeline.setSearchIndex(searchIndex);
+        metrics.watch(broadcastPipeline);
+        try {
+            Log.info("Opening server channel on port " + config.portNumber + " with "
+                    + config.shardCount + " shard(s)...");
+            shards = new EventLoopShard[Math.max(1, config.shardCount)];
+            // Each shard delivers to its own partition of every room.
+            roomIndex = new RoomIndex(shards.length, messageJournal);
+            presence = new Presence(this, config.presenceIntervalMillis, metrics);
+            roomIndex.setPresence(presence);
+            commandHandler = new CommandHandler(roomIndex, clientRegistry, sessionManager, searchIndex);
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new EventLoopShard(i, this);
+            }
+            chatServerChannel = ServerSocketChannel.open();
+            chatServerChannel.configureBlocking(false);
+            chatServerChannel.bind(new InetSocketAddress(config.portNumber));
+            // The first shard also listens for new connections.
+            chatServerChannel.register(shards[0].getSelector(), SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            Log.warn("Could not open server channel.");
+            closeServer();
+            return;
+        }
+        clusterNode = ClusterNode.open(config, broadcastPipeline, roomIndex);
+        metricsEndpoint = MetricsEndpoint.open(config, metrics);
+    }
+
+    /**
+     * Closes the server by lowering the running flag, closing the server channel, stopping
+     * presence updates, shutting down every shard, which close their own clients as they
+     * exit, closing the broadcast pipeline, and closing the cluster node, message journal,
+     * search index and metrics endpoint if there are any. Waits for the log to be written last.
+     */
+    public void closeServer() {
+        running = false;
+        Log.info("Attempting to close server...");
+        // Clients leaving as the server closes are not announced.
+        if (presence != null) {
+            presence.close();
+        }
+        try {
+            if (chatServerChannel != null) {
+                chatServerChannel.close();
+            }
+        } catch (IOException e) {
+            Log.error("Failed to close the server channel.", e);
+        }
+        if (shards != null) {
+            for (EventLoopShard shard : shards) {
+                if (shard != null) {
+                    shard.shutdown();
+                }
+            }
+        }
+        broadcastPipeline.close();
+        if (clusterNode != null) {
+            clusterNode.close();
+        }
+        if (messageJournal != null) {
+            messageJournal.close();
+        }
+        if (searchIndex != null) {
+            searchIndex.close();
+        }
+        if (metricsEndpoint != null) {
+            metricsEndpoint.close();
+        }
+        Log.flush();
+    }
+
+    /**
+     * Sends a message from one client to every client in its current room, by publishing it
+     * to the server's BroadcastPipeline. The pipeline numbers and encodes the message once,
+     * hands it to the journal and the cluster if there are any, and hands the same bytes to
+     * every shard.
+     *
+     * @param sender  : The connection the message came from.
+     * @param message : The message to send to the room.
+     */
+    public void broadcast(NioConnection sender, String message) {
+        Room room = sender.getRoomMembership().getCurrentRoom();
+        if (room == null) {
+            sender.send("You are not in any rooms; /join one to talk.");
+            return;
+        }
+        broadcastPipeline.publish(sender, room, message, true);
+    }
+
+    /**
+     * Sends a message posted to a room to every client of this server in the room, by handing
+     * it to every shard through its task queue. Called from the BroadcastPipeline's fan out stage.
+     *
+     * @param message : The message, posted to a room.
+     */
+    public void deliverToRoom(ChatMessage message) {
+        for (EventLoopShard shard : shards) {
+            // Each shard holds the message until it has queued it for its own connections.
+            message.retain();
+            shard.execute(() -> {
+                shard.fanOut(message);
+                message.release();
+            });
+        }
+    }
+
+    public RoomIndex getRoomIndex() {
+        return roomIndex;
+    }
+
+    public FlushScheduler getFlushScheduler() {
+        return flushScheduler;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public RateLimits getRateLimits() {
+        return rateLimits;
+    }
+
+    public Heartbeats getHeartbeats() {
+        return heartbeats;
+    }
+
+    public CommandHandler getCommandHandler() {
+        return commandHandler;
+    }
+
+    /**
+     * Returns the registry of every connected client across all shards, used to look
+     * clients up. Fan-out does not use it, as each shard goes through its own clients.
+     *
+     * @return : The client registry.
+     */
+    public ClientRegistry<NioConnection> getClientRegistry() {
+        return clientRegistry;
+    }
+
+    /**
+     * Counts a client that was disconnected for not keeping up with its messages.
+     */
+    public void countEviction() {
+        metrics.evictions.increment();
+    }
+
+    /**
+     * Prints the outbound queue depth and counters of every client, so that an admin
+     * can see which clients are lagging. Each shard describes its own clients from its
+     * event loop, and this waits briefly for them to finish.
+     */
+    public void printClients() {
+        List<String> descriptions = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch described = new CountDownLatch(shards.length);
+        for (EventLoopShard shard : shards) {
+            shard.execute(() -> {
+                shard.describeConnections(descriptions);
+                described.countDown();
+            });
+        }
+        try {
+            described.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (descriptions) {
+            for (String description : descriptions) {
+                System.out.println(description);
+            }
+            System.out.println("Clients: " + descriptions.size() + ", evicted: " + metrics.evictions.get()
+                    + ", policy: " + config.slowConsumerPolicy.getFlagName());
+            System.out.println(broadcastPipeline.describe());
+        }
+    }
+
+    /**
+     * Accepts every pending connection on the server channel, giving each one a unique username
+     * and handing it to the next shard in turn. Called from the event loop of the first shard.
+     */
+    public void accept() {
+        while (true) {
+            SocketChannel clientChannel = null;
+            try {
+                clientChannel = chatServerChannel.accept();
+                if (clientChannel == null) {
+                    return;
+                }
+                if (Log.isEnabled(Log.Level.DEBUG)) {
+                    Log.debug("Server accepted connection on: " + clientChannel.socket().getInetAddress());
+                }
+                metrics.connections.increment();
+                clientChannel.configureBlocking(false);
+                // Ensure each new user has a unique username.
+                shards[nextShard].register(clientChannel, sessionManager.nextUid(),
+                        new OutboundQueue(config.queueCapacity, config.slowConsumerPolicy, metrics));
+                nextShard = (nextShard + 1) % shards.length;
+            } catch (IOException e) {
+                if (running) {
+                    Log.warn("Failed to accept connection.");
+                }
+                if (clientChannel != null) {
+                    try {
+                        clientChannel.close();
+                    } catch (IOException ce) {
+                        Log.error("Failed to close a connection that could not be accepted.", ce);
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Starts a thread for every shard, which between them accept connections from
+     * connecting clients and service every connected client.
+     */
+    public void acceptConnectionsFromClients() {
+        Log.info("Starting " + shards.length + " event loop(s)...");
+        for (EventLoopShard shard : shards) {
+            Thread shardThread = new Thread(shard, "EventLoopShard-" + shard.getShardId());
+            shardThread.start();
+        }
+    }
+
+    /**
+     * Starts a thread that continuously listens for admin input on the terminal,
+     * handling the exit prompt for the server, the CLIENTS prompt, which lists
+     * the outbound queues of the clients, the PEERS prompt, which lists the
+     * links to the other nodes of the cluster, and the STATS prompt, which prints
+     * the server's metrics.
+     */
+    public void terminalListen() {
+        Thread terminalListener = new Thread() {
+            public void run() {
+                BufferedReader terminalInput = new BufferedReader(new InputStreamReader(System.in));
+                while (running) {
+                    try {
+                        String command = terminalInput.readLine();
+                        if (command == null) {
+                            return;
+                        }
+                        if (command.equals("EXIT")) {
+                            closeServer();
+                        } else if (command.equals("CLIENTS")) {
+                            printClients();
+                        } else if (command.equals("PEERS") && clusterNode != null) {
+                            clusterNode.printPeers();
+                        } else if (command.equals("STATS")) {
+                            System.out.print(metrics.describe());
+                        }
+                    } catch (IOException e) {
+                        Log.error("Failed to read from the terminal.", e);
+                    }
+                }
+            }
+        };
+        Log.info("Starting terminal listener...");
+        terminalListener.start();
+    }
+}
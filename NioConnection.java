@@ -0,0 +1,488 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The state of a single client connected to an instance of NioChatServer.
+ * Unlike ClientThread this does not own a thread: it is driven by the event loop
+ * of the shard it belongs to, and every method is expected to be called from that loop.
+ * <p>
+ * Every line the client sends is checked against the server's RateLimits before it is
+ * handled. A throttled connection stops reading until its shard's timer says the limits
+ * allow its next line.
+ */
+public class NioConnection implements ChatMember {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final int WRITE_BUFFER_SIZE = 16 * 1024;
+
+    private final SocketChannel clientChannel;
+    private final SelectionKey selectionKey;
+    private volatile String username;
+    private final int uid;
+    private final EventLoopShard shard;
+    private final ProtocolDecoder protocolDecoder = new ProtocolDecoder();
+    private final OutboundQueue outboundQueue;
+    private final RateLimits.Sender rateLimiter;
+    private final List<String> decodedLines = new ArrayList<>();
+    // Lines read but not handled yet, as the connection is throttled.
+    private final ArrayDeque<String> pendingLines = new ArrayDeque<>();
+    private boolean throttled = false;
+    // The client's heartbeat, or null if clients are not timed out.
+    private final Heartbeats.Monitor heartbeat;
+    private final RoomMembership roomMembership = new RoomMembership();
+    private final FlushScheduler flushScheduler;
+    private final ServerMetrics metrics;
+    // The batch taken from the queue, how far through it the output has got, and how much of
+    // the message at that point has been copied.
+    private final ChatMessage[] pendingBatch;
+    private int batchIndex = 0;
+    private int batchCount = 0;
+    private int messageOffset = 0;
+    // Output copied from the batch but not yet written, held from the BufferPool only while there is any.
+    private ByteBuffer output = null;
+    // Whether the handshake reply has been written, after which output is framed.
+    private boolean framed = false;
+    // A room's history waiting to be written after the current batch, and how much of it has been.
+    private ChatMessage pendingReplay = null;
+    private long historySent = 0;
+    private boolean awaitingHistory = false;
+    private boolean open = true;
+    private boolean flushPending = false;
+    private boolean evicted = false;
+    // The number of slow clients this connection is currently paused for.
+    private int pausedBy = 0;
+    // Where the connection is in its shard's list of connections, or -1 once removed. Kept by the shard.
+    private int shardIndex = -1;
+
+    /**
+     * NioConnection constructor, registers the client channel with the selector for reading
+     * and informs the user of their username.
+     *
+     * @param clientChannel : The non-blocking channel connected to the client.
+     * @param uid           : The unique ID the server has given the client.
+     * @param username      : The username the server has given the client.
+     * @param shard         : The event loop shard the connection belongs to.
+     * @param outboundQueue : The queue of messages waiting to be written to the client.
+     * @throws IOException : If the channel could not be registered.
+     */
+    public NioConnection(SocketChannel clientChannel, int uid, String username, EventLoopShard shard,
+                         OutboundQueue outboundQueue) throws IOException {
+        this.outboundQueue = outboundQueue;
+        this.uid = uid;
+        this.clientChannel = clientChannel;
+        this.username = username;
+        this.shard = shard;
+        this.flushScheduler = shard.getParentServer().getFlushScheduler();
+        this.metrics = shard.getParentServer().getMetrics();
+        this.rateLimiter = shard.getParentServer().getRateLimits().newSender(clientChannel.socket().getInetAddress());
+        this.pendingBatch = flushScheduler.newBatch();
+        this.selectionKey = clientChannel.register(shard.getSelector(), SelectionKey.OP_READ, this);
+        this.heartbeat = shard.getParentServer().getHeartbeats().watch(this, shard.getTimingWheel());
+        // Inform the user of their username.
+        send("Your username is: " + this.username);
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public int getUid() {
+        return uid;
+    }
+
+    public EventLoopShard getShard() {
+        return shard;
+    }
+
+    public int getShardIndex() {
+        return shardIndex;
+    }
+
+    public void setShardIndex(int shardIndex) {
+        this.shardIndex = shardIndex;
+    }
+
+    /**
+     * A connection is listed in the partition of each room that belongs to its shard,
+     * so that each shard only goes through its own connections when fanning out.
+     *
+     * @return : The partition index, which is the shard's ID.
+     */
+    public int getPartition() {
+        return shard.getShardId();
+    }
+
+    public RoomMembership getRoomMembership() {
+        return roomMembership;
+    }
+
+    public int getQueueDepth() {
+        return outboundQueue.size();
+    }
+
+    /**
+     * Queues a String message from the server for the client.
+     *
+     * @param message : The message to send to the client.
+     */
+    public void send(String message) {
+        ChatMessage serverMessage = ChatMessage.fromServer(message);
+        deliver(serverMessage);
+        serverMessage.release();
+    }
+
+    /**
+     * Queues an already encoded message for the client, applying the slow consumer policy if
+     * the client has fallen behind. The write itself happens when the shard next flushes its
+     * connections, which it does early once this connection has a full batch waiting. A message delivered from
+     * another thread, such as a private message from a client on another shard, is retained and
+     * handed to this connection's shard first.
+     *
+     * @param message : The message to send to the client.
+     */
+    public void deliver(ChatMessage message) {
+        if (!shard.inEventLoop()) {
+            message.retain();
+            shard.execute(() -> {
+                deliver(message);
+                message.release();
+            });
+            return;
+        }
+        if (!open) {
+            return;
+        }
+        switch (outboundQueue.offer(message)) {
+            case EVICT:
+                evict();
+                return;
+            case PAUSE:
+                if (message.getOrigin() instanceof NioConnection) {
+                    pauseSender((NioConnection) message.getOrigin());
+                }
+                break;
+            default:
+                break;
+        }
+        if (!flushPending) {
+            flushPending = true;
+            shard.scheduleFlush(this);
+        }
+        if (outboundQueue.size() >= flushScheduler.getBatchSize()) {
+            shard.flushSoon();
+        }
+    }
+
+    /**
+     * Stops reading from a sender until this connection's queue has drained. The sender may
+     * belong to another shard, so it is paused and resumed through its shard's task queue.
+     *
+     * @param sender : The connection whose messages are filling this connection's queue.
+     */
+    private void pauseSender(NioConnection sender) {
+        EventLoopShard senderShard = sender.getShard();
+        senderShard.execute(sender::pauseReading);
+        outboundQueue.whenDrained(() -> senderShard.execute(sender::resumeReading));
+    }
+
+    /**
+     * Stops reading from the client until every slow client it is paused for has drained.
+     */
+    public void pauseReading() {
+        pausedBy++;
+        updateInterest();
+    }
+
+    /**
+     * Resumes reading from the client once the last slow client it was paused for has drained.
+     */
+    public void resumeReading() {
+        pausedBy--;
+        updateInterest();
+    }
+
+    /**
+     * Disconnects a client that is not keeping up with its messages. The connection is
+     * closed from a task rather than straight away, as the shard may be in the middle of
+     * going through its connections.
+     */
+    public void evict() {
+        if (!open || evicted) {
+            return;
+        }
+        evicted = true;
+        Log.warn(username + " cannot keep up, disconnecting...");
+        shard.getParentServer().countEviction();
+        shard.execute(this::close);
+    }
+
+    /**
+     * Describes the client's outbound queue for operators.
+     *
+     * @return : The username, queue depth and counters as a single line.
+     */
+    public String describe() {
+        return username + " " + outboundQueue.describe() + (evicted ? " evicted" : "")
+                + (pausedBy > 0 ? " paused" : "");
+    }
+
+    /**
+     * Sets the events the selector watches for: reading unless the connection is paused,
+     * and writing while output is waiting for the socket to drain.
+     */
+    private void updateInterest() {
+        if (!open) {
+            return;
+        }
+        boolean writing = (output != null && output.position() > 0) || (pendingReplay != null && !awaitingHistory);
+        int ops = (pausedBy == 0 ? SelectionKey.OP_READ : 0) | (writing ? SelectionKey.OP_WRITE : 0);
+        selectionKey.interestOps(ops);
+    }
+
+    /**
+     * Writes as much pending output as the socket will accept without blocking. The encoded
+     * messages are copied from the queue into a pooled direct buffer and written with one write
+     * per buffer's worth, so messages shared with other connections are never written through
+     * views of their own. A room's history is written once everything before it has been. If
+     * output remains, the connection registers interest in the channel becoming writable again;
+     * otherwise the buffer goes back to the pool. Counts the bytes and messages written in the
+     * server's metrics.
+     */
+    public void flush() {
+        flushPending = false;
+        if (!open) {
+            return;
+        }
+        try {
+            while (true) {
+                fillOutput();
+                if (output.position() > 0) {
+                    output.flip();
+                    metrics.bytesOut.add(clientChannel.write(output));
+                    output.compact();
+                    if (output.position() > 0) {
+                        // The socket buffer is full, wait for the selector to say it has drained.
+                        updateInterest();
+                        return;
+                    }
+                } else if (pendingReplay == null || !writeHistory()) {
+                    break;
+                }
+            }
+            BufferPool.SHARED.release(output);
+            output = null;
+            updateInterest();
+        } catch (IOException e) {
+            Log.debug("Failed to write to " + username);
+            close();
+        }
+    }
+
+    /**
+     * Copies messages from the queue into the output buffer until it is full, the queue is empty,
+     * or a room's history is due, releasing each message once it has been copied in full.
+     */
+    private void fillOutput() {
+        if (output == null) {
+            output = BufferPool.SHARED.acquire(WRITE_BUFFER_SIZE);
+        }
+        int copied = 0;
+        while (output.hasRemaining() && pendingReplay == null) {
+            if (batchIndex == batchCount) {
+                batchIndex = 0;
+                batchCount = outboundQueue.drainTo(pendingBatch);
+                if (batchCount == 0) {
+                    break;
+                }
+            }
+            ChatMessage message = pendingBatch[batchIndex];
+            if (message.getReplay() != null) {
+                // A replay always ends its batch, and is written after everything before it.
+                pendingReplay = message;
+            } else {
+                messageOffset += message.copyTo(framed, messageOffset, output);
+                if (messageOffset < message.encodedLength(framed)) {
+                    break;
+                }
+                framed |= message.isHandshake();
+                messageOffset = 0;
+                message.release();
+                copied++;
+            }
+            pendingBatch[batchIndex++] = null;
+        }
+        metrics.messagesOut.add(copied);
+    }
+
+    /**
+     * Transfers the pending history to the socket straight from the journal's files, once the
+     * journal has found it. If the journal has not found it yet, the connection is flushed
+     * again when it has.
+     *
+     * @return : True once the history has been written, or skipped because there is none.
+     * @throws IOException : If the history could not be written.
+     */
+    private boolean writeHistory() throws IOException {
+        CompletableFuture<JournalSlice> replay = pendingReplay.getReplay();
+        if (!replay.isDone()) {
+            if (!awaitingHistory) {
+                awaitingHistory = true;
+                replay.whenComplete((history, e) -> shard.execute(this::flush));
+            }
+            return false;
+        }
+        awaitingHistory = false;
+        JournalSlice history = replay.isCompletedExceptionally() ? null : replay.join();
+        if (history != null) {
+            long transferred = history.transferTo(clientChannel, framed, historySent);
+            metrics.bytesOut.add(transferred);
+            historySent += transferred;
+            if (historySent < history.size(framed)) {
+                return false;
+            }
+        }
+        pendingReplay.release();
+        pendingReplay = null;
+        historySent = 0;
+        return true;
+    }
+
+    /**
+     * Reads whatever the client has sent, and handles every complete line or frame as either
+     * a command or a message to broadcast through the server. Replies to the handshake if the
+     * client asks for frames. The connection is closed if the client has disconnected. Counts
+     * the bytes and messages read in the server's metrics.
+     */
+    public void read() {
+        // Decoders keep any partial input themselves, so the buffer is only held for the read.
+        ByteBuffer readBuffer = BufferPool.SHARED.acquire(READ_BUFFER_SIZE);
+        try {
+            int bytesRead = clientChannel.read(readBuffer);
+            if (bytesRead == -1) {
+                // End of stream corresponds to a disconnected client.
+                close();
+                return;
+            }
+            if (heartbeat != null) {
+                heartbeat.heard();
+            }
+            metrics.bytesIn.add(bytesRead);
+            readBuffer.flip();
+            protocolDecoder.decode(readBuffer, decodedLines);
+            metrics.messagesIn.add(decodedLines.size());
+            pendingLines.addAll(decodedLines);
+            decodedLines.clear();
+        } catch (IOException e) {
+            Log.debug("Failed to read from " + username);
+            close();
+            return;
+        } catch (ProtocolDecoder.ProtocolException e) {
+            Log.warn(username + " sent malformed input: " + e.getMessage());
+            close();
+            return;
+        } finally {
+            BufferPool.SHARED.release(readBuffer);
+        }
+        if (protocolDecoder.takeHandshake()) {
+            ChatMessage handshake = ChatMessage.handshake();
+            deliver(handshake);
+            handshake.release();
+        }
+        handlePendingLines();
+    }
+
+    /**
+     * Handles the lines read from the client in order, once the rate limits allow each. Under
+     * the throttle policy a line over a limit stops the connection reading until the limits
+     * allow it, when this is run again from the shard's timer. Under the drop policy the line
+     * is discarded, and the client is told the first time in a row.
+     */
+    private void handlePendingLines() {
+        NioChatServer parentServer = shard.getParentServer();
+        String line;
+        while (open && !throttled && (line = pendingLines.peek()) != null) {
+            Room room = CommandHandler.isCommand(line) ? null : roomMembership.getCurrentRoom();
+            long wait = rateLimiter.admit(room);
+            if (wait > 0 && parentServer.getRateLimits().getPolicy() == FloodPolicy.THROTTLE) {
+                throttled = true;
+                pauseReading();
+                shard.schedule(this::endThrottle, wait);
+                return;
+            }
+            pendingLines.poll();
+            if (wait > 0) {
+                if (rateLimiter.shouldNotifyDrop()) {
+                    send("You are sending messages too fast, so some are being dropped.");
+                }
+            } else if (!parentServer.getCommandHandler().handle(this, line)) {
+                parentServer.broadcast(this, line);
+            }
+        }
+    }
+
+    /**
+     * Resumes a throttled connection once the rate limit it was over allows its next line.
+     */
+    private void endThrottle() {
+        throttled = false;
+        resumeReading();
+        handlePendingLines();
+    }
+
+    /**
+     * Close the connection by cancelling its selection key, closing the channel, and
+     * removing itself from the list of connections held by its shard, from the
+     * server's client registry, and from every room it is in. If called from another thread,
+     * the close is handed to the connection's shard.
+     */
+    public void close() {
+        if (!shard.inEventLoop()) {
+            shard.execute(this::close);
+            return;
+        }
+        if (!open) {
+            return;
+        }
+        open = false;
+        Log.debug(username + " is disconnecting...");
+        rateLimiter.release();
+        if (heartbeat != null) {
+            heartbeat.stop();
+        }
+        pendingLines.clear();
+        selectionKey.cancel();
+        try {
+            clientChannel.close();
+        } catch (IOException e) {
+            Log.error("Failed to close " + username + ".", e);
+        }
+        outboundQueue.close();
+        for (int i = batchIndex; i < batchCount; i++) {
+            pendingBatch[i].release();
+            pendingBatch[i] = null;
+        }
+        batchIndex = 0;
+        batchCount = 0;
+        if (pendingReplay != null) {
+            pendingReplay.release();
+            pendingReplay = null;
+        }
+        if (output != null) {
+            BufferPool.SHARED.release(output);
+            output = null;
+        }
+        shard.removeConnection(this);
+        shard.getParentServer().getClientRegistry().remove(this);
+        shard.getParentServer().getRoomIndex().leaveAll(this);
+    }
+}
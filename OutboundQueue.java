@@ -0,0 +1,464 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue of messages waiting to be written to one client. Any thread may add
+ * to the queue, and a single writer stage drains it, so a client that reads slowly
+ * only ever delays its own messages.
+ * <p>
+ * The capacity of the queue is its high-water mark. What happens to a message offered
+ * at the high-water mark depends on the queue's SlowConsumerPolicy. The queue keeps
+ * count of the messages it has dropped and the senders it has paused, so that clients
+ * that are falling behind can be seen. A queue given the server's metrics also records how
+ * long each message waited in it.
+ * <p>
+ * The queue retains each message it holds, and releases the messages it drops or discards
+ * itself. A message taken out of the queue is handed over with the queue's reference, and
+ * whoever took it releases it once it has been written.
+ */
+public class OutboundQueue {
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    /**
+     * The outcome of offering a message to the queue.
+     */
+    public enum Offer {
+        // The message was queued.
+        QUEUED,
+        // A message was dropped, either the one offered or the oldest in the queue.
+        DROPPED,
+        // The queue is at its high-water mark and the client should be disconnected.
+        EVICT,
+        // The message was queued above the high-water mark, and its sender should pause.
+        PAUSE
+    }
+
+    private ChatMessage[] messages;
+    // When each queued message was added, if the queue records queue times.
+    private long[] queuedAt;
+    private final int highWaterMark;
+    private final int lowWaterMark;
+    private final SlowConsumerPolicy policy;
+    private final ServerMetrics metrics;
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition notEmpty = queueLock.newCondition();
+    private final Condition drained = queueLock.newCondition();
+    private final List<Runnable> drainListeners = new ArrayList<>();
+    private int head = 0;
+    private int size = 0;
+    private boolean closed = false;
+    private long droppedCount = 0;
+    private long pauseCount = 0;
+
+    /**
+     * Queue constructor, using the DROP_NEWEST policy.
+     *
+     * @param capacity : The most messages the queue will hold.
+     */
+    public OutboundQueue(int capacity) {
+        this(capacity, SlowConsumerPolicy.DROP_NEWEST);
+    }
+
+    /**
+     * Queue constructor. A queue that pauses senders never drops a message, and grows past
+     * its high-water mark to hold the messages that arrive before the senders have paused.
+     *
+     * @param capacity : The high-water mark of the queue.
+     * @param policy   : What to do with messages offered at the high-water mark.
+     */
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy) {
+        this(capacity, policy, null);
+    }
+
+    /**
+     * Queue constructor, which counts the messages the queue drops and records how long each
+     * message waits in the server's metrics.
+     *
+     * @param capacity : The high-water mark of the queue.
+     * @param policy   : What to do with messages offered at the high-water mark.
+     * @param metrics  : The metrics of the server, or null to record none.
+     */
+    public OutboundQueue(int capacity, SlowConsumerPolicy policy, ServerMetrics metrics) {
+        this.highWaterMark = Math.max(1, capacity);
+        this.lowWaterMark = highWaterMark / 2;
+        this.policy = policy;
+        this.metrics = metrics;
+        this.messages = new ChatMessage[highWaterMark];
+        this.queuedAt = metrics != null ? new long[highWaterMark] : null;
+    }
+
+    /**
+     * Offers a message to the back of the queue, applying the slow consumer policy if the
+     * queue is at its high-water mark. This never blocks.
+     *
+     * @param message : The message to add.
+     * @return : What became of the message.
+     */
+    public Offer offer(ChatMessage message) {
+        queueLock.lock();
+        try {
+            if (closed) {
+                return Offer.DROPPED;
+            }
+            if (size < highWaterMark) {
+                addTail(message);
+                return Offer.QUEUED;
+            }
+            switch (policy) {
+                case DROP_OLDEST:
+                    removeHead().release();
+                    addTail(message);
+                    countDrop();
+                    return Offer.DROPPED;
+                case DISCONNECT:
+                    return Offer.EVICT;
+                case PAUSE_SENDER:
+                    if (size == messages.length) {
+                        grow();
+                    }
+                    addTail(message);
+                    pauseCount++;
+                    return Offer.PAUSE;
+                default:
+                    countDrop();
+                    return Offer.DROPPED;
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Removes the message at the front of the queue, if there is one.
+     *
+     * @return : The message, or null if the queue is empty.
+     */
+    public ChatMessage poll() {
+        List<Runnable> listeners;
+        ChatMessage message;
+        queueLock.lock();
+        try {
+            message = takeHead();
+            listeners = takeDrainListeners();
+        } finally {
+            queueLock.unlock();
+        }
+        runAll(listeners);
+        return message;
+    }
+
+    /**
+     * Removes the message at the front of the queue, waiting as long as needed for one.
+     *
+     * @return : The message, or null once the queue has been closed.
+     * @throws InterruptedException : If the writer was interrupted while waiting.
+     */
+    public ChatMessage take() throws InterruptedException {
+        List<Runnable> listeners;
+        ChatMessage message;
+        queueLock.lock();
+        try {
+            while (size == 0 && !closed) {
+                notEmpty.await();
+            }
+            message = takeHead();
+            listeners = takeDrainListeners();
+        } finally {
+            queueLock.unlock();
+        }
+        runAll(listeners);
+        return message;
+    }
+
+    /**
+     * Removes as many messages as fit in the batch from the front of the queue, without waiting.
+     * A batch ends early after a replay, which the writer sends on its own.
+     *
+     * @param batch : The array to put the messages in.
+     * @return : The number of messages removed, which may be 0.
+     */
+    public int drainTo(ChatMessage[] batch) {
+        List<Runnable> listeners;
+        int count = 0;
+        queueLock.lock();
+        try {
+            while (count < batch.length && size > 0) {
+                ChatMessage message = takeHead();
+                batch[count++] = message;
+                if (message.getReplay() != null) {
+                    break;
+                }
+            }
+            listeners = takeDrainListeners();
+        } finally {
+            queueLock.unlock();
+        }
+        runAll(listeners);
+        return count;
+    }
+
+    /**
+     * Removes a batch of messages from the front of the queue. Waits as long as needed for
+     * the first message, and then up to the given delay for more messages to fill the batch.
+     * A batch ends early after a replay, which the writer sends on its own.
+     *
+     * @param batch         : The array to put the messages in.
+     * @param maxDelayNanos : How long to wait for the batch to fill after the first message.
+     * @return : The number of messages removed, or 0 once the queue has been closed.
+     * @throws InterruptedException : If the writer was interrupted while waiting.
+     */
+    public int takeBatch(ChatMessage[] batch, long maxDelayNanos) throws InterruptedException {
+        List<Runnable> listeners;
+        int count = 0;
+        queueLock.lock();
+        try {
+            while (size == 0 && !closed) {
+                notEmpty.await();
+            }
+            long remaining = maxDelayNanos;
+            while (count < batch.length && !closed) {
+                if (size > 0) {
+                    ChatMessage message = takeHead();
+                    batch[count++] = message;
+                    if (message.getReplay() != null) {
+                        break;
+                    }
+                } else if (remaining > 0) {
+                    remaining = notEmpty.awaitNanos(remaining);
+                } else {
+                    break;
+                }
+            }
+            listeners = takeDrainListeners();
+        } finally {
+            queueLock.unlock();
+        }
+        runAll(listeners);
+        return count;
+    }
+
+    /**
+     * Blocks the calling thread until the queue has drained to its low-water mark or has
+     * been closed. Used by a sender's thread to pause after being told to.
+     *
+     * @throws InterruptedException : If the sender was interrupted while waiting.
+     */
+    public void awaitDrained() throws InterruptedException {
+        queueLock.lock();
+        try {
+            while (size > lowWaterMark && !closed) {
+                drained.await();
+            }
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Runs a task once the queue has drained to its low-water mark or has been closed.
+     * The task runs straight away if that is already the case, and otherwise on the
+     * writer stage that drains the queue. Used to resume a sender that could not block.
+     *
+     * @param listener : The task to run.
+     */
+    public void whenDrained(Runnable listener) {
+        queueLock.lock();
+        try {
+            if (size > lowWaterMark && !closed) {
+                drainListeners.add(listener);
+                return;
+            }
+        } finally {
+            queueLock.unlock();
+        }
+        listener.run();
+    }
+
+    /**
+     * Closes the queue, discarding its messages and releasing anything waiting on it.
+     */
+    public void close() {
+        List<Runnable> listeners;
+        queueLock.lock();
+        try {
+            closed = true;
+            while (size > 0) {
+                removeHead().release();
+            }
+            listeners = takeDrainListeners();
+            notEmpty.signalAll();
+            drained.signalAll();
+        } finally {
+            queueLock.unlock();
+        }
+        runAll(listeners);
+    }
+
+    /**
+     * The number of messages currently waiting in the queue.
+     *
+     * @return : The queue depth.
+     */
+    public int size() {
+        queueLock.lock();
+        try {
+            return size;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * The number of messages the queue has dropped under its slow consumer policy.
+     *
+     * @return : The dropped message count.
+     */
+    public long getDroppedCount() {
+        queueLock.lock();
+        try {
+            return droppedCount;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * The number of times the queue has asked a sender to pause.
+     *
+     * @return : The pause count.
+     */
+    public long getPauseCount() {
+        queueLock.lock();
+        try {
+            return pauseCount;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Describes the state of the queue for operators.
+     *
+     * @return : The queue depth and counters as a single line.
+     */
+    public String describe() {
+        queueLock.lock();
+        try {
+            return "depth=" + size + "/" + highWaterMark + " dropped=" + droppedCount + " pauses=" + pauseCount;
+        } finally {
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * Doubles the room in the queue, moving the queued messages to the front of the new array.
+     * Called with the lock held.
+     */
+    private void grow() {
+        ChatMessage[] grown = new ChatMessage[messages.length * 2];
+        long[] grownQueuedAt = queuedAt != null ? new long[grown.length] : null;
+        for (int i = 0; i < size; i++) {
+            int index = (head + i) % messages.length;
+            grown[i] = messages[index];
+            if (grownQueuedAt != null) {
+                grownQueuedAt[i] = queuedAt[index];
+            }
+        }
+        messages = grown;
+        queuedAt = grownQueuedAt;
+        head = 0;
+    }
+
+    /**
+     * Counts a message dropped under the slow consumer policy. Called with the lock held.
+     */
+    private void countDrop() {
+        droppedCount++;
+        if (metrics != null) {
+            metrics.drops.increment();
+        }
+    }
+
+    /**
+     * Adds a message at the back of the queue, retaining it. Called with the lock held and room in the queue.
+     *
+     * @param message : The message to add.
+     */
+    private void addTail(ChatMessage message) {
+        message.retain();
+        int index = (head + size) % messages.length;
+        messages[index] = message;
+        if (queuedAt != null) {
+            queuedAt[index] = System.nanoTime();
+        }
+        size++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Removes and returns the message at the front of the queue for writing, recording how long
+     * it waited. Called with the lock held.
+     *
+     * @return : The message, or null if the queue is empty.
+     */
+    private ChatMessage takeHead() {
+        if (size > 0 && queuedAt != null) {
+            metrics.queueTime.record(System.nanoTime() - queuedAt[head]);
+        }
+        return removeHead();
+    }
+
+    /**
+     * Removes and returns the message at the front of the queue. Called with the lock held.
+     *
+     * @return : The message, or null if the queue is empty.
+     */
+    private ChatMessage removeHead() {
+        if (size == 0) {
+            return null;
+        }
+        ChatMessage message = messages[head];
+        messages[head] = null;
+        head = (head + 1) % messages.length;
+        size--;
+        if (size <= lowWaterMark) {
+            drained.signalAll();
+        }
+        return message;
+    }
+
+    /**
+     * Takes the drain listeners that are due to run. Called with the lock held; the listeners
+     * are run after the lock is released, as they may hand work to other threads.
+     *
+     * @return : The listeners to run, which may be empty.
+     */
+    private List<Runnable> takeDrainListeners() {
+        if (drainListeners.isEmpty() || (size > lowWaterMark && !closed)) {
+            return null;
+        }
+        List<Runnable> listeners = new ArrayList<>(drainListeners);
+        drainListeners.clear();
+        return listeners;
+    }
+
+    /**
+     * Runs each of the given listeners.
+     *
+     * @param listeners : The listeners to run, or null for none.
+     */
+    private static void runAll(List<Runnable> listeners) {
+        if (listeners != null) {
+            for (Runnable listener : listeners) {
+                listener.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,465 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The link from one node of a cluster to one of its peers. Messages for the peer are queued
+ * and written by the link's own thread in batches, with one flush per batch. Every message is
+ * numbered in the order it was queued, and kept until the peer acknowledges it, so that if the
+ * link drops the messages the peer may not have had are sent again once it is back. The peer
+ * drops any message it has already had by its number.
+ * <p>
+ * The link also holds what this node knows about the peer from the peer's own link the other
+ * way: which rooms the peer has members in, and the last message it has had from the peer.
+ */
+public class PeerLink implements Runnable {
+
+    public static final int MAX_BATCH = 256;
+    // Messages kept for a peer that is down, beyond which the oldest are given up on.
+    public static final int MAX_UNACKED = 65536;
+    private static final long BASE_BACKOFF_MILLIS = 100;
+    private static final long MAX_BACKOFF_MILLIS = 5000;
+    // How many attempts in a row may fail to connect before it is worth a warning.
+    private static final int WARN_AFTER_ATTEMPTS = 8;
+    // Queued when the link has dropped, to wake the link's thread so that it reconnects.
+    private static final Record WAKE = new Record(Record.ACK, 0, 0, null, null, null);
+
+    private final ClusterNode clusterNode;
+    private final int peerIndex;
+    private final String host;
+    private final int port;
+    private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+    // Numbering, keeping and queueing a message happen together, so that messages are queued in order.
+    private final ReentrantLock sendLock = new ReentrantLock();
+    private final ArrayDeque<Record> unacked = new ArrayDeque<>();
+    private long lastSequence = 0;
+    private long droppedCount = 0;
+    private volatile boolean connected = false;
+    private volatile boolean running = true;
+    private volatile Socket socket;
+    private Thread linkThread;
+    // What the peer has said over its own link to this node, kept by the thread reading that link.
+    private final Set<String> remoteInterest = ConcurrentHashMap.newKeySet();
+    private long remoteIncarnation = 0;
+    private long lastReceived = 0;
+
+    /**
+     * Peer link constructor.
+     *
+     * @param clusterNode : The node the link belongs to.
+     * @param peerIndex   : The index of the peer in the cluster.
+     * @param address     : The peer's link address, as host:port.
+     */
+    public PeerLink(ClusterNode clusterNode, int peerIndex, String address) {
+        this.clusterNode = clusterNode;
+        this.peerIndex = peerIndex;
+        int colon = address.lastIndexOf(':');
+        this.host = address.substring(0, colon);
+        this.port = Integer.parseInt(address.substring(colon + 1));
+    }
+
+    public int getPeerIndex() {
+        return peerIndex;
+    }
+
+    /**
+     * Starts the link's thread, which connects to the peer and keeps reconnecting while the
+     * link is open.
+     */
+    public void start() {
+        linkThread = new Thread(this, "PeerLink-" + peerIndex);
+        linkThread.setDaemon(true);
+        linkThread.start();
+    }
+
+    /**
+     * Whether the peer has members in a room, so that the room's messages should be relayed to it.
+     *
+     * @param roomName : The name of the room.
+     * @return : True if the peer has said it has members in the room.
+     */
+    public boolean hasInterest(String roomName) {
+        return remoteInterest.contains(roomName);
+    }
+
+    /**
+     * Queues a message for the peer, numbering it and keeping it until the peer acknowledges
+     * it. While the link is down the message is only kept, to be sent when it is back.
+     *
+     * @param roomName : The name of the room the message was sent to.
+     * @param username : The username of the sender.
+     * @param text     : The text of the message.
+     */
+    public void relay(String roomName, String username, String text) {
+        sendLock.lock();
+        try {
+            Record record = new Record(Record.MESSAGE, 0, ++lastSequence, roomName, username, text);
+            unacked.addLast(record);
+            if (unacked.size() > MAX_UNACKED) {
+                unacked.removeFirst();
+                droppedCount++;
+            }
+            if (connected) {
+                queue.offer(record);
+            }
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Tells the peer that this node has gained or lost its last member in a room. While the link
+     * is down nothing is queued, as every room this node has members in is sent on connecting.
+     *
+     * @param roomName   : The name of the room.
+     * @param subscribed : True if the room has gained members, false if it has lost them all.
+     */
+    public void updateInterest(String roomName, boolean subscribed) {
+        if (connected) {
+            queue.offer(new Record(subscribed ? Record.SUBSCRIBE : Record.UNSUBSCRIBE, 0, 0, roomName, null, null));
+        }
+    }
+
+    /**
+     * Connects to the peer and writes queued records to it until the link is closed, reconnecting
+     * after a random wait of up to a limit that doubles with every failed attempt. On connecting,
+     * the node introduces itself, lists the rooms it has members in, and sends every message the
+     * peer has not acknowledged yet.
+     */
+    public void run() {
+        int attempt = 0;
+        while (running) {
+            try (Socket peerSocket = new Socket(host, port)) {
+                socket = peerSocket;
+                peerSocket.setTcpNoDelay(true);
+                DataOutputStream output = new DataOutputStream(new BufferedOutputStream(peerSocket.getOutputStream()));
+                // Anything queued before now is covered by the interest list and unacknowledged messages.
+                connected = true;
+                queue.clear();
+                startAckReader(peerSocket, new DataInputStream(new BufferedInputStream(peerSocket.getInputStream())));
+                Log.info("Connected to peer " + peerIndex + " at " + host + ":" + port);
+                attempt = 0;
+                new Record(Record.HELLO, clusterNode.getNodeIndex(), clusterNode.getIncarnation(), null, null, null)
+                        .write(output);
+                for (String roomName : clusterNode.getLocalInterest()) {
+                    new Record(Record.SUBSCRIBE, 0, 0, roomName, null, null).write(output);
+                }
+                for (Record record : unackedSnapshot()) {
+                    record.write(output);
+                }
+                output.flush();
+                List<Record> batch = new ArrayList<>(MAX_BATCH);
+                while (running) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    for (Record record : batch) {
+                        if (record == WAKE) {
+                            throw new IOException("Peer closed the link");
+                        }
+                        record.write(output);
+                    }
+                    output.flush();
+                    batch.clear();
+                }
+            } catch (IOException e) {
+                // A lost link is resent to once it is back, so only a peer that stays away is warned about.
+                if (running && connected) {
+                    Log.info("Lost link to peer " + peerIndex + ". Reconnecting...");
+                } else if (running && attempt == WARN_AFTER_ATTEMPTS) {
+                    Log.warn("Could not reach peer " + peerIndex + " at " + host + ":" + port + " after "
+                            + attempt + " attempts. Still trying...");
+                }
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                connected = false;
+            }
+            try {
+                long limit = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt, 16));
+                Thread.sleep(ThreadLocalRandom.current().nextLong(limit + 1));
+                attempt++;
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the messages the peer has not acknowledged yet.
+     *
+     * @return : The messages, oldest first.
+     */
+    private List<Record> unackedSnapshot() {
+        sendLock.lock();
+        try {
+            return new ArrayList<>(unacked);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Starts a thread that reads the peer's acknowledgements off the link, forgetting every
+     * message up to the one acknowledged, until the link drops. The link's thread is then woken
+     * so that it reconnects without waiting for something to send.
+     *
+     * @param peerSocket : The link's connection.
+     * @param input      : The link's input stream.
+     */
+    private void startAckReader(Socket peerSocket, DataInputStream input) {
+        Thread ackReader = new Thread(() -> {
+            try {
+                Record record;
+                while ((record = Record.read(input)) != null) {
+                    if (record.type != Record.ACK) {
+                        continue;
+                    }
+                    sendLock.lock();
+                    try {
+                        while (!unacked.isEmpty() && unacked.peekFirst().sequence <= record.sequence) {
+                            unacked.removeFirst();
+                        }
+                    } finally {
+                        sendLock.unlock();
+                    }
+                }
+            } catch (IOException e) {
+                // The link has dropped.
+            }
+            if (socket == peerSocket) {
+                queue.offer(WAKE);
+            }
+        }, "PeerLinkAcks-" + peerIndex);
+        ackReader.setDaemon(true);
+        ackReader.start();
+    }
+
+    /**
+     * Notes what the peer says about itself when it connects to this node. If the peer has
+     * restarted since it last connected, its numbering starts again.
+     *
+     * @param incarnation : When the peer started.
+     */
+    public void peerConnected(long incarnation) {
+        if (incarnation != remoteIncarnation) {
+            remoteIncarnation = incarnation;
+            lastReceived = 0;
+        }
+        // The peer lists its rooms again straight after.
+        remoteInterest.clear();
+    }
+
+    /**
+     * Notes that the peer has gained or lost members in a room.
+     *
+     * @param roomName   : The name of the room.
+     * @param subscribed : True if the peer has gained members, false if it has lost them all.
+     */
+    public void peerInterest(String roomName, boolean subscribed) {
+        if (subscribed) {
+            remoteInterest.add(roomName);
+        } else {
+            remoteInterest.remove(roomName);
+        }
+    }
+
+    /**
+     * Notes a message from the peer by its number, and says whether it is new.
+     *
+     * @param sequence : The number of the message.
+     * @return : True if the message is new, false if it has been had before.
+     */
+    public boolean peerMessage(long sequence) {
+        if (sequence <= lastReceived) {
+            return false;
+        }
+        lastReceived = sequence;
+        return true;
+    }
+
+    public long getLastReceived() {
+        return lastReceived;
+    }
+
+    /**
+     * Describes the link for operators.
+     *
+     * @return : The peer, whether it is connected, and how many messages are waiting for it.
+     */
+    public String describe() {
+        sendLock.lock();
+        try {
+            return "peer " + peerIndex + " " + host + ":" + port + (connected ? " connected" : " down")
+                    + " unacknowledged: " + unacked.size() + " dropped: " + droppedCount
+                    + " rooms: " + remoteInterest.size();
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the link, which stops its thread.
+     */
+    public void close() {
+        running = false;
+        if (linkThread != null) {
+            linkThread.interrupt();
+        }
+        closeSocket();
+    }
+
+    /**
+     * Closes the link's current connection, if there is one.
+     */
+    private void closeSocket() {
+        Socket current = socket;
+        if (current != null) {
+            try {
+                current.close();
+            } catch (IOException e) {
+                Log.error("Failed to close the link to peer " + peerIndex + ".", e);
+            }
+        }
+    }
+
+    /**
+     * A single record sent over a peer link. Every record starts with its type, followed by the
+     * fields that type uses, with strings as a length and UTF-8 bytes.
+     */
+    public static final class Record {
+
+        public static final byte HELLO = 1;
+        public static final byte SUBSCRIBE = 2;
+        public static final byte UNSUBSCRIBE = 3;
+        public static final byte MESSAGE = 4;
+        public static final byte ACK = 5;
+
+        public final byte type;
+        public final int node;
+        public final long sequence;
+        public final String room;
+        public final String username;
+        public final String text;
+
+        /**
+         * Record constructor. Fields that the type does not use are ignored.
+         *
+         * @param type     : The type of the record.
+         * @param node     : For HELLO, the index of the node introducing itself.
+         * @param sequence : For HELLO, when the node started; for MESSAGE and ACK, the message's number.
+         * @param room     : For SUBSCRIBE, UNSUBSCRIBE and MESSAGE, the name of the room.
+         * @param username : For MESSAGE, the username of the sender.
+         * @param text     : For MESSAGE, the text of the message.
+         */
+        public Record(byte type, int node, long sequence, String room, String username, String text) {
+            this.type = type;
+            this.node = node;
+            this.sequence = sequence;
+            this.room = room;
+            this.username = username;
+            this.text = text;
+        }
+
+        /**
+         * Writes the record to a stream, without flushing it.
+         *
+         * @param output : The stream to write to.
+         * @throws IOException : If the record could not be written.
+         */
+        public void write(DataOutputStream output) throws IOException {
+            output.writeByte(type);
+            switch (type) {
+                case HELLO:
+                    output.writeInt(node);
+                    output.writeLong(sequence);
+                    break;
+                case SUBSCRIBE:
+                case UNSUBSCRIBE:
+                    writeString(output, room);
+                    break;
+                case MESSAGE:
+                    output.writeLong(sequence);
+                    writeString(output, room);
+                    writeString(output, username);
+                    writeString(output, text);
+                    break;
+                case ACK:
+                    output.writeLong(sequence);
+                    break;
+                default:
+                    throw new IOException("Unknown peer record type " + type);
+            }
+        }
+
+        /**
+         * Reads the next record from a stream.
+         *
+         * @param input : The stream to read from.
+         * @return : The record, or null if the stream has ended.
+         * @throws IOException : If the stream failed or held a malformed record.
+         */
+        public static Record read(DataInputStream input) throws IOException {
+            int type = input.read();
+            if (type == -1) {
+                return null;
+            }
+            switch (type) {
+                case HELLO:
+                    return new Record(HELLO, input.readInt(), input.readLong(), null, null, null);
+                case SUBSCRIBE:
+                case UNSUBSCRIBE:
+                    return new Record((byte) type, 0, 0, readString(input), null, null);
+                case MESSAGE:
+                    long sequence = input.readLong();
+                    return new Record(MESSAGE, 0, sequence, readString(input), readString(input), readString(input));
+                case ACK:
+                    return new Record(ACK, 0, input.readLong(), null, null, null);
+                default:
+                    throw new IOException("Unknown peer record type " + type);
+            }
+        }
+
+        /**
+         * Writes a string as its length followed by its UTF-8 bytes.
+         *
+         * @param output : The stream to write to.
+         * @param value  : The string to write.
+         * @throws IOException : If the string could not be written.
+         */
+        private static void writeString(DataOutputStream output, String value) throws IOException {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            output.writeInt(bytes.length);
+            output.write(bytes);
+        }
+
+        /**
+         * Reads a string written by writeString.
+         *
+         * @param input : The stream to read from.
+         * @return : The string.
+         * @throws IOException : If the stream failed or the length makes no sense.
+         */
+        private static String readString(DataInputStream input) throws IOException {
+            int length = input.readInt();
+            if (length < 0 || length > Frame.MAX_PAYLOAD_LENGTH * 2) {
+                throw new IOException("Peer sent a string of " + length + " bytes");
+            }
+            byte[] bytes = new byte[length];
+            input.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Who is online in each room of a server, and the telling of rooms when that changes.
+ * <p>
+ * Every room has a set of the usernames in it, kept in order so that /who can page through
+ * it, which RoomIndex updates as members join and leave. Sending every join and leave to
+ * the whole room straight away would send each member a message per change, which during a
+ * storm of reconnections means traffic growing with the square of the room's size. Instead,
+ * changes are gathered per room and sent once every interval, as a single message listing
+ * who joined and who left. A user who leaves and comes back within an interval, as a client
+ * that reconnects does, is not mentioned at all, so what is sent grows with how much the
+ * room changes rather than with how many are in it.
+ * <p>
+ * A username is counted once however many connections hold it, as happens briefly while a
+ * resumed session takes over from a connection that has not been found dead yet.
+ */
+public class Presence implements Runnable {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 1000;
+    public static final int PAGE_SIZE = 50;
+    // The most usernames named in an update for each of joined and left, the rest being counted.
+    public static final int MAX_NAMED = 20;
+
+    private final Server server;
+    private final ServerMetrics metrics;
+    private final long intervalNanos;
+    private final ConcurrentHashMap<Room, RoomPresence> rooms = new ConcurrentHashMap<>();
+    // The rooms with changes not yet sent.
+    private final Set<RoomPresence> changed = ConcurrentHashMap.newKeySet();
+    private final Thread presenceThread;
+    private volatile boolean running = true;
+
+    /**
+     * Presence constructor, starts the thread that sends updates if there is an interval.
+     *
+     * @param server         : The server whose rooms the updates are delivered to.
+     * @param intervalMillis : How often each room is sent its changes, in milliseconds, or 0
+     *                         to send none and only answer /who.
+     * @param metrics        : The metrics of the server, which changes and updates are counted in.
+     */
+    public Presence(Server server, long intervalMillis, ServerMetrics metrics) {
+        this.server = server;
+        this.metrics = metrics;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMillis));
+        if (intervalNanos > 0) {
+            presenceThread = new Thread(this, "Presence");
+            presenceThread.setDaemon(true);
+            presenceThread.start();
+        } else {
+            presenceThread = null;
+        }
+    }
+
+    private RoomPresence of(Room room) {
+        return rooms.computeIfAbsent(room, RoomPresence::new);
+    }
+
+    /**
+     * Notes that a user has joined a room. Called by RoomIndex.
+     *
+     * @param room     : The room.
+     * @param username : The username of the member that joined.
+     */
+    public void joined(Room room, String username) {
+        RoomPresence presence = of(room);
+        if (presence.online.merge(username, 1, Integer::sum) == 1) {
+            presence.count.incrementAndGet();
+            record(presence, username, true);
+        }
+    }
+
+    /**
+     * Notes that a user has left a room. Called by RoomIndex.
+     *
+     * @param room     : The room.
+     * @param username : The username of the member that left.
+     */
+    public void left(Room room, String username) {
+        RoomPresence presence = of(room);
+        boolean[] gone = new boolean[1];
+        presence.online.computeIfPresent(username, (name, connections) -> {
+            gone[0] = connections == 1;
+            return gone[0] ? null : connections - 1;
+        });
+        if (gone[0]) {
+            presence.count.decrementAndGet();
+            record(presence, username, false);
+        }
+    }
+
+    /**
+     * Adds a change to those waiting to be sent to a room. A change that undoes one still
+     * waiting cancels it, so the room only hears about changes that last until the next update.
+     *
+     * @param presence : The room's presence.
+     * @param username : The user that joined or left.
+     * @param joined   : True if the user joined, false if they left.
+     */
+    private void record(RoomPresence presence, String username, boolean joined) {
+        metrics.presenceChanges.increment();
+        if (presenceThread == null) {
+            return;
+        }
+        presence.pending.compute(username, (name, waiting) -> waiting == null || waiting == joined ? joined : null);
+        changed.add(presence);
+    }
+
+    /**
+     * Sends a member a page of the usernames in a room, in order, starting after the given
+     * username. The reply ends with the command for the next page, if there is one.
+     *
+     * @param member : The client asking.
+     * @param room   : The room.
+     * @param after  : The last username of the previous page, or null for the first page.
+     */
+    public void who(ChatMember member, Room room, String after) {
+        RoomPresence presence = of(room);
+        ConcurrentNavigableMap<String, Integer> page = after == null ? presence.online : presence.online.tailMap(after, false);
+        StringBuilder reply = new StringBuilder("In ").append(room.getName()).append(", ")
+                .append(presence.count.get()).append(" online:");
+        String last = null;
+        int listed = 0;
+        boolean more = false;
+        for (String username : page.keySet()) {
+            if (listed == PAGE_SIZE) {
+                more = true;
+                break;
+            }
+            reply.append(listed == 0 ? " " : ", ").append(username);
+            last = username;
+            listed++;
+        }
+        if (listed == 0) {
+            reply.append(after == null ? " nobody." : " nobody after " + after + ".");
+        } else if (more) {
+            reply.append(". More with /who ").append(room.getName()).append(' ').append(last);
+        } else {
+            reply.append('.');
+        }
+        member.send(reply.toString());
+    }
+
+    /**
+     * Runs the presence thread: sends every room with changes an update, once an interval.
+     */
+    public void run() {
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+            if (running) {
+                sendUpdates();
+            }
+        }
+    }
+
+    /**
+     * Sends each room with changes waiting a single message naming who joined and who left.
+     * Called from the presence thread.
+     */
+    private void sendUpdates() {
+        for (RoomPresence presence : changed) {
+            // Removed before its changes are taken, so that a change made meanwhile marks it again.
+            changed.remove(presence);
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, Boolean> change : presence.pending.entrySet()) {
+                if (presence.pending.remove(change.getKey(), change.getValue())) {
+                    (change.getValue() ? joined : left).add(change.getKey());
+                }
+            }
+            if (joined.isEmpty() && left.isEmpty()) {
+                continue;
+            }
+            StringBuilder update = new StringBuilder();
+            describe(update, "Joined: ", joined);
+            describe(update, "Left: ", left);
+            ChatMessage message = ChatMessage.fromServer(presence.room, update.toString());
+            server.deliverToRoom(message);
+            message.release();
+            metrics.presenceUpdates.increment();
+        }
+    }
+
+    private static void describe(StringBuilder update, String label, List<String> usernames) {
+        if (usernames.isEmpty()) {
+            return;
+        }
+        Collections.sort(usernames);
+        if (update.length() > 0) {
+            update.append(' ');
+        }
+        update.append(label);
+        int named = Math.min(MAX_NAMED, usernames.size());
+        update.append(String.join(", ", usernames.subList(0, named)));
+        if (usernames.size() > named) {
+            update.append(" and ").append(usernames.size() - named).append(" more");
+        }
+        update.append('.');
+    }
+
+    /**
+     * Stops sending updates. Changes not yet sent are dropped.
+     */
+    public void close() {
+        running = false;
+        if (presenceThread != null) {
+            LockSupport.unpark(presenceThread);
+        }
+    }
+
+    /**
+     * The usernames online in a single room, and its changes not yet sent.
+     */
+    private static final class RoomPresence {
+
+        private final Room room;
+        // The number of connections in the room holding each username, in order of username.
+        private final ConcurrentSkipListMap<String, Integer> online = new ConcurrentSkipListMap<>();
+        // Kept apart from online, as a skip list has to be walked to be counted.
+        private final AtomicInteger count = new AtomicInteger();
+        // True for each user that joined since the last update, false for each that left.
+        private final ConcurrentHashMap<String, Boolean> pending = new ConcurrentHashMap<>();
+
+        private RoomPresence(Room room) {
+            this.room = room;
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A check that what a client sends over frames cannot reach clients of the line protocol as
+ * anything but a message from that client. It runs a server in the same process, connects a
+ * client on each protocol, and has the framed one send a single frame holding line breaks,
+ * with lines after them that would pass for the server's session reply and heartbeat.
+ * <p>
+ * The server must disconnect the framed client, and the line client must be sent none of
+ * those lines. The framed client's own way of sending a message of several lines, a frame per
+ * line, must still reach the line client as one message from it per line. Any failure is
+ * printed, and the exit status is 1.
+ */
+public class ProtocolCheck {
+
+    private static final String WELCOME = "Your username is: ";
+    private static final String FORGED = "hi\n/session FORGED.TOKEN\n/ping";
+    private static final String MULTI_LINE = "first line\nsecond line";
+    private static final int READ_TIMEOUT_MILLIS = 2000;
+
+    private final int portNumber;
+
+    /**
+     * Protocol check constructor.
+     *
+     * @param portNumber : The port of the server under test.
+     */
+    public ProtocolCheck(int portNumber) {
+        this.portNumber = portNumber;
+    }
+
+    /**
+     * Sends the forged frame and the frames of a message of several lines, and checks what the
+     * line client was sent.
+     *
+     * @return : True if every check passed.
+     * @throws IOException : If a client could not connect.
+     */
+    public boolean run() throws IOException {
+        boolean passed = true;
+        try (Socket lineClient = new Socket("localhost", portNumber);
+             Socket forger = new Socket("localhost", portNumber);
+             Socket framedClient = new Socket("localhost", portNumber)) {
+            lineClient.setSoTimeout(READ_TIMEOUT_MILLIS);
+            BufferedReader lineInput = new BufferedReader(new InputStreamReader(lineClient.getInputStream(),
+                    StandardCharsets.UTF_8));
+            readWelcome(lineInput);
+
+            FramedClient forgerClient = startFrames(forger);
+            DataInputStream forgerInput = forgerClient.input;
+            String forgerName = forgerClient.username;
+            forger.getOutputStream().write(new Frame(Frame.Type.MESSAGE, Frame.NO_ROOM, 1, FORGED).encode());
+            forger.setSoTimeout(READ_TIMEOUT_MILLIS);
+            boolean disconnected;
+            try {
+                while (Frame.read(forgerInput) != null) {
+                    // Skip whatever the server sent before closing the connection.
+                }
+                disconnected = true;
+            } catch (SocketTimeoutException e) {
+                disconnected = false;
+            } catch (IOException e) {
+                disconnected = true;
+            }
+            System.out.println("forger_disconnected " + disconnected);
+            if (!disconnected) {
+                System.out.println("FAILED: a frame holding line breaks was accepted.");
+                passed = false;
+            }
+
+            String framedName = startFrames(framedClient).username;
+            OutputStream framedOutput = framedClient.getOutputStream();
+            long sequence = 0;
+            for (String line : Frame.splitLines(MULTI_LINE)) {
+                framedOutput.write(new Frame(Frame.Type.MESSAGE, Frame.NO_ROOM, ++sequence, line).encode());
+            }
+            List<String> expected = new ArrayList<>();
+            for (String line : Frame.splitLines(MULTI_LINE)) {
+                expected.add(framedName + ": " + line);
+            }
+
+            // Read until the framed client's lines have arrived, or nothing more comes.
+            List<String> received = new ArrayList<>();
+            try {
+                String line;
+                while (!received.containsAll(expected) && (line = lineInput.readLine()) != null) {
+                    received.add(line);
+                }
+            } catch (SocketTimeoutException e) {
+                // Nothing more was sent.
+            }
+            int forgedLines = 0;
+            for (String line : received) {
+                if (line.startsWith(forgerName + ": ") || line.startsWith("/")) {
+                    System.out.println("forged_line " + line);
+                    forgedLines++;
+                }
+            }
+            System.out.println("forged_lines_received " + forgedLines);
+            if (forgedLines > 0) {
+                System.out.println("FAILED: the line client was sent lines from the forged frame.");
+                passed = false;
+            }
+            if (!received.containsAll(expected)) {
+                System.out.println("FAILED: a message of several lines did not arrive as a message per line.");
+                passed = false;
+            }
+        }
+        return passed;
+    }
+
+    private static void readWelcome(BufferedReader input) throws IOException {
+        String welcome = input.readLine();
+        if (welcome == null || !welcome.startsWith(WELCOME)) {
+            throw new IOException("No welcome from the server");
+        }
+    }
+
+    /**
+     * Asks for frames, and reads until both the server's reply to the handshake and the
+     * welcome have arrived. The welcome may come before the reply, as a line, or after it.
+     *
+     * @param socket : The client's connection.
+     * @return : The client's input, positioned after the welcome, and its username.
+     * @throws IOException : If the server closed the connection first.
+     */
+    private static FramedClient startFrames(Socket socket) throws IOException {
+        socket.getOutputStream().write((Frame.HANDSHAKE_REQUEST + "\n").getBytes(StandardCharsets.UTF_8));
+        DataInputStream input = new DataInputStream(socket.getInputStream());
+        String username = null;
+        String line;
+        while ((line = Frame.readLine(input)) != null && !line.equals(Frame.HANDSHAKE_REPLY)) {
+            if (line.startsWith(WELCOME)) {
+                username = line.substring(WELCOME.length());
+            }
+        }
+        if (line == null) {
+            throw new IOException("No reply to the handshake");
+        }
+        Frame frame;
+        while (username == null && (frame = Frame.read(input)) != null) {
+            if (frame.getPayload().startsWith(WELCOME)) {
+                username = frame.getPayload().substring(WELCOME.length());
+            }
+        }
+        if (username == null) {
+            throw new IOException("No welcome from the server");
+        }
+        return new FramedClient(input, username);
+    }
+
+    /**
+     * A client that has switched to frames, and the username it was given.
+     */
+    private static final class FramedClient {
+
+        private final DataInputStream input;
+        private final String username;
+
+        private FramedClient(DataInputStream input, String username) {
+            this.input = input;
+            this.username = username;
+        }
+    }
+
+    /**
+     * Main method of ProtocolCheck. Starts a server with the given arguments, which are parsed
+     * as for ChatServer, runs the check against it and closes it. Exits with status 1 if any
+     * check failed.
+     *
+     * @param args : Command line arguments.
+     */
+    public static void main(String[] args) {
+        // The server's own log is quiet unless asked for, so that the results can be read.
+        List<String> serverArgs = new ArrayList<>(List.of("-log", "warn", "-csp", "14301"));
+        serverArgs.addAll(List.of(args));
+        ServerConfig config = ServerConfig.fromArgs(serverArgs.toArray(new String[0]));
+        Server server = config.nio ? new NioChatServer(config) : new ChatServer(config);
+        server.acceptConnectionsFromClients();
+        boolean passed;
+        try {
+            passed = new ProtocolCheck(config.portNumber).run();
+        } catch (IOException e) {
+            System.out.println("Could not run the check: " + e.getMessage());
+            passed = false;
+        }
+        server.closeServer();
+        System.out.println(passed ? "PASSED" : "FAILED");
+        System.exit(passed ? 0 : 1);
+    }
+}
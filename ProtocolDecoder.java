@@ -0,0 +1,109 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes what a client sends to the server, in whichever protocol the client speaks.
+ * Every client starts on the line protocol. If its first line is Frame.HANDSHAKE_REQUEST,
+ * the rest of its input is decoded as frames instead, and the handshake is reported so
+ * that the server can reply to it.
+ * <p>
+ * Either way, the client's input comes out as the same strings: the lines it typed, or
+ * the payloads of its message frames. A frame's payload may not hold a line break, as the
+server sends what a client typed on to clients of the line protocol, where a line break inside
+it would turn the rest into lines of their own, which could pass for the server's.
+ * <p>
+ * A client may send less than the server may send it, so that what a client sends still fits
+ * in a line or frame once the server has put the room, the sender and the like in front of it.
+ */
+public class ProtocolDecoder {
+
+    // The most bytes in a line, or the payload of a frame, that a client may send.
+    public static final int MAX_INPUT_LENGTH = LineDecoder.MAX_LINE_LENGTH - 1024;
+
+    private final LineDecoder lineDecoder = new LineDecoder(MAX_INPUT_LENGTH);
+    private final List<Frame> frames = new ArrayList<>();
+    private FrameDecoder frameDecoder = null;
+    private boolean firstLine = true;
+    private boolean handshakePending = false;
+    private boolean skipLineFeed = false;
+
+    /**
+     * Consumes every readable byte in the buffer, adding each completed input to the output list.
+     *
+     * @param bytes  : Buffer in read mode holding newly received bytes.
+     * @param inputs : List that completed inputs are added to.
+     * @throws ProtocolException : If the client sent an oversized line, a malformed frame or a
+     *                           frame holding a line break.
+     */
+    public void decode(ByteBuffer bytes, List<String> inputs) throws ProtocolException {
+        try {
+            while (frameDecoder == null) {
+                String line = lineDecoder.decodeLine(bytes);
+                if (line == null) {
+                    return;
+                }
+                if (firstLine && line.equals(Frame.HANDSHAKE_REQUEST)) {
+                    frameDecoder = new FrameDecoder(MAX_INPUT_LENGTH);
+                    handshakePending = true;
+                    skipLineFeed = lineDecoder.isSkippingLineFeed();
+                } else {
+                    inputs.add(line);
+                }
+                firstLine = false;
+            }
+            // The handshake may have ended with "\r\n", and the line feed may not have arrived with it.
+            if (skipLineFeed && bytes.hasRemaining()) {
+                skipLineFeed = false;
+                if (bytes.get(bytes.position()) == '\n') {
+                    bytes.get();
+                }
+            }
+            frameDecoder.decode(bytes, frames);
+            for (Frame frame : frames) {
+                // Clients only send messages; anything else is ignored.
+                if (frame.getType() == Frame.Type.MESSAGE) {
+                    if (Frame.hasLineBreak(frame.getPayload())) {
+                        throw new ProtocolException("Message frame holds a line break");
+                    }
+                    inputs.add(frame.getPayload());
+                }
+            }
+            frames.clear();
+        } catch (LineDecoder.LineTooLongException | FrameDecoder.MalformedFrameException e) {
+            throw new ProtocolException(e.getMessage());
+        }
+    }
+
+    /**
+     * Whether the client has switched to frames.
+     *
+     * @return : True once the handshake has been received.
+     */
+    public boolean isFramed() {
+        return frameDecoder != null;
+    }
+
+    /**
+     * Reports a handshake that has not been replied to yet, once.
+     *
+     * @return : True if the handshake has just been received and needs a reply.
+     */
+    public boolean takeHandshake() {
+        boolean handshake = handshakePending;
+        handshakePending = false;
+        return handshake;
+    }
+
+    /**
+     * Thrown when a client sends input that cannot be decoded.
+     */
+    public static class ProtocolException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        public ProtocolException(String message) {
+            super(message);
+        }
+    }
+}
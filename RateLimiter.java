@@ -0,0 +1,103 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket, kept with the generic cell rate algorithm. Rather than a count of tokens
+ * that has to be topped up as time passes, the bucket keeps a single time: when it would next
+ * be full, were nothing else taken from it. Taking a token moves that time on by the interval
+ * between tokens, and is refused if it would move it further ahead of now than the burst allows.
+ * <p>
+ * Checking the bucket reads the clock once and updates the time with a single compare and set,
+ * without a lock or a thread to refill it, so it is cheap enough to check on every message.
+ */
+public class RateLimiter {
+
+    private final long intervalNanos;
+    // How far ahead of now the bucket's time may run, which is what lets a burst through.
+    private final long toleranceNanos;
+    private final AtomicLong fullAt;
+
+    /**
+     * Rate limiter constructor, starting with a full bucket.
+     *
+     * @param limit : The rate and burst to allow.
+     */
+    public RateLimiter(Limit limit) {
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / limit.getRate()));
+        this.toleranceNanos = intervalNanos * (limit.getBurst() - 1);
+        this.fullAt = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token from the bucket if it has one.
+     *
+     * @param nowNanos : The current time, from System.nanoTime().
+     * @return : 0 if a token was taken, otherwise how many nanoseconds until one would be.
+     */
+    public long tryAcquire(long nowNanos) {
+        while (true) {
+            long current = fullAt.get();
+            long start = current - nowNanos > 0 ? current : nowNanos;
+            long wait = start - toleranceNanos - nowNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (fullAt.compareAndSet(current, start + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * A rate limit: how many messages a second are allowed on average, and how many may be
+     * sent at once after a quiet spell.
+     */
+    public static final class Limit {
+
+        private final double rate;
+        private final int burst;
+
+        /**
+         * Limit constructor.
+         *
+         * @param rate  : The messages allowed a second, which must be more than 0.
+         * @param burst : The messages allowed at once, at least 1.
+         */
+        public Limit(double rate, int burst) {
+            if (!(rate > 0) || burst < 1) {
+                throw new IllegalArgumentException("Invalid rate limit: " + rate + ":" + burst);
+            }
+            this.rate = rate;
+            this.burst = burst;
+        }
+
+        /**
+         * Parses a limit given on the command line as the rate, optionally followed by a colon
+         * and the burst, such as "5:20". Without a burst, a second's worth of messages is allowed
+         * at once.
+         *
+         * @param flagValue : The limit given on the command line.
+         * @return : The limit.
+         * @throws IllegalArgumentException : If the limit cannot be parsed.
+         */
+        public static Limit parse(String flagValue) {
+            int colon = flagValue.indexOf(':');
+            double rate = Double.parseDouble(colon == -1 ? flagValue : flagValue.substring(0, colon));
+            int burst = colon == -1 ? (int) Math.max(1, Math.ceil(rate))
+                    : Integer.parseInt(flagValue.substring(colon + 1));
+            return new Limit(rate, burst);
+        }
+
+        public double getRate() {
+            return rate;
+        }
+
+        public int getBurst() {
+            return burst;
+        }
+
+        public String toString() {
+            return rate + "/s, bursts of " + burst;
+        }
+    }
+}
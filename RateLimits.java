@@ -0,0 +1,188 @@
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rate limits of a server: one for each user, one for each room, and one shared by every
+ * connection from the same address. Each is a RateLimiter, and any of them may be left off.
+ * <p>
+ * Every connection checks its messages through a Sender of its own, on its own reading thread.
+ * A user's limiter is only ever touched by that thread, and a room's or an address's limiter
+ * only by the connections sending to it, so checking never blocks and rarely contends.
+ * Messages relayed from other nodes of a cluster were limited by the node they were sent to.
+ */
+public class RateLimits {
+
+    private final RateLimiter.Limit userLimit;
+    private final RateLimiter.Limit roomLimit;
+    private final RateLimiter.Limit addressLimit;
+    private final FloodPolicy policy;
+    private final ServerMetrics metrics;
+    private final ConcurrentHashMap<Room, RateLimiter> roomLimiters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetAddress, AddressLimiter> addressLimiters = new ConcurrentHashMap<>();
+
+    /**
+     * Rate limits constructor.
+     *
+     * @param config  : The settings of the server, giving the limits and the flood policy.
+     * @param metrics : The metrics of the server, which violations of the limits are counted in.
+     */
+    public RateLimits(ServerConfig config, ServerMetrics metrics) {
+        this.userLimit = config.userLimit;
+        this.roomLimit = config.roomLimit;
+        this.addressLimit = config.addressLimit;
+        this.policy = config.floodPolicy;
+        this.metrics = metrics;
+    }
+
+    public FloodPolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Creates the sender a new connection checks its messages through, sharing the limiter of
+     * any other connection from the same address.
+     *
+     * @param address : The address the connection is from.
+     * @return : The sender, which must be released when the connection closes.
+     */
+    public Sender newSender(InetAddress address) {
+        AddressLimiter addressLimiter = null;
+        if (addressLimit != null && address != null) {
+            addressLimiter = addressLimiters.compute(address, (key, limiter) -> {
+                AddressLimiter shared = limiter != null ? limiter : new AddressLimiter(addressLimit);
+                shared.connections++;
+                return shared;
+            });
+        }
+        return new Sender(userLimit != null ? new RateLimiter(userLimit) : null, address, addressLimiter);
+    }
+
+    /**
+     * Finds the limiter of a room, creating it the first time the room is sent to.
+     *
+     * @param room : The room.
+     * @return : The room's limiter, or null if rooms are not limited.
+     */
+    private RateLimiter roomLimiter(Room room) {
+        if (roomLimit == null || room == null) {
+            return null;
+        }
+        RateLimiter limiter = roomLimiters.get(room);
+        return limiter != null ? limiter : roomLimiters.computeIfAbsent(room, key -> new RateLimiter(roomLimit));
+    }
+
+    /**
+     * The limiter shared by the connections from one address, and how many of them there are,
+     * so that it is forgotten once the last of them closes.
+     */
+    private static final class AddressLimiter extends RateLimiter {
+
+        // Only changed inside the map's compute methods.
+        private int connections = 0;
+
+        private AddressLimiter(RateLimiter.Limit limit) {
+            super(limit);
+        }
+    }
+
+    /**
+     * The limits as they apply to a single connection. Only used by the connection's reading
+     * thread, or its event loop.
+     * <p>
+     * A message passes the user's limit, then the address's, then the room's. A message held
+     * back by a later limit does not take from the earlier ones again when it is checked again,
+     * and a violation is counted once per message and limit.
+     */
+    public final class Sender {
+
+        private static final int USER = 0;
+        private static final int ADDRESS = 1;
+        private static final int ROOM = 2;
+
+        private final RateLimiter userLimiter;
+        private final InetAddress address;
+        private final AddressLimiter addressLimiter;
+        // The first limit the message being checked has not passed yet.
+        private int stage = USER;
+        private boolean counted = false;
+        private boolean dropping = false;
+
+        private Sender(RateLimiter userLimiter, InetAddress address, AddressLimiter addressLimiter) {
+            this.userLimiter = userLimiter;
+            this.address = address;
+            this.addressLimiter = addressLimiter;
+        }
+
+        /**
+         * Checks whether a message may be handled now, taking from every limit it passes.
+         * Under the drop policy a message that is refused is counted as dropped, and the next
+         * message is checked afresh.
+         *
+         * @param room : The room the message is sent to, or null for a command.
+         * @return : 0 if the message may be handled, otherwise how many nanoseconds until it may be.
+         */
+        public long admit(Room room) {
+            long now = System.nanoTime();
+            while (stage <= ROOM) {
+                RateLimiter limiter = stage == USER ? userLimiter : stage == ADDRESS ? addressLimiter : roomLimiter(room);
+                long wait = limiter != null ? limiter.tryAcquire(now) : 0;
+                if (wait > 0) {
+                    if (!counted) {
+                        countViolation();
+                        counted = true;
+                    }
+                    if (policy == FloodPolicy.DROP) {
+                        metrics.floodDrops.increment();
+                        stage = USER;
+                        counted = false;
+                    }
+                    return wait;
+                }
+                stage++;
+            }
+            stage = USER;
+            counted = false;
+            dropping = false;
+            return 0;
+        }
+
+        /**
+         * Whether the client should be told a message was dropped, which it is for the first
+         * message dropped since one was let through, rather than for every one.
+         *
+         * @return : True the first time it is asked since a message was let through.
+         */
+        public boolean shouldNotifyDrop() {
+            if (dropping) {
+                return false;
+            }
+            dropping = true;
+            return true;
+        }
+
+        /**
+         * Releases the connection's share of its address's limiter. Called once, as the
+         * connection closes.
+         */
+        public void release() {
+            if (addressLimiter == null) {
+                return;
+            }
+            addressLimiters.computeIfPresent(address, (key, limiter) -> --limiter.connections == 0 ? null : limiter);
+        }
+
+        private void countViolation() {
+            switch (stage) {
+                case USER:
+                    metrics.userLimited.increment();
+                    break;
+                case ADDRESS:
+                    metrics.addressLimited.increment();
+                    break;
+                default:
+                    metrics.roomLimited.increment();
+                    break;
+            }
+        }
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * A user connected to another node of the cluster, standing in as the origin of the messages
+ * relayed from that node. It is never a member of a room here, and nothing can be sent to it.
+ */
+public class RemoteMember implements ChatMember {
+
+    private final String username;
+
+    /**
+     * Remote member constructor.
+     *
+     * @param username : The username the user has on its own node.
+     */
+    public RemoteMember(String username) {
+        this.username = username;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * A remote user's username is kept by its own node.
+     *
+     * @param username : Ignored.
+     */
+    public void setUsername(String username) {
+    }
+
+    /**
+     * A remote user has no unique ID on this node.
+     *
+     * @return : Always -1.
+     */
+    public int getUid() {
+        return -1;
+    }
+
+    public int getPartition() {
+        return 0;
+    }
+
+    /**
+     * A remote user is not in any rooms on this node.
+     *
+     * @return : Always null.
+     */
+    public RoomMembership getRoomMembership() {
+        return null;
+    }
+
+    /**
+     * Messages for a remote user are delivered by its own node, so nothing is sent.
+     *
+     * @param message : Ignored.
+     */
+    public void send(String message) {
+    }
+
+    /**
+     * Messages for a remote user are delivered by its own node, so nothing is sent.
+     *
+     * @param message : Ignored.
+     */
+    public void deliver(ChatMessage message) {
+    }
+
+    /**
+     * Messages for a remote user are queued by its own node, so none wait here.
+     *
+     * @return : Always 0.
+     */
+    public int getQueueDepth() {
+        return 0;
+    }
+
+    /**
+     * A remote user is disconnected by its own node.
+     */
+    public void close() {
+    }
+}
@@ -0,0 +1,189 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A chat room: a name, a numeric ID, and the members subscribed to it. A message sent
+ * to a room only reaches the room's members.
+ * <p>
+ * Members are kept in partitions, one for each part of the server that delivers messages
+ * on its own, such as an EventLoopShard. Each part can then go through just the members
+ * it delivers to, without looking at the rest.
+ * <p>
+ * A message is numbered before it is sent to the members, so a member may join between the
+ * two. Each member is kept with the number of the last message sent before it joined, and is
+ * only sent the messages numbered after that; the ones before are in the history it is sent.
+ * <p>
+ * Messages sent to a room are numbered in sequence by the BroadcastPipeline, which then
+ * hands them to the room's journal, if it has one, in the same order as they are numbered.
+ */
+public class Room {
+
+    private final String name;
+    private final int id;
+    // What the lines of messages in the room start with, worked out once rather than per message.
+    private final String linePrefix;
+    // Each member, with the sequence number of the last message it is not sent.
+    private final List<ConcurrentHashMap<ChatMember, Long>> partitions;
+    // Numbering a message happens under this lock, as do subscribing a member and reading
+    // the last number given out, so that a member is sent every message numbered after it.
+    private final ReentrantLock sequenceLock = new ReentrantLock();
+    private long lastSequence = 0;
+    private volatile RoomJournal journal = null;
+
+    /**
+     * Room constructor.
+     *
+     * @param name       : The name of the room.
+     * @param id         : The unique ID of the room.
+     * @param partitions : The number of partitions to keep members in.
+     */
+    public Room(String name, int id, int partitions) {
+        this.name = name;
+        this.id = id;
+        this.linePrefix = RoomIndex.LOBBY.equals(name) ? "" : "[" + name + "] ";
+        this.partitions = new ArrayList<>(Math.max(1, partitions));
+        for (int i = 0; i < Math.max(1, partitions); i++) {
+            this.partitions.add(new ConcurrentHashMap<>());
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * What the line of every message in the room starts with: nothing in the lobby, as before
+     * there were rooms, and "[room] " in any other room.
+     *
+     * @return : The prefix.
+     */
+    public String getLinePrefix() {
+        return linePrefix;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * The journal the room's messages are kept in.
+     *
+     * @return : The journal, or null if the room keeps no history.
+     */
+    public RoomJournal getJournal() {
+        return journal;
+    }
+
+    /**
+     * Gives the room a journal, and carries the room's numbering on from the last message
+     * in it. Called once, as the room is created.
+     *
+     * @param journal : The room's journal.
+     */
+    public void setJournal(RoomJournal journal) {
+        sequenceLock.lock();
+        try {
+            this.journal = journal;
+            this.lastSequence = journal.getLastSequence();
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Creates the next message sent to the room, numbering it. Sequence numbers start at 1 and
+     * are carried by frames of the binary protocol. Called from the BroadcastPipeline's sequence
+     * stage, which hands the message to the room's journal afterwards.
+     *
+     * @param origin         : The client sending the message.
+     * @param text           : The text of the message.
+     * @param globalSequence : The sequence number of the message across every room of the server.
+     * @return : The message, ready to be sent to the room's members.
+     */
+    public ChatMessage post(ChatMember origin, String text, long globalSequence) {
+        sequenceLock.lock();
+        try {
+            return new ChatMessage(origin, this, ++lastSequence, globalSequence, text);
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Subscribes a member to the room, returning the sequence number of the last message the
+     * member will not be sent. Every later message is sent to the member, including any
+     * numbered but not yet sent when it joined.
+     *
+     * @param member    : The member to add.
+     * @param replaying : True if the member is being sent the room's history up to the
+     *                    returned number, even if it is already in the room.
+     * @return : The sequence number of the last message sent to the room before the member joined.
+     */
+    public long addAndGetSequence(ChatMember member, boolean replaying) {
+        sequenceLock.lock();
+        try {
+            Map<ChatMember, Long> members = partitions.get(member.getPartition());
+            if (replaying) {
+                members.put(member, lastSequence);
+                return lastSequence;
+            }
+            Long joinedAfter = members.putIfAbsent(member, lastSequence);
+            return joinedAfter == null ? lastSequence : joinedAfter;
+        } finally {
+            sequenceLock.unlock();
+        }
+    }
+
+    /**
+     * Unsubscribes a member from the room.
+     *
+     * @param member : The member to remove.
+     * @return : False if the member was not in the room.
+     */
+    public boolean remove(ChatMember member) {
+        return partitions.get(member.getPartition()).remove(member) != null;
+    }
+
+    /**
+     * Whether a member is subscribed to the room.
+     *
+     * @param member : The member to look for.
+     * @return : True if the member is in the room.
+     */
+    public boolean contains(ChatMember member) {
+        return partitions.get(member.getPartition()).containsKey(member);
+    }
+
+    /**
+     * Queues a message posted to the room for each member in one partition that joined before
+     * it was numbered. A message from the server rather than a member, numbered 0, is sent to
+     * every member. Members may join and leave meanwhile.
+     *
+     * @param partition : The partition whose members are sent the message.
+     * @param message   : The message.
+     */
+    public void deliver(int partition, ChatMessage message) {
+        long sequence = message.getSequence();
+        for (Map.Entry<ChatMember, Long> member : partitions.get(partition).entrySet()) {
+            if (sequence == 0 || sequence > member.getValue()) {
+                member.getKey().deliver(message);
+            }
+        }
+    }
+
+    /**
+     * The number of members in the room across every partition.
+     *
+     * @return : The number of members.
+     */
+    public int size() {
+        int size = 0;
+        for (Map<ChatMember, Long> partition : partitions) {
+            size += partition.size();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The rooms on a server, indexed by name. Every server has a lobby, which each client
+ * joins on connecting, so a client that never uses rooms behaves as if there were none.
+ * <p>
+ * If the server keeps a MessageJournal, every room is given a journal as it is created, and
+ * a client joining a room is sent the room's recent history.
+ * <p>
+ * If the server is a node of a cluster, the node is told whenever a room gains or loses a
+ * member, so that it can tell its peers which rooms it has members in.
+ * <p>
+ * If the server keeps Presence, it is told whenever a member joins or leaves a room, or
+ * takes up another username, so that it knows who is online in each room.
+ */
+public class RoomIndex {
+
+    public static final String LOBBY = "lobby";
+    public static final int MAX_NAME_LENGTH = 32;
+    // Passed as the starting point of a replay to ask for the room's last messages.
+    public static final long RECENT_HISTORY = -1;
+
+    private final ConcurrentHashMap<String, Room> roomsByName = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final int partitions;
+    private final MessageJournal journal;
+    private final Room lobby;
+    private volatile ClusterNode clusterNode;
+    private volatile Presence presence;
+
+    /**
+     * Room index constructor, creates the lobby. The rooms keep no history.
+     *
+     * @param partitions : The number of partitions each room keeps its members in.
+     */
+    public RoomIndex(int partitions) {
+        this(partitions, null);
+    }
+
+    /**
+     * Room index constructor, creates the lobby.
+     *
+     * @param partitions : The number of partitions each room keeps its members in.
+     * @param journal    : The journal to keep the rooms' history in, or null to keep none.
+     */
+    public RoomIndex(int partitions, MessageJournal journal) {
+        this.partitions = partitions;
+        this.journal = journal;
+        this.lobby = getOrCreate(LOBBY);
+    }
+
+    public Room getLobby() {
+        return lobby;
+    }
+
+    public void setClusterNode(ClusterNode clusterNode) {
+        this.clusterNode = clusterNode;
+    }
+
+    public Presence getPresence() {
+        return presence;
+    }
+
+    public void setPresence(Presence presence) {
+        this.presence = presence;
+    }
+
+    /**
+     * Looks up a room by name.
+     *
+     * @param name : The name of the room.
+     * @return : The room, or null if there is no room with that name.
+     */
+    public Room get(String name) {
+        return roomsByName.get(name);
+    }
+
+    /**
+     * Looks up a room by name, creating it if it does not exist yet. A new room is given the
+     * ID it had on earlier runs of the server, and its journal, if the server keeps one.
+     *
+     * @param name : The name of the room.
+     * @return : The room.
+     */
+    public Room getOrCreate(String name) {
+        return roomsByName.computeIfAbsent(name, roomName -> {
+            if (journal == null) {
+                return new Room(roomName, nextId.getAndIncrement(), partitions);
+            }
+            Room room = new Room(roomName, journal.roomId(roomName), partitions);
+            journal.attach(room);
+            return room;
+        });
+    }
+
+    /**
+     * Subscribes a member to a room and makes it the room the member's messages go to.
+     * A member joining a room it is not in yet is sent the room's recent history.
+     *
+     * @param member : The member joining.
+     * @param room   : The room to join.
+     */
+    public void join(ChatMember member, Room room) {
+        join(member, room, RECENT_HISTORY);
+    }
+
+    /**
+     * Subscribes a member to a room and makes it the room the member's messages go to,
+     * sending it the room's history if the room has a journal. The history is queued for the
+     * member before it joins, so that it arrives ahead of every message sent after the join.
+     *
+     * @param member        : The member joining.
+     * @param room          : The room to join.
+     * @param sinceSequence : Send the messages after this sequence number, or RECENT_HISTORY
+     *                      for the room's last messages if the member is not in the room yet.
+     */
+    public void join(ChatMember member, Room room, long sinceSequence) {
+        RoomJournal roomJournal = room.getJournal();
+        boolean joining = !room.contains(member);
+        CompletableFuture<JournalSlice> replay = null;
+        if (roomJournal != null && (sinceSequence != RECENT_HISTORY || joining)) {
+            replay = new CompletableFuture<>();
+            ChatMessage message = ChatMessage.replay(replay);
+            member.deliver(message);
+            message.release();
+        }
+        long lastSequence = room.addAndGetSequence(member, replay != null);
+        member.getRoomMembership().join(room);
+        if (replay != null) {
+            journal.replay(roomJournal, sinceSequence, lastSequence, replay);
+        }
+        Presence presence = this.presence;
+        if (joining && presence != null) {
+            presence.joined(room, member.getUsername());
+        }
+        updateInterest(room);
+    }
+
+    /**
+     * Unsubscribes a member from a room.
+     *
+     * @param member : The member leaving.
+     * @param room   : The room to leave.
+     * @return : False if the member was not in the room.
+     */
+    public boolean leave(ChatMember member, Room room) {
+        if (!room.remove(member)) {
+            return false;
+        }
+        member.getRoomMembership().leave(room, lobby);
+        Presence presence = this.presence;
+        if (presence != null) {
+            presence.left(room, member.getUsername());
+        }
+        updateInterest(room);
+        return true;
+    }
+
+    /**
+     * Unsubscribes a member from every room it is in. Used when a client disconnects.
+     *
+     * @param member : The member leaving.
+     */
+    public void leaveAll(ChatMember member) {
+        Presence presence = this.presence;
+        for (Room room : member.getRoomMembership().getRooms()) {
+            if (room.remove(member) && presence != null) {
+                presence.left(room, member.getUsername());
+            }
+            updateInterest(room);
+        }
+        member.getRoomMembership().clear();
+    }
+
+    /**
+     * Notes that a member has taken up another username, as a client resuming a session does,
+     * in every room it is in.
+     *
+     * @param member      : The member, already holding its new username.
+     * @param oldUsername : The username it held before.
+     */
+    public void renamed(ChatMember member, String oldUsername) {
+        Presence presence = this.presence;
+        if (presence == null) {
+            return;
+        }
+        for (Room room : member.getRoomMembership().getRooms()) {
+            presence.left(room, oldUsername);
+            presence.joined(room, member.getUsername());
+        }
+    }
+
+    /**
+     * Tells the cluster node, if there is one, that a room has gained or lost a member.
+     *
+     * @param room : The room.
+     */
+    private void updateInterest(Room room) {
+        ClusterNode node = clusterNode;
+        if (node != null) {
+            node.updateInterest(room);
+        }
+    }
+
+    /**
+     * Every room on the server, in the order they were created.
+     *
+     * @return : The rooms.
+     */
+    public List<Room> list() {
+        List<Room> rooms = new ArrayList<>(roomsByName.values());
+        rooms.sort(Comparator.comparingInt(Room::getId));
+        return rooms;
+    }
+
+    /**
+     * Whether a string can be used as a room name: a short word of letters, digits,
+     * dashes and underscores.
+     *
+     * @param name : The proposed room name.
+     * @return : True if the name is valid.
+     */
+    public static boolean isValidName(String name) {
+        if (name.isEmpty() || name.length() > MAX_NAME_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
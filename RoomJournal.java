@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The journal of a single room: the room's messages, in sequence, in a directory of
+ * JournalSegments. New messages go at the end of the last segment, and a new segment is
+ * started whenever the last one is full.
+ * <p>
+ * Other threads only hand messages to the journal. Every change to the segments is made by
+ * the MessageJournal's thread, so the segments need no locking.
+ */
+public class RoomJournal {
+
+    private final MessageJournal messageJournal;
+    private final Path directory;
+    private final List<JournalSegment> segments = new ArrayList<>();
+
+    /**
+     * Room journal constructor.
+     *
+     * @param messageJournal : The journal of the server the room is on.
+     * @param directory      : The directory the room's segments are kept in.
+     */
+    private RoomJournal(MessageJournal messageJournal, Path directory) {
+        this.messageJournal = messageJournal;
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the journal of a room, recovering any segments left by an earlier run of the server.
+     *
+     * @param messageJournal : The journal of the server the room is on.
+     * @param directory      : The directory the room's segments are kept in.
+     * @return : The room's journal.
+     * @throws IOException : If the directory or a segment could not be opened.
+     */
+    public static RoomJournal open(MessageJournal messageJournal, Path directory) throws IOException {
+        Files.createDirectories(directory);
+        RoomJournal roomJournal = new RoomJournal(messageJournal, directory);
+        List<Long> baseSequences = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*" + JournalSegment.FRAMES_SUFFIX)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    baseSequences.add(Long.parseLong(
+                            name.substring(0, name.length() - JournalSegment.FRAMES_SUFFIX.length())));
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring unexpected journal file " + file);
+                }
+            }
+        }
+        Collections.sort(baseSequences);
+        try {
+            for (int i = 0; i < baseSequences.size(); i++) {
+                JournalSegment segment = JournalSegment.open(directory, baseSequences.get(i));
+                roomJournal.segments.add(segment);
+                segment.recover(i == baseSequences.size() - 1);
+            }
+            if (roomJournal.segments.isEmpty()) {
+                roomJournal.segments.add(JournalSegment.open(directory, 1));
+            }
+        } catch (IOException e) {
+            roomJournal.close();
+            throw e;
+        }
+        return roomJournal;
+    }
+
+    /**
+     * The sequence number of the last message in the journal, which the room carries on from.
+     *
+     * @return : The sequence number, or 0 for an empty journal.
+     */
+    public long getLastSequence() {
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            JournalSegment segment = segments.get(i);
+            if (segment.getLastSequence() >= segment.getBaseSequence()) {
+                return segment.getLastSequence();
+            }
+        }
+        return segments.get(0).getBaseSequence() - 1;
+    }
+
+    /**
+     * Hands a message to the journal's thread to be appended, retaining it until it has been.
+     * This never blocks, so it can be called while a message is being sent.
+     *
+     * @param message : The message, which must be numbered after every message already handed over.
+     */
+    public void append(ChatMessage message) {
+        message.retain();
+        messageJournal.submit(() -> {
+            try {
+                write(message);
+            } finally {
+                message.release();
+            }
+        });
+    }
+
+    /**
+     * Appends a message to the last segment, starting a new segment if it is full.
+     * Called from the journal's thread.
+     *
+     * @param message : The message to append.
+     */
+    public void write(ChatMessage message) {
+        JournalSegment tail = segments.get(segments.size() - 1);
+        if (tail.append(message)) {
+            return;
+        }
+        try {
+            JournalSegment segment = JournalSegment.open(directory, message.getSequence());
+            segments.add(segment);
+            segment.append(message);
+        } catch (IOException e) {
+            Log.warn("Failed to start a new journal segment in " + directory);
+        }
+    }
+
+    /**
+     * Finds the messages numbered between two sequence numbers, inclusive. Called from the
+     * journal's thread, after every message up to the last one asked for has been appended.
+     *
+     * @param fromSequence : The sequence number of the first message.
+     * @param toSequence   : The sequence number of the last message.
+     * @return : The messages that are in the journal.
+     */
+    public JournalSlice slice(long fromSequence, long toSequence) {
+        JournalSlice slice = new JournalSlice();
+        for (JournalSegment segment : segments) {
+            if (segment.getLastSequence() < fromSequence || segment.getBaseSequence() > toSequence) {
+                continue;
+            }
+            slice.add(segment, segment.find(fromSequence), segment.find(toSequence + 1));
+        }
+        return slice;
+    }
+
+    /**
+     * Forces every change to the journal onto the disk. Called from the journal's thread.
+     */
+    public void force() {
+        for (JournalSegment segment : segments) {
+            segment.force();
+        }
+    }
+
+    /**
+     * Forces and closes every segment.
+     */
+    public void close() {
+        for (JournalSegment segment : segments) {
+            try {
+                segment.close();
+            } catch (IOException e) {
+                Log.error("Failed to close a journal segment in " + directory + ".", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The rooms one client is subscribed to, and the room its messages currently go to.
+ */
+public class RoomMembership {
+
+    private final Set<Room> rooms = ConcurrentHashMap.newKeySet();
+    private volatile Room currentRoom = null;
+
+    /**
+     * The room the client's messages go to.
+     *
+     * @return : The current room, or null if the client is in no rooms.
+     */
+    public Room getCurrentRoom() {
+        return currentRoom;
+    }
+
+    /**
+     * Every room the client is subscribed to.
+     *
+     * @return : The rooms.
+     */
+    public Set<Room> getRooms() {
+        return rooms;
+    }
+
+    /**
+     * Whether the client is subscribed to a room.
+     *
+     * @param room : The room to check.
+     * @return : True if the client is in the room.
+     */
+    public boolean isIn(Room room) {
+        return rooms.contains(room);
+    }
+
+    /**
+     * Records that the client has joined a room, which becomes its current room.
+     *
+     * @param room : The room joined.
+     */
+    public void join(Room room) {
+        rooms.add(room);
+        currentRoom = room;
+    }
+
+    /**
+     * Records that the client has left a room. If it was the current room, the client's
+     * messages go to the lobby if it is still in the lobby, or else to any room it is still in.
+     *
+     * @param room  : The room left.
+     * @param lobby : The server's lobby.
+     */
+    public void leave(Room room, Room lobby) {
+        rooms.remove(room);
+        if (currentRoom != room) {
+            return;
+        }
+        if (rooms.contains(lobby)) {
+            currentRoom = lobby;
+        } else {
+            currentRoom = rooms.isEmpty() ? null : rooms.iterator().next();
+        }
+    }
+
+    /**
+     * Records that the client has left every room.
+     */
+    public void clear() {
+        rooms.clear();
+        currentRoom = null;
+    }
+}
@@ -0,0 +1,587 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A full-text index of every message sent to a room, kept on disk so that clients can search
+ * past messages with /search, even across restarts of the server.
+ * <p>
+ * The index runs on a thread of its own. The persist stage of the BroadcastPipeline only
+ * hands each message to that thread, which splits it into terms and adds it to an inverted
+ * index held in memory. Every FLUSH_DOCUMENTS messages, or every flush interval, the messages
+ * in memory are written out as a new immutable SearchSegment. Searches are handed to the same
+ * thread, and look through the messages in memory and then every segment, newest first.
+ * <p>
+ * A second thread merges segments in the background, so that the number of segments a search
+ * has to look through stays low: whenever MERGE_FACTOR segments of the same size class sit
+ * next to each other, they are merged into one. The segments in use are listed in
+ * MANIFEST_FILE, which is replaced as a whole whenever a segment is written or merged, so
+ * that a restart always finds a complete set.
+ */
+public class SearchIndex implements Runnable {
+
+    public static final String MANIFEST_FILE = "segments.txt";
+    public static final int FLUSH_DOCUMENTS = 4096;
+    public static final long DEFAULT_FLUSH_MILLIS = 1000;
+    public static final int MERGE_FACTOR = 8;
+    public static final int MAX_SEGMENT_DOCUMENTS = 1 << 22;
+    public static final long MAX_SEGMENT_BYTES = 1L << 30;
+    public static final int RESULT_LIMIT = 10;
+    public static final int MAX_QUERY_TERMS = 8;
+    public static final int MAX_TERM_LENGTH = 32;
+    // How many messages are kept in memory while segments cannot be written, before they are dropped.
+    private static final int MAX_BUFFERED_DOCUMENTS = 16 * FLUSH_DOCUMENTS;
+    private static final long MERGE_RETRY_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private final Path directory;
+    private final long flushIntervalNanos;
+    private final ServerMetrics metrics;
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final Thread indexThread;
+    private final Thread mergeThread;
+    // The segments in use, oldest first, replaced as a whole under the lock whenever one is added or merged.
+    private volatile List<SearchSegment> segments;
+    private final ReentrantLock segmentLock = new ReentrantLock();
+    private long nextGeneration = 0;
+    // The messages not yet written to a segment, and the postings of their terms, kept by the index's thread.
+    private final List<Document> buffered = new ArrayList<>();
+    private final Map<String, SearchSegment.Postings> bufferedTerms = new HashMap<>();
+    private final AtomicLong merges = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * Index constructor, opens the segments listed by earlier runs and starts the index's threads.
+     *
+     * @param directory           : The directory to keep the index in.
+     * @param flushIntervalMillis : The longest a message is kept in memory before it is written
+     *                              to a segment, in milliseconds.
+     * @param metrics             : The metrics of the server, which searches are counted in.
+     * @throws IOException : If the directory could not be created or read.
+     */
+    public SearchIndex(Path directory, long flushIntervalMillis, ServerMetrics metrics) throws IOException {
+        this.directory = directory;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, flushIntervalMillis));
+        this.metrics = metrics;
+        Files.createDirectories(directory);
+        segments = loadSegments();
+        indexThread = new Thread(this, "SearchIndex");
+        indexThread.setDaemon(true);
+        mergeThread = new Thread(this::runMerges, "SearchIndex-merge");
+        mergeThread.setDaemon(true);
+        indexThread.start();
+        mergeThread.start();
+    }
+
+    /**
+     * Opens the search index configured for a server.
+     *
+     * @param config  : The settings of the server.
+     * @param metrics : The metrics of the server.
+     * @return : The index, or null if the server keeps no index or it could not be opened.
+     */
+    public static SearchIndex open(ServerConfig config, ServerMetrics metrics) {
+        if (config.searchDirectory == null) {
+            return null;
+        }
+        try {
+            Log.info("Opening search index in " + config.searchDirectory + "...");
+            SearchIndex index = new SearchIndex(Paths.get(config.searchDirectory), DEFAULT_FLUSH_MILLIS, metrics);
+            metrics.watch(index);
+            return index;
+        } catch (IOException e) {
+            Log.warn("Could not open search index. Running without search.");
+            return null;
+        }
+    }
+
+    /**
+     * Opens the segments listed in the manifest, in order, and deletes any other segment file
+     * left behind by a flush or merge that did not finish.
+     *
+     * @return : The segments, oldest first.
+     * @throws IOException : If the directory could not be read.
+     */
+    private List<SearchSegment> loadSegments() throws IOException {
+        List<SearchSegment> loaded = new ArrayList<>();
+        Set<Long> listed = new HashSet<>();
+        Path manifest = directory.resolve(MANIFEST_FILE);
+        if (Files.exists(manifest)) {
+            for (String line : Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    long generation = Long.parseLong(line.trim());
+                    loaded.add(SearchSegment.open(directory, generation));
+                    listed.add(generation);
+                    nextGeneration = Math.max(nextGeneration, generation + 1);
+                } catch (NumberFormatException e) {
+                    Log.warn("Ignoring unexpected line in " + manifest);
+                } catch (IOException | RuntimeException e) {
+                    Log.warn("Could not open search segment " + line.trim() + ". Its messages cannot be searched.");
+                }
+            }
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp")) {
+                    Files.deleteIfExists(file);
+                } else if (name.endsWith(SearchSegment.EXTENSION)) {
+                    try {
+                        long generation = Long.parseLong(name.substring(0, name.length() - SearchSegment.EXTENSION.length()));
+                        if (!listed.contains(generation)) {
+                            Files.deleteIfExists(file);
+                        }
+                    } catch (NumberFormatException e) {
+                        // Not one of the index's files.
+                    }
+                }
+            }
+        }
+        return Collections.unmodifiableList(loaded);
+    }
+
+    /**
+     * Hands a message to the index's thread. Called from the persist stage of the
+     * BroadcastPipeline, and only copies out what is indexed, so the message is not kept.
+     *
+     * @param message : A message sent to a room.
+     */
+    public void add(ChatMessage message) {
+        if (!running || message.getRoom() == null) {
+            return;
+        }
+        String sender = message.getSender();
+        Document document = new Document(message.getRoom().getName(), message.getSequence(),
+                sender == null ? "server" : sender, message.getText());
+        tasks.offer(() -> index(document));
+    }
+
+    /**
+     * Asks the index's thread to search for the messages holding every term of a query, and
+     * to send the newest RESULT_LIMIT of them to a client.
+     *
+     * @param member : The client searching.
+     * @param query  : The terms to search for.
+     */
+    public void search(ChatMember member, String query) {
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(query, terms::add);
+        if (terms.isEmpty()) {
+            member.send("Usage: /search terms");
+            return;
+        }
+        if (terms.size() > MAX_QUERY_TERMS) {
+            member.send("Searches are for up to " + MAX_QUERY_TERMS + " terms.");
+            return;
+        }
+        if (!running) {
+            member.send("Search is not available while the server closes.");
+            return;
+        }
+        long askedNanos = System.nanoTime();
+        tasks.offer(() -> {
+            List<Document> results = new ArrayList<>();
+            long total = find(new ArrayList<>(terms), results);
+            String description = "\"" + String.join(" ", terms) + "\"";
+            if (total == 0) {
+                member.send("No messages match " + description + ".");
+            } else {
+                member.send("Search for " + description + ": " + total + (total == 1 ? " message" : " messages")
+                        + (total > results.size() ? ", newest " + results.size() + " shown." : "."));
+                for (Document result : results) {
+                    member.send(result.describe());
+                }
+            }
+            metrics.searchQueries.increment();
+            metrics.searchLatency.record(System.nanoTime() - askedNanos);
+        });
+    }
+
+    /**
+     * Splits text into the terms it is indexed and searched by: runs of letters and digits,
+     * in lower case. Runs longer than MAX_TERM_LENGTH are skipped.
+     *
+     * @param text  : The text.
+     * @param terms : Given each term in turn.
+     */
+    public static void tokenize(String text, Consumer<String> terms) {
+        StringBuilder term = new StringBuilder();
+        int length = text.length();
+        for (int i = 0; i <= length; ) {
+            int codePoint = i < length ? text.codePointAt(i) : ' ';
+            if (Character.isLetterOrDigit(codePoint)) {
+                term.appendCodePoint(Character.toLowerCase(codePoint));
+            } else if (term.length() > 0) {
+                if (term.length() <= MAX_TERM_LENGTH) {
+                    terms.accept(term.toString());
+                }
+                term.setLength(0);
+            }
+            i += Character.charCount(codePoint);
+        }
+    }
+
+    /**
+     * Adds a message to the messages held in memory, writing them out as a segment once there
+     * are FLUSH_DOCUMENTS of them. Called from the index's thread.
+     *
+     * @param document : The message.
+     */
+    private void index(Document document) {
+        int number = buffered.size();
+        buffered.add(document);
+        tokenize(document.text, term -> bufferedTerms.computeIfAbsent(term, t -> new SearchSegment.Postings()).add(number));
+        metrics.searchIndexed.increment();
+        // Counted in multiples, so that a segment that cannot be written is not retried on every message.
+        if (buffered.size() % FLUSH_DOCUMENTS == 0) {
+            flush();
+        }
+    }
+
+    /**
+     * Finds the messages holding every term, in memory and then in each segment, newest first.
+     * Called from the index's thread.
+     *
+     * @param terms   : The terms.
+     * @param results : The list the newest RESULT_LIMIT messages found are added to, newest first.
+     * @return : The number of messages found.
+     */
+    private long find(List<String> terms, List<Document> results) {
+        long total = 0;
+        SearchSegment.Postings matches = intersect(terms, bufferedTerms::get);
+        if (matches != null) {
+            total += matches.size();
+            for (int i = matches.size() - 1; i >= 0 && results.size() < RESULT_LIMIT; i--) {
+                results.add(buffered.get(matches.get(i)));
+            }
+        }
+        List<SearchSegment> current = segments;
+        for (int s = current.size() - 1; s >= 0; s--) {
+            SearchSegment segment = current.get(s);
+            matches = intersect(terms, segment::postings);
+            if (matches == null) {
+                continue;
+            }
+            total += matches.size();
+            for (int i = matches.size() - 1; i >= 0 && results.size() < RESULT_LIMIT; i--) {
+                results.add(segment.document(matches.get(i)));
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Intersects the postings of every term, starting from the shortest.
+     *
+     * @param terms    : The terms.
+     * @param postings : Gives the postings of a term, or null if no message holds it.
+     * @return : The messages holding every term, or null if there are none.
+     */
+    private static SearchSegment.Postings intersect(List<String> terms,
+                                                    Function<String, SearchSegment.Postings> postings) {
+        List<SearchSegment.Postings> lists = new ArrayList<>(terms.size());
+        for (String term : terms) {
+            SearchSegment.Postings list = postings.apply(term);
+            if (list == null) {
+                return null;
+            }
+            lists.add(list);
+        }
+        lists.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        SearchSegment.Postings matches = lists.get(0);
+        for (int i = 1; i < lists.size() && matches.size() > 0; i++) {
+            matches = matches.intersect(lists.get(i));
+        }
+        return matches.size() == 0 ? null : matches;
+    }
+
+    /**
+     * Runs the index's thread: takes every task handed over so far and runs them in turn,
+     * writing the messages in memory to a segment whenever the flush interval has passed.
+     */
+    public void run() {
+        long nextFlush = System.nanoTime() + flushIntervalNanos;
+        while (running) {
+            try {
+                Runnable task = tasks.poll(Math.max(0, nextFlush - System.nanoTime()), TimeUnit.NANOSECONDS);
+                while (task != null) {
+                    task.run();
+                    task = tasks.poll();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (RuntimeException e) {
+                Log.error("The search index failed to run a task.", e);
+            }
+            if (System.nanoTime() - nextFlush >= 0) {
+                flush();
+                nextFlush = System.nanoTime() + flushIntervalNanos;
+            }
+        }
+    }
+
+    /**
+     * Writes the messages held in memory to a new segment and adds it to the manifest. If the
+     * segment cannot be written the messages are kept and tried again at the next flush, up
+     * to MAX_BUFFERED_DOCUMENTS of them. Called from the index's thread, or once it has stopped.
+     */
+    private void flush() {
+        if (buffered.isEmpty()) {
+            return;
+        }
+        SearchSegment segment = null;
+        try {
+            segment = SearchSegment.write(directory, takeGeneration(), buffered, new TreeMap<>(bufferedTerms));
+            replace(Collections.emptyList(), segment);
+        } catch (IOException | RuntimeException e) {
+            if (segment != null) {
+                segment.delete();
+            }
+            if (buffered.size() < MAX_BUFFERED_DOCUMENTS) {
+                Log.warn("Could not write a search segment. Keeping its messages in memory: " + e.getMessage());
+                return;
+            }
+            Log.warn("Could not write a search segment. Dropping " + buffered.size() + " messages from the index.");
+        }
+        buffered.clear();
+        bufferedTerms.clear();
+        LockSupport.unpark(mergeThread);
+    }
+
+    private long takeGeneration() {
+        segmentLock.lock();
+        try {
+            return nextGeneration++;
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * Puts a segment in place of a run of segments, or after every segment if the run is empty,
+     * recording the change in the manifest before anyone can search the new segment.
+     *
+     * @param run     : The segments replaced, which must be next to each other and in order.
+     * @param segment : The segment that replaces them.
+     * @throws IOException : If the manifest could not be written, in which case nothing is replaced.
+     */
+    private void replace(List<SearchSegment> run, SearchSegment segment) throws IOException {
+        segmentLock.lock();
+        try {
+            List<SearchSegment> current = segments;
+            int start = run.isEmpty() ? current.size() : current.indexOf(run.get(0));
+            List<SearchSegment> replaced = new ArrayList<>(current.subList(0, start));
+            replaced.add(segment);
+            replaced.addAll(current.subList(start + run.size(), current.size()));
+            writeManifest(replaced);
+            segments = Collections.unmodifiableList(replaced);
+        } finally {
+            segmentLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the manifest with one listing the given segments, by writing it under a
+     * temporary name, forcing it onto the disk and renaming it over the old one.
+     *
+     * @param list : The segments, oldest first.
+     * @throws IOException : If the manifest could not be written.
+     */
+    private void writeManifest(List<SearchSegment> list) throws IOException {
+        StringBuilder manifest = new StringBuilder();
+        for (SearchSegment segment : list) {
+            manifest.append(segment.getGeneration()).append('\n');
+        }
+        Path temporary = directory.resolve(MANIFEST_FILE + ".tmp");
+        Files.write(temporary, manifest.toString().getBytes(StandardCharsets.UTF_8));
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(temporary, directory.resolve(MANIFEST_FILE), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Runs the merge thread: merges segments while there is a run to merge, then sleeps until
+     * the index's thread writes another segment.
+     */
+    private void runMerges() {
+        while (running) {
+            List<SearchSegment> run = findMerge(segments);
+            if (run == null) {
+                LockSupport.park(this);
+                continue;
+            }
+            SearchSegment merged = null;
+            try {
+                merged = SearchSegment.merge(directory, takeGeneration(), run);
+                replace(run, merged);
+            } catch (IOException | RuntimeException e) {
+                Log.warn("Could not merge search segments: " + e.getMessage());
+                if (merged != null) {
+                    merged.delete();
+                }
+                LockSupport.parkNanos(this, MERGE_RETRY_NANOS);
+                continue;
+            }
+            // A search still reading a merged segment keeps reading it through its map.
+            for (SearchSegment segment : run) {
+                segment.delete();
+            }
+            merges.incrementAndGet();
+            Log.debug("Merged " + run.size() + " search segments into " + merged.getGeneration()
+                    + SearchSegment.EXTENSION + ".");
+        }
+    }
+
+    /**
+     * Finds the oldest MERGE_FACTOR segments next to each other in the same size class, each
+     * class holding MERGE_FACTOR times as many messages as the one below it, that can be merged
+     * without going over MAX_SEGMENT_DOCUMENTS or MAX_SEGMENT_BYTES.
+     *
+     * @param list : The segments, oldest first.
+     * @return : The run of segments to merge, or null if there is none.
+     */
+    static List<SearchSegment> findMerge(List<SearchSegment> list) {
+        for (int start = 0; start + MERGE_FACTOR <= list.size(); start++) {
+            int sizeClass = sizeClass(list.get(start).getDocumentCount());
+            long documents = 0;
+            long bytes = 0;
+            int end = start;
+            while (end < start + MERGE_FACTOR && sizeClass(list.get(end).getDocumentCount()) == sizeClass) {
+                documents += list.get(end).getDocumentCount();
+                bytes += list.get(end).getLength();
+                end++;
+            }
+            if (end == start + MERGE_FACTOR && documents <= MAX_SEGMENT_DOCUMENTS && bytes <= MAX_SEGMENT_BYTES) {
+                return new ArrayList<>(list.subList(start, end));
+            }
+        }
+        return null;
+    }
+
+    private static int sizeClass(int documents) {
+        int sizeClass = 0;
+        for (long bound = (long) FLUSH_DOCUMENTS * MERGE_FACTOR; documents >= bound; bound *= MERGE_FACTOR) {
+            sizeClass++;
+        }
+        return sizeClass;
+    }
+
+    /**
+     * The number of segments in use.
+     *
+     * @return : The segments.
+     */
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * The number of merges finished since the server started.
+     *
+     * @return : The merges.
+     */
+    public long getMerges() {
+        return merges.get();
+    }
+
+    /**
+     * Closes the index: stops taking messages and searches, lets the index's thread finish the
+     * ones it has, and writes the messages held in memory to a last segment. A merge under way
+     * is given a few seconds to finish, and otherwise left to be redone on the next start.
+     */
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        // Wake the index's thread, which then sees that the index has closed.
+        tasks.offer(() -> {
+        });
+        LockSupport.unpark(mergeThread);
+        try {
+            indexThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        flush();
+        try {
+            mergeThread.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * A message as the index keeps it: where it was sent, by whom, and its text.
+     */
+    public static final class Document {
+
+        private final String room;
+        private final long sequence;
+        private final String sender;
+        private final String text;
+
+        public Document(String room, long sequence, String sender, String text) {
+            this.room = room;
+            this.sequence = sequence;
+            this.sender = sender;
+            this.text = text;
+        }
+
+        public String getRoom() {
+            return room;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Describes the message as a search result, on a single line.
+         *
+         * @return : The room, the message's number in the room, its sender and its text.
+         */
+        public String describe() {
+            return "[" + room + "] #" + sequence + " " + sender + ": " + text.replace('\r', ' ').replace('\n', ' ');
+        }
+    }
+}
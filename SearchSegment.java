@@ -0,0 +1,587 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+
+/**
+ * A single segment of a SearchIndex: an immutable file holding a run of messages, numbered
+ * from 0 in the order they were sent, and the postings of every term in them. A segment is
+ * written once, either from the messages the index has gathered in memory or by merging
+ * older segments, and is then only read, through a read-only memory map.
+ * <p>
+ * The file holds, in order: the messages; the offset of each message; the postings of each
+ * term, as the gaps between the numbers of the messages holding it, each written in as few
+ * bytes as it needs; the dictionary of terms in order, each with its number of messages and
+ * the offset of its postings; and a footer giving where each of these starts. Every 32nd
+ * term of the dictionary is kept in memory, so that finding a term means a binary search of
+ * those and a short scan of the dictionary from there.
+ */
+public class SearchSegment {
+
+    public static final String EXTENSION = ".seg";
+    private static final int MAGIC = 0x43534547;
+    private static final int HEADER_LENGTH = 4;
+    private static final int FOOTER_LENGTH = 20;
+    private static final int INDEX_INTERVAL = 32;
+    private static final int COPY_CHUNK = 64 * 1024;
+
+    private final Path file;
+    private final long generation;
+    private final MappedByteBuffer map;
+    private final int documentCount;
+    private final int termCount;
+    private final int documentIndexStart;
+    private final int dictionaryStart;
+    private final int dictionaryEnd;
+    // Every INDEX_INTERVAL-th term of the dictionary, and where its entry starts.
+    private final String[] indexTerms;
+    private final int[] indexOffsets;
+
+    /**
+     * Segment constructor, maps a segment file and reads its footer and dictionary.
+     *
+     * @param file       : The file.
+     * @param generation : The number the file is named after.
+     * @throws IOException : If the file could not be read, or is not a whole segment.
+     */
+    private SearchSegment(Path file, long generation) throws IOException {
+        this.file = file;
+        this.generation = generation;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_LENGTH + FOOTER_LENGTH || size > Integer.MAX_VALUE) {
+                throw new IOException("Search segment " + file + " has the wrong length.");
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int footer = map.capacity() - FOOTER_LENGTH;
+        if (map.getInt(0) != MAGIC || map.getInt(footer + 16) != MAGIC) {
+            throw new IOException("Search segment " + file + " is incomplete.");
+        }
+        documentCount = map.getInt(footer);
+        termCount = map.getInt(footer + 4);
+        documentIndexStart = map.getInt(footer + 8);
+        dictionaryStart = map.getInt(footer + 12);
+        dictionaryEnd = footer;
+        if (documentCount < 0 || termCount < 0 || documentIndexStart < HEADER_LENGTH
+                || documentIndexStart + 4L * documentCount > dictionaryStart || dictionaryStart > dictionaryEnd) {
+            throw new IOException("Search segment " + file + " has a malformed footer.");
+        }
+        int indexSize = (termCount + INDEX_INTERVAL - 1) / INDEX_INTERVAL;
+        indexTerms = new String[indexSize];
+        indexOffsets = new int[indexSize];
+        TermCursor cursor = new TermCursor();
+        for (int i = 0; i < termCount; i++) {
+            int offset = cursor.input.position();
+            if (!cursor.next()) {
+                throw new IOException("Search segment " + file + " has a malformed dictionary.");
+            }
+            if (i % INDEX_INTERVAL == 0) {
+                indexTerms[i / INDEX_INTERVAL] = cursor.term;
+                indexOffsets[i / INDEX_INTERVAL] = offset;
+            }
+        }
+    }
+
+    /**
+     * Opens an existing segment.
+     *
+     * @param directory  : The directory of the index.
+     * @param generation : The number the segment's file is named after.
+     * @return : The segment.
+     * @throws IOException : If the file could not be read, or is not a whole segment.
+     */
+    public static SearchSegment open(Path directory, long generation) throws IOException {
+        return new SearchSegment(fileOf(directory, generation), generation);
+    }
+
+    /**
+     * The file a segment is kept in.
+     *
+     * @param directory  : The directory of the index.
+     * @param generation : The number the segment's file is named after.
+     * @return : The file.
+     */
+    public static Path fileOf(Path directory, long generation) {
+        return directory.resolve(generation + EXTENSION);
+    }
+
+    /**
+     * Writes the messages gathered in memory as a new segment.
+     *
+     * @param directory  : The directory of the index.
+     * @param generation : The number to name the segment's file after.
+     * @param documents  : The messages, in the order they were numbered.
+     * @param terms      : The postings of every term in the messages, in the order of the terms.
+     * @return : The new segment.
+     * @throws IOException : If the segment could not be written, in which case no file is left behind.
+     */
+    public static SearchSegment write(Path directory, long generation, List<SearchIndex.Document> documents,
+                                      SortedMap<String, Postings> terms) throws IOException {
+        Writer writer = new Writer(directory, generation);
+        try {
+            for (SearchIndex.Document document : documents) {
+                writer.addDocument(document);
+            }
+            writer.endDocuments();
+            for (Map.Entry<String, Postings> term : terms.entrySet()) {
+                writer.addTerm(term.getKey(), term.getValue());
+            }
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    /**
+     * Merges a run of segments into a single new segment. The messages of each segment follow
+     * those of the segment before it, and the postings of each term are joined in the same order.
+     *
+     * @param directory  : The directory of the index.
+     * @param generation : The number to name the new segment's file after.
+     * @param segments   : The segments to merge, oldest first.
+     * @return : The new segment. The segments merged are left as they were.
+     * @throws IOException : If the segment could not be written, in which case no file is left behind.
+     */
+    public static SearchSegment merge(Path directory, long generation, List<SearchSegment> segments)
+            throws IOException {
+        Writer writer = new Writer(directory, generation);
+        try {
+            int[] firstDocuments = new int[segments.size()];
+            int documents = 0;
+            for (int i = 0; i < segments.size(); i++) {
+                firstDocuments[i] = documents;
+                documents += segments.get(i).documentCount;
+                writer.copyDocuments(segments.get(i));
+            }
+            writer.endDocuments();
+            // Walk every dictionary at once, taking the lowest term and, for a tie, the oldest segment.
+            PriorityQueue<MergeCursor> cursors = new PriorityQueue<>();
+            for (int i = 0; i < segments.size(); i++) {
+                MergeCursor cursor = new MergeCursor(segments.get(i), i, firstDocuments[i]);
+                if (cursor.next()) {
+                    cursors.add(cursor);
+                }
+            }
+            Postings postings = new Postings();
+            List<MergeCursor> current = new ArrayList<>();
+            while (!cursors.isEmpty()) {
+                String term = cursors.peek().term;
+                while (!cursors.isEmpty() && cursors.peek().term.equals(term)) {
+                    current.add(cursors.poll());
+                }
+                postings.clear();
+                for (MergeCursor cursor : current) {
+                    cursor.segment.decode(cursor.count, cursor.postingsOffset, cursor.firstDocument, postings);
+                    if (cursor.next()) {
+                        cursors.add(cursor);
+                    }
+                }
+                current.clear();
+                writer.addTerm(term, postings);
+            }
+            return writer.finish();
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * The length of the segment's file.
+     *
+     * @return : The length in bytes.
+     */
+    public long getLength() {
+        return map.capacity();
+    }
+
+    /**
+     * Finds the messages holding a term.
+     *
+     * @param term : The term, as the tokenizer gives it.
+     * @return : The numbers of the messages holding the term in ascending order, or null if none do.
+     */
+    public Postings postings(String term) {
+        int slot = Arrays.binarySearch(indexTerms, term);
+        if (slot < 0) {
+            slot = -slot - 2;
+            if (slot < 0) {
+                return null;
+            }
+        }
+        TermCursor cursor = new TermCursor();
+        cursor.input.position(indexOffsets[slot]);
+        int remaining = Math.min(INDEX_INTERVAL, termCount - slot * INDEX_INTERVAL);
+        for (int i = 0; i < remaining && cursor.next(); i++) {
+            int order = cursor.term.compareTo(term);
+            if (order == 0) {
+                Postings postings = new Postings();
+                decode(cursor.count, cursor.postingsOffset, 0, postings);
+                return postings;
+            }
+            if (order > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Reads a message back from the segment.
+     *
+     * @param number : The number of the message within the segment.
+     * @return : The message.
+     */
+    public SearchIndex.Document document(int number) {
+        ByteBuffer input = map.duplicate();
+        input.position(map.getInt(documentIndexStart + 4 * number));
+        String room = readString(input);
+        long sequence = readVarLong(input);
+        String sender = readString(input);
+        String text = readString(input);
+        return new SearchIndex.Document(room, sequence, sender, text);
+    }
+
+    /**
+     * Decodes the postings of a term, adding each message number to a list.
+     *
+     * @param count         : The number of messages the postings list.
+     * @param offset        : Where the postings start in the file.
+     * @param firstDocument : The number added to every message number.
+     * @param postings      : The list the numbers are added to.
+     */
+    private void decode(int count, int offset, int firstDocument, Postings postings) {
+        ByteBuffer input = map.duplicate();
+        input.position(offset);
+        int document = firstDocument;
+        for (int i = 0; i < count; i++) {
+            document += readVarInt(input);
+            postings.add(document);
+        }
+    }
+
+    /**
+     * Deletes the segment's file. The segment may still be read through its map until it is
+     * no longer referenced.
+     */
+    public void delete() {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            Log.warn("Could not delete search segment " + file + ".");
+        }
+    }
+
+    private static void writeVarInt(OutputStream output, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            output.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write(value);
+    }
+
+    private static void writeVarLong(OutputStream output, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            output.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        output.write((int) value);
+    }
+
+    private static void writeString(OutputStream output, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(output, bytes.length);
+        output.write(bytes);
+    }
+
+    private static int readVarInt(ByteBuffer input) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = input.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static long readVarLong(ByteBuffer input) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = input.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer input) {
+        byte[] bytes = new byte[readVarInt(input)];
+        input.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * A growing list of message numbers in ascending order, as held for each term.
+     */
+    public static final class Postings {
+
+        private int[] documents = new int[4];
+        private int size = 0;
+
+        /**
+         * Adds a message number, unless it is the last one added, so that a term appearing
+         * twice in a message lists it once.
+         *
+         * @param document : The number, which must not be below the last one added.
+         */
+        public void add(int document) {
+            if (size > 0 && documents[size - 1] == document) {
+                return;
+            }
+            if (size == documents.length) {
+                documents = Arrays.copyOf(documents, size * 2);
+            }
+            documents[size++] = document;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public int get(int index) {
+            return documents[index];
+        }
+
+        public void clear() {
+            size = 0;
+        }
+
+        /**
+         * The message numbers found in both of two lists.
+         *
+         * @param other : The other list.
+         * @return : A new list of the numbers in both.
+         */
+        public Postings intersect(Postings other) {
+            Postings both = new Postings();
+            int i = 0;
+            int j = 0;
+            while (i < size && j < other.size) {
+                int order = Integer.compare(documents[i], other.documents[j]);
+                if (order == 0) {
+                    both.add(documents[i]);
+                    i++;
+                    j++;
+                } else if (order < 0) {
+                    i++;
+                } else {
+                    j++;
+                }
+            }
+            return both;
+        }
+    }
+
+    /**
+     * Reads a segment's dictionary one term at a time, from wherever its input is positioned.
+     */
+    private class TermCursor {
+
+        final ByteBuffer input = map.duplicate();
+        String term;
+        int count;
+        int postingsOffset;
+
+        TermCursor() {
+            input.position(dictionaryStart);
+        }
+
+        boolean next() {
+            if (input.position() >= dictionaryEnd) {
+                return false;
+            }
+            term = readString(input);
+            count = readVarInt(input);
+            postingsOffset = readVarInt(input);
+            return true;
+        }
+    }
+
+    /**
+     * A dictionary being walked by a merge, ordered by its current term and then by the age
+     * of its segment.
+     */
+    private static final class MergeCursor implements Comparable<MergeCursor> {
+
+        private final SearchSegment segment;
+        private final int order;
+        private final int firstDocument;
+        private final TermCursor cursor;
+        private String term;
+        private int count;
+        private int postingsOffset;
+
+        private MergeCursor(SearchSegment segment, int order, int firstDocument) {
+            this.segment = segment;
+            this.order = order;
+            this.firstDocument = firstDocument;
+            this.cursor = segment.new TermCursor();
+        }
+
+        private boolean next() {
+            if (!cursor.next()) {
+                return false;
+            }
+            term = cursor.term;
+            count = cursor.count;
+            postingsOffset = cursor.postingsOffset;
+            return true;
+        }
+
+        public int compareTo(MergeCursor other) {
+            int byTerm = term.compareTo(other.term);
+            return byTerm != 0 ? byTerm : Integer.compare(order, other.order);
+        }
+    }
+
+    /**
+     * Writes a segment file in order: messages, then terms. The file is written under a
+     * temporary name, forced onto the disk, and only then renamed, so that a segment file
+     * is always whole.
+     */
+    private static final class Writer {
+
+        private final Path directory;
+        private final long generation;
+        private final Path temporary;
+        private final DataOutputStream output;
+        private final List<Integer> documentOffsets = new ArrayList<>();
+        private final ByteArrayOutputStream dictionary = new ByteArrayOutputStream();
+        private int termCount = 0;
+        private int documentIndexStart = -1;
+
+        private Writer(Path directory, long generation) throws IOException {
+            this.directory = directory;
+            this.generation = generation;
+            this.temporary = directory.resolve(generation + EXTENSION + ".tmp");
+            this.output = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary,
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)));
+            output.writeInt(MAGIC);
+        }
+
+        private void addDocument(SearchIndex.Document document) throws IOException {
+            documentOffsets.add(position());
+            writeString(output, document.getRoom());
+            writeVarLong(output, document.getSequence());
+            writeString(output, document.getSender());
+            writeString(output, document.getText());
+        }
+
+        /**
+         * Copies every message of a segment as it is, without decoding it.
+         */
+        private void copyDocuments(SearchSegment segment) throws IOException {
+            int shift = position() - HEADER_LENGTH;
+            for (int i = 0; i < segment.documentCount; i++) {
+                documentOffsets.add(segment.map.getInt(segment.documentIndexStart + 4 * i) + shift);
+            }
+            ByteBuffer input = segment.map.duplicate();
+            input.position(HEADER_LENGTH).limit(segment.documentIndexStart);
+            byte[] chunk = new byte[Math.min(COPY_CHUNK, input.remaining())];
+            while (input.hasRemaining()) {
+                int length = Math.min(chunk.length, input.remaining());
+                input.get(chunk, 0, length);
+                output.write(chunk, 0, length);
+            }
+        }
+
+        private void endDocuments() throws IOException {
+            documentIndexStart = position();
+            for (int offset : documentOffsets) {
+                output.writeInt(offset);
+            }
+        }
+
+        private void addTerm(String term, Postings postings) throws IOException {
+            int offset = position();
+            int last = 0;
+            for (int i = 0; i < postings.size(); i++) {
+                writeVarInt(output, postings.get(i) - last);
+                last = postings.get(i);
+            }
+            writeString(dictionary, term);
+            writeVarInt(dictionary, postings.size());
+            writeVarInt(dictionary, offset);
+            termCount++;
+        }
+
+        private SearchSegment finish() throws IOException {
+            int dictionaryStart = position();
+            dictionary.writeTo(output);
+            output.writeInt(documentOffsets.size());
+            output.writeInt(termCount);
+            output.writeInt(documentIndexStart);
+            output.writeInt(dictionaryStart);
+            output.writeInt(MAGIC);
+            output.close();
+            try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(temporary, fileOf(directory, generation), StandardCopyOption.ATOMIC_MOVE,
+                    StandardCopyOption.REPLACE_EXISTING);
+            return open(directory, generation);
+        }
+
+        private void abort() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                // The file is deleted either way.
+            }
+            try {
+                Files.deleteIfExists(temporary);
+            } catch (IOException e) {
+                Log.warn("Could not delete " + temporary + ".");
+            }
+        }
+
+        /**
+         * Where the next byte is written. Offsets are ints, so a segment stops short of 2 GB.
+         */
+        private int position() throws IOException {
+            // The count of bytes written sticks at Integer.MAX_VALUE rather than overflowing.
+            int length = output.size();
+            if (length == Integer.MAX_VALUE) {
+                throw new IOException("Search segment " + generation + " would be over 2 GB.");
+            }
+            return length;
+        }
+    }
+}
@@ -13,6 +13,14 @@ public interface Server {
      */
     void terminalListen();
 
+    /**
+     * Defines a server being able to send a message that has been posted to a room to every
+     * one of its own clients in the room. Used by the fan out stage of the BroadcastPipeline.
+     *
+     * @param message : The message to send.
+     */
+    void deliverToRoom(ChatMessage message);
+
     /**
      * Defines a server being able to close itself.
      */
@@ -0,0 +1,169 @@
+/**
+ * The settings a server is started with, parsed from the command line of ChatServer.
+ * Every setting has a default, so a server can be started with no arguments at all.
+ */
+public class ServerConfig {
+
+    public int portNumber = 14001;
+    public boolean nio = false;
+    public int shardCount = Runtime.getRuntime().availableProcessors();
+    public boolean virtualThreads = false;
+    public int queueCapacity = OutboundQueue.DEFAULT_CAPACITY;
+    public SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DROP_NEWEST;
+    public int batchSize = FlushScheduler.DEFAULT_BATCH_SIZE;
+    public long flushDelayMicros = FlushScheduler.DEFAULT_FLUSH_DELAY_MICROS;
+    public String journalDirectory = null;
+    public int historyCount = MessageJournal.DEFAULT_HISTORY;
+    public long fsyncIntervalMillis = MessageJournal.DEFAULT_FSYNC_MILLIS;
+    // The directory to keep the search index in, or null to run without search.
+    public String searchDirectory = null;
+    // The peer link address of every node in the cluster, in node order, or null to run alone.
+    public String[] clusterPeers = null;
+    public int nodeIndex = 0;
+    public int ringCapacity = BroadcastPipeline.DEFAULT_CAPACITY;
+    public Log.Level logLevel = Log.Level.INFO;
+    // The rate limits of each user, each room and each address, or null for no limit.
+    public RateLimiter.Limit userLimit = null;
+    public RateLimiter.Limit roomLimit = null;
+    public RateLimiter.Limit addressLimit = null;
+    public FloodPolicy floodPolicy = FloodPolicy.THROTTLE;
+    // How long a client may be quiet before it is pinged, and before it is closed, or 0 for never.
+    public long heartbeatSeconds = 0;
+    public long idleTimeoutSeconds = 0;
+    // The loopback port to serve metrics on, or 0 to serve none.
+    public int metricsPort = 0;
+    // How often rooms are told who joined and left, or 0 for never.
+    public long presenceIntervalMillis = Presence.DEFAULT_INTERVAL_MILLIS;
+
+    /**
+     * Parses command line arguments into a configuration. Invalid or incomplete arguments
+     * are reported, and the defaults are kept for anything that could not be parsed.
+     *
+     * @param args : Command line arguments.
+     * @return : The parsed configuration.
+     */
+    public static ServerConfig fromArgs(String[] args) {
+        ServerConfig config = new ServerConfig();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                // If -csp found, try to make next argument port number.
+                if (args[i].equalsIgnoreCase("-csp")) {
+                    config.portNumber = Integer.parseInt(args[i + 1]);
+                }
+                if (args[i].equalsIgnoreCase("-nio")) {
+                    config.nio = true;
+                }
+                // If -shards found, try to make next argument the shard count.
+                if (args[i].equalsIgnoreCase("-shards")) {
+                    config.shardCount = Integer.parseInt(args[i + 1]);
+                    config.nio = true;
+                }
+                if (args[i].equalsIgnoreCase("-vthreads")) {
+                    config.virtualThreads = true;
+                }
+                // If -queue found, try to make next argument the outbound queue capacity.
+                if (args[i].equalsIgnoreCase("-queue")) {
+                    config.queueCapacity = Integer.parseInt(args[i + 1]);
+                }
+                // If -policy found, try to make next argument the slow consumer policy.
+                if (args[i].equalsIgnoreCase("-policy")) {
+                    config.slowConsumerPolicy = SlowConsumerPolicy.fromFlagName(args[i + 1]);
+                }
+                // If -batch found, try to make next argument the most messages written in one go.
+                if (args[i].equalsIgnoreCase("-batch")) {
+                    config.batchSize = Integer.parseInt(args[i + 1]);
+                }
+                // If -flushdelay found, try to make next argument the flush delay in microseconds.
+                if (args[i].equalsIgnoreCase("-flushdelay")) {
+                    config.flushDelayMicros = Long.parseLong(args[i + 1]);
+                }
+                // If -journal found, try to make next argument the directory to keep history in.
+                if (args[i].equalsIgnoreCase("-journal")) {
+                    config.journalDirectory = args[i + 1];
+                }
+                // If -history found, try to make next argument the number of messages replayed on joining.
+                if (args[i].equalsIgnoreCase("-history")) {
+                    config.historyCount = Integer.parseInt(args[i + 1]);
+                }
+                // If -fsync found, try to make next argument the fsync interval in milliseconds.
+                if (args[i].equalsIgnoreCase("-fsync")) {
+                    config.fsyncIntervalMillis = Long.parseLong(args[i + 1]);
+                }
+                // If -search found, try to make next argument the directory to keep the search index in.
+                if (args[i].equalsIgnoreCase("-search")) {
+                    config.searchDirectory = args[i + 1];
+                }
+                // If -peers found, try to make next argument the comma separated peer link addresses.
+                if (args[i].equalsIgnoreCase("-peers")) {
+                    config.clusterPeers = args[i + 1].split(",");
+                }
+                // If -node found, try to make next argument this node's index in the peer list.
+                if (args[i].equalsIgnoreCase("-node")) {
+                    config.nodeIndex = Integer.parseInt(args[i + 1]);
+                }
+                // If -ring found, try to make next argument the number of slots in the broadcast pipeline.
+                if (args[i].equalsIgnoreCase("-ring")) {
+                    config.ringCapacity = Integer.parseInt(args[i + 1]);
+                }
+                // If -log found, try to make next argument the least important level logged.
+                if (args[i].equalsIgnoreCase("-log")) {
+                    config.logLevel = Log.Level.fromFlagName(args[i + 1]);
+                }
+                // If -metrics found, try to make next argument the port to serve metrics on.
+                if (args[i].equalsIgnoreCase("-metrics")) {
+                    config.metricsPort = Integer.parseInt(args[i + 1]);
+                }
+                // If -userlimit found, try to make next argument the rate limit of each user.
+                if (args[i].equalsIgnoreCase("-userlimit")) {
+                    config.userLimit = RateLimiter.Limit.parse(args[i + 1]);
+                }
+                // If -roomlimit found, try to make next argument the rate limit of each room.
+                if (args[i].equalsIgnoreCase("-roomlimit")) {
+                    config.roomLimit = RateLimiter.Limit.parse(args[i + 1]);
+                }
+                // If -iplimit found, try to make next argument the rate limit of each address.
+                if (args[i].equalsIgnoreCase("-iplimit")) {
+                    config.addressLimit = RateLimiter.Limit.parse(args[i + 1]);
+                }
+                // If -flood found, try to make next argument what is done with messages over a limit.
+                if (args[i].equalsIgnoreCase("-flood")) {
+                    config.floodPolicy = FloodPolicy.fromFlagName(args[i + 1]);
+                }
+                // If -heartbeat found, try to make next argument the seconds of quiet before a ping.
+                if (args[i].equalsIgnoreCase("-heartbeat")) {
+                    config.heartbeatSeconds = Long.parseLong(args[i + 1]);
+                }
+                // If -idletimeout found, try to make next argument the seconds of quiet before closing.
+                if (args[i].equalsIgnoreCase("-idletimeout")) {
+                    config.idleTimeoutSeconds = Long.parseLong(args[i + 1]);
+                }
+                // If -presence found, try to make next argument how often rooms are told of joins and leaves.
+                if (args[i].equalsIgnoreCase("-presence")) {
+                    config.presenceIntervalMillis = Long.parseLong(args[i + 1]);
+                }
+            }
+            // Catch errors and allow defaults through.
+        } catch (NumberFormatException nfe) {
+            Log.warn("Invalid arguments. Using defaults instead.");
+        } catch (IllegalArgumentException iae) {
+            Log.warn(iae.getMessage() + ". Using defaults instead.");
+        } catch (IndexOutOfBoundsException ioe) {
+            Log.warn("Incorrect argument format. Using defaults instead.");
+        }
+        if (config.clusterPeers != null && (config.nodeIndex < 0 || config.nodeIndex >= config.clusterPeers.length)) {
+            Log.warn("Node index is not in the peer list. Running alone instead.");
+            config.clusterPeers = null;
+            config.nodeIndex = 0;
+        }
+        return config;
+    }
+
+    /**
+     * The number of nodes in the server's cluster.
+     *
+     * @return : The number of peers, or 1 if the server runs alone.
+     */
+    public int clusterSize() {
+        return clusterPeers == null ? 1 : clusterPeers.length;
+    }
+}
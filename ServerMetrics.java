@@ -0,0 +1,121 @@
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The metrics every server keeps, whichever way it handles its clients. Counters and
+ * histograms are updated where the work is done; gauges are read from the server only when
+ * the metrics are, so that keeping them costs nothing between reads.
+ * <p>
+ * The metrics can be printed with the STATS command, or scraped from the MetricsEndpoint.
+ */
+public class ServerMetrics {
+
+    private final Metrics registry = new Metrics();
+
+    public final Metrics.Counter connections = registry.counter("chat_connections_total",
+            "Connections accepted since the server started.");
+    public final Metrics.Counter messagesIn = registry.counter("chat_messages_in_total",
+            "Lines and frames read from clients.");
+    public final Metrics.Counter messagesOut = registry.counter("chat_messages_out_total",
+            "Messages written to clients, not counting history.");
+    public final Metrics.Counter bytesIn = registry.counter("chat_bytes_in_total",
+            "Bytes read from clients.");
+    public final Metrics.Counter bytesOut = registry.counter("chat_bytes_out_total",
+            "Bytes written to clients, including history.");
+    public final Metrics.Counter drops = registry.counter("chat_messages_dropped_total",
+            "Messages dropped by the slow consumer policy.");
+    public final Metrics.Counter evictions = registry.counter("chat_evictions_total",
+            "Clients disconnected for not keeping up with their messages.");
+    public final Metrics.Counter pings = registry.counter("chat_heartbeat_pings_total",
+            "Pings sent to clients that had gone quiet.");
+    public final Metrics.Counter idleTimeouts = registry.counter("chat_idle_timeouts_total",
+            "Clients closed for sending nothing for the idle timeout.");
+    public final Metrics.Counter userLimited = registry.counter("chat_rate_limited_user_total",
+            "Messages over their user's rate limit.");
+    public final Metrics.Counter addressLimited = registry.counter("chat_rate_limited_address_total",
+            "Messages over their address's rate limit.");
+    public final Metrics.Counter roomLimited = registry.counter("chat_rate_limited_room_total",
+            "Messages over their room's rate limit.");
+    public final Metrics.Counter floodDrops = registry.counter("chat_flood_dropped_total",
+            "Messages dropped for being over a rate limit.");
+    public final Metrics.Counter presenceChanges = registry.counter("chat_presence_changes_total",
+            "Users joining or leaving a room.");
+    public final Metrics.Counter presenceUpdates = registry.counter("chat_presence_updates_total",
+            "Messages sent to rooms listing who joined and left.");
+    public final LatencyHistogram fanOutLatency = registry.histogram("chat_fanout_latency_seconds",
+            "Time from a message being published to it being queued for every member of its room.");
+    public final LatencyHistogram queueTime = registry.histogram("chat_queue_time_seconds",
+            "Time a message waits in a client's outbound queue before being written.");
+    public final Metrics.Counter searchIndexed = registry.counter("chat_search_indexed_total",
+            "Messages added to the search index.");
+    public final Metrics.Counter searchQueries = registry.counter("chat_search_queries_total",
+            "Searches answered.");
+    public final LatencyHistogram searchLatency = registry.histogram("chat_search_latency_seconds",
+            "Time from a search being asked for to its results being queued for the client.");
+
+    /**
+     * Metrics constructor, which registers the gauges read from the server's clients and the JVM.
+     *
+     * @param clients : The registry of the server's connected clients.
+     */
+    public ServerMetrics(ClientRegistry<? extends ChatMember> clients) {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        registry.gauge("chat_clients", "Clients currently connected.", clients::size);
+        registry.gaugeFamily("chat_client_queue_depth", "Messages waiting in each client's outbound queue.",
+                "client", () -> {
+                    Map<String, Long> depths = new LinkedHashMap<>();
+                    for (ChatMember client : clients) {
+                        depths.put(client.getUsername(), (long) client.getQueueDepth());
+                    }
+                    return depths;
+                });
+        registry.gauge("chat_threads", "Live threads in the JVM.", threads::getThreadCount);
+        registry.gauge("chat_daemon_threads", "Live daemon threads in the JVM.", threads::getDaemonThreadCount);
+        registry.gauge("chat_log_dropped", "Log messages dropped because the log's queue was full.",
+                Log::getDroppedCount);
+        registry.gauge("chat_buffer_pool_free_bytes", "Bytes of direct buffers free in the buffer pool.",
+                BufferPool.SHARED::getFreeBytes);
+        registry.gauge("chat_buffer_pool_allocated_bytes", "Bytes of direct buffers the buffer pool has allocated.",
+                BufferPool.SHARED::getAllocatedBytes);
+    }
+
+    /**
+     * Registers the gauges read from the server's broadcast pipeline.
+     *
+     * @param pipeline : The pipeline the server's messages go through.
+     */
+    public void watch(BroadcastPipeline pipeline) {
+        registry.gauge("chat_pipeline_in_flight", "Messages published to the pipeline but not yet fanned out.",
+                pipeline::getInFlight);
+    }
+
+    /**
+     * Registers the gauges read from the server's search index.
+     *
+     * @param index : The index of the server's messages.
+     */
+    public void watch(SearchIndex index) {
+        registry.gauge("chat_search_segments", "Segments the search index is made of.", index::getSegmentCount);
+        registry.gauge("chat_search_merges", "Merges of search segments since the server started.", index::getMerges);
+    }
+
+    /**
+     * Describes every metric for operators, one line each.
+     *
+     * @return : The description.
+     */
+    public String describe() {
+        return registry.describe();
+    }
+
+    /**
+     * Writes every metric in the Prometheus text format.
+     *
+     * @return : The metrics.
+     */
+    public String expose() {
+        return registry.expose();
+    }
+}
@@ -0,0 +1,243 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Issues and checks the session tokens that let a client that lost its connection come back
+ * as the same user, in the same rooms, without logging in again.
+ * <p>
+ * A token holds the username and rooms of a client, signed with a key only the server knows,
+ * so the server keeps nothing for a session and a token can be checked without looking
+ * anything up. A client asks for a fresh token whenever its rooms change. If the server keeps
+ * a journal, the key is kept in its directory so that tokens outlive a restart, and so is the
+ * highest unique ID handed out, so that a username is never given to a new client while a
+ * token for it may still be resumed. In a cluster, each node only hands out the unique IDs
+ * that leave its own index when divided by the size of the cluster, so no two nodes ever give
+ * out the same username.
+ */
+public class SessionManager {
+
+    public static final String KEY_FILE = "session.key";
+    public static final String UID_FILE = "session.uid";
+    public static final long TOKEN_LIFETIME_SECONDS = 24 * 60 * 60;
+    // Unique IDs are reserved on disk this many at a time.
+    private static final int UID_BLOCK = 1024;
+    private static final int KEY_LENGTH = 32;
+    private static final int SIGNATURE_LENGTH = 16;
+
+    private final SecretKeySpec key;
+    private final Path uidFile;
+    private final int clusterSize;
+    private final int nodeIndex;
+    private final ReentrantLock uidLock = new ReentrantLock();
+    // IDs are counted per node, and the count is spread across the cluster.
+    private int nextUid;
+    private int reservedUid;
+
+    /**
+     * Session manager constructor.
+     *
+     * @param key      : The key tokens are signed with.
+     * @param uidFile  : The file the highest reserved unique ID is kept in, or null to keep it in memory.
+     * @param firstUid : The count of the first unique ID to hand out.
+     * @param config   : The settings of the server, which place it in its cluster.
+     */
+    private SessionManager(byte[] key, Path uidFile, int firstUid, ServerConfig config) {
+        this.key = new SecretKeySpec(key, "HmacSHA256");
+        this.uidFile = uidFile;
+        this.clusterSize = config.clusterSize();
+        this.nodeIndex = config.nodeIndex;
+        this.nextUid = firstUid;
+        this.reservedUid = firstUid;
+    }
+
+    /**
+     * Opens the session manager configured for a server. Without a journal directory the key is
+     * made up for this run only, so sessions can be resumed until the server restarts.
+     *
+     * @param config : The settings of the server.
+     * @return : The session manager.
+     */
+    public static SessionManager open(ServerConfig config) {
+        if (config.journalDirectory != null) {
+            try {
+                Path directory = Paths.get(config.journalDirectory);
+                Files.createDirectories(directory);
+                Path keyFile = directory.resolve(KEY_FILE);
+                byte[] key;
+                if (Files.exists(keyFile)) {
+                    key = Files.readAllBytes(keyFile);
+                } else {
+                    key = newKey();
+                    Files.write(keyFile, key, StandardOpenOption.CREATE_NEW, StandardOpenOption.SYNC);
+                }
+                Path uidFile = directory.resolve(UID_FILE);
+                int firstUid = 0;
+                if (Files.exists(uidFile)) {
+                    firstUid = Integer.parseInt(new String(Files.readAllBytes(uidFile), StandardCharsets.UTF_8).trim());
+                }
+                return new SessionManager(key, uidFile, firstUid, config);
+            } catch (IOException | NumberFormatException e) {
+                Log.warn("Could not open session key. Sessions will not survive a restart.");
+            }
+        }
+        return new SessionManager(newKey(), null, 0, config);
+    }
+
+    /**
+     * Makes up a new random key.
+     *
+     * @return : The key.
+     */
+    private static byte[] newKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Hands out the next unique ID for a new client's username. If the IDs are kept on disk, a
+     * block of them is reserved at a time, so the file is only written once per block.
+     *
+     * @return : The unique ID, which is unique across the cluster.
+     */
+    public int nextUid() {
+        uidLock.lock();
+        try {
+            if (uidFile != null && nextUid == reservedUid) {
+                reservedUid = nextUid + UID_BLOCK;
+                try {
+                    Files.write(uidFile, Integer.toString(reservedUid).getBytes(StandardCharsets.UTF_8),
+                            StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.SYNC);
+                } catch (IOException e) {
+                    Log.warn("Failed to record reserved user IDs.");
+                }
+            }
+            return nextUid++ * clusterSize + nodeIndex;
+        } finally {
+            uidLock.unlock();
+        }
+    }
+
+    /**
+     * Issues a token for a client's session as it stands: its username and the rooms it is in,
+     * with its current room last.
+     *
+     * @param member : The client to issue the token for.
+     * @return : The token, a single word.
+     */
+    public String issue(ChatMember member) {
+        StringBuilder payload = new StringBuilder(member.getUsername())
+                .append('\n').append(System.currentTimeMillis() / 1000).append('\n');
+        Room currentRoom = member.getRoomMembership().getCurrentRoom();
+        for (Room room : member.getRoomMembership().getRooms()) {
+            if (room != currentRoom) {
+                payload.append(room.getName()).append(',');
+            }
+        }
+        if (currentRoom != null) {
+            payload.append(currentRoom.getName());
+        }
+        byte[] payloadBytes = payload.toString().getBytes(StandardCharsets.UTF_8);
+        Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+        return encoder.encodeToString(payloadBytes) + "." + encoder.encodeToString(sign(payloadBytes));
+    }
+
+    /**
+     * Checks a token, and reads the session it was issued for.
+     *
+     * @param token : The token a client has sent.
+     * @return : The session, or null if the token is malformed, was not signed by this server,
+     * or has expired.
+     */
+    public Session verify(String token) {
+        int dot = token.indexOf('.');
+        if (dot == -1) {
+            return null;
+        }
+        byte[] payloadBytes;
+        byte[] signature;
+        try {
+            payloadBytes = Base64.getUrlDecoder().decode(token.substring(0, dot));
+            signature = Base64.getUrlDecoder().decode(token.substring(dot + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(signature, sign(payloadBytes))) {
+            return null;
+        }
+        String[] parts = new String(payloadBytes, StandardCharsets.UTF_8).split("\n", -1);
+        if (parts.length != 3) {
+            return null;
+        }
+        try {
+            long issued = Long.parseLong(parts[1]);
+            if (System.currentTimeMillis() / 1000 - issued > TOKEN_LIFETIME_SECONDS) {
+                return null;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        List<String> rooms = parts[2].isEmpty() ? Collections.emptyList() : Arrays.asList(parts[2].split(","));
+        return new Session(parts[0], new ArrayList<>(rooms));
+    }
+
+    /**
+     * Signs a token's payload. A new Mac is made each time, as they cannot be shared between
+     * threads and tokens are only signed when a client's rooms change.
+     *
+     * @param payload : The payload to sign.
+     * @return : The signature.
+     */
+    private byte[] sign(byte[] payload) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            return Arrays.copyOf(mac.doFinal(payload), SIGNATURE_LENGTH);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 is not available", e);
+        }
+    }
+
+    /**
+     * The session a token was issued for.
+     */
+    public static class Session {
+
+        private final String username;
+        private final List<String> rooms;
+
+        /**
+         * Session constructor.
+         *
+         * @param username : The username of the client.
+         * @param rooms    : The names of the rooms the client was in, with its current room last.
+         */
+        public Session(String username, List<String> rooms) {
+            this.username = username;
+            this.rooms = rooms;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public List<String> getRooms() {
+            return rooms;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+/**
+ * What a server does when a client's outbound queue fills up because the client
+ * is not reading its messages as fast as they are being sent.
+ */
+public enum SlowConsumerPolicy {
+
+    /**
+     * Discards the oldest queued message to make room for the new one.
+     */
+    DROP_OLDEST("drop-oldest"),
+
+    /**
+     * Discards the new message, keeping the queue as it is.
+     */
+    DROP_NEWEST("drop-newest"),
+
+    /**
+     * Disconnects the client once its queue reaches the high-water mark.
+     */
+    DISCONNECT("disconnect"),
+
+    /**
+     * Keeps the new message and stops reading from the client that sent it until the
+     * slow client's queue has drained below its low-water mark.
+     */
+    PAUSE_SENDER("pause");
+
+    private final String flagName;
+
+    SlowConsumerPolicy(String flagName) {
+        this.flagName = flagName;
+    }
+
+    public String getFlagName() {
+        return flagName;
+    }
+
+    /**
+     * Finds the policy with the given command line name.
+     *
+     * @param flagName : The name given on the command line, such as "drop-oldest".
+     * @return : The matching policy.
+     * @throws IllegalArgumentException : If no policy has that name.
+     */
+    public static SlowConsumerPolicy fromFlagName(String flagName) {
+        for (SlowConsumerPolicy policy : values()) {
+            if (policy.flagName.equalsIgnoreCase(flagName)) {
+                return policy;
+            }
+        }
+        throw new IllegalArgumentException("Unknown slow consumer policy: " + flagName);
+    }
+}
@@ -0,0 +1,176 @@
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A hashed timing wheel: a ring of slots, each holding the timeouts that fall due in one tick
+ * of the wheel, with timeouts further off than one turn of the wheel counting down the turns
+ * left. Scheduling and cancelling a timeout take constant time however many are waiting, and
+ * advancing the wheel only looks at the slots of the ticks that have passed.
+ * <p>
+ * Any thread may schedule or cancel a timeout. A single thread advances the wheel, and the
+ * tasks of expired timeouts run on that thread, so they must not block. Timeouts are only as
+ * precise as the wheel's tick, which suits timeouts of seconds such as heartbeats.
+ */
+public class TimingWheel {
+
+    public static final long DEFAULT_TICK_NANOS = 100_000_000;
+    public static final int DEFAULT_SIZE = 512;
+
+    private final Timeout[] slots;
+    private final int mask;
+    private final long tickNanos;
+    // Timeouts scheduled since the wheel last advanced, which only the advancing thread places.
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final long startNanos;
+    // The number of ticks the wheel has advanced through. Only used by the advancing thread.
+    private long ticks = 0;
+
+    /**
+     * Timing wheel constructor, using the default tick and size.
+     */
+    public TimingWheel() {
+        this(DEFAULT_TICK_NANOS, DEFAULT_SIZE);
+    }
+
+    /**
+     * Timing wheel constructor.
+     *
+     * @param tickNanos : How long each slot of the wheel lasts.
+     * @param size      : The number of slots in the wheel, rounded up to a power of two.
+     */
+    public TimingWheel(long tickNanos, int size) {
+        int slotCount = Integer.highestOneBit(Math.max(2, size) - 1) << 1;
+        this.slots = new Timeout[slotCount];
+        this.mask = slotCount - 1;
+        this.tickNanos = Math.max(1, tickNanos);
+        this.startNanos = System.nanoTime();
+    }
+
+    public long getTickNanos() {
+        return tickNanos;
+    }
+
+    /**
+     * Schedules a task to run once a delay has passed, on the thread advancing the wheel.
+     *
+     * @param task       : The task to run.
+     * @param delayNanos : How long to wait before running it, rounded up to the wheel's tick.
+     * @return : The timeout, which can be cancelled.
+     */
+    public Timeout schedule(Runnable task, long delayNanos) {
+        Timeout timeout = new Timeout(task, System.nanoTime() - startNanos + Math.max(0, delayNanos));
+        scheduled.offer(timeout);
+        return timeout;
+    }
+
+    /**
+     * Advances the wheel to the given time, running the task of every timeout that has expired.
+     * Must only ever be called from one thread at a time.
+     *
+     * @param nowNanos : The current time, from System.nanoTime().
+     */
+    public void advance(long nowNanos) {
+        long targetTick = (nowNanos - startNanos) / tickNanos;
+        while (ticks <= targetTick) {
+            placeScheduled();
+            expire(slot(ticks));
+            ticks++;
+        }
+    }
+
+    /**
+     * How long until the wheel next needs advancing, which is at the end of its current tick.
+     *
+     * @param nowNanos : The current time, from System.nanoTime().
+     * @return : The time until the next tick, in nanoseconds.
+     */
+    public long nanosUntilNextTick(long nowNanos) {
+        return Math.max(0, startNanos + ticks * tickNanos - nowNanos);
+    }
+
+    /**
+     * Places every newly scheduled timeout in the slot of the tick it falls due in, or the
+     * current slot if that tick has already passed.
+     */
+    private void placeScheduled() {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.cancelled) {
+                continue;
+            }
+            long dueTick = Math.max(ticks, (timeout.dueNanos + tickNanos - 1) / tickNanos);
+            timeout.remainingTurns = (dueTick - ticks) / slots.length;
+            int index = slot(dueTick);
+            timeout.next = slots[index];
+            slots[index] = timeout;
+        }
+    }
+
+    /**
+     * Runs the timeouts of a slot that are due this turn of the wheel, and counts down the
+     * turns of the rest. Cancelled timeouts are dropped as they are passed.
+     *
+     * @param index : The slot.
+     */
+    private void expire(int index) {
+        Timeout previous = null;
+        Timeout timeout = slots[index];
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.cancelled || timeout.remainingTurns == 0) {
+                if (previous == null) {
+                    slots[index] = next;
+                } else {
+                    previous.next = next;
+                }
+                timeout.next = null;
+                if (!timeout.cancelled) {
+                    runTask(timeout);
+                }
+            } else {
+                timeout.remainingTurns--;
+                previous = timeout;
+            }
+            timeout = next;
+        }
+    }
+
+    private void runTask(Timeout timeout) {
+        try {
+            timeout.task.run();
+        } catch (RuntimeException e) {
+            Log.error("A timeout failed to run its task.", e);
+        }
+    }
+
+    private int slot(long tick) {
+        return (int) (tick & mask);
+    }
+
+    /**
+     * A task scheduled on the wheel.
+     */
+    public static final class Timeout {
+
+        private final Runnable task;
+        // When the timeout is due, counted from when the wheel started.
+        private final long dueNanos;
+        private volatile boolean cancelled = false;
+        // Only used by the advancing thread.
+        private long remainingTurns;
+        private Timeout next;
+
+        private Timeout(Runnable task, long dueNanos) {
+            this.task = task;
+            this.dueNanos = dueNanos;
+        }
+
+        /**
+         * Stops the timeout's task from running, if it has not already. It is dropped from
+         * the wheel the next time the wheel passes it.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
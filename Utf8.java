@@ -0,0 +1,73 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes text as UTF-8 straight into a byte buffer, without the intermediate byte arrays
+ * that String.getBytes() allocates. Encodes exactly as String.getBytes(StandardCharsets.UTF_8)
+ * does, including replacing a lone surrogate with '?'.
+ */
+public final class Utf8 {
+
+    private Utf8() {
+    }
+
+    /**
+     * The number of bytes a string takes in UTF-8.
+     *
+     * @param text : The string.
+     * @return : The length of its encoding.
+     */
+    public static int encodedLength(String text) {
+        int length = text.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                continue;
+            }
+            if (c < 0x800) {
+                bytes += 1;
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                // The pair takes four bytes for its two chars.
+                bytes += 2;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Replaced by '?'.
+                continue;
+            } else {
+                bytes += 2;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * Encodes a string at the buffer's position, moving the position past it.
+     *
+     * @param text   : The string.
+     * @param buffer : The buffer, with at least encodedLength(text) bytes remaining.
+     */
+    public static void encode(String text, ByteBuffer buffer) {
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, text.charAt(++i));
+                buffer.put((byte) (0xF0 | (codePoint >> 18)));
+                buffer.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+                buffer.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (codePoint & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                buffer.put((byte) '?');
+            } else {
+                buffer.put((byte) (0xE0 | (c >> 12)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+}
@@ -0,0 +1,53 @@
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Looks up the virtual thread factory of the running JVM. Virtual threads only exist
+ * from Java 21 onwards, so they are found reflectively to keep the rest of the
+ * system compiling and running on older JVMs.
+ */
+public final class VirtualThreads {
+
+    private static final ThreadFactory VIRTUAL_FACTORY = lookupFactory();
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * Whether the running JVM supports virtual threads.
+     *
+     * @return : True if virtual threads can be created.
+     */
+    public static boolean isSupported() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Returns a factory that starts virtual threads when asked to and when they are supported,
+     * and ordinary platform threads otherwise.
+     *
+     * @param virtual : Whether virtual threads are wanted.
+     * @return : The thread factory to use.
+     */
+    public static ThreadFactory factory(boolean virtual) {
+        if (virtual && VIRTUAL_FACTORY != null) {
+            return VIRTUAL_FACTORY;
+        }
+        return Thread::new;
+    }
+
+    /**
+     * Equivalent to Thread.ofVirtual().factory() on a JVM that has it.
+     *
+     * @return : The virtual thread factory, or null if the JVM has none.
+     */
+    private static ThreadFactory lookupFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+import chatbench.Fixtures;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Drives the chat application's own classes for the benchmarks in chatbench, which cannot
+ * refer to them from their named package. Loaded by name through Fixtures.load().
+ */
+public class BenchFixtures implements Fixtures {
+
+    private static final String ROOM = "bench";
+    // Small, so that ten thousand members without writers stay in memory; the oldest message is dropped.
+    private static final int QUEUE_CAPACITY = 16;
+
+    public Broadcast openBroadcast(int recipients) {
+        return new StubRoom(recipients);
+    }
+
+    public Decoding lineDecoding(String[] inputs) {
+        ByteBuffer input = ByteBuffer.allocate(1 << 20);
+        for (String line : inputs) {
+            input.put((line + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        input.flip();
+        return new StubDecoding(input, null);
+    }
+
+    public Decoding frameDecoding(String[] inputs) {
+        ByteBuffer input = ByteBuffer.allocate(1 << 20);
+        for (String payload : inputs) {
+            input.put(new Frame(Frame.Type.MESSAGE, Frame.NO_ROOM, 0, payload).encode());
+        }
+        input.flip();
+        ByteBuffer handshake = ByteBuffer.wrap((Frame.HANDSHAKE_REQUEST + "\n").getBytes(StandardCharsets.UTF_8));
+        return new StubDecoding(input, handshake);
+    }
+
+    public Encoding openEncoding(int recipients, boolean framed) {
+        return new StubEncoding(recipients, framed);
+    }
+
+    public BotDispatch openBot() throws Exception {
+        return new StubBot();
+    }
+
+    public RegistryChurn registryChurn(int size) {
+        return new StubRegistry(size);
+    }
+
+    /**
+     * A threaded server whose room is filled with ClientThreads on stub sockets. Their reading
+     * and writing threads are never started, so a broadcast is measured from the sender's
+     * broadcast() to the message being queued for the last member, through the server's
+     * BroadcastPipeline.
+     */
+    private static final class StubRoom implements Broadcast {
+
+        private final ChatServer server;
+        private final ClientThread sender;
+        private final DeliveryCounter counter = new DeliveryCounter();
+        private long sent = 0;
+
+        private StubRoom(int recipients) {
+            ServerConfig config = new ServerConfig();
+            config.portNumber = 0;
+            server = new ChatServer(config);
+            ClientThread first = null;
+            // The counter is one of the members, and is counted as a recipient.
+            for (int uid = 0; uid < recipients - 1; uid++) {
+                ClientThread client = new ClientThread(new StubSocket(), uid, "User" + uid, server,
+                        new OutboundQueue(QUEUE_CAPACITY, SlowConsumerPolicy.DROP_OLDEST));
+                server.getCommandHandler().handle(client, "/join " + ROOM);
+                if (first == null) {
+                    first = client;
+                }
+            }
+            server.getCommandHandler().handle(counter, "/join " + ROOM);
+            sender = first;
+        }
+
+        public void broadcastAndWait(String text) {
+            long target = ++sent;
+            sender.broadcast(text);
+            while (counter.delivered < target) {
+                Thread.yield();
+            }
+        }
+
+        public void close() {
+            server.closeServer();
+        }
+    }
+
+    /**
+     * A room whose members are only outbound queues. A message goes the way a broadcast does from
+     * the pipeline's sequence stage on: Room.post() encodes it into a pooled buffer, it is queued
+     * for every member and released by its creator, and each member's writer takes it from its
+     * queue, copies it into a pooled output buffer and releases it, which returns its encoded
+     * bytes to the pool once the last member has done so.
+     */
+    private static final class StubEncoding implements Encoding {
+
+        private final Room room = new Room(ROOM, 1, 1);
+        private final DeliveryCounter origin = new DeliveryCounter();
+        private final OutboundQueue[] queues;
+        private final boolean framed;
+        private final ChatMessage[] batch = new ChatMessage[1];
+        private final ByteBuffer output = BufferPool.SHARED.acquire(16 * 1024);
+        private long globalSequence = 0;
+
+        private StubEncoding(int recipients, boolean framed) {
+            this.framed = framed;
+            queues = new OutboundQueue[recipients];
+            for (int i = 0; i < recipients; i++) {
+                queues[i] = new OutboundQueue(QUEUE_CAPACITY);
+            }
+        }
+
+        public long encodeAndWrite(String text) {
+            ChatMessage message = room.post(origin, text, ++globalSequence);
+            for (OutboundQueue queue : queues) {
+                queue.offer(message);
+            }
+            message.release();
+            long copied = 0;
+            for (OutboundQueue queue : queues) {
+                int count = queue.drainTo(batch);
+                for (int i = 0; i < count; i++) {
+                    ChatMessage queued = batch[i];
+                    batch[i] = null;
+                    int length = queued.encodedLength(framed);
+                    int offset = 0;
+                    while (offset < length) {
+                        output.clear();
+                        offset += queued.copyTo(framed, offset, output);
+                    }
+                    copied += length;
+                    queued.release();
+                }
+            }
+            return copied;
+        }
+
+        public void close() {
+            BufferPool.SHARED.release(output);
+        }
+    }
+
+    /**
+     * A member of the room that counts the messages delivered to it.
+     */
+    private static final class DeliveryCounter implements ChatMember {
+
+        private final RoomMembership roomMembership = new RoomMembership();
+        // Only written by the pipeline's fan out stage.
+        private volatile long delivered = 0;
+
+        public String getUsername() {
+            return "Counter";
+        }
+
+        public void setUsername(String username) {
+        }
+
+        public int getUid() {
+            return Integer.MAX_VALUE;
+        }
+
+        public int getPartition() {
+            return 0;
+        }
+
+        public RoomMembership getRoomMembership() {
+            return roomMembership;
+        }
+
+        public void send(String message) {
+        }
+
+        public void deliver(ChatMessage message) {
+            if (message.getRoom() != null) {
+                delivered++;
+            }
+        }
+
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * A socket that is never connected: it reads nothing and discards whatever is written.
+     */
+    private static final class StubSocket extends Socket {
+
+        public InputStream getInputStream() {
+            return InputStream.nullInputStream();
+        }
+
+        public OutputStream getOutputStream() {
+            return OutputStream.nullOutputStream();
+        }
+
+        public void shutdownInput() {
+        }
+
+        public void close() {
+        }
+    }
+
+    /**
+     * The whole input of a client, decoded by a fresh ProtocolDecoder each time, after the
+     * handshake if the client is on frames.
+     */
+    private static final class StubDecoding implements Decoding {
+
+        private final ByteBuffer input;
+        private final ByteBuffer handshake;
+        private final List<String> inputs = new ArrayList<>();
+
+        private StubDecoding(ByteBuffer input, ByteBuffer handshake) {
+            this.input = input;
+            this.handshake = handshake;
+        }
+
+        public int decodeAll() {
+            ProtocolDecoder decoder = new ProtocolDecoder();
+            inputs.clear();
+            try {
+                if (handshake != null) {
+                    decoder.decode(handshake.duplicate(), inputs);
+                }
+                decoder.decode(input.duplicate(), inputs);
+            } catch (ProtocolDecoder.ProtocolException e) {
+                throw new IllegalStateException(e);
+            }
+            return inputs.size();
+        }
+    }
+
+    /**
+     * A ChatBot connected to a socket that is listened on but never accepted, so that the bot
+     * can be built without a server.
+     */
+    private static final class StubBot implements BotDispatch {
+
+        private final ServerSocket stubServer;
+        private final ChatBot bot;
+
+        private StubBot() throws Exception {
+            stubServer = new ServerSocket(0);
+            bot = new ChatBot("localhost", stubServer.getLocalPort());
+        }
+
+        public String replyTo(String message) {
+            return bot.replyTo(message);
+        }
+
+        public void close() {
+            bot.closeClient();
+            try {
+                stubServer.close();
+            } catch (Exception e) {
+                // Nothing more to close.
+            }
+        }
+    }
+
+    /**
+     * A ClientRegistry holding stub members, through which one more member keeps passing.
+     */
+    private static final class StubRegistry implements RegistryChurn {
+
+        private final ClientRegistry<RegisteredMember> registry = new ClientRegistry<>();
+        private int nextUid;
+
+        private StubRegistry(int size) {
+            for (nextUid = 0; nextUid < size; nextUid++) {
+                registry.add(new RegisteredMember(nextUid, "User" + nextUid));
+            }
+        }
+
+        public int churn() {
+            RegisteredMember member = new RegisteredMember(nextUid, "User" + nextUid);
+            nextUid++;
+            registry.add(member);
+            String resumed = "Resumed" + member.getUid();
+            registry.rename(member.getUsername(), resumed);
+            member.setUsername(resumed);
+            registry.remove(member);
+            return registry.size();
+        }
+    }
+
+    /**
+     * A member that is only ever registered, never sent anything.
+     */
+    private static final class RegisteredMember implements ChatMember {
+
+        private final int uid;
+        private String username;
+
+        private RegisteredMember(int uid, String username) {
+            this.uid = uid;
+            this.username = username;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public void setUsername(String username) {
+            this.username = username;
+        }
+
+        public int getUid() {
+            return uid;
+        }
+
+        public int getPartition() {
+            return 0;
+        }
+
+        public RoomMembership getRoomMembership() {
+            return null;
+        }
+
+        public void send(String message) {
+        }
+
+        public void deliver(ChatMessage message) {
+        }
+
+        public int getQueueDepth() {
+            return 0;
+        }
+
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time a ChatBot takes to decide how to answer a message it has read: walking its
+ * command trie from the text after ": " and running the handler found, which it does for
+ * every message in its rooms.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BotDispatchBenchmark {
+
+    @Param({"User0: !hello", "User0: just chatting away", "[games] User0: !square", "Your username is: User0"})
+    public String message;
+
+    private Fixtures.BotDispatch bot;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        bot = Fixtures.load().openBot();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        bot.close();
+    }
+
+    @Benchmark
+    public String dispatch() {
+        return bot.replyTo(message);
+    }
+}
@@ -0,0 +1,50 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time from a client's broadcast to the message being queued for every member of its
+ * room, on the threaded server with ClientThreads on stub sockets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class BroadcastBenchmark {
+
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private Fixtures.Broadcast room;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        room = Fixtures.load().openBroadcast(recipients);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        room.close();
+    }
+
+    @Benchmark
+    public void fanOut() {
+        room.broadcastAndWait("The quick brown fox jumps over the lazy dog");
+    }
+}
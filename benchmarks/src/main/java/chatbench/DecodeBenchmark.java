@@ -0,0 +1,62 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time a ProtocolDecoder takes over one message of a client's input, for the same
+ * messages sent as lines and as frames.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DecodeBenchmark {
+
+    private static final int MESSAGES = 1000;
+
+    @Param({"16", "256"})
+    public int messageLength;
+
+    private Fixtures.Decoding lines;
+    private Fixtures.Decoding frames;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        char[] text = new char[messageLength];
+        Arrays.fill(text, 'x');
+        String[] inputs = new String[MESSAGES];
+        Arrays.fill(inputs, new String(text));
+        Fixtures fixtures = Fixtures.load();
+        lines = fixtures.lineDecoding(inputs);
+        frames = fixtures.frameDecoding(inputs);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int lineDecoding() {
+        return lines.decodeAll();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int frameDecoding() {
+        return frames.decodeAll();
+    }
+}
@@ -0,0 +1,54 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time taken to encode a message sent to a room and copy it out through the writer of every
+ * member, as lines and as frames. Run with '-prof gc' to see the bytes allocated per message,
+ * which with pooled buffers should not grow with the number of members.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({"1", "100"})
+    public int recipients;
+
+    @Param({"false", "true"})
+    public boolean framed;
+
+    private Fixtures.Encoding room;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        room = Fixtures.load().openEncoding(recipients, framed);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        room.close();
+    }
+
+    @Benchmark
+    public long encodeAndWrite() {
+        return room.encodeAndWrite("a message of about the length people usually type, héllo");
+    }
+}
@@ -0,0 +1,150 @@
+package chatbench;
+
+/**
+ * The parts of the chat application that the benchmarks drive. The application's classes are
+ * in the default package, which code in a named package cannot refer to, so they are only used
+ * from BenchFixtures, in the default package too, which the benchmarks load by name.
+ */
+public interface Fixtures {
+
+    String IMPLEMENTATION = "BenchFixtures";
+
+    /**
+     * Loads the fixtures that drive the application's own classes.
+     *
+     * @return : The fixtures.
+     */
+    static Fixtures load() {
+        try {
+            return (Fixtures) Class.forName(IMPLEMENTATION).getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not load " + IMPLEMENTATION, e);
+        }
+    }
+
+    /**
+     * Starts a threaded server with one room, whose members are ClientThreads on stub sockets.
+     *
+     * @param recipients : The number of members in the room, including the sender.
+     * @return : The room, ready for broadcasts.
+     * @throws Exception : If the server could not be started.
+     */
+    Broadcast openBroadcast(int recipients) throws Exception;
+
+    /**
+     * Prepares the input of a client on the line protocol.
+     *
+     * @param inputs : The lines the client sends.
+     * @return : A decoder for that input.
+     */
+    Decoding lineDecoding(String[] inputs);
+
+    /**
+     * Prepares the input of a client on the binary frame protocol, after its handshake.
+     *
+     * @param inputs : The payloads of the frames the client sends.
+     * @return : A decoder for that input.
+     */
+    Decoding frameDecoding(String[] inputs);
+
+    /**
+     * Prepares a room whose members each have an outbound queue and a writer that copies their
+     * messages into a pooled buffer, as a server's writers do, without sockets or threads.
+     *
+     * @param recipients : The number of members in the room.
+     * @param framed     : Whether the members are on the binary frame protocol.
+     * @return : The room, ready for messages.
+     */
+    Encoding openEncoding(int recipients, boolean framed);
+
+    /**
+     * Starts a ChatBot connected to a stub server that never answers.
+     *
+     * @return : The bot.
+     * @throws Exception : If the stub server could not be opened.
+     */
+    BotDispatch openBot() throws Exception;
+
+    /**
+     * Creates a client registry already holding a number of clients.
+     *
+     * @param size : The number of clients registered.
+     * @return : The registry.
+     */
+    RegistryChurn registryChurn(int size);
+
+    /**
+     * A room on a running server.
+     */
+    interface Broadcast extends AutoCloseable {
+
+        /**
+         * Sends a message from one member to the room, and waits until it has been queued for every member.
+         *
+         * @param text : The message.
+         */
+        void broadcastAndWait(String text);
+
+        void close();
+    }
+
+    /**
+     * Prepared input for a client's ProtocolDecoder.
+     */
+    interface Decoding {
+
+        /**
+         * Decodes the whole of the prepared input.
+         *
+         * @return : The number of inputs decoded.
+         */
+        int decodeAll();
+    }
+
+    /**
+     * A room whose members' writers are driven by hand.
+     */
+    interface Encoding extends AutoCloseable {
+
+        /**
+         * Posts a message to the room, encoding it, queues it for every member, and has every
+         * member's writer copy it out and release it.
+         *
+         * @param text : The text of the message.
+         * @return : The number of bytes the writers copied.
+         */
+        long encodeAndWrite(String text);
+
+        void close();
+    }
+
+    /**
+     * A ChatBot's handling of the messages it reads.
+     */
+    interface BotDispatch extends AutoCloseable {
+
+        /**
+         * Interprets a message from the server as a possible command.
+         *
+         * @param message : The message.
+         * @return : The reply, or null if the message is not a command.
+         */
+        String replyTo(String message);
+
+        void close();
+    }
+
+    /**
+     * A client registry that clients keep joining and leaving.
+     */
+    interface RegistryChurn {
+
+        /**
+         * Registers a new client, resumes it under another username, and removes it again, the
+         * way a client that connects, resumes a session and disconnects goes through the registry.
+         *
+         * @return : The number of clients registered afterwards.
+         */
+        int churn();
+    }
+}
@@ -0,0 +1,44 @@
+package chatbench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The time a client takes to pass through a ClientRegistry that already holds many clients:
+ * registering, being renamed by a resumed session, and being removed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegistryChurnBenchmark {
+
+    @Param({"100", "100000"})
+    public int registered;
+
+    private Fixtures.RegistryChurn registry;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        registry = Fixtures.load().registryChurn(registered);
+    }
+
+    @Benchmark
+    public int churn() {
+        return registry.churn();
+    }
+}